@@ -3,12 +3,33 @@ package com.samsung.multiroom.config;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
 @Component
 @ConfigurationProperties(prefix = "music")
 public class MusicLibraryConfig {
     
     private String libraryPath = "./music"; // Default path
     
+    private List<String> libraryPaths = new ArrayList<>(); // Additional library roots
+    
+    private boolean watchEnabled = true; // Pick up file changes without a manual scan
+    
+    private String artCachePath = "./album-art"; // Stored album art and thumbnails
+    
+    private int artCacheMaxMb = 256; // Disk space for album art thumbnails
+    
+    private String waveformCachePath = "./waveforms"; // Waveform overviews for seek bars
+    
+    private String journalPath = "./journal"; // Playback state journal and its snapshots
+    
+    private boolean loudnessNormalization = true; // Adjust speaker volume per track to even out loudness
+    
+    private double loudnessTarget = -18.0; // Loudness (LUFS) tracks are brought to
+    
     public String getLibraryPath() {
         return libraryPath;
     }
@@ -16,4 +37,88 @@ public class MusicLibraryConfig {
     public void setLibraryPath(String libraryPath) {
         this.libraryPath = libraryPath;
     }
+    
+    public List<String> getLibraryPaths() {
+        return libraryPaths;
+    }
+    
+    public void setLibraryPaths(List<String> libraryPaths) {
+        this.libraryPaths = libraryPaths;
+    }
+    
+    /**
+     * All library roots as absolute paths, leaving out roots nested inside another
+     */
+    public List<Path> getLibraryRoots() {
+        List<Path> candidates = new ArrayList<>();
+        candidates.add(Paths.get(libraryPath).toAbsolutePath().normalize());
+        for (String path : libraryPaths) {
+            candidates.add(Paths.get(path).toAbsolutePath().normalize());
+        }
+        
+        List<Path> roots = new ArrayList<>();
+        for (Path candidate : candidates) {
+            boolean nested = candidates.stream().anyMatch(other -> !other.equals(candidate) && candidate.startsWith(other));
+            if (!nested && !roots.contains(candidate)) {
+                roots.add(candidate);
+            }
+        }
+        return roots;
+    }
+    
+    public boolean isWatchEnabled() {
+        return watchEnabled;
+    }
+    
+    public void setWatchEnabled(boolean watchEnabled) {
+        this.watchEnabled = watchEnabled;
+    }
+    
+    public String getArtCachePath() {
+        return artCachePath;
+    }
+    
+    public void setArtCachePath(String artCachePath) {
+        this.artCachePath = artCachePath;
+    }
+    
+    public int getArtCacheMaxMb() {
+        return artCacheMaxMb;
+    }
+    
+    public void setArtCacheMaxMb(int artCacheMaxMb) {
+        this.artCacheMaxMb = artCacheMaxMb;
+    }
+    
+    public String getWaveformCachePath() {
+        return waveformCachePath;
+    }
+    
+    public void setWaveformCachePath(String waveformCachePath) {
+        this.waveformCachePath = waveformCachePath;
+    }
+    
+    public String getJournalPath() {
+        return journalPath;
+    }
+    
+    public void setJournalPath(String journalPath) {
+        this.journalPath = journalPath;
+    }
+    
+    public boolean isLoudnessNormalization() {
+        return loudnessNormalization;
+    }
+    
+    public void setLoudnessNormalization(boolean loudnessNormalization) {
+        this.loudnessNormalization = loudnessNormalization;
+    }
+    
+    public double getLoudnessTarget() {
+        return loudnessTarget;
+    }
+    
+    public void setLoudnessTarget(double loudnessTarget) {
+        this.loudnessTarget = loudnessTarget;
+    }
 }
\ No newline at end of file
@@ -1,13 +1,16 @@
 package com.samsung.multiroom.controller;
 
 import com.samsung.multiroom.model.SpeakerGroup;
+import com.samsung.multiroom.service.GroupTopologyService;
 import com.samsung.multiroom.service.SpeakerGroupService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 @RestController
 @RequestMapping("/api/groups")
@@ -17,6 +20,9 @@ public class GroupsController {
     @Autowired
     private SpeakerGroupService speakerGroupService;
     
+    @Autowired
+    private GroupTopologyService groupTopologyService;
+    
     /**
      * Get all speaker groups
      */
@@ -46,12 +52,16 @@ public class GroupsController {
         String groupName = (String) request.get("name");
         @SuppressWarnings("unchecked")
         List<String> speakerMacAddresses = (List<String>) request.get("speakers");
+        @SuppressWarnings("unchecked")
+        List<String> childGroupNames = (List<String>) request.get("groups");
         
-        if (groupName == null || speakerMacAddresses == null) {
+        if (groupName == null || (speakerMacAddresses == null && childGroupNames == null)) {
             return ResponseEntity.badRequest().build();
         }
         
-        SpeakerGroup group = speakerGroupService.createGroup(groupName, speakerMacAddresses);
+        SpeakerGroup group = speakerGroupService.createGroup(groupName,
+                speakerMacAddresses != null ? speakerMacAddresses : new ArrayList<>(),
+                childGroupNames != null ? childGroupNames : List.of());
         if (group != null) {
             return ResponseEntity.ok(group);
         }
@@ -83,6 +93,7 @@ public class GroupsController {
      */
     @DeleteMapping("/{groupName}")
     public ResponseEntity<String> deleteGroup(@PathVariable String groupName) {
+        groupTopologyService.dissolveGroup(groupName);
         boolean deleted = speakerGroupService.deleteGroup(groupName);
         if (deleted) {
             return ResponseEntity.ok("Group deleted successfully");
@@ -122,6 +133,51 @@ public class GroupsController {
         return ResponseEntity.notFound().build();
     }
     
+    /**
+     * Nest a group inside another group
+     */
+    @PostMapping("/{groupName}/groups")
+    public ResponseEntity<SpeakerGroup> addChildGroup(@PathVariable String groupName,
+                                                      @RequestBody Map<String, String> request) {
+        String childGroupName = request.get("groupName");
+        
+        if (childGroupName == null) {
+            return ResponseEntity.badRequest().build();
+        }
+        
+        // Unknown groups and changes that would create a cycle are both rejected
+        SpeakerGroup group = speakerGroupService.addChildGroup(groupName, childGroupName);
+        if (group != null) {
+            return ResponseEntity.ok(group);
+        }
+        return ResponseEntity.badRequest().build();
+    }
+    
+    /**
+     * Remove a nested group from a group
+     */
+    @DeleteMapping("/{groupName}/groups/{childGroupName}")
+    public ResponseEntity<SpeakerGroup> removeChildGroup(@PathVariable String groupName,
+                                                         @PathVariable String childGroupName) {
+        SpeakerGroup group = speakerGroupService.removeChildGroup(groupName, childGroupName);
+        if (group != null) {
+            return ResponseEntity.ok(group);
+        }
+        return ResponseEntity.notFound().build();
+    }
+    
+    /**
+     * Get every speaker in a group, including those in nested groups
+     */
+    @GetMapping("/{groupName}/members")
+    public ResponseEntity<Set<String>> getGroupMembers(@PathVariable String groupName) {
+        Set<String> members = speakerGroupService.resolveSpeakers(groupName);
+        if (members != null) {
+            return ResponseEntity.ok(members);
+        }
+        return ResponseEntity.notFound().build();
+    }
+    
     /**
      * Get grouped speakers with their associations
      */
@@ -131,6 +187,41 @@ public class GroupsController {
         return ResponseEntity.ok(groupedSpeakers);
     }
     
+    /**
+     * Form a device-side multiroom group with an elected master speaker
+     */
+    @PostMapping("/{groupName}/topology")
+    public ResponseEntity<GroupTopologyService.DeviceGroup> formDeviceGroup(@PathVariable String groupName) {
+        GroupTopologyService.DeviceGroup deviceGroup = groupTopologyService.formGroup(groupName);
+        if (deviceGroup != null) {
+            return ResponseEntity.ok(deviceGroup);
+        }
+        return ResponseEntity.badRequest().build();
+    }
+    
+    /**
+     * Get the device-side multiroom group formed for a group
+     */
+    @GetMapping("/{groupName}/topology")
+    public ResponseEntity<GroupTopologyService.DeviceGroup> getDeviceGroup(@PathVariable String groupName) {
+        GroupTopologyService.DeviceGroup deviceGroup = groupTopologyService.getDeviceGroup(groupName);
+        if (deviceGroup != null) {
+            return ResponseEntity.ok(deviceGroup);
+        }
+        return ResponseEntity.notFound().build();
+    }
+    
+    /**
+     * Dissolve the device-side multiroom group formed for a group
+     */
+    @DeleteMapping("/{groupName}/topology")
+    public ResponseEntity<String> dissolveDeviceGroup(@PathVariable String groupName) {
+        if (groupTopologyService.dissolveGroup(groupName)) {
+            return ResponseEntity.ok("Multiroom group dissolved successfully");
+        }
+        return ResponseEntity.notFound().build();
+    }
+    
     /**
      * Sync playback across all speakers in a group
      */
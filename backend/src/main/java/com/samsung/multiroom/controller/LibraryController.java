@@ -2,17 +2,43 @@ package com.samsung.multiroom.controller;
 
 import com.samsung.multiroom.config.MusicLibraryConfig;
 import com.samsung.multiroom.model.Track;
+import com.samsung.multiroom.model.TrackSummary;
 import com.samsung.multiroom.repository.TrackRepository;
+import com.samsung.multiroom.service.AlbumArtService;
+import com.samsung.multiroom.service.LibraryFileTreeService;
+import com.samsung.multiroom.service.LibraryImportService;
+import com.samsung.multiroom.service.LibraryWatchService;
+import com.samsung.multiroom.service.LoudnessAnalysisService;
+import com.samsung.multiroom.service.ScanJobService;
+import com.samsung.multiroom.service.TrackCatalog;
+import com.samsung.multiroom.service.TrackDuplicateService;
+import com.samsung.multiroom.service.TrackFacetService;
+import com.samsung.multiroom.service.TrackLibraryService;
+import com.samsung.multiroom.service.TrackListingService;
+import com.samsung.multiroom.service.TrackSearchService;
+import com.samsung.multiroom.service.TrackSuggestionService;
+import com.samsung.multiroom.service.WaveformService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 @RestController
@@ -20,19 +46,115 @@ import java.util.stream.Collectors;
 @CrossOrigin(origins = "*") // In production, specify your frontend URL
 public class LibraryController {
     
+    // Art is addressed by content hash, so a response never goes stale
+    private static final String ART_CACHE_CONTROL = "public, max-age=31536000, immutable";
+    
+    // A track's waveform changes with its audio, so clients revalidate (cheaply, by ETag) on every use
+    private static final String WAVEFORM_CACHE_CONTROL = "no-cache";
+    
+    private static final String WAVEFORM_RETRY_AFTER = "5";
+    
+    private static final String FILE_TREE_RETRY_AFTER = "2";
+    
     @Autowired
     private TrackRepository trackRepository;
     
     @Autowired
     private MusicLibraryConfig musicLibraryConfig;
     
+    @Autowired
+    private TrackSearchService trackSearchService;
+    
+    @Autowired
+    private TrackSuggestionService trackSuggestionService;
+    
+    @Autowired
+    private TrackLibraryService trackLibraryService;
+    
+    @Autowired
+    private ScanJobService scanJobService;
+    
+    @Autowired
+    private TrackListingService trackListingService;
+    
+    @Autowired
+    private TrackCatalog trackCatalog;
+    
+    @Autowired
+    private TrackFacetService trackFacetService;
+    
+    @Autowired
+    private LibraryWatchService libraryWatchService;
+    
+    @Autowired
+    private LibraryFileTreeService libraryFileTreeService;
+    
+    @Autowired
+    private LibraryImportService libraryImportService;
+    
+    @Autowired
+    private AlbumArtService albumArtService;
+    
+    @Autowired
+    private TrackDuplicateService trackDuplicateService;
+    
+    @Autowired
+    private LoudnessAnalysisService loudnessAnalysisService;
+    
+    @Autowired
+    private WaveformService waveformService;
+    
     /**
-     * Get all tracks in the library
+     * Get all tracks in the library, leaving out duplicate copies. The JSON
+     * array is streamed a page of tracks at a time rather than built in memory
+     * first.
      */
     @GetMapping("/tracks")
-    public ResponseEntity<List<Track>> getAllTracks() {
-        List<Track> tracks = trackRepository.findAll();
-        return ResponseEntity.ok(tracks);
+    public ResponseEntity<StreamingResponseBody> getAllTracks() {
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(trackListingService::writeTracksJsonArray);
+    }
+    
+    /**
+     * Get a page of track summaries after a cursor (keyset pagination)
+     */
+    @GetMapping("/tracks/page")
+    public ResponseEntity<TrackListingService.TrackPage> getTrackPage(@RequestParam(defaultValue = "0") long after,
+                                                                      @RequestParam(defaultValue = "100") int limit) {
+        return ResponseEntity.ok(trackListingService.getPage(after, limit));
+    }
+    
+    /**
+     * Stream all track summaries as newline-delimited JSON
+     */
+    @GetMapping(value = "/tracks/stream", produces = "application/x-ndjson")
+    public ResponseEntity<StreamingResponseBody> streamTracks() {
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(trackListingService::writeSummariesNdjson);
+    }
+    
+    /**
+     * Export all tracks, duplicates included, as newline-delimited JSON,
+     * streamed a page of tracks at a time
+     */
+    @GetMapping(value = "/tracks/export", produces = "application/x-ndjson")
+    public ResponseEntity<StreamingResponseBody> exportTracks() {
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(trackListingService::writeTracksNdjson);
+    }
+    
+    /**
+     * Import tracks from newline-delimited JSON (the export format), adding new
+     * file paths and updating known ones. Bad lines are reported by line number
+     * and skipped.
+     */
+    @PostMapping(value = "/tracks/import", consumes = {MediaType.APPLICATION_NDJSON_VALUE, MediaType.APPLICATION_JSON_VALUE,
+                                                       MediaType.TEXT_PLAIN_VALUE, MediaType.APPLICATION_OCTET_STREAM_VALUE})
+    public ResponseEntity<LibraryImportService.ImportResult> importTracks(InputStream body) throws IOException {
+        return ResponseEntity.ok(libraryImportService.importTracks(body));
     }
     
     /**
@@ -40,26 +162,162 @@ public class LibraryController {
      */
     @GetMapping("/tracks/{id}")
     public ResponseEntity<Track> getTrack(@PathVariable Long id) {
-        return trackRepository.findById(id)
-                .map(track -> ResponseEntity.ok(track))
-                .orElse(ResponseEntity.notFound().build());
+        Track track = trackCatalog.getTrack(id);
+        return track != null ? ResponseEntity.ok(track) : ResponseEntity.notFound().build();
     }
     
     /**
-     * Search tracks by title, artist, or album
+     * Search tracks by title, artist, or album, best matches first.
+     * With mode=fuzzy, misspelled words also match. The total number of
+     * matches is returned in the X-Total-Count header.
      */
     @GetMapping("/search")
-    public ResponseEntity<List<Track>> searchTracks(@RequestParam String query) {
-        // In a real implementation, this would use a more sophisticated search
-        // For now, we'll do a simple search on title
-        List<Track> allTracks = trackRepository.findAll();
-        List<Track> matchingTracks = allTracks.stream()
-                .filter(track -> track.getTitle().toLowerCase().contains(query.toLowerCase()) ||
-                               (track.getArtist() != null && track.getArtist().toLowerCase().contains(query.toLowerCase())) ||
-                               (track.getAlbum() != null && track.getAlbum().toLowerCase().contains(query.toLowerCase())))
-                .toList();
+    public ResponseEntity<List<Track>> searchTracks(@RequestParam String query,
+                                                    @RequestParam(defaultValue = "0") int page,
+                                                    @RequestParam(defaultValue = "50") int size,
+                                                    @RequestParam(defaultValue = "exact") String mode) {
+        TrackSearchService.SearchResult result = "fuzzy".equalsIgnoreCase(mode)
+                ? trackSearchService.fuzzySearch(query, page, Math.min(size, 500))
+                : trackSearchService.search(query, page, Math.min(size, 500));
         
-        return ResponseEntity.ok(matchingTracks);
+        // Build only the tracks on this page, in ranked order
+        List<Track> matchingTracks = trackCatalog.getTracks(result.getTrackIds());
+        
+        return ResponseEntity.ok()
+                .header("X-Total-Count", String.valueOf(result.getTotalMatches()))
+                .body(matchingTracks);
+    }
+    
+    /**
+     * Suggest artist, album and track names starting with a prefix (type-ahead)
+     */
+    @GetMapping("/suggest")
+    public ResponseEntity<List<TrackSuggestionService.Suggestion>> suggest(@RequestParam String prefix,
+                                                                           @RequestParam(defaultValue = "10") int limit) {
+        return ResponseEntity.ok(trackSuggestionService.suggest(prefix, limit));
+    }
+    
+    /**
+     * Number of artists, albums and tracks in the library
+     */
+    @GetMapping("/facets")
+    public ResponseEntity<Map<String, Integer>> getFacetCounts() {
+        return ResponseEntity.ok(trackFacetService.getCounts());
+    }
+    
+    /**
+     * Browse artists in name order
+     */
+    @GetMapping("/artists")
+    public ResponseEntity<TrackFacetService.FacetPage<TrackFacetService.ArtistSummary>> getArtists(
+            @RequestParam(required = false) String after,
+            @RequestParam(defaultValue = "50") int limit) {
+        return ResponseEntity.ok(trackFacetService.getArtists(after, limit));
+    }
+    
+    /**
+     * Browse albums in name order, optionally only one artist's
+     */
+    @GetMapping("/albums")
+    public ResponseEntity<TrackFacetService.FacetPage<TrackFacetService.AlbumSummary>> getAlbums(
+            @RequestParam(required = false) String artist,
+            @RequestParam(required = false) String after,
+            @RequestParam(defaultValue = "50") int limit) {
+        TrackFacetService.FacetPage<TrackFacetService.AlbumSummary> albums = trackFacetService.getAlbums(artist, after, limit);
+        return albums != null ? ResponseEntity.ok(albums) : ResponseEntity.notFound().build();
+    }
+    
+    /**
+     * Browse the tracks of one album in file order
+     */
+    @GetMapping("/albums/tracks")
+    public ResponseEntity<TrackFacetService.FacetPage<TrackSummary>> getAlbumTracks(
+            @RequestParam String artist,
+            @RequestParam String album,
+            @RequestParam(required = false) String after,
+            @RequestParam(defaultValue = "100") int limit) {
+        TrackFacetService.FacetPage<Long> trackIds = trackFacetService.getAlbumTrackIds(artist, album, after, limit);
+        if (trackIds == null) {
+            return ResponseEntity.notFound().build();
+        }
+        
+        // Build only the tracks on this page, in album order
+        List<TrackSummary> tracks = trackCatalog.getTracks(trackIds.getItems()).stream()
+                .map(track -> new TrackSummary(track.getId(), track.getTitle(), track.getArtist(),
+                                               track.getAlbum(), track.getDuration()))
+                .collect(Collectors.toList());
+        return ResponseEntity.ok(new TrackFacetService.FacetPage<>(tracks, trackIds.getNextCursor()));
+    }
+    
+    /**
+     * List copies of the same audio found under different paths, one cluster per content hash
+     */
+    @GetMapping("/duplicates")
+    public ResponseEntity<TrackFacetService.FacetPage<TrackDuplicateService.DuplicateCluster>> getDuplicates(
+            @RequestParam(required = false) String after,
+            @RequestParam(defaultValue = "100") int limit) {
+        return ResponseEntity.ok(trackDuplicateService.getClusters(after, limit));
+    }
+    
+    /**
+     * Get album art by its hash (Track.albumArt), optionally as a thumbnail
+     * fitting size x size. Answers 304 when the client already has it.
+     */
+    @GetMapping("/art/{hash}")
+    public ResponseEntity<Resource> getAlbumArt(@PathVariable String hash,
+                                                @RequestParam(required = false) Integer size,
+                                                @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        AlbumArtService.ArtImage image = albumArtService.getImage(hash, size);
+        if (image == null) {
+            return ResponseEntity.notFound().build();
+        }
+        if (ifNoneMatch != null && etagMatches(ifNoneMatch, image.getEtag())) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                    .eTag(image.getEtag())
+                    .header(HttpHeaders.CACHE_CONTROL, ART_CACHE_CONTROL)
+                    .build();
+        }
+        return ResponseEntity.ok()
+                .eTag(image.getEtag())
+                .header(HttpHeaders.CACHE_CONTROL, ART_CACHE_CONTROL)
+                .contentType(MediaType.parseMediaType(image.getContentType()))
+                .body(new FileSystemResource(image.getFile()));
+    }
+    
+    /**
+     * Get a track's waveform overview (binary, see WaveformService). Answers 202
+     * with Retry-After while it is being generated, and 304 when the client
+     * already has it.
+     */
+    @GetMapping("/tracks/{id}/waveform")
+    public ResponseEntity<Resource> getWaveform(@PathVariable Long id,
+                                                @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        WaveformService.Waveform waveform = waveformService.getWaveform(id);
+        if (waveform == null) {
+            return ResponseEntity.notFound().build();
+        }
+        if (waveform.getFile() == null) {
+            return ResponseEntity.accepted().header(HttpHeaders.RETRY_AFTER, WAVEFORM_RETRY_AFTER).build();
+        }
+        if (ifNoneMatch != null && etagMatches(ifNoneMatch, waveform.getEtag())) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                    .eTag(waveform.getEtag())
+                    .header(HttpHeaders.CACHE_CONTROL, WAVEFORM_CACHE_CONTROL)
+                    .build();
+        }
+        return ResponseEntity.ok()
+                .eTag(waveform.getEtag())
+                .header(HttpHeaders.CACHE_CONTROL, WAVEFORM_CACHE_CONTROL)
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .body(new FileSystemResource(waveform.getFile()));
+    }
+    
+    private static boolean etagMatches(String ifNoneMatch, String etag) {
+        // If-None-Match uses weak comparison, so W/ prefixes added by proxies still match
+        return Arrays.stream(ifNoneMatch.split(","))
+                .map(String::trim)
+                .map(tag -> tag.startsWith("W/") ? tag.substring(2) : tag)
+                .anyMatch(tag -> tag.equals("*") || tag.equals(etag));
     }
     
     /**
@@ -67,8 +325,13 @@ public class LibraryController {
      */
     @PostMapping("/tracks")
     public ResponseEntity<Track> addTrack(@RequestBody Track track) {
-        Track savedTrack = trackRepository.save(track);
-        return ResponseEntity.ok(savedTrack);
+        try {
+            Track savedTrack = trackLibraryService.saveTrack(track);
+            return ResponseEntity.ok(savedTrack);
+        } catch (DataIntegrityViolationException e) {
+            // File paths are unique across the library
+            return ResponseEntity.badRequest().build();
+        }
     }
     
     /**
@@ -78,8 +341,12 @@ public class LibraryController {
     public ResponseEntity<Track> updateTrack(@PathVariable Long id, @RequestBody Track track) {
         if (trackRepository.existsById(id)) {
             track.setId(id);
-            Track updatedTrack = trackRepository.save(track);
-            return ResponseEntity.ok(updatedTrack);
+            try {
+                Track updatedTrack = trackLibraryService.saveTrack(track);
+                return ResponseEntity.ok(updatedTrack);
+            } catch (DataIntegrityViolationException e) {
+                return ResponseEntity.badRequest().build();
+            }
         }
         return ResponseEntity.notFound().build();
     }
@@ -89,8 +356,7 @@ public class LibraryController {
      */
     @DeleteMapping("/tracks/{id}")
     public ResponseEntity<String> deleteTrack(@PathVariable Long id) {
-        if (trackRepository.existsById(id)) {
-            trackRepository.deleteById(id);
+        if (trackLibraryService.deleteTrack(id)) {
             return ResponseEntity.ok("Track deleted successfully");
         }
         return ResponseEntity.notFound().build();
@@ -128,8 +394,11 @@ public class LibraryController {
                 return ResponseEntity.badRequest().body("Directory is not readable");
             }
             
-            // Update the configuration
+            // Update the configuration and move the file watcher to the new directory
+            libraryWatchService.unwatchRoot(Paths.get(musicLibraryConfig.getLibraryPath()));
             musicLibraryConfig.setLibraryPath(directoryPath);
+            libraryWatchService.watchRoot(path);
+            libraryFileTreeService.rebuild();
             
             return ResponseEntity.ok("Music library directory set to: " + directoryPath);
         } catch (IOException e) {
@@ -138,97 +407,97 @@ public class LibraryController {
     }
     
     /**
-     * Scan the music library directory and add all recognized audio files to the library
+     * Start scanning every library root in the background. Returns one job per
+     * root at once; a root that is already being scanned returns its running job.
      */
     @PostMapping("/scan")
-    public ResponseEntity<String> scanMusicLibrary() {
-        try {
-            String libraryPath = musicLibraryConfig.getLibraryPath();
-            Path path = Paths.get(libraryPath);
-            
-            if (!Files.exists(path) || !Files.isDirectory(path)) {
-                return ResponseEntity.badRequest().body("Music library directory does not exist or is not a directory");
-            }
-            
-            // Get all supported audio files
-            List<Path> audioFiles = Files.walk(path)
-                    .filter(Files::isRegularFile)
-                    .filter(this::isAudioFile)
-                    .collect(Collectors.toList());
-            
-            int tracksAdded = 0;
-            for (Path audioFile : audioFiles) {
-                String fileName = audioFile.getFileName().toString();
-                
-                // Create a basic track entry if it doesn't already exist
-                // In a real implementation, you'd extract metadata using a library like Apache Tika
-                List<Track> existingTracks = trackRepository.findByFilePath(audioFile.toString());
-                if (existingTracks.isEmpty()) {
-                    Track track = new Track();
-                    track.setTitle(extractTitleFromFilename(fileName));
-                    track.setFilePath(audioFile.toString());
-                    track.setUri("file://" + audioFile.toString()); // For local file access
-                    
-                    // These would normally be extracted from the file's metadata
-                    track.setArtist("Unknown Artist");
-                    track.setAlbum("Unknown Album");
-                    track.setDuration(0); // Placeholder
-                    
-                    trackRepository.save(track);
-                    tracksAdded++;
-                }
-            }
-            
-            return ResponseEntity.ok("Scanned directory. " + tracksAdded + " new tracks added to library.");
-        } catch (IOException e) {
-            return ResponseEntity.badRequest().body("Error scanning music library: " + e.getMessage());
+    public ResponseEntity<List<ScanJobService.ScanJob>> scanMusicLibrary() {
+        List<ScanJobService.ScanJob> jobs = scanJobService.startScans();
+        if (jobs.isEmpty()) {
+            return ResponseEntity.badRequest().build();
         }
+        return ResponseEntity.accepted().body(jobs);
     }
     
     /**
-     * Get list of all audio files found in the music library directory
+     * List recent scan jobs
      */
-    @GetMapping("/files")
-    public ResponseEntity<List<String>> getMusicFiles() {
-        try {
-            String libraryPath = musicLibraryConfig.getLibraryPath();
-            Path path = Paths.get(libraryPath);
-            
-            if (!Files.exists(path) || !Files.isDirectory(path)) {
-                return ResponseEntity.badRequest().body(List.of("Music library directory does not exist or is not a directory"));
-            }
-            
-            List<String> audioFiles = Files.walk(path)
-                    .filter(Files::isRegularFile)
-                    .filter(this::isAudioFile)
-                    .map(Path::toString)
-                    .collect(Collectors.toList());
-            
-            return ResponseEntity.ok(audioFiles);
-        } catch (IOException e) {
-            return ResponseEntity.badRequest().body(List.of("Error getting music files: " + e.getMessage()));
-        }
+    @GetMapping("/scan/jobs")
+    public ResponseEntity<List<ScanJobService.ScanJob>> getScanJobs() {
+        return ResponseEntity.ok(scanJobService.getJobs());
+    }
+    
+    /**
+     * Get a scan job with its progress
+     */
+    @GetMapping("/scan/jobs/{jobId}")
+    public ResponseEntity<ScanJobService.ScanJob> getScanJob(@PathVariable String jobId) {
+        ScanJobService.ScanJob job = scanJobService.getJob(jobId);
+        return job != null ? ResponseEntity.ok(job) : ResponseEntity.notFound().build();
+    }
+    
+    /**
+     * Stream a scan job's progress as server-sent events
+     */
+    @GetMapping(value = "/scan/jobs/{jobId}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> streamScanJob(@PathVariable String jobId) {
+        SseEmitter emitter = scanJobService.streamProgress(jobId);
+        return emitter != null ? ResponseEntity.ok(emitter) : ResponseEntity.notFound().build();
+    }
+    
+    /**
+     * Cancel a running scan job
+     */
+    @DeleteMapping("/scan/jobs/{jobId}")
+    public ResponseEntity<ScanJobService.ScanJob> cancelScanJob(@PathVariable String jobId) {
+        ScanJobService.ScanJob job = scanJobService.cancelJob(jobId);
+        return job != null ? ResponseEntity.ok(job) : ResponseEntity.notFound().build();
+    }
+    
+    /**
+     * Get the progress of loudness measurement
+     */
+    @GetMapping("/loudness")
+    public ResponseEntity<LoudnessAnalysisService.AnalysisStatus> getLoudnessStatus() {
+        return ResponseEntity.ok(loudnessAnalysisService.getStatus());
     }
     
     /**
-     * Check if a file has an audio extension
+     * Measure the loudness of tracks that have none yet, in the background
      */
-    private boolean isAudioFile(Path path) {
-        String fileName = path.toString().toLowerCase();
-        return fileName.endsWith(".mp3") || 
-               fileName.endsWith(".wav") || 
-               fileName.endsWith(".flac") || 
-               fileName.endsWith(".aac") || 
-               fileName.endsWith(".ogg") || 
-               fileName.endsWith(".m4a");
+    @PostMapping("/loudness/analyze")
+    public ResponseEntity<LoudnessAnalysisService.AnalysisStatus> analyzeLoudness() {
+        loudnessAnalysisService.analyzePending();
+        return ResponseEntity.accepted().body(loudnessAnalysisService.getStatus());
     }
     
     /**
-     * Extract title from filename (basic implementation)
+     * Browse the audio files in the library: the subdirectories and files of
+     * dir (the library roots without it), or with recursive every file below
+     * it. Served from the file tree snapshot; pass the version of the first
+     * page to page through the same snapshot.
      */
-    private String extractTitleFromFilename(String fileName) {
-        // Remove file extension and replace underscores/dots with spaces
-        String title = fileName.substring(0, fileName.lastIndexOf('.'));
-        return title.replace('_', ' ').replace('.', ' ').trim();
+    @GetMapping("/files")
+    public ResponseEntity<LibraryFileTreeService.FileListing> getMusicFiles(
+            @RequestParam(required = false) String dir,
+            @RequestParam(defaultValue = "false") boolean recursive,
+            @RequestParam(defaultValue = "0") int offset,
+            @RequestParam(defaultValue = "100") int limit,
+            @RequestParam(required = false) Long version) {
+        try {
+            LibraryFileTreeService.FileListing listing = libraryFileTreeService.list(dir, recursive, offset, limit, version);
+            if (listing == null) {
+                return ResponseEntity.notFound().build();
+            }
+            return ResponseEntity.ok(listing);
+        } catch (IllegalStateException e) {
+            // An expired version has to start over; a tree still being built is there shortly
+            if (version != null) {
+                return ResponseEntity.status(HttpStatus.GONE).build();
+            }
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, FILE_TREE_RETRY_AFTER)
+                    .build();
+        }
     }
-}
\ No newline at end of file
+}
@@ -1,10 +1,18 @@
 package com.samsung.multiroom.controller;
 
 import com.samsung.multiroom.service.AudioPlaybackService;
+import com.samsung.multiroom.service.PlaybackBatchService;
+import com.samsung.multiroom.service.PlaybackJournal;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
 import java.util.List;
 import java.util.Map;
 
@@ -16,6 +24,12 @@ public class PlaybackController {
     @Autowired
     private AudioPlaybackService audioPlaybackService;
     
+    @Autowired
+    private PlaybackJournal playbackJournal;
+    
+    @Autowired
+    private PlaybackBatchService playbackBatchService;
+    
     /**
      * Play a track on a specific speaker
      */
@@ -171,6 +185,59 @@ public class PlaybackController {
         return ResponseEntity.notFound().build();
     }
     
+    /**
+     * Run a list of playback commands for speakers and groups, returning a
+     * result for each
+     */
+    @PostMapping("/batch")
+    public ResponseEntity<?> executeBatch(@RequestBody List<PlaybackBatchService.BatchCommand> commands) {
+        if (commands.isEmpty()) {
+            return ResponseEntity.badRequest().body("At least one command is required");
+        }
+        if (commands.size() > PlaybackBatchService.MAX_COMMANDS) {
+            return ResponseEntity.badRequest().body("At most " + PlaybackBatchService.MAX_COMMANDS + " commands are allowed");
+        }
+        return ResponseEntity.ok(playbackBatchService.execute(commands));
+    }
+    
+    /**
+     * What each speaker was doing at a point in time, from the playback journal.
+     * The time is in epoch milliseconds or an ISO date-time, in the server's
+     * time zone if it has no offset.
+     */
+    @GetMapping("/history")
+    public ResponseEntity<List<PlaybackJournal.HistoryEntry>> getPlaybackHistory(
+            @RequestParam String at,
+            @RequestParam(required = false) String speakerMac) throws IOException {
+        long time;
+        try {
+            time = parseTime(at);
+        } catch (DateTimeParseException | NumberFormatException | ArithmeticException e) {
+            return ResponseEntity.badRequest().build();
+        }
+        
+        List<PlaybackJournal.HistoryEntry> entries = playbackJournal.getStatesAt(time);
+        if (entries == null) {
+            // Older than the retained history
+            return ResponseEntity.status(HttpStatus.GONE).build();
+        }
+        if (speakerMac != null) {
+            entries.removeIf(entry -> !entry.getSpeakerMacAddress().equals(speakerMac));
+        }
+        return ResponseEntity.ok(entries);
+    }
+    
+    private static long parseTime(String value) {
+        if (!value.isEmpty() && value.chars().allMatch(Character::isDigit)) {
+            return Long.parseLong(value);
+        }
+        try {
+            return OffsetDateTime.parse(value).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return LocalDateTime.parse(value).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+    }
+    
     /**
      * Get playback states for all speakers in a group
      */
@@ -0,0 +1,95 @@
+package com.samsung.multiroom.controller;
+
+import com.samsung.multiroom.model.Playlist;
+import com.samsung.multiroom.service.LibraryImportService;
+import com.samsung.multiroom.service.PlaylistService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+@RestController
+@RequestMapping("/api/playlists")
+@CrossOrigin(origins = "*") // In production, specify your frontend URL
+public class PlaylistController {
+    
+    @Autowired
+    private PlaylistService playlistService;
+    
+    @Autowired
+    private LibraryImportService libraryImportService;
+    
+    /**
+     * Get all playlists
+     */
+    @GetMapping
+    public ResponseEntity<List<Playlist>> getAllPlaylists() {
+        return ResponseEntity.ok(playlistService.getAllPlaylists());
+    }
+    
+    /**
+     * Get a specific playlist by ID
+     */
+    @GetMapping("/{id}")
+    public ResponseEntity<Playlist> getPlaylist(@PathVariable Long id) {
+        Playlist playlist = playlistService.getPlaylist(id);
+        if (playlist != null) {
+            return ResponseEntity.ok(playlist);
+        }
+        return ResponseEntity.notFound().build();
+    }
+    
+    /**
+     * Delete a playlist
+     */
+    @DeleteMapping("/{id}")
+    public ResponseEntity<String> deletePlaylist(@PathVariable Long id) {
+        if (playlistService.deletePlaylist(id)) {
+            return ResponseEntity.ok("Playlist deleted successfully");
+        }
+        return ResponseEntity.notFound().build();
+    }
+    
+    /**
+     * Export all playlists as newline-delimited JSON, with tracks as file paths
+     */
+    @GetMapping(value = "/export", produces = "application/x-ndjson")
+    public ResponseEntity<StreamingResponseBody> exportPlaylists() {
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(playlistService::writePlaylistsNdjson);
+    }
+    
+    /**
+     * Import playlists from newline-delimited JSON (the export format). Bad
+     * lines are reported by line number and skipped.
+     */
+    @PostMapping(value = "/import", consumes = {MediaType.APPLICATION_NDJSON_VALUE, MediaType.APPLICATION_JSON_VALUE,
+                                                MediaType.TEXT_PLAIN_VALUE, MediaType.APPLICATION_OCTET_STREAM_VALUE})
+    public ResponseEntity<LibraryImportService.ImportResult> importPlaylists(InputStream body) throws IOException {
+        return ResponseEntity.ok(libraryImportService.importPlaylists(body));
+    }
+    
+    /**
+     * Import an M3U/M3U8 playlist. Relative entries are resolved against base
+     * (the library directory by default); entries not in the library are
+     * reported by line number. The name defaults to the #PLAYLIST directive.
+     */
+    @PostMapping(value = "/import/m3u", consumes = {"audio/x-mpegurl", "audio/mpegurl", "application/vnd.apple.mpegurl",
+                                                    MediaType.TEXT_PLAIN_VALUE, MediaType.APPLICATION_OCTET_STREAM_VALUE})
+    public ResponseEntity<LibraryImportService.PlaylistImportResult> importM3u(
+            @RequestParam(required = false) String name,
+            @RequestParam(required = false) String base,
+            InputStream body) throws IOException {
+        LibraryImportService.PlaylistImportResult result = libraryImportService.importM3u(name, base, body);
+        if (result == null) {
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.ok(result);
+    }
+}
\ No newline at end of file
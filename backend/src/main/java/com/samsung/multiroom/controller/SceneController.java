@@ -0,0 +1,73 @@
+package com.samsung.multiroom.controller;
+
+import com.samsung.multiroom.service.SceneService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/scenes")
+@CrossOrigin(origins = "*") // In production, specify your frontend URL
+public class SceneController {
+    
+    @Autowired
+    private SceneService sceneService;
+    
+    /**
+     * Get all scenes
+     */
+    @GetMapping
+    public ResponseEntity<List<SceneService.SceneState>> getAllScenes() {
+        return ResponseEntity.ok(sceneService.getAllScenes());
+    }
+    
+    /**
+     * Get a specific scene by name
+     */
+    @GetMapping("/{name}")
+    public ResponseEntity<SceneService.SceneState> getScene(@PathVariable String name) {
+        SceneService.SceneState scene = sceneService.getScene(name);
+        if (scene != null) {
+            return ResponseEntity.ok(scene);
+        }
+        return ResponseEntity.notFound().build();
+    }
+    
+    /**
+     * Capture the current groups and playback state as a scene, replacing one of the same name
+     */
+    @PostMapping
+    public ResponseEntity<SceneService.SceneState> captureScene(@RequestBody Map<String, String> request) {
+        String name = request.get("name");
+        if (name == null || name.isBlank()) {
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.ok(sceneService.captureScene(name));
+    }
+    
+    /**
+     * Bring groups and speakers to the state of a scene
+     */
+    @PostMapping("/{name}/recall")
+    public ResponseEntity<SceneService.RecallResult> recallScene(@PathVariable String name) {
+        SceneService.RecallResult result = sceneService.recallScene(name);
+        if (result != null) {
+            return ResponseEntity.ok(result);
+        }
+        return ResponseEntity.notFound().build();
+    }
+    
+    /**
+     * Delete a scene
+     */
+    @DeleteMapping("/{name}")
+    public ResponseEntity<Void> deleteScene(@PathVariable String name) {
+        if (sceneService.deleteScene(name)) {
+            return ResponseEntity.noContent().build();
+        }
+        return ResponseEntity.notFound().build();
+    }
+}
\ No newline at end of file
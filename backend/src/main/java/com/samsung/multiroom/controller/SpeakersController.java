@@ -1,12 +1,15 @@
 package com.samsung.multiroom.controller;
 
 import com.samsung.multiroom.model.Speaker;
+import com.samsung.multiroom.service.DeviceCache;
 import com.samsung.multiroom.service.DeviceDiscoveryService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 @RestController
 @RequestMapping("/api/speakers")
@@ -16,6 +19,9 @@ public class SpeakersController {
     @Autowired
     private DeviceDiscoveryService deviceDiscoveryService;
     
+    @Autowired
+    private DeviceCache deviceCache;
+    
     /**
      * Get all discovered speakers
      */
@@ -33,6 +39,26 @@ public class SpeakersController {
         return ResponseEntity.ok("Device discovery refreshed");
     }
     
+    /**
+     * Hit, miss and eviction counts of the speaker and group lookup caches
+     */
+    @GetMapping("/cache")
+    public ResponseEntity<Map<String, DeviceCache.CacheStats>> getCacheStats() {
+        Map<String, DeviceCache.CacheStats> stats = new LinkedHashMap<>();
+        stats.put("speakers", deviceCache.getSpeakerStats());
+        stats.put("groups", deviceCache.getGroupStats());
+        return ResponseEntity.ok(stats);
+    }
+    
+    /**
+     * Drop all cached speakers and groups, e.g. after editing the database directly
+     */
+    @DeleteMapping("/cache")
+    public ResponseEntity<Void> clearCache() {
+        deviceCache.invalidateAll();
+        return ResponseEntity.noContent().build();
+    }
+    
     /**
      * Get a specific speaker by MAC address
      */
@@ -0,0 +1,41 @@
+package com.samsung.multiroom.model;
+
+import javax.persistence.*;
+import java.util.ArrayList;
+import java.util.List;
+
+@Entity
+@Table(name = "playlists", indexes = {
+    @Index(name = "idx_playlists_name", columnList = "name", unique = true)
+})
+public class Playlist {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+    
+    private String name;
+    
+    // Track ids in play order; entries are written in batches by PlaylistService
+    @ElementCollection(fetch = FetchType.EAGER)
+    @CollectionTable(name = "playlist_tracks", joinColumns = @JoinColumn(name = "playlist_id"))
+    @Column(name = "track_id")
+    @OrderColumn(name = "position")
+    private List<Long> trackIds = new ArrayList<>();
+    
+    // Constructors
+    public Playlist() {}
+    
+    public Playlist(String name) {
+        this.name = name;
+    }
+    
+    // Getters and setters
+    public Long getId() { return id; }
+    public void setId(Long id) { this.id = id; }
+    
+    public String getName() { return name; }
+    public void setName(String name) { this.name = name; }
+    
+    public List<Long> getTrackIds() { return trackIds; }
+    public void setTrackIds(List<Long> trackIds) { this.trackIds = trackIds; }
+}
\ No newline at end of file
@@ -0,0 +1,63 @@
+package com.samsung.multiroom.model;
+
+import javax.persistence.*;
+
+/**
+ * Manifest entry for an audio file seen by a library scan. The fingerprint
+ * (size, modification time and file key) tells a rescan whether the file
+ * changed since its tags were last read and its audio hashed.
+ */
+@Entity
+@Table(name = "scanned_files", indexes = {
+    @Index(name = "idx_scanned_files_file_path", columnList = "filePath", unique = true),
+    @Index(name = "idx_scanned_files_content_hash", columnList = "contentHash"),
+    @Index(name = "idx_scanned_files_track_id", columnList = "trackId")
+})
+public class ScannedFile {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+    
+    @Column(length = 1000)
+    private String filePath;
+    
+    private long fileSize; // Size in bytes
+    
+    private long lastModified; // Modification time in epoch milliseconds
+    
+    private String fileKey; // Inode or equivalent, where the filesystem provides one
+    
+    private Long trackId; // Track created from this file
+    
+    @Column(length = 64)
+    private String contentHash; // SHA-256 of the audio payload, tags excluded
+    
+    // Constructors
+    public ScannedFile() {}
+    
+    public ScannedFile(String filePath) {
+        this.filePath = filePath;
+    }
+    
+    // Getters and setters
+    public Long getId() { return id; }
+    public void setId(Long id) { this.id = id; }
+    
+    public String getFilePath() { return filePath; }
+    public void setFilePath(String filePath) { this.filePath = filePath; }
+    
+    public long getFileSize() { return fileSize; }
+    public void setFileSize(long fileSize) { this.fileSize = fileSize; }
+    
+    public long getLastModified() { return lastModified; }
+    public void setLastModified(long lastModified) { this.lastModified = lastModified; }
+    
+    public String getFileKey() { return fileKey; }
+    public void setFileKey(String fileKey) { this.fileKey = fileKey; }
+    
+    public Long getTrackId() { return trackId; }
+    public void setTrackId(Long trackId) { this.trackId = trackId; }
+    
+    public String getContentHash() { return contentHash; }
+    public void setContentHash(String contentHash) { this.contentHash = contentHash; }
+}
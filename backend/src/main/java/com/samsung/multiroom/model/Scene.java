@@ -0,0 +1,41 @@
+package com.samsung.multiroom.model;
+
+import javax.persistence.*;
+
+@Entity
+@Table(name = "scenes", indexes = {
+    @Index(name = "idx_scenes_name", columnList = "name", unique = true)
+})
+public class Scene {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+    
+    private String name;
+    
+    // Groups and speaker states as JSON, written by SceneService
+    @Lob
+    private String state;
+    
+    private long capturedAt; // epoch ms
+    
+    // Constructors
+    public Scene() {}
+    
+    public Scene(String name) {
+        this.name = name;
+    }
+    
+    // Getters and setters
+    public Long getId() { return id; }
+    public void setId(Long id) { this.id = id; }
+    
+    public String getName() { return name; }
+    public void setName(String name) { this.name = name; }
+    
+    public String getState() { return state; }
+    public void setState(String state) { this.state = state; }
+    
+    public long getCapturedAt() { return capturedAt; }
+    public void setCapturedAt(long capturedAt) { this.capturedAt = capturedAt; }
+}
\ No newline at end of file
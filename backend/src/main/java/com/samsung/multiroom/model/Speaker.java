@@ -4,13 +4,15 @@ import javax.persistence.*;
 import java.util.List;
 
 @Entity
-@Table(name = "speakers")
+@Table(name = "speakers", indexes = {
+    @Index(name = "idx_speakers_mac_address", columnList = "macAddress", unique = true),
+    @Index(name = "idx_speakers_ip_address", columnList = "ipAddress")
+})
 public class Speaker {
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     private Long id;
     
-    @Column(unique = true)
     private String macAddress;
     
     private String name;
@@ -25,8 +27,8 @@ public class Speaker {
     
     private int volume;
     
-    @ElementCollection
-    private List<String> groupMembers;
+    @ElementCollection(fetch = FetchType.EAGER)
+    private List<String> groupMembers; // Followers relayed by this speaker when it is a multiroom master
     
     private String currentTrack;
     
@@ -1,21 +1,30 @@
 package com.samsung.multiroom.model;
 
+import org.hibernate.annotations.Fetch;
+import org.hibernate.annotations.FetchMode;
+
 import javax.persistence.*;
 import java.util.List;
 
 @Entity
-@Table(name = "speaker_groups")
+@Table(name = "speaker_groups", indexes = {
+    @Index(name = "idx_speaker_groups_name", columnList = "name", unique = true)
+})
 public class SpeakerGroup {
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     private Long id;
     
-    @Column(unique = true)
     private String name;
     
-    @ElementCollection
+    @ElementCollection(fetch = FetchType.EAGER)
     private List<String> speakerMacAddresses; // List of speaker MAC addresses in the group
     
+    @ElementCollection(fetch = FetchType.EAGER)
+    @Fetch(FetchMode.SUBSELECT) // Avoid joining two collections in one query
+    @OrderColumn
+    private List<String> childGroupNames; // Names of nested groups (zones, rooms) in this group
+    
     private boolean isPlaying;
     
     private String currentTrackUri;
@@ -43,6 +52,11 @@ public class SpeakerGroup {
         this.speakerMacAddresses = speakerMacAddresses; 
     }
     
+    public List<String> getChildGroupNames() { return childGroupNames; }
+    public void setChildGroupNames(List<String> childGroupNames) { 
+        this.childGroupNames = childGroupNames; 
+    }
+    
     public boolean isPlaying() { return isPlaying; }
     public void setPlaying(boolean playing) { isPlaying = playing; }
     
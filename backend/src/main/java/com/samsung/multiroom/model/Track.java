@@ -3,7 +3,9 @@ package com.samsung.multiroom.model;
 import javax.persistence.*;
 
 @Entity
-@Table(name = "tracks")
+@Table(name = "tracks", indexes = {
+    @Index(name = "idx_tracks_file_path", columnList = "filePath", unique = true)
+})
 public class Track {
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
@@ -22,7 +24,18 @@ public class Track {
     
     private int duration; // Duration in seconds
     
-    private String albumArt; // Path to album art
+    private String albumArt; // Content hash of the album art image, see /api/library/art/{hash}
+    
+    // Set on copies of the same audio: the track that stands for them. Maintained by library scans only.
+    @Column(insertable = false, updatable = false)
+    private Long canonicalTrackId;
+    
+    // Integrated loudness (LUFS) and true peak (dBTP) of the audio; null until analysed. Maintained by loudness analysis only.
+    @Column(insertable = false, updatable = false)
+    private Double loudness;
+    
+    @Column(insertable = false, updatable = false)
+    private Double truePeak;
     
     // Constructors
     public Track() {}
@@ -59,4 +72,13 @@ public class Track {
     
     public String getAlbumArt() { return albumArt; }
     public void setAlbumArt(String albumArt) { this.albumArt = albumArt; }
+    
+    public Long getCanonicalTrackId() { return canonicalTrackId; }
+    public void setCanonicalTrackId(Long canonicalTrackId) { this.canonicalTrackId = canonicalTrackId; }
+    
+    public Double getLoudness() { return loudness; }
+    public void setLoudness(Double loudness) { this.loudness = loudness; }
+    
+    public Double getTruePeak() { return truePeak; }
+    public void setTruePeak(Double truePeak) { this.truePeak = truePeak; }
 }
\ No newline at end of file
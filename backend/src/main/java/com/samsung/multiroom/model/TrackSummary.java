@@ -0,0 +1,35 @@
+package com.samsung.multiroom.model;
+
+/**
+ * Read-only projection of a track with the columns shown in track lists
+ */
+public class TrackSummary {
+    private final Long id;
+    
+    private final String title;
+    
+    private final String artist;
+    
+    private final String album;
+    
+    private final int duration; // Duration in seconds
+    
+    public TrackSummary(Long id, String title, String artist, String album, int duration) {
+        this.id = id;
+        this.title = title;
+        this.artist = artist;
+        this.album = album;
+        this.duration = duration;
+    }
+    
+    // Getters
+    public Long getId() { return id; }
+    
+    public String getTitle() { return title; }
+    
+    public String getArtist() { return artist; }
+    
+    public String getAlbum() { return album; }
+    
+    public int getDuration() { return duration; }
+}
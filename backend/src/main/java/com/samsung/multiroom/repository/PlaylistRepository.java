@@ -0,0 +1,12 @@
+package com.samsung.multiroom.repository;
+
+import com.samsung.multiroom.model.Playlist;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.Optional;
+
+@Repository
+public interface PlaylistRepository extends JpaRepository<Playlist, Long> {
+    Optional<Playlist> findByName(String name);
+}
\ No newline at end of file
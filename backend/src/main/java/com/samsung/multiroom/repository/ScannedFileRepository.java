@@ -0,0 +1,12 @@
+package com.samsung.multiroom.repository;
+
+import com.samsung.multiroom.model.ScannedFile;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface ScannedFileRepository extends JpaRepository<ScannedFile, Long> {
+    List<ScannedFile> findByFilePathStartingWith(String pathPrefix);
+}
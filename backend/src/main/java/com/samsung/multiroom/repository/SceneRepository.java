@@ -0,0 +1,12 @@
+package com.samsung.multiroom.repository;
+
+import com.samsung.multiroom.model.Scene;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.Optional;
+
+@Repository
+public interface SceneRepository extends JpaRepository<Scene, Long> {
+    Optional<Scene> findByName(String name);
+}
\ No newline at end of file
@@ -4,9 +4,12 @@ import com.samsung.multiroom.model.SpeakerGroup;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
 @Repository
 public interface SpeakerGroupRepository extends JpaRepository<SpeakerGroup, Long> {
     Optional<SpeakerGroup> findByName(String name);
+    List<SpeakerGroup> findByNameIn(Collection<String> names);
 }
\ No newline at end of file
@@ -4,10 +4,14 @@ import com.samsung.multiroom.model.Speaker;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
 @Repository
 public interface SpeakerRepository extends JpaRepository<Speaker, Long> {
     Optional<Speaker> findByMacAddress(String macAddress);
     Optional<Speaker> findByIpAddress(String ipAddress);
+    List<Speaker> findByMacAddressIn(Collection<String> macAddresses);
+    List<Speaker> findByIsMasterTrue();
 }
\ No newline at end of file
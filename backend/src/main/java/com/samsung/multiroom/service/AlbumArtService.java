@@ -0,0 +1,456 @@
+package com.samsung.multiroom.service;
+
+import com.samsung.multiroom.config.MusicLibraryConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Stores album art found while scanning and serves it at fixed sizes.
+ *
+ * Images are stored once per content hash (SHA-256), so an album whose every
+ * track embeds the same cover takes one file, and the hash is what tracks
+ * refer to. Because the content behind a hash never changes, clients can
+ * cache images forever and revalidate with the hash as the ETag.
+ *
+ * Thumbnails are generated in the background when a new image is stored and
+ * kept in a disk cache bounded by size, evicting the least recently used.
+ */
+@Service
+public class AlbumArtService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(AlbumArtService.class);
+    
+    // Thumbnail edge lengths; requested sizes are rounded up to one of these
+    private static final int[] THUMBNAIL_SIZES = {64, 128, 256, 512};
+    
+    // Generated as soon as an image is stored: list rows and album grids
+    private static final int[] PREGENERATED_SIZES = {128, 256};
+    
+    private static final float THUMBNAIL_QUALITY = 0.85f;
+    
+    // Folder images larger than this are not album art
+    private static final long MAX_FOLDER_IMAGE_BYTES = 16 * 1024 * 1024;
+    
+    private static final List<String> FOLDER_IMAGE_NAMES = List.of(
+            "cover.jpg", "cover.jpeg", "cover.png", "folder.jpg", "folder.jpeg", "folder.png",
+            "front.jpg", "front.jpeg", "front.png", "albumart.jpg");
+    
+    private static final Pattern HASH_PATTERN = Pattern.compile("[0-9a-f]{64}");
+    
+    @Autowired
+    private MusicLibraryConfig musicLibraryConfig;
+    
+    // Hashes known to be stored, to skip the existence check on repeats
+    private final Set<String> storedImages = ConcurrentHashMap.newKeySet();
+    
+    // Directory -> its folder image, so an album's folder is searched once rather than per track
+    private final Map<Path, FolderImage> folderImages = new ConcurrentHashMap<>();
+    
+    // Thumbnail file -> size in bytes, least recently used first; guarded by itself
+    private final LinkedHashMap<Path, Long> thumbnails = new LinkedHashMap<>(16, 0.75f, true);
+    private long thumbnailBytes;
+    
+    private final ExecutorService thumbnailExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "album-art-thumbnails");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    
+    private static class FolderImage {
+        final long directoryModified;
+        final Path image;
+        final long imageModified;
+        final String hash;
+        
+        FolderImage(long directoryModified, Path image, long imageModified, String hash) {
+            this.directoryModified = directoryModified;
+            this.image = image;
+            this.imageModified = imageModified;
+            this.hash = hash;
+        }
+    }
+    
+    /**
+     * An image file ready to serve
+     */
+    public static class ArtImage {
+        private final Path file;
+        private final String contentType;
+        private final String etag;
+        
+        public ArtImage(Path file, String contentType, String etag) {
+            this.file = file;
+            this.contentType = contentType;
+            this.etag = etag;
+        }
+        
+        public Path getFile() { return file; }
+        public String getContentType() { return contentType; }
+        public String getEtag() { return etag; } // quoted strong validator
+    }
+    
+    /**
+     * Index thumbnails left on disk by earlier runs, oldest first
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadThumbnailCache() {
+        Path thumbnailRoot = getArtRoot().resolve("thumbnails");
+        if (!Files.isDirectory(thumbnailRoot)) {
+            return;
+        }
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(thumbnailRoot)) {
+            paths.filter(Files::isRegularFile).forEach(files::add);
+        } catch (IOException e) {
+            logger.warn("Could not index album art thumbnails: {}", e.getMessage());
+            return;
+        }
+        files.sort(Comparator.comparingLong(AlbumArtService::lastModified));
+        for (Path file : files) {
+            recordThumbnail(file);
+        }
+        synchronized (thumbnails) {
+            logger.info("Album art thumbnail cache: {} files, {} KB", thumbnails.size(), thumbnailBytes / 1024);
+        }
+    }
+    
+    /**
+     * Album art for an audio file: the embedded picture if there is one,
+     * otherwise a cover image in the file's directory. Returns the image hash,
+     * or null if there is no art.
+     */
+    public String findArtwork(Path audioFile, byte[] embedded) {
+        if (embedded != null) {
+            String hash = storeImage(embedded);
+            if (hash != null) {
+                return hash;
+            }
+        }
+        Path directory = audioFile.toAbsolutePath().getParent();
+        return directory != null ? findFolderImage(directory) : null;
+    }
+    
+    /**
+     * Store an encoded image under its content hash. Returns null if the bytes are not a known image format.
+     */
+    public String storeImage(byte[] image) {
+        if (imageContentType(image) == null) {
+            return null;
+        }
+        String hash = sha256(image);
+        if (storedImages.contains(hash)) {
+            return hash;
+        }
+        Path file = originalPath(hash);
+        try {
+            if (!Files.exists(file)) {
+                writeAtomically(file, image);
+                thumbnailExecutor.submit(() -> pregenerateThumbnails(hash));
+            }
+            storedImages.add(hash);
+            return hash;
+        } catch (IOException e) {
+            logger.warn("Could not store album art {}: {}", hash, e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * The stored image for a hash, or a thumbnail no larger than size on
+     * either edge. Returns null if there is no such image.
+     */
+    public ArtImage getImage(String hash, Integer size) {
+        if (hash == null || !HASH_PATTERN.matcher(hash).matches()) {
+            return null;
+        }
+        Path original = originalPath(hash);
+        if (!Files.isRegularFile(original)) {
+            return null;
+        }
+        
+        if (size != null) {
+            int thumbnailSize = thumbnailSize(size);
+            Path thumbnail = getThumbnail(hash, thumbnailSize);
+            if (thumbnail != null) {
+                return new ArtImage(thumbnail, "image/jpeg", "\"" + hash + "-" + thumbnailSize + "\"");
+            }
+            // Images ImageIO cannot decode (e.g. CMYK JPEG) are served as stored
+        }
+        try (InputStream input = Files.newInputStream(original)) {
+            String contentType = imageContentType(input.readNBytes(16));
+            return new ArtImage(original, contentType != null ? contentType : "application/octet-stream",
+                    "\"" + hash + "\"");
+        } catch (IOException e) {
+            logger.warn("Could not read album art {}: {}", hash, e.getMessage());
+            return null;
+        }
+    }
+    
+    private String findFolderImage(Path directory) {
+        try {
+            long directoryModified = Files.getLastModifiedTime(directory).toMillis();
+            FolderImage cached = folderImages.get(directory);
+            // Adding or removing a file changes the directory's time; rewriting the image changes its own
+            if (cached != null && cached.directoryModified == directoryModified
+                    && (cached.image == null || lastModified(cached.image) == cached.imageModified)) {
+                return cached.hash;
+            }
+            
+            Path image = null;
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, entry ->
+                    FOLDER_IMAGE_NAMES.contains(entry.getFileName().toString().toLowerCase(Locale.ROOT)))) {
+                for (Path entry : entries) {
+                    // Prefer names earlier in the list when several are present
+                    if (image == null || folderImageRank(entry) < folderImageRank(image)) {
+                        image = entry;
+                    }
+                }
+            }
+            
+            String hash = null;
+            long imageModified = 0;
+            if (image != null) {
+                BasicFileAttributes attributes = Files.readAttributes(image, BasicFileAttributes.class);
+                imageModified = attributes.lastModifiedTime().toMillis();
+                if (attributes.isRegularFile() && attributes.size() <= MAX_FOLDER_IMAGE_BYTES) {
+                    hash = storeImage(Files.readAllBytes(image));
+                }
+            }
+            folderImages.put(directory, new FolderImage(directoryModified, image, imageModified, hash));
+            return hash;
+        } catch (IOException e) {
+            logger.debug("Could not look for album art in {}: {}", directory, e.getMessage());
+            return null;
+        }
+    }
+    
+    private static int folderImageRank(Path image) {
+        return FOLDER_IMAGE_NAMES.indexOf(image.getFileName().toString().toLowerCase(Locale.ROOT));
+    }
+    
+    private void pregenerateThumbnails(String hash) {
+        for (int size : PREGENERATED_SIZES) {
+            getThumbnail(hash, size);
+        }
+    }
+    
+    /**
+     * The cached thumbnail, generated first if needed. Returns null if the image cannot be decoded.
+     */
+    private Path getThumbnail(String hash, int size) {
+        Path thumbnail = thumbnailPath(hash, size);
+        synchronized (thumbnails) {
+            if (thumbnails.get(thumbnail) != null) {
+                return thumbnail; // get() also marks it recently used
+            }
+        }
+        
+        try (InputStream input = Files.newInputStream(originalPath(hash))) {
+            BufferedImage image = ImageIO.read(input);
+            if (image == null) {
+                return null;
+            }
+            Path temp = createTempFile(thumbnail);
+            try {
+                writeJpeg(scale(image, size), temp);
+                Files.move(temp, thumbnail, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Could not create {}px thumbnail of album art {}: {}", size, hash, e.getMessage());
+            return null;
+        }
+        recordThumbnail(thumbnail);
+        return thumbnail;
+    }
+    
+    private void recordThumbnail(Path thumbnail) {
+        long bytes;
+        try {
+            bytes = Files.size(thumbnail);
+        } catch (IOException e) {
+            return;
+        }
+        List<Path> evicted = new ArrayList<>();
+        synchronized (thumbnails) {
+            Long previous = thumbnails.put(thumbnail, bytes);
+            thumbnailBytes += bytes - (previous != null ? previous : 0);
+            
+            long maxBytes = musicLibraryConfig.getArtCacheMaxMb() * 1024L * 1024L;
+            Iterator<Map.Entry<Path, Long>> iterator = thumbnails.entrySet().iterator();
+            while (thumbnailBytes > maxBytes && iterator.hasNext()) {
+                Map.Entry<Path, Long> eldest = iterator.next();
+                if (eldest.getKey().equals(thumbnail)) {
+                    break; // never evict what is about to be served
+                }
+                thumbnailBytes -= eldest.getValue();
+                evicted.add(eldest.getKey());
+                iterator.remove();
+            }
+        }
+        for (Path file : evicted) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                logger.debug("Could not delete thumbnail {}: {}", file, e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Scale to fit size x size in halving steps, which keeps bilinear
+     * filtering from skipping pixels on large reductions. Never enlarges.
+     */
+    private static BufferedImage scale(BufferedImage source, int size) {
+        double factor = Math.min(1.0, (double) size / Math.max(source.getWidth(), source.getHeight()));
+        int targetWidth = Math.max(1, (int) Math.round(source.getWidth() * factor));
+        int targetHeight = Math.max(1, (int) Math.round(source.getHeight() * factor));
+        
+        BufferedImage current = source;
+        do {
+            int width = Math.max(targetWidth, current.getWidth() / 2);
+            int height = Math.max(targetHeight, current.getHeight() / 2);
+            // JPEG has no alpha channel, so transparent areas are flattened onto white
+            BufferedImage next = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = next.createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, width, height);
+            graphics.drawImage(current, 0, 0, width, height, null);
+            graphics.dispose();
+            current = next;
+        } while (current.getWidth() > targetWidth || current.getHeight() > targetHeight);
+        return current;
+    }
+    
+    private static void writeJpeg(BufferedImage image, Path file) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(file.toFile())) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(THUMBNAIL_QUALITY);
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+    
+    private static int thumbnailSize(int requested) {
+        for (int size : THUMBNAIL_SIZES) {
+            if (requested <= size) {
+                return size;
+            }
+        }
+        return THUMBNAIL_SIZES[THUMBNAIL_SIZES.length - 1];
+    }
+    
+    /**
+     * MIME type from an image's magic bytes, or null if it is not a supported image
+     */
+    private static String imageContentType(byte[] image) {
+        if (image.length >= 3 && (image[0] & 0xFF) == 0xFF && (image[1] & 0xFF) == 0xD8 && (image[2] & 0xFF) == 0xFF) {
+            return "image/jpeg";
+        }
+        if (image.length >= 8 && (image[0] & 0xFF) == 0x89 && AudioMetadataReader.startsWith(image, 1, "PNG")) {
+            return "image/png";
+        }
+        if (AudioMetadataReader.startsWith(image, 0, "GIF8")) {
+            return "image/gif";
+        }
+        if (AudioMetadataReader.startsWith(image, 0, "BM")) {
+            return "image/bmp";
+        }
+        return null;
+    }
+    
+    private Path getArtRoot() {
+        return Paths.get(musicLibraryConfig.getArtCachePath()).toAbsolutePath().normalize();
+    }
+    
+    // Spread over 256 subdirectories to keep directories small
+    private Path originalPath(String hash) {
+        return getArtRoot().resolve("images").resolve(hash.substring(0, 2)).resolve(hash);
+    }
+    
+    private Path thumbnailPath(String hash, int size) {
+        return getArtRoot().resolve("thumbnails").resolve(String.valueOf(size))
+                .resolve(hash.substring(0, 2)).resolve(hash + ".jpg");
+    }
+    
+    private static void writeAtomically(Path file, byte[] content) throws IOException {
+        Path temp = createTempFile(file);
+        try {
+            Files.write(temp, content);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+    
+    // In the target's directory, so the final move is a rename
+    private static Path createTempFile(Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        return Files.createTempFile(target.getParent(), ".tmp-", null);
+    }
+    
+    private static long lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+    
+    private static String sha256(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,773 @@
+package com.samsung.multiroom.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Reads tags, embedded cover art and duration from audio file headers
+ * (ID3v2/ID3v1 and MPEG frame headers, FLAC, MP4 and WAV). Only the header
+ * regions are read, through positional FileChannel reads; audio data is never
+ * loaded.
+ */
+public final class AudioMetadataReader {
+    
+    // Upper bound on a single tag block read into memory
+    private static final int MAX_TAG_BYTES = 16 * 1024 * 1024;
+    
+    // How far past the ID3v2 tag to look for the first MPEG frame
+    private static final int MPEG_SYNC_SEARCH_BYTES = 64 * 1024;
+    
+    // ID3 and FLAC picture type for the front cover, preferred over other embedded pictures
+    private static final int FRONT_COVER = 3;
+    
+    private static final int[][] MPEG_BITRATES = {
+        {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448}, // V1 L1
+        {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},    // V1 L2
+        {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},     // V1 L3
+        {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},    // V2 L1
+        {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}          // V2 L2/L3
+    };
+    
+    private static final int[][] MPEG_SAMPLE_RATES = {
+        {11025, 12000, 8000},  // MPEG 2.5
+        {0, 0, 0},             // reserved
+        {22050, 24000, 16000}, // MPEG 2
+        {44100, 48000, 32000}  // MPEG 1
+    };
+    
+    /**
+     * Tags and duration read from an audio file; fields missing from the file are null
+     */
+    public static class AudioMetadata {
+        private String title;
+        private String artist;
+        private String album;
+        private String albumArtist;
+        private int durationSeconds;
+        private byte[] artwork;
+        private boolean artworkIsFrontCover;
+        private long audioStart;
+        private long audioEnd;
+        
+        public String getTitle() { return title; }
+        public void setTitle(String title) { this.title = title; }
+        
+        public String getArtist() { return artist != null ? artist : albumArtist; }
+        public void setArtist(String artist) { this.artist = artist; }
+        
+        public String getAlbum() { return album; }
+        public void setAlbum(String album) { this.album = album; }
+        
+        public String getAlbumArtist() { return albumArtist; }
+        public void setAlbumArtist(String albumArtist) { this.albumArtist = albumArtist; }
+        
+        public int getDurationSeconds() { return durationSeconds; }
+        public void setDurationSeconds(int durationSeconds) { this.durationSeconds = durationSeconds; }
+        
+        public byte[] getArtwork() { return artwork; } // encoded image as embedded in the file
+        
+        // Byte range of the audio payload, without tag blocks; retagging a file leaves it unchanged
+        public long getAudioStart() { return audioStart; }
+        public long getAudioEnd() { return audioEnd; }
+        
+        /**
+         * Keep the first front cover, or else the first picture of any type
+         */
+        private void offerArtwork(byte[] image, boolean frontCover) {
+            if (image.length > 0 && (artwork == null || frontCover && !artworkIsFrontCover)) {
+                artwork = image;
+                artworkIsFrontCover = frontCover;
+            }
+        }
+        
+        private void fillMissing(String title, String artist, String album) {
+            if (this.title == null) this.title = title;
+            if (this.artist == null) this.artist = artist;
+            if (this.album == null) this.album = album;
+        }
+    }
+    
+    private AudioMetadataReader() {
+    }
+    
+    /**
+     * Read tags and duration from an audio file
+     */
+    public static AudioMetadata read(Path file) throws IOException {
+        AudioMetadata metadata = new AudioMetadata();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            byte[] head = readBytes(channel, 0, 12);
+            metadata.audioEnd = channel.size();
+            
+            if (startsWith(head, 0, "RIFF") && startsWith(head, 8, "WAVE")) {
+                readWav(channel, metadata);
+            } else if (startsWith(head, 4, "ftyp")) {
+                readMp4(channel, metadata);
+            } else {
+                // FLAC and MPEG audio may both be preceded by an ID3v2 tag
+                long audioStart = readId3v2(channel, metadata);
+                metadata.audioStart = audioStart;
+                byte[] marker = readBytes(channel, audioStart, 4);
+                if (startsWith(marker, 0, "fLaC")) {
+                    readFlac(channel, audioStart, metadata);
+                } else {
+                    readMpegDuration(channel, audioStart, metadata);
+                    readId3v1(channel, metadata);
+                }
+                metadata.audioEnd = Math.max(metadata.audioStart, trailingTagsStart(channel));
+            }
+        }
+        
+        metadata.title = blankToNull(metadata.title);
+        metadata.artist = blankToNull(metadata.artist);
+        metadata.album = blankToNull(metadata.album);
+        metadata.albumArtist = blankToNull(metadata.albumArtist);
+        return metadata;
+    }
+    
+    // ---------------------------------------------------------------- ID3
+    
+    /**
+     * Parse an ID3v2 tag at the start of the file, returning the offset just past it
+     */
+    private static long readId3v2(FileChannel channel, AudioMetadata metadata) throws IOException {
+        byte[] header = readBytes(channel, 0, 10);
+        if (!startsWith(header, 0, "ID3") || header.length < 10) {
+            return 0;
+        }
+        
+        int major = header[3];
+        int flags = header[5] & 0xFF;
+        int size = syncsafe(header, 6);
+        long tagEnd = 10L + size + ((flags & 0x10) != 0 ? 10 : 0);
+        if (major < 2 || major > 4) {
+            return tagEnd;
+        }
+        
+        byte[] tag = readBytes(channel, 10, Math.min(size, MAX_TAG_BYTES));
+        if ((flags & 0x80) != 0 && major < 4) {
+            tag = removeUnsynchronisation(tag);
+        }
+        
+        int pos = 0;
+        if ((flags & 0x40) != 0 && major >= 3 && tag.length >= 4) {
+            // Extended header: v2.3 size excludes itself, v2.4 size is syncsafe and includes itself
+            pos = major == 3 ? 4 + int32(tag, 0) : syncsafe(tag, 0);
+        }
+        
+        int frameHeaderSize = major == 2 ? 6 : 10;
+        while (pos >= 0 && pos + frameHeaderSize <= tag.length && tag[pos] != 0) {
+            String frameId;
+            int frameSize;
+            int formatFlags = 0;
+            if (major == 2) {
+                frameId = new String(tag, pos, 3, StandardCharsets.ISO_8859_1);
+                frameSize = int24(tag, pos + 3);
+            } else {
+                frameId = new String(tag, pos, 4, StandardCharsets.ISO_8859_1);
+                frameSize = major == 4 ? syncsafe(tag, pos + 4) : int32(tag, pos + 4);
+                formatFlags = tag[pos + 9] & 0xFF;
+            }
+            int dataStart = pos + frameHeaderSize;
+            if (frameSize <= 0 || dataStart + frameSize > tag.length) {
+                break;
+            }
+            pos = dataStart + frameSize;
+            
+            // Compressed or encrypted frames are not worth decoding for tags
+            if (major == 3 && (formatFlags & 0xC0) != 0 || major == 4 && (formatFlags & 0x0C) != 0) {
+                continue;
+            }
+            byte[] data = Arrays.copyOfRange(tag, dataStart, dataStart + frameSize);
+            if (major == 4 && (formatFlags & 0x01) != 0 && data.length >= 4) {
+                data = Arrays.copyOfRange(data, 4, data.length); // data length indicator
+            }
+            if (major == 4 && (formatFlags & 0x02) != 0) {
+                data = removeUnsynchronisation(data);
+            }
+            readId3Frame(frameId, data, metadata);
+        }
+        return tagEnd;
+    }
+    
+    private static void readId3Frame(String frameId, byte[] data, AudioMetadata metadata) {
+        switch (frameId) {
+            case "TIT2": case "TT2":
+                metadata.title = id3Text(data);
+                break;
+            case "TPE1": case "TP1":
+                metadata.artist = id3Text(data);
+                break;
+            case "TPE2": case "TP2":
+                metadata.albumArtist = id3Text(data);
+                break;
+            case "TALB": case "TAL":
+                metadata.album = id3Text(data);
+                break;
+            case "TLEN": case "TLE":
+                String millis = id3Text(data);
+                if (millis != null && millis.matches("\\d{1,12}")) {
+                    metadata.durationSeconds = (int) Math.round(Long.parseLong(millis) / 1000.0);
+                }
+                break;
+            case "APIC": case "PIC":
+                readId3Picture(data, frameId.equals("PIC"), metadata);
+                break;
+            default:
+                break;
+        }
+    }
+    
+    /**
+     * Parse an attached picture frame: encoding, MIME type (v2.2: three letter
+     * format), picture type and a terminated description before the image
+     */
+    private static void readId3Picture(byte[] data, boolean v22, AudioMetadata metadata) {
+        if (data.length < 4) {
+            return;
+        }
+        int encoding = data[0];
+        int pos = 1;
+        if (v22) {
+            pos += 3;
+        } else {
+            while (pos < data.length && data[pos] != 0) {
+                pos++;
+            }
+            pos++;
+        }
+        if (pos >= data.length) {
+            return;
+        }
+        int pictureType = data[pos++] & 0xFF;
+        
+        // UTF-16 descriptions end with a two byte terminator on a character boundary
+        boolean wide = encoding == 1 || encoding == 2;
+        while (pos < data.length) {
+            if (!wide && data[pos] == 0) {
+                pos++;
+                break;
+            }
+            if (wide && pos + 1 < data.length && data[pos] == 0 && data[pos + 1] == 0) {
+                pos += 2;
+                break;
+            }
+            pos += wide ? 2 : 1;
+        }
+        if (pos < data.length) {
+            metadata.offerArtwork(Arrays.copyOfRange(data, pos, data.length), pictureType == FRONT_COVER);
+        }
+    }
+    
+    /**
+     * Decode an ID3v2 text frame, keeping only the first value of a multi-value frame
+     */
+    private static String id3Text(byte[] data) {
+        if (data.length < 2) {
+            return null;
+        }
+        Charset charset;
+        switch (data[0]) {
+            case 1: charset = StandardCharsets.UTF_16; break;
+            case 2: charset = StandardCharsets.UTF_16BE; break;
+            case 3: charset = StandardCharsets.UTF_8; break;
+            default: charset = StandardCharsets.ISO_8859_1; break;
+        }
+        String text = new String(data, 1, data.length - 1, charset);
+        int terminator = text.indexOf('\0');
+        return terminator >= 0 ? text.substring(0, terminator) : text;
+    }
+    
+    /**
+     * Fill fields the ID3v2 tag did not provide from a trailing ID3v1 tag
+     */
+    private static void readId3v1(FileChannel channel, AudioMetadata metadata) throws IOException {
+        if (metadata.title != null && metadata.getArtist() != null && metadata.album != null) {
+            return;
+        }
+        long size = channel.size();
+        if (size < 128) {
+            return;
+        }
+        byte[] tag = readBytes(channel, size - 128, 128);
+        if (!startsWith(tag, 0, "TAG")) {
+            return;
+        }
+        metadata.fillMissing(latin1Field(tag, 3, 30), latin1Field(tag, 33, 30), latin1Field(tag, 63, 30));
+    }
+    
+    /**
+     * Where ID3v1 and APEv2 tags at the end of the file begin, or the file size if there are none
+     */
+    private static long trailingTagsStart(FileChannel channel) throws IOException {
+        long end = channel.size();
+        if (end >= 128 && startsWith(readBytes(channel, end - 128, 3), 0, "TAG")) {
+            end -= 128;
+        }
+        if (end >= 32) {
+            byte[] footer = readBytes(channel, end - 32, 32);
+            if (startsWith(footer, 0, "APETAGEX")) {
+                // The size covers the items and footer; a header, if flagged, comes on top
+                long tagSize = le32(footer, 12) & 0xFFFFFFFFL;
+                boolean hasHeader = (le32(footer, 20) & 0x80000000) != 0;
+                end -= tagSize + (hasHeader ? 32 : 0);
+            }
+        }
+        return Math.max(end, 0);
+    }
+    
+    private static String latin1Field(byte[] bytes, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && bytes[end] != 0) {
+            end++;
+        }
+        return blankToNull(new String(bytes, offset, end - offset, StandardCharsets.ISO_8859_1));
+    }
+    
+    private static byte[] removeUnsynchronisation(byte[] data) {
+        byte[] result = new byte[data.length];
+        int length = 0;
+        for (int i = 0; i < data.length; i++) {
+            result[length++] = data[i];
+            if ((data[i] & 0xFF) == 0xFF && i + 1 < data.length && data[i + 1] == 0) {
+                i++;
+            }
+        }
+        return Arrays.copyOf(result, length);
+    }
+    
+    // ---------------------------------------------------------------- MPEG
+    
+    /**
+     * Work out the duration of an MPEG audio stream from its first frame: the
+     * Xing/Info or VBRI frame count for VBR files, otherwise the constant bitrate
+     */
+    private static void readMpegDuration(FileChannel channel, long audioStart, AudioMetadata metadata) throws IOException {
+        if (metadata.durationSeconds > 0) {
+            return; // TLEN already gave the duration
+        }
+        byte[] buffer = readBytes(channel, audioStart, MPEG_SYNC_SEARCH_BYTES);
+        
+        for (int i = 0; i + 4 <= buffer.length; i++) {
+            MpegFrame frame = MpegFrame.parse(buffer, i);
+            if (frame == null) {
+                continue;
+            }
+            // Require a second frame header right after the first to rule out false syncs
+            int next = i + frame.length;
+            if (next + 4 <= buffer.length && MpegFrame.parse(buffer, next) == null) {
+                continue;
+            }
+            
+            long frameCount = frame.vbrFrameCount(buffer, i);
+            if (frameCount > 0) {
+                metadata.durationSeconds = (int) Math.round((double) frameCount * frame.samplesPerFrame / frame.sampleRate);
+            } else {
+                long audioBytes = channel.size() - audioStart - i;
+                if (channel.size() >= 128 && startsWith(readBytes(channel, channel.size() - 128, 3), 0, "TAG")) {
+                    audioBytes -= 128;
+                }
+                metadata.durationSeconds = (int) Math.round(audioBytes * 8.0 / (frame.bitrateKbps * 1000.0));
+            }
+            return;
+        }
+    }
+    
+    private static class MpegFrame {
+        int version;       // 3 = MPEG 1, 2 = MPEG 2, 0 = MPEG 2.5
+        int layer;         // 1, 2 or 3
+        int bitrateKbps;
+        int sampleRate;
+        int samplesPerFrame;
+        boolean mono;
+        int length;
+        
+        static MpegFrame parse(byte[] b, int offset) {
+            if ((b[offset] & 0xFF) != 0xFF || (b[offset + 1] & 0xE0) != 0xE0) {
+                return null;
+            }
+            int version = (b[offset + 1] >> 3) & 0x03;
+            int layerBits = (b[offset + 1] >> 1) & 0x03;
+            int bitrateIndex = (b[offset + 2] >> 4) & 0x0F;
+            int sampleRateIndex = (b[offset + 2] >> 2) & 0x03;
+            if (version == 1 || layerBits == 0 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) {
+                return null;
+            }
+            
+            MpegFrame frame = new MpegFrame();
+            frame.version = version;
+            frame.layer = 4 - layerBits;
+            int table = version == 3 ? frame.layer - 1 : (frame.layer == 1 ? 3 : 4);
+            frame.bitrateKbps = MPEG_BITRATES[table][bitrateIndex];
+            frame.sampleRate = MPEG_SAMPLE_RATES[version][sampleRateIndex];
+            frame.mono = ((b[offset + 3] >> 6) & 0x03) == 3;
+            int padding = (b[offset + 2] >> 1) & 0x01;
+            
+            if (frame.layer == 1) {
+                frame.samplesPerFrame = 384;
+                frame.length = (12 * frame.bitrateKbps * 1000 / frame.sampleRate + padding) * 4;
+            } else {
+                frame.samplesPerFrame = frame.layer == 3 && version != 3 ? 576 : 1152;
+                frame.length = frame.samplesPerFrame / 8 * frame.bitrateKbps * 1000 / frame.sampleRate + padding;
+            }
+            return frame.length > 4 ? frame : null;
+        }
+        
+        /**
+         * Frame count from a Xing/Info or VBRI header in this frame, or 0 if there is none
+         */
+        long vbrFrameCount(byte[] b, int offset) {
+            int sideInfo = version == 3 ? (mono ? 17 : 32) : (mono ? 9 : 17);
+            int xing = offset + 4 + sideInfo;
+            if (xing + 12 <= b.length && (startsWith(b, xing, "Xing") || startsWith(b, xing, "Info"))) {
+                int flags = int32(b, xing + 4);
+                return (flags & 0x01) != 0 ? int32(b, xing + 8) & 0xFFFFFFFFL : 0;
+            }
+            int vbri = offset + 36;
+            if (vbri + 18 <= b.length && startsWith(b, vbri, "VBRI")) {
+                return int32(b, vbri + 14) & 0xFFFFFFFFL;
+            }
+            return 0;
+        }
+    }
+    
+    // ---------------------------------------------------------------- FLAC
+    
+    private static void readFlac(FileChannel channel, long start, AudioMetadata metadata) throws IOException {
+        long pos = start + 4;
+        long size = channel.size();
+        boolean last = false;
+        
+        while (!last && pos + 4 <= size) {
+            byte[] header = readBytes(channel, pos, 4);
+            last = (header[0] & 0x80) != 0;
+            int type = header[0] & 0x7F;
+            int length = int24(header, 1);
+            
+            if (type == 0 && length >= 18) {
+                byte[] info = readBytes(channel, pos + 4, 18);
+                int sampleRate = ((info[10] & 0xFF) << 12) | ((info[11] & 0xFF) << 4) | ((info[12] & 0xFF) >> 4);
+                long totalSamples = ((long) (info[13] & 0x0F) << 32) | (int32(info, 14) & 0xFFFFFFFFL);
+                if (sampleRate > 0) {
+                    metadata.durationSeconds = (int) Math.round((double) totalSamples / sampleRate);
+                }
+            } else if (type == 4) {
+                readVorbisComments(readBytes(channel, pos + 4, Math.min(length, MAX_TAG_BYTES)), metadata);
+            } else if (type == 6 && length <= MAX_TAG_BYTES) {
+                readFlacPicture(readBytes(channel, pos + 4, length), metadata);
+            }
+            pos += 4 + length;
+        }
+        metadata.audioStart = Math.min(pos, size);
+    }
+    
+    /**
+     * Parse a PICTURE block: type, MIME type, description and dimensions, then the image
+     */
+    private static void readFlacPicture(byte[] block, AudioMetadata metadata) {
+        ByteBuffer buffer = ByteBuffer.wrap(block);
+        if (buffer.remaining() < 8) {
+            return;
+        }
+        int pictureType = buffer.getInt();
+        for (int field = 0; field < 2; field++) { // MIME type, description
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining() - 4) {
+                return;
+            }
+            buffer.position(buffer.position() + length);
+        }
+        if (buffer.remaining() < 20) {
+            return;
+        }
+        buffer.position(buffer.position() + 16); // width, height, depth, colours
+        int dataLength = buffer.getInt();
+        if (dataLength > 0 && dataLength <= buffer.remaining()) {
+            int start = buffer.position();
+            metadata.offerArtwork(Arrays.copyOfRange(block, start, start + dataLength), pictureType == FRONT_COVER);
+        }
+    }
+    
+    /**
+     * Parse a Vorbis comment block (little-endian lengths, KEY=value UTF-8 entries)
+     */
+    private static void readVorbisComments(byte[] block, AudioMetadata metadata) {
+        ByteBuffer buffer = ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < 8) {
+            return;
+        }
+        int vendorLength = buffer.getInt();
+        if (vendorLength < 0 || vendorLength > buffer.remaining() - 4) {
+            return;
+        }
+        buffer.position(buffer.position() + vendorLength);
+        int count = buffer.getInt();
+        
+        for (int i = 0; i < count && buffer.remaining() >= 4; i++) {
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                return;
+            }
+            String comment = new String(block, buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            
+            int separator = comment.indexOf('=');
+            if (separator <= 0) {
+                continue;
+            }
+            String key = comment.substring(0, separator).toUpperCase(Locale.ROOT);
+            String value = comment.substring(separator + 1);
+            // Keep the first value of repeated fields
+            if (key.equals("TITLE") && metadata.title == null) {
+                metadata.title = value;
+            } else if (key.equals("ARTIST") && metadata.artist == null) {
+                metadata.artist = value;
+            } else if (key.equals("ALBUM") && metadata.album == null) {
+                metadata.album = value;
+            } else if (key.equals("ALBUMARTIST") && metadata.albumArtist == null) {
+                metadata.albumArtist = value;
+            }
+        }
+    }
+    
+    // ---------------------------------------------------------------- MP4
+    
+    /**
+     * Walk the MP4 box tree reading only box headers, down to moov/mvhd for the
+     * duration and moov/udta/meta/ilst for the tags. The mdat box is skipped.
+     */
+    private static void readMp4(FileChannel channel, AudioMetadata metadata) throws IOException {
+        long[] mdat = findBox(channel, 0, channel.size(), "mdat");
+        if (mdat != null) {
+            metadata.audioStart = mdat[0];
+            metadata.audioEnd = mdat[1];
+        }
+        
+        long[] moov = findBox(channel, 0, channel.size(), "moov");
+        if (moov == null) {
+            return;
+        }
+        
+        long[] mvhd = findBox(channel, moov[0], moov[1], "mvhd");
+        if (mvhd != null) {
+            byte[] header = readBytes(channel, mvhd[0], 32);
+            if (header.length >= 32) {
+                boolean version1 = header[0] == 1;
+                long timescale = int32(header, version1 ? 20 : 12) & 0xFFFFFFFFL;
+                long duration = version1 ? ByteBuffer.wrap(header, 24, 8).getLong() : int32(header, 16) & 0xFFFFFFFFL;
+                if (timescale > 0) {
+                    metadata.durationSeconds = (int) Math.round((double) duration / timescale);
+                }
+            }
+        }
+        
+        long[] udta = findBox(channel, moov[0], moov[1], "udta");
+        long[] meta = udta != null ? findBox(channel, udta[0], udta[1], "meta") : null;
+        if (meta == null) {
+            return;
+        }
+        // meta is a full box (version and flags first) in ISO files but not always in QuickTime ones
+        long metaChildren = startsWith(readBytes(channel, meta[0] + 8, 4), 0, "hdlr") ? meta[0] + 4 : meta[0];
+        long[] ilst = findBox(channel, metaChildren, meta[1], "ilst");
+        if (ilst == null) {
+            return;
+        }
+        
+        long pos = ilst[0];
+        while (pos + 8 <= ilst[1]) {
+            byte[] header = readBytes(channel, pos, 8);
+            long boxSize = int32(header, 0) & 0xFFFFFFFFL;
+            if (boxSize < 8) {
+                break;
+            }
+            String field = null;
+            if ((header[4] & 0xFF) == 0xA9) {
+                String name = new String(header, 5, 3, StandardCharsets.ISO_8859_1);
+                field = name.equals("nam") ? "title" : name.equals("ART") ? "artist" : name.equals("alb") ? "album" : null;
+            } else if (startsWith(header, 4, "aART")) {
+                field = "albumArtist";
+            } else if (startsWith(header, 4, "covr")) {
+                byte[] image = mp4Data(channel, pos + 8, pos + boxSize);
+                if (image != null) {
+                    metadata.offerArtwork(image, true);
+                }
+            }
+            if (field != null) {
+                String value = mp4Text(channel, pos + 8, pos + boxSize);
+                switch (field) {
+                    case "title": metadata.title = value; break;
+                    case "artist": metadata.artist = value; break;
+                    case "album": metadata.album = value; break;
+                    default: metadata.albumArtist = value; break;
+                }
+            }
+            pos += boxSize;
+        }
+    }
+    
+    /**
+     * Find a child box by type between start and end, returning its payload range
+     */
+    private static long[] findBox(FileChannel channel, long start, long end, String type) throws IOException {
+        long pos = start;
+        while (pos + 8 <= end) {
+            byte[] header = readBytes(channel, pos, 16);
+            if (header.length < 8) {
+                return null;
+            }
+            long boxSize = int32(header, 0) & 0xFFFFFFFFL;
+            int headerSize = 8;
+            if (boxSize == 1 && header.length >= 16) {
+                boxSize = ByteBuffer.wrap(header, 8, 8).getLong();
+                headerSize = 16;
+            } else if (boxSize == 0) {
+                boxSize = end - pos;
+            }
+            if (boxSize < headerSize) {
+                return null;
+            }
+            if (startsWith(header, 4, type)) {
+                return new long[] {pos + headerSize, Math.min(pos + boxSize, end)};
+            }
+            pos += boxSize;
+        }
+        return null;
+    }
+    
+    private static String mp4Text(FileChannel channel, long start, long end) throws IOException {
+        byte[] value = mp4Data(channel, start, end);
+        return value != null ? new String(value, StandardCharsets.UTF_8) : null;
+    }
+    
+    /**
+     * The value of the first data box of an ilst item
+     */
+    private static byte[] mp4Data(FileChannel channel, long start, long end) throws IOException {
+        long[] data = findBox(channel, start, end, "data");
+        if (data == null || data[1] - data[0] <= 8 || data[1] - data[0] - 8 > MAX_TAG_BYTES) {
+            return null;
+        }
+        // data payload: 4 bytes type indicator, 4 bytes locale, then the value
+        return readBytes(channel, data[0] + 8, (int) (data[1] - data[0] - 8));
+    }
+    
+    // ---------------------------------------------------------------- WAV
+    
+    private static void readWav(FileChannel channel, AudioMetadata metadata) throws IOException {
+        long pos = 12;
+        long size = channel.size();
+        long byteRate = 0;
+        long dataSize = -1;
+        
+        while (pos + 8 <= size) {
+            byte[] header = readBytes(channel, pos, 8);
+            String chunkId = new String(header, 0, 4, StandardCharsets.ISO_8859_1);
+            long chunkSize = le32(header, 4) & 0xFFFFFFFFL;
+            
+            if (chunkId.equals("fmt ")) {
+                byte[] format = readBytes(channel, pos + 8, 16);
+                if (format.length >= 12) {
+                    byteRate = le32(format, 8) & 0xFFFFFFFFL;
+                }
+            } else if (chunkId.equals("data")) {
+                dataSize = Math.min(chunkSize, size - pos - 8);
+                metadata.audioStart = pos + 8;
+                metadata.audioEnd = pos + 8 + dataSize;
+            } else if (chunkId.equals("LIST") && chunkSize >= 4
+                    && startsWith(readBytes(channel, pos + 8, 4), 0, "INFO")) {
+                readWavInfo(readBytes(channel, pos + 12, (int) Math.min(chunkSize - 4, MAX_TAG_BYTES)), metadata);
+            }
+            pos += 8 + chunkSize + (chunkSize & 1);
+        }
+        
+        if (byteRate > 0 && dataSize > 0) {
+            metadata.durationSeconds = (int) Math.round((double) dataSize / byteRate);
+        }
+    }
+    
+    private static void readWavInfo(byte[] info, AudioMetadata metadata) {
+        int pos = 0;
+        while (pos + 8 <= info.length) {
+            String id = new String(info, pos, 4, StandardCharsets.ISO_8859_1);
+            int length = le32(info, pos + 4);
+            if (length < 0 || pos + 8 + length > info.length) {
+                return;
+            }
+            int end = pos + 8;
+            while (end < pos + 8 + length && info[end] != 0) {
+                end++;
+            }
+            String value = new String(info, pos + 8, end - pos - 8, StandardCharsets.UTF_8);
+            switch (id) {
+                case "INAM": metadata.title = value; break;
+                case "IART": metadata.artist = value; break;
+                case "IPRD": metadata.album = value; break;
+                default: break;
+            }
+            pos += 8 + length + (length & 1);
+        }
+    }
+    
+    // ---------------------------------------------------------------- helpers
+    
+    /**
+     * Read up to length bytes at a position; the result is shorter at end of file
+     */
+    static byte[] readBytes(FileChannel channel, long position, int length) throws IOException {
+        long available = Math.max(0, channel.size() - position);
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, available));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        return buffer.position() == buffer.capacity() ? buffer.array() : Arrays.copyOf(buffer.array(), buffer.position());
+    }
+    
+    static boolean startsWith(byte[] bytes, int offset, String ascii) {
+        if (offset + ascii.length() > bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length(); i++) {
+            if (bytes[offset + i] != (byte) ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    static int syncsafe(byte[] b, int offset) {
+        return ((b[offset] & 0x7F) << 21) | ((b[offset + 1] & 0x7F) << 14)
+                | ((b[offset + 2] & 0x7F) << 7) | (b[offset + 3] & 0x7F);
+    }
+    
+    static int int32(byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16)
+                | ((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF);
+    }
+    
+    static int int24(byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 16) | ((b[offset + 1] & 0xFF) << 8) | (b[offset + 2] & 0xFF);
+    }
+    
+    static int le32(byte[] b, int offset) {
+        return (b[offset] & 0xFF) | ((b[offset + 1] & 0xFF) << 8)
+                | ((b[offset + 2] & 0xFF) << 16) | ((b[offset + 3] & 0xFF) << 24);
+    }
+    
+    private static String blankToNull(String value) {
+        if (value == null) {
+            return null;
+        }
+        String trimmed = value.trim();
+        return trimmed.isEmpty() ? null : trimmed;
+    }
+}
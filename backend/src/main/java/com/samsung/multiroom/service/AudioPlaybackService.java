@@ -3,8 +3,6 @@ package com.samsung.multiroom.service;
 import com.samsung.multiroom.model.Speaker;
 import com.samsung.multiroom.model.SpeakerGroup;
 import com.samsung.multiroom.model.Track;
-import com.samsung.multiroom.repository.SpeakerGroupRepository;
-import com.samsung.multiroom.repository.SpeakerRepository;
 import com.samsung.multiroom.repository.TrackRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,6 +10,11 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
 @Service
 public class AudioPlaybackService {
@@ -19,16 +22,36 @@ public class AudioPlaybackService {
     private static final Logger logger = LoggerFactory.getLogger(AudioPlaybackService.class);
     
     @Autowired
-    private SpeakerRepository speakerRepository;
+    private DeviceCache deviceCache;
     
     @Autowired
     private TrackRepository trackRepository;
     
     @Autowired
-    private SpeakerGroupRepository speakerGroupRepository;
+    private SpeakerGroupService speakerGroupService;
+    
+    @Autowired
+    private GroupTopologyService groupTopologyService;
+    
+    @Autowired
+    private LoudnessAnalysisService loudnessAnalysisService;
+    
+    @Autowired
+    private PlaybackJournal playbackJournal;
+    
+    @Autowired
+    private TrackCatalog trackCatalog;
+    
+    // Upper bound on concurrent speaker commands during a group fan-out
+    private static final int COMMAND_THREADS = 16;
+    
+    private final ExecutorService commandExecutor = Executors.newFixedThreadPool(COMMAND_THREADS);
+    
+    // Speaker volume steps per dB of track gain; speakers step volume in about half a dB
+    private static final double VOLUME_STEPS_PER_DB = 2.0;
     
     // In-memory state of currently playing tracks and their playback position
-    private final Map<String, TrackPlaybackState> playbackStates = new HashMap<>();
+    private final Map<String, TrackPlaybackState> playbackStates = new ConcurrentHashMap<>();
     
     // Simple class to hold playback state
     private static class TrackPlaybackState {
@@ -51,7 +74,9 @@ public class AudioPlaybackService {
         public int getPositionSeconds() { 
             if (status.equals("PLAYING")) {
                 long elapsed = (System.currentTimeMillis() - startTime) / 1000;
-                return Math.min(positionSeconds + (int)elapsed, track.getDuration());
+                int position = positionSeconds + (int)elapsed;
+                // A duration of 0 means it could not be read from the file
+                return track.getDuration() > 0 ? Math.min(position, track.getDuration()) : position;
             }
             return positionSeconds;
         }
@@ -73,24 +98,30 @@ public class AudioPlaybackService {
      * Play a track on a specific speaker
      */
     public boolean playTrackOnSpeaker(String speakerMacAddress, Long trackId) {
-        logger.info("Playing track {} on speaker {}", trackId, speakerMacAddress);
-        
-        Speaker speaker = speakerRepository.findByMacAddress(speakerMacAddress).orElse(null);
-        if (speaker == null) {
-            logger.error("Speaker with MAC {} not found", speakerMacAddress);
-            return false;
-        }
-        
         Track track = trackRepository.findById(trackId).orElse(null);
         if (track == null) {
             logger.error("Track with ID {} not found", trackId);
             return false;
         }
+        return playTrackOnSpeaker(speakerMacAddress, track);
+    }
+    
+    /**
+     * Play an already loaded track on a specific speaker
+     */
+    public boolean playTrackOnSpeaker(String speakerMacAddress, Track track) {
+        logger.info("Playing track {} on speaker {}", track.getId(), speakerMacAddress);
+        
+        Speaker speaker = findSpeaker(speakerMacAddress);
+        if (speaker == null) {
+            logger.error("Speaker with MAC {} not found", speakerMacAddress);
+            return false;
+        }
         
         // Update speaker state
         speaker.setCurrentTrack(track.getTitle());
         speaker.setStatus("PLAYING");
-        speakerRepository.save(speaker);
+        recordState(speaker, PlaybackJournal.EventType.PLAY, track.getId(), 0);
         
         // Update playback state
         TrackPlaybackState state = new TrackPlaybackState(track);
@@ -99,50 +130,62 @@ public class AudioPlaybackService {
         
         // Send command to speaker (in a real implementation, this would make HTTP requests to the speaker)
         sendPlayCommand(speaker, track.getUri());
+        // Level the track with the speaker's volume
+        sendVolumeCommand(speaker, playbackVolume(speaker.getVolume(), track));
         
         return true;
     }
     
     /**
-     * Play a track on all speakers in a group
+     * Play a track on all speakers in a group and its nested groups
      */
     public boolean playTrackOnGroup(String groupName, Long trackId) {
-        logger.info("Playing track {} on group {}", trackId, groupName);
-        
-        SpeakerGroup group = speakerGroupRepository.findByName(groupName).orElse(null);
-        if (group == null) {
-            logger.error("Speaker group {} not found", groupName);
-            return false;
-        }
-        
         Track track = trackRepository.findById(trackId).orElse(null);
         if (track == null) {
             logger.error("Track with ID {} not found", trackId);
             return false;
         }
+        return playTrackOnGroup(groupName, track);
+    }
+    
+    /**
+     * Play an already loaded track on all speakers in a group and its nested groups
+     */
+    public boolean playTrackOnGroup(String groupName, Track track) {
+        logger.info("Playing track {} on group {}", track.getId(), groupName);
+        
+        SpeakerGroup group = deviceCache.findGroup(groupName);
+        if (group == null) {
+            logger.error("Speaker group {} not found", groupName);
+            return false;
+        }
         
         // Update group state
         group.setPlaying(true);
         group.setCurrentTrackUri(track.getUri());
-        speakerGroupRepository.save(group);
-        
-        // Update playback state and send command to each speaker in the group
-        for (String speakerMac : group.getSpeakerMacAddresses()) {
-            Speaker speaker = speakerRepository.findByMacAddress(speakerMac).orElse(null);
-            if (speaker != null) {
-                speaker.setCurrentTrack(track.getTitle());
-                speaker.setStatus("PLAYING");
-                speakerRepository.save(speaker);
-                
-                // Update playback state
-                TrackPlaybackState state = new TrackPlaybackState(track);
-                state.setStatus("PLAYING");
-                playbackStates.put(speakerMac, state);
-                
-                // Send command to speaker
+        deviceCache.saveGroup(group);
+        
+        // Update playback state of each speaker in the group, once per speaker.
+        // Speakers in a formed multiroom group get the stream through their master.
+        Set<String> speakers = speakerGroupService.resolveSpeakers(groupName);
+        Set<String> commandTargets = groupTopologyService.resolveCommandTargets(speakers);
+        dispatchToSpeakers(speakers, speaker -> {
+            speaker.setCurrentTrack(track.getTitle());
+            speaker.setStatus("PLAYING");
+            recordState(speaker, PlaybackJournal.EventType.PLAY, track.getId(), 0);
+            
+            // Update playback state
+            TrackPlaybackState state = new TrackPlaybackState(track);
+            state.setStatus("PLAYING");
+            playbackStates.put(speaker.getMacAddress(), state);
+            
+            // Send command to speaker
+            if (commandTargets.contains(speaker.getMacAddress())) {
                 sendPlayCommand(speaker, track.getUri());
             }
-        }
+            // Every speaker keeps its own volume, so each one levels the track
+            sendVolumeCommand(speaker, playbackVolume(speaker.getVolume(), track));
+        });
         
         return true;
     }
@@ -153,19 +196,19 @@ public class AudioPlaybackService {
     public boolean pauseSpeaker(String speakerMacAddress) {
         logger.info("Pausing playback on speaker {}", speakerMacAddress);
         
-        Speaker speaker = speakerRepository.findByMacAddress(speakerMacAddress).orElse(null);
+        Speaker speaker = findSpeaker(speakerMacAddress);
         if (speaker == null || speaker.getStatus().equals("STOPPED")) {
             return false;
         }
         
         speaker.setStatus("PAUSED");
-        speakerRepository.save(speaker);
         
         TrackPlaybackState state = playbackStates.get(speakerMacAddress);
         if (state != null) {
             state.setPositionSeconds(state.getPositionSeconds());
             state.setStatus("PAUSED");
         }
+        recordState(speaker, PlaybackJournal.EventType.PAUSE, -1, state != null ? state.getPositionSeconds() : 0);
         
         // Send pause command to speaker
         sendPauseCommand(speaker);
@@ -174,35 +217,36 @@ public class AudioPlaybackService {
     }
     
     /**
-     * Pause playback on all speakers in a group
+     * Pause playback on all speakers in a group and its nested groups
      */
     public boolean pauseGroup(String groupName) {
         logger.info("Pausing playback on group {}", groupName);
         
-        SpeakerGroup group = speakerGroupRepository.findByName(groupName).orElse(null);
+        SpeakerGroup group = deviceCache.findGroup(groupName);
         if (group == null) {
             return false;
         }
         
         group.setPlaying(false);
-        speakerGroupRepository.save(group);
+        deviceCache.saveGroup(group);
         
-        for (String speakerMac : group.getSpeakerMacAddresses()) {
-            Speaker speaker = speakerRepository.findByMacAddress(speakerMac).orElse(null);
-            if (speaker != null) {
-                speaker.setStatus("PAUSED");
-                speakerRepository.save(speaker);
-                
-                TrackPlaybackState state = playbackStates.get(speakerMac);
-                if (state != null) {
-                    state.setPositionSeconds(state.getPositionSeconds());
-                    state.setStatus("PAUSED");
-                }
-                
-                // Send pause command to speaker
+        Set<String> speakers = speakerGroupService.resolveSpeakers(groupName);
+        Set<String> commandTargets = groupTopologyService.resolveCommandTargets(speakers);
+        dispatchToSpeakers(speakers, speaker -> {
+            speaker.setStatus("PAUSED");
+            
+            TrackPlaybackState state = playbackStates.get(speaker.getMacAddress());
+            if (state != null) {
+                state.setPositionSeconds(state.getPositionSeconds());
+                state.setStatus("PAUSED");
+            }
+            recordState(speaker, PlaybackJournal.EventType.PAUSE, -1, state != null ? state.getPositionSeconds() : 0);
+            
+            // Send pause command to speaker
+            if (commandTargets.contains(speaker.getMacAddress())) {
                 sendPauseCommand(speaker);
             }
-        }
+        });
         
         return true;
     }
@@ -213,13 +257,13 @@ public class AudioPlaybackService {
     public boolean resumeSpeaker(String speakerMacAddress) {
         logger.info("Resuming playback on speaker {}", speakerMacAddress);
         
-        Speaker speaker = speakerRepository.findByMacAddress(speakerMacAddress).orElse(null);
+        Speaker speaker = findSpeaker(speakerMacAddress);
         if (speaker == null || !speaker.getStatus().equals("PAUSED")) {
             return false;
         }
         
         speaker.setStatus("PLAYING");
-        speakerRepository.save(speaker);
+        recordState(speaker, PlaybackJournal.EventType.RESUME, -1, 0);
         
         TrackPlaybackState state = playbackStates.get(speakerMacAddress);
         if (state != null) {
@@ -238,19 +282,23 @@ public class AudioPlaybackService {
     public boolean stopSpeaker(String speakerMacAddress) {
         logger.info("Stopping playback on speaker {}", speakerMacAddress);
         
-        Speaker speaker = speakerRepository.findByMacAddress(speakerMacAddress).orElse(null);
+        Speaker speaker = findSpeaker(speakerMacAddress);
         if (speaker == null) {
             return false;
         }
         
         speaker.setStatus("STOPPED");
         speaker.setCurrentTrack(null);
-        speakerRepository.save(speaker);
+        recordState(speaker, PlaybackJournal.EventType.STOP, -1, 0);
         
-        playbackStates.remove(speakerMacAddress);
+        TrackPlaybackState state = playbackStates.remove(speakerMacAddress);
         
         // Send stop command to speaker
         sendStopCommand(speaker);
+        // Take back the track's gain
+        if (state != null && playbackVolume(speaker.getVolume(), state.getTrack()) != speaker.getVolume()) {
+            sendVolumeCommand(speaker, speaker.getVolume());
+        }
         
         return true;
     }
@@ -266,13 +314,13 @@ public class AudioPlaybackService {
             return false;
         }
         
-        Speaker speaker = speakerRepository.findByMacAddress(speakerMacAddress).orElse(null);
+        Speaker speaker = findSpeaker(speakerMacAddress);
         if (speaker != null) {
             speaker.setVolume(volume);
-            speakerRepository.save(speaker);
+            recordState(speaker, PlaybackJournal.EventType.VOLUME, -1, volume);
             
-            // Send volume command to speaker
-            sendVolumeCommand(speaker, volume);
+            // Send volume command to speaker, levelled for the track it plays
+            sendVolumeCommand(speaker, playbackVolume(volume, currentTrack(speakerMacAddress)));
             
             return true;
         }
@@ -281,7 +329,7 @@ public class AudioPlaybackService {
     }
     
     /**
-     * Set volume for all speakers in a group
+     * Set volume for all speakers in a group and its nested groups
      */
     public boolean setGroupVolume(String groupName, int volume) {
         logger.info("Setting volume to {} for group {}", volume, groupName);
@@ -291,24 +339,21 @@ public class AudioPlaybackService {
             return false;
         }
         
-        SpeakerGroup group = speakerGroupRepository.findByName(groupName).orElse(null);
+        SpeakerGroup group = deviceCache.findGroup(groupName);
         if (group == null) {
             return false;
         }
         
         group.setVolume(volume);
-        speakerGroupRepository.save(group);
+        deviceCache.saveGroup(group);
         
-        for (String speakerMac : group.getSpeakerMacAddresses()) {
-            Speaker speaker = speakerRepository.findByMacAddress(speakerMac).orElse(null);
-            if (speaker != null) {
-                speaker.setVolume(volume);
-                speakerRepository.save(speaker);
-                
-                // Send volume command to speaker
-                sendVolumeCommand(speaker, volume);
-            }
-        }
+        dispatchToSpeakers(speakerGroupService.resolveSpeakers(groupName), speaker -> {
+            speaker.setVolume(volume);
+            recordState(speaker, PlaybackJournal.EventType.VOLUME, -1, volume);
+            
+            // Send volume command to speaker, levelled for the track it plays
+            sendVolumeCommand(speaker, playbackVolume(volume, currentTrack(speaker.getMacAddress())));
+        });
         
         return true;
     }
@@ -319,7 +364,7 @@ public class AudioPlaybackService {
     public boolean seekPosition(String speakerMacAddress, int seconds) {
         logger.info("Seeking to position {} seconds for speaker {}", seconds, speakerMacAddress);
         
-        Speaker speaker = speakerRepository.findByMacAddress(speakerMacAddress).orElse(null);
+        Speaker speaker = findSpeaker(speakerMacAddress);
         if (speaker == null) {
             return false;
         }
@@ -327,8 +372,10 @@ public class AudioPlaybackService {
         TrackPlaybackState state = playbackStates.get(speakerMacAddress);
         if (state != null) {
             Track track = state.getTrack();
-            if (track != null && seconds >= 0 && seconds <= track.getDuration()) {
+            if (track != null && seconds >= 0
+                    && (track.getDuration() <= 0 || seconds <= track.getDuration())) {
                 state.setPositionSeconds(seconds);
+                recordState(speaker, PlaybackJournal.EventType.SEEK, -1, seconds);
                 
                 // Send seek command to speaker
                 sendSeekCommand(speaker, seconds);
@@ -346,7 +393,7 @@ public class AudioPlaybackService {
     public Map<String, Object> getPlaybackState(String speakerMacAddress) {
         Map<String, Object> state = new HashMap<>();
         
-        Speaker speaker = speakerRepository.findByMacAddress(speakerMacAddress).orElse(null);
+        Speaker speaker = findSpeaker(speakerMacAddress);
         if (speaker == null) {
             return null;
         }
@@ -358,6 +405,9 @@ public class AudioPlaybackService {
         state.put("volume", speaker.getVolume());
         
         TrackPlaybackState trackState = playbackStates.get(speakerMacAddress);
+        Track track = trackState != null ? trackState.getTrack() : null;
+        state.put("trackGain", loudnessAnalysisService.getTrackGain(track));
+        state.put("appliedVolume", playbackVolume(speaker.getVolume(), track));
         if (trackState != null) {
             state.put("trackId", speaker.getCurrentTrack() != null ? trackState.getTrack().getId() : null);
             state.put("position", trackState.getPositionSeconds());
@@ -370,6 +420,104 @@ public class AudioPlaybackService {
         return state;
     }
     
+    /**
+     * The volume to send to a speaker set to the given volume while it plays a
+     * track: the track's loudness gain in volume steps. A speaker that is not
+     * muted is never turned down to silence.
+     */
+    private int playbackVolume(int volume, Track track) {
+        double gain = loudnessAnalysisService.getTrackGain(track);
+        if (volume == 0 || gain == 0) {
+            return volume;
+        }
+        return (int) Math.max(1, Math.min(100, Math.round(volume + gain * VOLUME_STEPS_PER_DB)));
+    }
+    
+    /**
+     * Restores the playback state of speakers that were playing or paused
+     * when the application stopped, from the playback journal. Called once the
+     * track catalog is loaded.
+     */
+    public void restorePlaybackStates() {
+        long now = System.currentTimeMillis();
+        int restored = 0;
+        for (Map.Entry<String, PlaybackJournal.SpeakerState> entry : playbackJournal.getStates().entrySet()) {
+            PlaybackJournal.SpeakerState recorded = entry.getValue();
+            Track track = recorded.getTrackId() >= 0 ? trackCatalog.getTrack(recorded.getTrackId()) : null;
+            if (track == null || recorded.getStatus().equals("STOPPED")) {
+                continue;
+            }
+            TrackPlaybackState state = new TrackPlaybackState(track);
+            int position = recorded.positionAt(now);
+            state.setPositionSeconds(track.getDuration() > 0 ? Math.min(position, track.getDuration()) : position);
+            state.setStatus(recorded.getStatus());
+            // Commands that came in since startup win
+            if (playbackStates.putIfAbsent(entry.getKey(), state) == null) {
+                restored++;
+            }
+        }
+        logger.info("Restored the playback state of {} speakers", restored);
+    }
+    
+    private Track currentTrack(String speakerMacAddress) {
+        TrackPlaybackState state = playbackStates.get(speakerMacAddress);
+        return state != null ? state.getTrack() : null;
+    }
+    
+    /**
+     * Whether any speaker is playing right now
+     */
+    public boolean isPlaying() {
+        return playbackStates.values().stream().anyMatch(state -> state.getStatus().equals("PLAYING"));
+    }
+    
+    /**
+     * A speaker with its status, track and volume as last recorded in the
+     * playback journal, or null if there is none
+     */
+    private Speaker findSpeaker(String speakerMacAddress) {
+        Speaker speaker = deviceCache.findSpeaker(speakerMacAddress);
+        if (speaker != null) {
+            playbackJournal.applyState(speaker);
+        }
+        return speaker;
+    }
+    
+    /**
+     * Records a playback state change in the journal. The speaker row is
+     * updated from it periodically, or right away if the journal cannot take
+     * the speaker's MAC address.
+     */
+    private void recordState(Speaker speaker, PlaybackJournal.EventType type, long trackId, int value) {
+        if (!playbackJournal.record(speaker.getMacAddress(), type, trackId, value)) {
+            deviceCache.saveSpeaker(speaker);
+        }
+    }
+    
+    /**
+     * Runs a command against each speaker in parallel and waits until all have been sent
+     */
+    private void dispatchToSpeakers(Collection<String> speakerMacAddresses, Consumer<Speaker> command) {
+        if (speakerMacAddresses == null || speakerMacAddresses.isEmpty()) {
+            return;
+        }
+        
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (String speakerMac : speakerMacAddresses) {
+            futures.add(CompletableFuture.runAsync(() -> {
+                Speaker speaker = findSpeaker(speakerMac);
+                if (speaker != null) {
+                    command.accept(speaker);
+                }
+            }, commandExecutor).exceptionally(e -> {
+                logger.error("Error sending command to speaker {}: ", speakerMac, e);
+                return null;
+            }));
+        }
+        
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+    }
+    
     // Helper methods to send commands to speakers
     // In a real implementation, these would make HTTP requests to the actual speakers
     
@@ -0,0 +1,338 @@
+package com.samsung.multiroom.service;
+
+import com.samsung.multiroom.model.Speaker;
+import com.samsung.multiroom.model.SpeakerGroup;
+import com.samsung.multiroom.repository.SpeakerGroupRepository;
+import com.samsung.multiroom.repository.SpeakerRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * Read-through cache of speakers by MAC address and groups by name, for the
+ * lookups every playback and group command starts with.
+ *
+ * Speakers and groups are saved and deleted through this class, which
+ * refreshes or drops the cached entry, so the cache never serves a state
+ * older than the last write. Callers get their own copy of a cached entity
+ * and may change it before saving it back, as with one loaded from the
+ * repository. Each cache holds a bounded number of entries and evicts the
+ * least recently used.
+ */
+@Service
+public class DeviceCache {
+    
+    private static final Logger logger = LoggerFactory.getLogger(DeviceCache.class);
+    
+    private static final int MAX_SPEAKERS = 512;
+    private static final int MAX_GROUPS = 512;
+    
+    @Autowired
+    private SpeakerRepository speakerRepository;
+    
+    @Autowired
+    private SpeakerGroupRepository speakerGroupRepository;
+    
+    private final LookupCache<Speaker> speakers = new LookupCache<>(MAX_SPEAKERS, DeviceCache::copySpeaker);
+    private final LookupCache<SpeakerGroup> groups = new LookupCache<>(MAX_GROUPS, DeviceCache::copyGroup);
+    
+    /**
+     * Counters of one cache since startup
+     */
+    public static class CacheStats {
+        private final int size;
+        private final int capacity;
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long invalidations;
+        
+        public CacheStats(int size, int capacity, long hits, long misses, long evictions, long invalidations) {
+            this.size = size;
+            this.capacity = capacity;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.invalidations = invalidations;
+        }
+        
+        public int getSize() { return size; }
+        public int getCapacity() { return capacity; }
+        public long getHits() { return hits; }
+        public long getMisses() { return misses; }
+        public long getEvictions() { return evictions; }
+        public long getInvalidations() { return invalidations; }
+        public double getHitRate() { return hits + misses > 0 ? (double) hits / (hits + misses) : 0; }
+    }
+    
+    /**
+     * Bounded LRU map from key to entity. Loads run outside the lock; a load
+     * that overlapped a write is returned but not cached, as it may predate it.
+     */
+    private static final class LookupCache<V> {
+        private final int capacity;
+        private final UnaryOperator<V> copier;
+        private final Map<String, V> entries;
+        private long generation;
+        private long hits;
+        private long misses;
+        private long evictions;
+        private long invalidations;
+        
+        LookupCache(int capacity, UnaryOperator<V> copier) {
+            this.capacity = capacity;
+            this.copier = copier;
+            this.entries = new LinkedHashMap<String, V>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                    if (size() > LookupCache.this.capacity) {
+                        evictions++;
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+        
+        V get(String key, Function<String, V> loader) {
+            long loadGeneration;
+            synchronized (this) {
+                V cached = entries.get(key);
+                if (cached != null) {
+                    hits++;
+                    return copier.apply(cached);
+                }
+                misses++;
+                loadGeneration = generation;
+            }
+            
+            V loaded = loader.apply(key);
+            if (loaded != null) {
+                synchronized (this) {
+                    if (generation == loadGeneration) {
+                        entries.put(key, copier.apply(loaded));
+                    }
+                }
+            }
+            return loaded;
+        }
+        
+        /**
+         * Cached entries for the given keys, loading all the others with one
+         * call to the loader. Keys that are not found are left out.
+         */
+        Map<String, V> getAll(Collection<String> keys, Function<Collection<String>, Map<String, V>> loader) {
+            Map<String, V> found = new HashMap<>();
+            Set<String> missing = new LinkedHashSet<>();
+            long loadGeneration;
+            synchronized (this) {
+                for (String key : keys) {
+                    if (found.containsKey(key) || missing.contains(key)) {
+                        continue;
+                    }
+                    V cached = entries.get(key);
+                    if (cached != null) {
+                        hits++;
+                        found.put(key, copier.apply(cached));
+                    } else {
+                        misses++;
+                        missing.add(key);
+                    }
+                }
+                loadGeneration = generation;
+            }
+            if (missing.isEmpty()) {
+                return found;
+            }
+            
+            Map<String, V> loaded = loader.apply(missing);
+            synchronized (this) {
+                if (generation == loadGeneration) {
+                    loaded.forEach((key, value) -> entries.put(key, copier.apply(value)));
+                }
+            }
+            found.putAll(loaded);
+            return found;
+        }
+        
+        synchronized void put(String key, V value) {
+            generation++;
+            entries.put(key, copier.apply(value));
+        }
+        
+        synchronized void invalidate(String key) {
+            generation++;
+            if (entries.remove(key) != null) {
+                invalidations++;
+            }
+        }
+        
+        synchronized void clear() {
+            generation++;
+            invalidations += entries.size();
+            entries.clear();
+        }
+        
+        synchronized CacheStats stats() {
+            return new CacheStats(entries.size(), capacity, hits, misses, evictions, invalidations);
+        }
+    }
+    
+    /**
+     * Gets a speaker by MAC address, or null if there is none
+     */
+    public Speaker findSpeaker(String macAddress) {
+        if (macAddress == null) {
+            return null;
+        }
+        return speakers.get(macAddress, mac -> speakerRepository.findByMacAddress(mac).orElse(null));
+    }
+    
+    /**
+     * Gets a group by name, or null if there is none
+     */
+    public SpeakerGroup findGroup(String groupName) {
+        if (groupName == null) {
+            return null;
+        }
+        return groups.get(groupName, name -> speakerGroupRepository.findByName(name).orElse(null));
+    }
+    
+    /**
+     * Gets the speakers with the given MAC addresses, by MAC address, with
+     * one query for those not cached. Unknown ones are left out.
+     */
+    public Map<String, Speaker> findSpeakers(Collection<String> macAddresses) {
+        return speakers.getAll(macAddresses, missing -> {
+            Map<String, Speaker> loaded = new HashMap<>();
+            for (Speaker speaker : speakerRepository.findByMacAddressIn(missing)) {
+                loaded.put(speaker.getMacAddress(), speaker);
+            }
+            return loaded;
+        });
+    }
+    
+    /**
+     * Gets the groups with the given names, by name, with one query for
+     * those not cached. Unknown ones are left out.
+     */
+    public Map<String, SpeakerGroup> findGroups(Collection<String> groupNames) {
+        return groups.getAll(groupNames, missing -> {
+            Map<String, SpeakerGroup> loaded = new HashMap<>();
+            for (SpeakerGroup group : speakerGroupRepository.findByNameIn(missing)) {
+                loaded.put(group.getName(), group);
+            }
+            return loaded;
+        });
+    }
+    
+    /**
+     * Saves a speaker and caches the saved state
+     */
+    public Speaker saveSpeaker(Speaker speaker) {
+        try {
+            Speaker saved = speakerRepository.save(speaker);
+            speakers.put(saved.getMacAddress(), saved);
+            return saved;
+        } catch (RuntimeException e) {
+            // The stored row may or may not have changed
+            speakers.invalidate(speaker.getMacAddress());
+            throw e;
+        }
+    }
+    
+    /**
+     * Saves a group and caches the saved state
+     */
+    public SpeakerGroup saveGroup(SpeakerGroup group) {
+        try {
+            SpeakerGroup saved = speakerGroupRepository.save(group);
+            groups.put(saved.getName(), saved);
+            return saved;
+        } catch (RuntimeException e) {
+            groups.invalidate(group.getName());
+            throw e;
+        }
+    }
+    
+    /**
+     * Deletes a group and drops it from the cache
+     */
+    public void deleteGroup(SpeakerGroup group) {
+        try {
+            speakerGroupRepository.delete(group);
+        } finally {
+            groups.invalidate(group.getName());
+        }
+    }
+    
+    /**
+     * Fills the caches with the stored speakers and groups, up to their
+     * capacity, so the first commands after a restart do not query them
+     */
+    public void preload() {
+        for (Speaker speaker : speakerRepository.findAll(PageRequest.of(0, MAX_SPEAKERS))) {
+            speakers.put(speaker.getMacAddress(), speaker);
+        }
+        for (SpeakerGroup group : speakerGroupRepository.findAll(PageRequest.of(0, MAX_GROUPS))) {
+            groups.put(group.getName(), group);
+        }
+        logger.info("Preloaded {} speakers and {} groups", speakers.stats().getSize(), groups.stats().getSize());
+    }
+    
+    /**
+     * Drops every cached entry, for changes made to the database behind this class
+     */
+    public void invalidateAll() {
+        speakers.clear();
+        groups.clear();
+        logger.info("Cleared the speaker and group caches");
+    }
+    
+    public CacheStats getSpeakerStats() {
+        return speakers.stats();
+    }
+    
+    public CacheStats getGroupStats() {
+        return groups.stats();
+    }
+    
+    // Copies hold every column, so a copy saved back loses nothing
+    private static Speaker copySpeaker(Speaker speaker) {
+        Speaker copy = new Speaker(speaker.getMacAddress(), speaker.getName(), speaker.getIpAddress());
+        copy.setId(speaker.getId());
+        copy.setModel(speaker.getModel());
+        copy.setConnected(speaker.isConnected());
+        copy.setMaster(speaker.isMaster());
+        copy.setVolume(speaker.getVolume());
+        copy.setGroupMembers(speaker.getGroupMembers() != null ? new ArrayList<>(speaker.getGroupMembers()) : null);
+        copy.setCurrentTrack(speaker.getCurrentTrack());
+        copy.setStatus(speaker.getStatus());
+        copy.setPosition(speaker.getPosition());
+        return copy;
+    }
+    
+    private static SpeakerGroup copyGroup(SpeakerGroup group) {
+        SpeakerGroup copy = new SpeakerGroup(group.getName());
+        copy.setId(group.getId());
+        copy.setSpeakerMacAddresses(group.getSpeakerMacAddresses() != null
+                ? new ArrayList<>(group.getSpeakerMacAddresses()) : null);
+        copy.setChildGroupNames(group.getChildGroupNames() != null ? new ArrayList<>(group.getChildGroupNames()) : null);
+        copy.setPlaying(group.isPlaying());
+        copy.setCurrentTrackUri(group.getCurrentTrackUri());
+        copy.setVolume(group.getVolume());
+        return copy;
+    }
+}
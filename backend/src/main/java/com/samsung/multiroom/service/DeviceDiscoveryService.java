@@ -16,6 +16,7 @@ import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -38,11 +39,17 @@ public class DeviceDiscoveryService {
     @Autowired
     private SpeakerRepository speakerRepository;
     
+    @Autowired
+    private DeviceCache deviceCache;
+    
     private final ExecutorService executorService = Executors.newCachedThreadPool();
     
     // Store discovered devices
     private final List<Speaker> discoveredDevices = new ArrayList<>();
     
+    // Bumped whenever the discovered device list changes, so callers can cache derived views
+    private final AtomicLong discoveryVersion = new AtomicLong();
+    
     @PostConstruct
     public void startDeviceDiscovery() {
         logger.info("Starting device discovery service...");
@@ -54,6 +61,13 @@ public class DeviceDiscoveryService {
         return new ArrayList<>(discoveredDevices);
     }
     
+    /**
+     * Returns a counter that changes whenever the discovered device list changes
+     */
+    public long getDiscoveryVersion() {
+        return discoveryVersion.get();
+    }
+    
     /**
      * Performs network scan to find Samsung speakers
      */
@@ -212,14 +226,16 @@ public class DeviceDiscoveryService {
                                                    "Samsung Speaker " + ipAddress, ipAddress);
                     newSpeaker.setConnected(true);
                     newSpeaker.setModel("Samsung Multiroom Speaker");
-                    speakerRepository.save(newSpeaker);
+                    deviceCache.saveSpeaker(newSpeaker);
                     discoveredDevices.add(newSpeaker);
+                    discoveryVersion.incrementAndGet();
                 } else {
                     // Update existing device
                     existingSpeaker.setConnected(true);
-                    speakerRepository.save(existingSpeaker);
+                    deviceCache.saveSpeaker(existingSpeaker);
                     if (!discoveredDevices.contains(existingSpeaker)) {
                         discoveredDevices.add(existingSpeaker);
+                        discoveryVersion.incrementAndGet();
                     }
                 }
                 // Continue checking other ports as there might be multiple services running on different ports
@@ -268,7 +284,7 @@ public class DeviceDiscoveryService {
             deviceName = server.split(" ")[0] + " " + ipAddress;
         }
         
-        Speaker existingSpeaker = speakerRepository.findByMacAddress(macAddress).orElse(null);
+        Speaker existingSpeaker = deviceCache.findSpeaker(macAddress);
         if (existingSpeaker == null) {
             Speaker newSpeaker = new Speaker(macAddress, deviceName, ipAddress);
             newSpeaker.setConnected(true);
@@ -276,15 +292,17 @@ public class DeviceDiscoveryService {
             
             // Try to get additional details from device if possible
             // For now, just save the info we have
-            speakerRepository.save(newSpeaker);
+            deviceCache.saveSpeaker(newSpeaker);
             discoveredDevices.add(newSpeaker);
+            discoveryVersion.incrementAndGet();
         } else {
             existingSpeaker.setConnected(true);
             existingSpeaker.setIpAddress(ipAddress);
             existingSpeaker.setModel(extractModelFromResponse(response));
-            speakerRepository.save(existingSpeaker);
+            deviceCache.saveSpeaker(existingSpeaker);
             if (!discoveredDevices.contains(existingSpeaker)) {
                 discoveredDevices.add(existingSpeaker);
+                discoveryVersion.incrementAndGet();
             }
         }
     }
@@ -388,6 +406,7 @@ public class DeviceDiscoveryService {
     public void refreshDeviceDiscovery() {
         logger.info("Refreshing device discovery...");
         discoveredDevices.clear();
+        discoveryVersion.incrementAndGet();
         CompletableFuture.runAsync(this::startSSDPDiscovery, executorService);
         CompletableFuture.runAsync(this::startNetworkScan, executorService);
     }
@@ -398,6 +417,7 @@ public class DeviceDiscoveryService {
     public void startFullDiscovery() {
         logger.info("Starting full device discovery (both SSDP and network scan)...");
         discoveredDevices.clear();
+        discoveryVersion.incrementAndGet();
         CompletableFuture.runAsync(this::startSSDPDiscovery, executorService);
         CompletableFuture.runAsync(this::startNetworkScan, executorService);
     }
@@ -415,7 +435,7 @@ public class DeviceDiscoveryService {
         Speaker speaker = speakerRepository.findByIpAddress(ipAddress).orElse(null);
         if (speaker != null) {
             speaker.setConnected(isReachable);
-            speakerRepository.save(speaker);
+            deviceCache.saveSpeaker(speaker);
             
             // Update the discovered devices list
             for (int i = 0; i < discoveredDevices.size(); i++) {
@@ -0,0 +1,469 @@
+package com.samsung.multiroom.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A compact FLAC decoder: fixed and LPC subframes with Rice-coded residuals and
+ * stereo decorrelation, up to 24 bits per sample. Frames are decoded one at a
+ * time; checksums are not verified.
+ */
+class FlacDecoder extends PcmDecoder {
+    
+    private static final int STREAMINFO = 0;
+    
+    // Bits per sample by frame header code; 0 means "as in STREAMINFO", -1 is reserved
+    private static final int[] SAMPLE_SIZES = {0, 8, 12, -1, 16, 20, 24, -1};
+    
+    private static final int LEFT_SIDE = 8;
+    private static final int SIDE_RIGHT = 9;
+    private static final int MID_SIDE = 10;
+    
+    private final BitReader reader;
+    private final int sampleRate;
+    private final int channels;
+    private final int bitsPerSample;
+    private final long totalFrames;
+    private final double scale;
+    
+    private long decodedFrames;
+    private int[][] block = new int[0][];
+    private int blockSize;
+    private int blockPosition;
+    
+    private FlacDecoder(BitReader reader, int sampleRate, int channels, int bitsPerSample, long totalFrames) {
+        this.reader = reader;
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.bitsPerSample = bitsPerSample;
+        this.totalFrames = totalFrames;
+        this.scale = 1.0 / (1L << (bitsPerSample - 1));
+    }
+    
+    /**
+     * Read the stream header and metadata blocks. Returns null if this is not a
+     * FLAC stream after all (an ID3 tag in front of something else).
+     */
+    static FlacDecoder openStream(InputStream in) throws IOException {
+        byte[] magic = in.readNBytes(4);
+        if (AudioMetadataReader.startsWith(magic, 0, "ID3")) {
+            byte[] header = in.readNBytes(6);
+            if (header.length < 6) {
+                return null;
+            }
+            skipFully(in, AudioMetadataReader.syncsafe(header, 2));
+            magic = in.readNBytes(4);
+        }
+        if (!AudioMetadataReader.startsWith(magic, 0, "fLaC")) {
+            return null;
+        }
+        
+        BitReader reader = new BitReader(in);
+        int sampleRate = 0;
+        int channels = 0;
+        int bitsPerSample = 0;
+        long totalFrames = 0;
+        boolean last = false;
+        while (!last) {
+            last = reader.bits(1) == 1;
+            int type = reader.bits(7);
+            int length = reader.bits(24);
+            if (type == STREAMINFO && length >= 34) {
+                reader.bits(16); // minimum and maximum block size
+                reader.bits(16);
+                reader.bits(24); // minimum and maximum frame size
+                reader.bits(24);
+                sampleRate = reader.bits(20);
+                channels = reader.bits(3) + 1;
+                bitsPerSample = reader.bits(5) + 1;
+                totalFrames = (long) reader.bits(4) << 32 | reader.bits(32) & 0xFFFFFFFFL;
+                reader.skipBytes(length - 18);
+            } else {
+                reader.skipBytes(length);
+            }
+        }
+        if (sampleRate == 0) {
+            throw new IOException("FLAC stream without STREAMINFO");
+        }
+        if (bitsPerSample < 4 || bitsPerSample > 24) {
+            throw new IOException("Unsupported FLAC sample size: " + bitsPerSample + " bits");
+        }
+        return new FlacDecoder(reader, sampleRate, channels, bitsPerSample, totalFrames);
+    }
+    
+    @Override
+    public int getSampleRate() { return sampleRate; }
+    
+    @Override
+    public int getChannels() { return channels; }
+    
+    @Override
+    public long getTotalFrames() { return totalFrames; }
+    
+    @Override
+    public int read(double[][] buffer) throws IOException {
+        int frames = 0;
+        while (frames < buffer[0].length) {
+            if (blockPosition == blockSize && !decodeFrame()) {
+                break;
+            }
+            int count = Math.min(buffer[0].length - frames, blockSize - blockPosition);
+            for (int channel = 0; channel < channels; channel++) {
+                int[] samples = block[channel];
+                double[] out = buffer[channel];
+                for (int i = 0; i < count; i++) {
+                    out[frames + i] = samples[blockPosition + i] * scale;
+                }
+            }
+            frames += count;
+            blockPosition += count;
+        }
+        return frames > 0 ? frames : -1;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        reader.in.close();
+    }
+    
+    /**
+     * Decode the next frame into block; returns false at the end of the stream
+     */
+    private boolean decodeFrame() throws IOException {
+        if (totalFrames > 0 && decodedFrames >= totalFrames) {
+            return false;
+        }
+        if (!reader.findFrameSync()) {
+            return false;
+        }
+        
+        int blockSizeCode = reader.bits(4);
+        int sampleRateCode = reader.bits(4);
+        int channelAssignment = reader.bits(4);
+        int sampleSizeCode = reader.bits(3);
+        reader.bits(1);
+        reader.skipCodedNumber();
+        
+        int size;
+        if (blockSizeCode == 1) {
+            size = 192;
+        } else if (blockSizeCode >= 2 && blockSizeCode <= 5) {
+            size = 576 << (blockSizeCode - 2);
+        } else if (blockSizeCode == 6) {
+            size = reader.bits(8) + 1;
+        } else if (blockSizeCode == 7) {
+            size = reader.bits(16) + 1;
+        } else if (blockSizeCode >= 8) {
+            size = 256 << (blockSizeCode - 8);
+        } else {
+            throw new IOException("Reserved FLAC block size");
+        }
+        if (sampleRateCode == 12) {
+            reader.bits(8);
+        } else if (sampleRateCode == 13 || sampleRateCode == 14) {
+            reader.bits(16);
+        }
+        reader.bits(8); // header CRC
+        
+        int sampleSize = SAMPLE_SIZES[sampleSizeCode] == 0 ? bitsPerSample : SAMPLE_SIZES[sampleSizeCode];
+        int frameChannels = channelAssignment < LEFT_SIDE ? channelAssignment + 1 : 2;
+        if (sampleSize < 0 || channelAssignment > MID_SIDE || frameChannels != channels || sampleSize > 24) {
+            throw new IOException("Unsupported FLAC frame");
+        }
+        
+        if (block.length < channels || block[0].length < size) {
+            block = new int[channels][size];
+        }
+        for (int channel = 0; channel < channels; channel++) {
+            // The side channel needs one more bit
+            boolean side = channelAssignment == LEFT_SIDE && channel == 1
+                    || channelAssignment == SIDE_RIGHT && channel == 0
+                    || channelAssignment == MID_SIDE && channel == 1;
+            decodeSubframe(block[channel], size, side ? sampleSize + 1 : sampleSize);
+        }
+        reader.alignToByte();
+        reader.bits(16); // frame CRC
+        
+        decorrelate(channelAssignment, size);
+        if (totalFrames > 0 && decodedFrames + size > totalFrames) {
+            size = (int) (totalFrames - decodedFrames);
+        }
+        decodedFrames += size;
+        blockSize = size;
+        blockPosition = 0;
+        return true;
+    }
+    
+    private void decodeSubframe(int[] out, int size, int sampleSize) throws IOException {
+        if (reader.bits(1) != 0) {
+            throw new IOException("Invalid FLAC subframe");
+        }
+        int type = reader.bits(6);
+        int wastedBits = 0;
+        if (reader.bits(1) == 1) {
+            wastedBits = reader.unary() + 1;
+            sampleSize -= wastedBits;
+        }
+        
+        if (type == 0) {
+            int value = reader.signedBits(sampleSize);
+            for (int i = 0; i < size; i++) {
+                out[i] = value;
+            }
+        } else if (type == 1) {
+            for (int i = 0; i < size; i++) {
+                out[i] = reader.signedBits(sampleSize);
+            }
+        } else if (type >= 8 && type <= 12) {
+            int order = type - 8;
+            for (int i = 0; i < order; i++) {
+                out[i] = reader.signedBits(sampleSize);
+            }
+            decodeResidual(out, size, order);
+            restoreFixed(out, size, order);
+        } else if (type >= 32) {
+            int order = (type & 31) + 1;
+            for (int i = 0; i < order; i++) {
+                out[i] = reader.signedBits(sampleSize);
+            }
+            int precision = reader.bits(4) + 1;
+            int shift = reader.signedBits(5);
+            if (precision == 16 || shift < 0) {
+                throw new IOException("Invalid FLAC LPC subframe");
+            }
+            int[] coefficients = new int[order];
+            for (int i = 0; i < order; i++) {
+                coefficients[i] = reader.signedBits(precision);
+            }
+            decodeResidual(out, size, order);
+            restoreLpc(out, size, coefficients, shift);
+        } else {
+            throw new IOException("Reserved FLAC subframe type " + type);
+        }
+        
+        if (wastedBits > 0) {
+            for (int i = 0; i < size; i++) {
+                out[i] <<= wastedBits;
+            }
+        }
+    }
+    
+    /**
+     * Partitioned Rice residual, written after the warm-up samples
+     */
+    private void decodeResidual(int[] out, int size, int order) throws IOException {
+        int method = reader.bits(2);
+        if (method > 1) {
+            throw new IOException("Reserved FLAC residual coding");
+        }
+        int parameterBits = method == 0 ? 4 : 5;
+        int escape = (1 << parameterBits) - 1;
+        int partitionOrder = reader.bits(4);
+        int partitionSize = size >> partitionOrder;
+        if (partitionSize < order) {
+            throw new IOException("Invalid FLAC residual partition");
+        }
+        
+        int i = order;
+        for (int partition = 0; partition < 1 << partitionOrder; partition++) {
+            int end = i + (partition == 0 ? partitionSize - order : partitionSize);
+            int parameter = reader.bits(parameterBits);
+            if (parameter == escape) {
+                int rawBits = reader.bits(5);
+                for (; i < end; i++) {
+                    out[i] = reader.signedBits(rawBits);
+                }
+            } else {
+                for (; i < end; i++) {
+                    int value = reader.unary() << parameter | reader.bits(parameter);
+                    out[i] = (value >>> 1) ^ -(value & 1);
+                }
+            }
+        }
+    }
+    
+    private static void restoreFixed(int[] out, int size, int order) {
+        for (int i = order; i < size; i++) {
+            switch (order) {
+                case 1:
+                    out[i] += out[i - 1];
+                    break;
+                case 2:
+                    out[i] += 2 * out[i - 1] - out[i - 2];
+                    break;
+                case 3:
+                    out[i] += 3 * out[i - 1] - 3 * out[i - 2] + out[i - 3];
+                    break;
+                case 4:
+                    out[i] += 4 * out[i - 1] - 6 * out[i - 2] + 4 * out[i - 3] - out[i - 4];
+                    break;
+                default:
+                    return;
+            }
+        }
+    }
+    
+    private static void restoreLpc(int[] out, int size, int[] coefficients, int shift) {
+        int order = coefficients.length;
+        for (int i = order; i < size; i++) {
+            long prediction = 0;
+            for (int j = 0; j < order; j++) {
+                prediction += (long) coefficients[j] * out[i - 1 - j];
+            }
+            out[i] += (int) (prediction >> shift);
+        }
+    }
+    
+    private void decorrelate(int channelAssignment, int size) {
+        int[] first = block[0];
+        int[] second = channels > 1 ? block[1] : null;
+        for (int i = 0; i < size && second != null; i++) {
+            switch (channelAssignment) {
+                case LEFT_SIDE:
+                    second[i] = first[i] - second[i];
+                    break;
+                case SIDE_RIGHT:
+                    first[i] += second[i];
+                    break;
+                case MID_SIDE:
+                    int mid = first[i] << 1 | second[i] & 1;
+                    int side = second[i];
+                    first[i] = (mid + side) >> 1;
+                    second[i] = (mid - side) >> 1;
+                    break;
+                default:
+                    return;
+            }
+        }
+    }
+    
+    /**
+     * Reads big-endian bit fields from a buffered stream
+     */
+    private static class BitReader {
+        private final InputStream in;
+        private final byte[] buffer = new byte[64 * 1024];
+        private int position;
+        private int limit;
+        private long cache; // the low cacheBits bits are unread
+        private int cacheBits;
+        
+        BitReader(InputStream in) {
+            this.in = in;
+        }
+        
+        int bits(int count) throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+            while (cacheBits < count) {
+                int next = nextByte();
+                if (next < 0) {
+                    throw new EOFException("Truncated FLAC stream");
+                }
+                cache = cache << 8 | next;
+                cacheBits += 8;
+            }
+            cacheBits -= count;
+            return (int) (cache >>> cacheBits & (1L << count) - 1);
+        }
+        
+        int signedBits(int count) throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+            int value = bits(count);
+            return value << (32 - count) >> (32 - count);
+        }
+        
+        /**
+         * Count zero bits up to and including the next one bit
+         */
+        int unary() throws IOException {
+            int zeros = 0;
+            while (true) {
+                if (cacheBits == 0) {
+                    int next = nextByte();
+                    if (next < 0) {
+                        throw new EOFException("Truncated FLAC stream");
+                    }
+                    cache = next;
+                    cacheBits = 8;
+                }
+                long unread = cache & (1L << cacheBits) - 1;
+                if (unread == 0) {
+                    zeros += cacheBits;
+                    cacheBits = 0;
+                } else {
+                    int highestOne = 63 - Long.numberOfLeadingZeros(unread);
+                    zeros += cacheBits - 1 - highestOne;
+                    cacheBits = highestOne;
+                    return zeros;
+                }
+            }
+        }
+        
+        void alignToByte() {
+            cacheBits -= cacheBits % 8;
+        }
+        
+        /**
+         * Skip to just past the next frame sync code; returns false at the end of the stream
+         */
+        boolean findFrameSync() throws IOException {
+            alignToByte();
+            int previous = alignedByte();
+            while (previous >= 0) {
+                int next = alignedByte();
+                if (previous == 0xFF && next >= 0 && (next & 0xFE) == 0xF8) {
+                    return true;
+                }
+                previous = next;
+            }
+            return false;
+        }
+        
+        /**
+         * The UTF-8 style coded frame or sample number
+         */
+        void skipCodedNumber() throws IOException {
+            int first = bits(8);
+            int length = Integer.numberOfLeadingZeros(~first << 24);
+            for (int i = 1; i < length; i++) {
+                bits(8);
+            }
+        }
+        
+        void skipBytes(long count) throws IOException {
+            alignToByte();
+            while (count > 0 && cacheBits > 0) {
+                bits(8);
+                count--;
+            }
+            int buffered = (int) Math.min(count, limit - position);
+            position += buffered;
+            skipFully(in, count - buffered);
+        }
+        
+        private int alignedByte() throws IOException {
+            if (cacheBits >= 8) {
+                cacheBits -= 8;
+                return (int) (cache >>> cacheBits & 0xFF);
+            }
+            return nextByte();
+        }
+        
+        private int nextByte() throws IOException {
+            if (position == limit) {
+                limit = in.read(buffer);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            return buffer[position++] & 0xFF;
+        }
+    }
+}
@@ -0,0 +1,455 @@
+package com.samsung.multiroom.service;
+
+import com.samsung.multiroom.model.Speaker;
+import com.samsung.multiroom.repository.SpeakerRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Manages device-side multiroom groups. One speaker per group is elected master;
+ * it receives the stream and transport commands and relays them to the followers,
+ * which keep themselves in sync with the master.
+ *
+ * A device-side group follows its logical group: it is taken apart as soon as
+ * the members change and formed again with the new members. Groups formed
+ * before a restart are picked up again from the stored master speakers.
+ */
+@Service
+public class GroupTopologyService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(GroupTopologyService.class);
+    
+    private static final int SPEAKER_API_PORT = 55001; // Samsung speaker UIC control port
+    private static final int PROBE_TIMEOUT_MS = 1000;
+    private static final int PROBE_COUNT = 3;
+    
+    // How much a millisecond of device processing counts against a millisecond of link latency
+    private static final int LOAD_WEIGHT = 2;
+    
+    @Autowired
+    private DeviceCache deviceCache;
+    
+    @Autowired
+    private SpeakerGroupService speakerGroupService;
+    
+    @Autowired
+    private SpeakerRepository speakerRepository;
+    
+    private final ExecutorService probeExecutor = Executors.newCachedThreadPool();
+    
+    // Device-side groups formed by this controller, keyed by logical group name
+    private final Map<String, DeviceGroup> deviceGroups = new ConcurrentHashMap<>();
+    
+    // Device-side group each speaker belongs to (a speaker can only be in one)
+    private final Map<String, String> speakerToDeviceGroup = new ConcurrentHashMap<>();
+    
+    /**
+     * A formed device-side multiroom group
+     */
+    public static class DeviceGroup {
+        private final String groupName;
+        private final String masterMacAddress;
+        private final List<String> followerMacAddresses;
+        private final Map<String, LinkProbe> probes;
+        private final long formedAt;
+        
+        public DeviceGroup(String groupName, String masterMacAddress, List<String> followerMacAddresses,
+                           Map<String, LinkProbe> probes) {
+            this.groupName = groupName;
+            this.masterMacAddress = masterMacAddress;
+            this.followerMacAddresses = List.copyOf(followerMacAddresses);
+            this.probes = Map.copyOf(probes);
+            this.formedAt = System.currentTimeMillis();
+        }
+        
+        public String getGroupName() { return groupName; }
+        public String getMasterMacAddress() { return masterMacAddress; }
+        public List<String> getFollowerMacAddresses() { return followerMacAddresses; }
+        public Map<String, LinkProbe> getProbes() { return probes; }
+        public long getFormedAt() { return formedAt; }
+        
+        public Set<String> memberMacAddresses() {
+            Set<String> members = new HashSet<>(followerMacAddresses);
+            members.add(masterMacAddress);
+            return members;
+        }
+    }
+    
+    /**
+     * Result of probing a speaker: connect time measures the network link,
+     * the time the device takes to answer a request on top of that measures
+     * how busy it is. The speaker API reports no load figure of its own.
+     */
+    public static class LinkProbe {
+        private final boolean reachable;
+        private final long connectMillis;
+        private final long responseMillis;
+        
+        public LinkProbe(boolean reachable, long connectMillis, long responseMillis) {
+            this.reachable = reachable;
+            this.connectMillis = connectMillis;
+            this.responseMillis = responseMillis;
+        }
+        
+        public boolean isReachable() { return reachable; }
+        public long getConnectMillis() { return connectMillis; }
+        public long getResponseMillis() { return responseMillis; }
+        
+        // A request opens its own connection, so processing is what remains of the response time
+        public long getProcessingMillis() { return Math.max(0, responseMillis - connectMillis); }
+        
+        // Lower is better: link latency plus device load, load weighted higher as
+        // the master also has to relay the stream to every follower
+        public long getScore() {
+            return reachable ? connectMillis + LOAD_WEIGHT * getProcessingMillis() : Long.MAX_VALUE;
+        }
+    }
+    
+    @PostConstruct
+    public void init() {
+        speakerGroupService.addMembershipListener(this::membershipChanged);
+    }
+    
+    /**
+     * Rebuilds the device-side groups from the stored master speakers. A master
+     * whose speakers no longer match any logical group is ungrouped.
+     */
+    public synchronized void restoreDeviceGroups() {
+        Map<Set<String>, String> groupsByMembers = new HashMap<>();
+        for (String groupName : speakerGroupService.getGroupNames()) {
+            Set<String> members = currentMembers(groupName);
+            if (members != null) {
+                groupsByMembers.putIfAbsent(members, groupName);
+            }
+        }
+        
+        for (Speaker master : speakerRepository.findByIsMasterTrue()) {
+            List<String> followerMacs = master.getGroupMembers() != null
+                    ? master.getGroupMembers() : Collections.emptyList();
+            Set<String> members = new HashSet<>(followerMacs);
+            members.add(master.getMacAddress());
+            String groupName = groupsByMembers.get(members);
+            
+            if (groupName == null || deviceGroups.containsKey(groupName) || followerMacs.isEmpty()) {
+                logger.info("Ungrouping stale multiroom group of master {}", master.getMacAddress());
+                sendUngroupCommand(master);
+                master.setMaster(false);
+                master.setGroupMembers(new ArrayList<>());
+                deviceCache.saveSpeaker(master);
+                continue;
+            }
+            
+            DeviceGroup deviceGroup = new DeviceGroup(groupName, master.getMacAddress(), followerMacs, Map.of());
+            deviceGroups.put(groupName, deviceGroup);
+            for (String mac : members) {
+                speakerToDeviceGroup.put(mac, groupName);
+            }
+        }
+        logger.info("Restored {} multiroom groups", deviceGroups.size());
+    }
+    
+    /**
+     * Forms a device-side multiroom group from all speakers of a logical group.
+     * Speakers already in another device-side group are taken out of it first.
+     * The speakers are probed without holding the lock, so membership changes
+     * are not held up for the seconds that takes.
+     */
+    public DeviceGroup formGroup(String groupName) {
+        logger.info("Forming multiroom group for {}", groupName);
+        
+        while (true) {
+            Set<String> members = currentMembers(groupName);
+            if (members == null) {
+                logger.error("Group with name {} does not exist", groupName);
+                return null;
+            }
+            
+            List<Speaker> speakers = new ArrayList<>(deviceCache.findSpeakers(members).values());
+            if (speakers.size() < 2) {
+                logger.error("Group {} needs at least two speakers to form a multiroom group", groupName);
+                return null;
+            }
+            
+            Map<String, LinkProbe> probes = probeSpeakers(speakers);
+            Speaker master = electMaster(speakers, probes);
+            if (master == null) {
+                logger.error("No reachable speaker in group {} can act as master", groupName);
+                return null;
+            }
+            
+            synchronized (this) {
+                if (members.equals(currentMembers(groupName))) {
+                    return commitGroup(groupName, speakers, master, probes);
+                }
+            }
+            logger.info("Group {} changed while its speakers were probed, probing again", groupName);
+        }
+    }
+    
+    /**
+     * Groups the speakers on the devices and records the group; the caller holds the lock
+     */
+    private DeviceGroup commitGroup(String groupName, List<Speaker> speakers, Speaker master,
+                                    Map<String, LinkProbe> probes) {
+        // A speaker can only belong to one device-side group
+        Set<String> overlapping = new HashSet<>();
+        for (Speaker speaker : speakers) {
+            String current = speakerToDeviceGroup.get(speaker.getMacAddress());
+            if (current != null) {
+                overlapping.add(current);
+            }
+        }
+        for (String current : overlapping) {
+            dissolveGroup(current);
+        }
+        
+        List<Speaker> followers = new ArrayList<>();
+        List<String> followerMacs = new ArrayList<>();
+        for (Speaker speaker : speakers) {
+            if (!speaker.getMacAddress().equals(master.getMacAddress())) {
+                followers.add(speaker);
+                followerMacs.add(speaker.getMacAddress());
+            }
+        }
+        
+        sendFormGroupCommand(master, followers, groupName);
+        
+        master.setMaster(true);
+        master.setGroupMembers(new ArrayList<>(followerMacs));
+        deviceCache.saveSpeaker(master);
+        for (Speaker follower : followers) {
+            follower.setMaster(false);
+            follower.setGroupMembers(new ArrayList<>());
+            deviceCache.saveSpeaker(follower);
+        }
+        
+        DeviceGroup deviceGroup = new DeviceGroup(groupName, master.getMacAddress(), followerMacs, probes);
+        deviceGroups.put(groupName, deviceGroup);
+        for (String mac : deviceGroup.memberMacAddresses()) {
+            speakerToDeviceGroup.put(mac, groupName);
+        }
+        
+        logger.info("Formed multiroom group {} with master {} and {} followers",
+                   groupName, master.getMacAddress(), followerMacs.size());
+        return deviceGroup;
+    }
+    
+    /**
+     * Dissolves the device-side group formed for a logical group
+     */
+    public synchronized boolean dissolveGroup(String groupName) {
+        DeviceGroup deviceGroup = deviceGroups.remove(groupName);
+        if (deviceGroup == null) {
+            return false;
+        }
+        
+        logger.info("Dissolving multiroom group {}", groupName);
+        for (String mac : deviceGroup.memberMacAddresses()) {
+            speakerToDeviceGroup.remove(mac, groupName);
+        }
+        
+        Speaker master = deviceCache.findSpeaker(deviceGroup.getMasterMacAddress());
+        if (master != null) {
+            sendUngroupCommand(master);
+            master.setMaster(false);
+            master.setGroupMembers(new ArrayList<>());
+            deviceCache.saveSpeaker(master);
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Gets the device-side group formed for a logical group, if any
+     */
+    public DeviceGroup getDeviceGroup(String groupName) {
+        return deviceGroups.get(groupName);
+    }
+    
+    /**
+     * Reduces a set of speakers to the speakers that must receive a transport command.
+     * A device-side group whose members are all addressed is replaced by its master.
+     */
+    public Set<String> resolveCommandTargets(Collection<String> speakerMacAddresses) {
+        Set<String> targets = new LinkedHashSet<>();
+        if (speakerMacAddresses == null) {
+            return targets;
+        }
+        
+        for (String mac : speakerMacAddresses) {
+            String groupName = speakerToDeviceGroup.get(mac);
+            DeviceGroup deviceGroup = groupName != null ? deviceGroups.get(groupName) : null;
+            if (deviceGroup != null && speakerMacAddresses.containsAll(deviceGroup.memberMacAddresses())) {
+                targets.add(deviceGroup.getMasterMacAddress());
+            } else {
+                targets.add(mac);
+            }
+        }
+        
+        return targets;
+    }
+    
+    /**
+     * Takes apart device-side groups whose logical group has changed, so commands
+     * go to the speakers themselves at once, then forms them again in the background
+     */
+    private synchronized void membershipChanged() {
+        List<String> stale = new ArrayList<>();
+        for (DeviceGroup deviceGroup : deviceGroups.values()) {
+            if (!deviceGroup.memberMacAddresses().equals(currentMembers(deviceGroup.getGroupName()))) {
+                stale.add(deviceGroup.getGroupName());
+            }
+        }
+        
+        for (String groupName : stale) {
+            dissolveGroup(groupName);
+            Set<String> members = currentMembers(groupName);
+            if (members != null && members.size() >= 2) {
+                probeExecutor.execute(() -> formGroup(groupName));
+            }
+        }
+    }
+    
+    /**
+     * Known speakers of a logical group and its nested groups, or null if the group does not exist
+     */
+    private Set<String> currentMembers(String groupName) {
+        Set<String> members = speakerGroupService.resolveSpeakers(groupName);
+        return members != null ? new HashSet<>(deviceCache.findSpeakers(members).keySet()) : null;
+    }
+    
+    /**
+     * Picks the reachable speaker with the best probe score, preferring the current master on ties
+     */
+    private Speaker electMaster(List<Speaker> speakers, Map<String, LinkProbe> probes) {
+        Speaker best = null;
+        long bestScore = Long.MAX_VALUE;
+        
+        for (Speaker speaker : speakers) {
+            LinkProbe probe = probes.get(speaker.getMacAddress());
+            if (probe == null || !probe.isReachable()) {
+                continue;
+            }
+            
+            long score = probe.getScore();
+            if (best == null || score < bestScore || (score == bestScore && speaker.isMaster() && !best.isMaster())) {
+                best = speaker;
+                bestScore = score;
+            }
+        }
+        
+        return best;
+    }
+    
+    /**
+     * Probes all speakers in parallel
+     */
+    private Map<String, LinkProbe> probeSpeakers(List<Speaker> speakers) {
+        Map<String, CompletableFuture<LinkProbe>> futures = new LinkedHashMap<>();
+        for (Speaker speaker : speakers) {
+            futures.put(speaker.getMacAddress(),
+                       CompletableFuture.supplyAsync(() -> probeSpeaker(speaker.getIpAddress()), probeExecutor));
+        }
+        
+        Map<String, LinkProbe> probes = new LinkedHashMap<>();
+        futures.forEach((mac, future) -> probes.put(mac, future.join()));
+        return probes;
+    }
+    
+    /**
+     * Measures link quality and responsiveness of a speaker, taking the median of several probes
+     */
+    private LinkProbe probeSpeaker(String ipAddress) {
+        if (ipAddress == null) {
+            return new LinkProbe(false, 0, 0);
+        }
+        
+        long[] connectTimes = new long[PROBE_COUNT];
+        long[] responseTimes = new long[PROBE_COUNT];
+        
+        for (int i = 0; i < PROBE_COUNT; i++) {
+            long start = System.nanoTime();
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(ipAddress, SPEAKER_API_PORT), PROBE_TIMEOUT_MS);
+            } catch (IOException e) {
+                logger.debug("Speaker at {} is not reachable: {}", ipAddress, e.getMessage());
+                return new LinkProbe(false, 0, 0);
+            }
+            connectTimes[i] = (System.nanoTime() - start) / 1_000_000;
+            
+            start = System.nanoTime();
+            try {
+                requestSpeakerApi(ipAddress, "<name>GetVolume</name>");
+                responseTimes[i] = (System.nanoTime() - start) / 1_000_000;
+            } catch (IOException e) {
+                responseTimes[i] = PROBE_TIMEOUT_MS;
+            }
+        }
+        
+        Arrays.sort(connectTimes);
+        Arrays.sort(responseTimes);
+        return new LinkProbe(true, connectTimes[PROBE_COUNT / 2], responseTimes[PROBE_COUNT / 2]);
+    }
+    
+    /**
+     * Issues a UIC request to a speaker and reads the full response
+     */
+    private void requestSpeakerApi(String ipAddress, String command) throws IOException {
+        URL url = new URL("http://" + ipAddress + ":" + SPEAKER_API_PORT + "/UIC?cmd="
+                + URLEncoder.encode(command, StandardCharsets.UTF_8));
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(PROBE_TIMEOUT_MS);
+        connection.setReadTimeout(PROBE_TIMEOUT_MS);
+        try (InputStream in = connection.getInputStream()) {
+            in.readAllBytes();
+        } finally {
+            connection.disconnect();
+        }
+    }
+    
+    // Helper methods to send grouping commands to speakers
+    // In a real implementation, these would make HTTP requests to the actual speakers
+    
+    private void sendFormGroupCommand(Speaker master, List<Speaker> followers, String groupName) {
+        StringBuilder command = new StringBuilder()
+                .append("<name>SetMultispkGroup</name>")
+                .append("<p type=\"cdata\" name=\"name\" val=\"empty\"><![CDATA[").append(groupName).append("]]></p>")
+                .append("<p type=\"dec\" name=\"index\" val=\"1\"/>")
+                .append("<p type=\"str\" name=\"type\" val=\"main\"/>")
+                .append("<p type=\"dec\" name=\"spknum\" val=\"").append(followers.size() + 1).append("\"/>")
+                .append("<p type=\"str\" name=\"audiosourcemacaddr\" val=\"").append(master.getMacAddress()).append("\"/>")
+                .append("<p type=\"cdata\" name=\"audiosourcename\" val=\"empty\"><![CDATA[")
+                .append(master.getName()).append("]]></p>")
+                .append("<p type=\"str\" name=\"audiosourcetype\" val=\"speaker\"/>");
+        for (Speaker follower : followers) {
+            command.append("<p type=\"str\" name=\"subspkip\" val=\"").append(follower.getIpAddress()).append("\"/>")
+                   .append("<p type=\"str\" name=\"subspkmacaddr\" val=\"").append(follower.getMacAddress()).append("\"/>");
+        }
+        
+        logger.info("Sending group command to master {} at IP {}: {}",
+                   master.getName(), master.getIpAddress(), command);
+        // In a real implementation: send HTTP request to master's IP:55001/UIC?cmd=... to form the group
+    }
+    
+    private void sendUngroupCommand(Speaker master) {
+        logger.info("Sending ungroup command to master {} at IP {}", master.getName(), master.getIpAddress());
+        // In a real implementation: send HTTP request to master's IP:55001/UIC?cmd=<name>SetUngroup</name>
+    }
+}
@@ -0,0 +1,509 @@
+package com.samsung.multiroom.service;
+
+import com.samsung.multiroom.config.MusicLibraryConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An in-memory snapshot of the audio files under the library roots, for
+ * listing and browsing without touching the disk.
+ *
+ * The tree is walked once on startup (and again when the library directory
+ * changes); after that every scan reports the files it saw and only the
+ * directories that differ are rebuilt. Snapshots are immutable and share
+ * unchanged directories, and each change gets a new version. The last few
+ * versions are kept, so a client paging through a listing can stay on the
+ * version it started with.
+ */
+@Service
+public class LibraryFileTreeService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(LibraryFileTreeService.class);
+    
+    public static final int MAX_PAGE_SIZE = 1000;
+    
+    // Versions still served to clients paging through an older snapshot
+    private static final int RETAINED_VERSIONS = 8;
+    
+    private static final Directory[] NO_DIRECTORIES = new Directory[0];
+    private static final String[] NO_FILES = new String[0];
+    
+    @Autowired
+    private MusicLibraryConfig musicLibraryConfig;
+    
+    private final ExecutorService buildExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "library-file-tree");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    // Replaced under this lock; read without it
+    private final Object updateLock = new Object();
+    private volatile Snapshot current;
+    private final Map<Long, Snapshot> retained = new ConcurrentHashMap<>();
+    
+    // Scan results reported while a build walks the disk, applied again to the tree it builds
+    private List<Runnable> updatesDuringBuild;
+    
+    /**
+     * One page of a listing
+     */
+    public static class FileListing {
+        private final long version;
+        private final String directory;
+        private final int offset;
+        private final int total;
+        private final List<FileEntry> entries;
+        
+        public FileListing(long version, String directory, int offset, int total, List<FileEntry> entries) {
+            this.version = version;
+            this.directory = directory;
+            this.offset = offset;
+            this.total = total;
+            this.entries = entries;
+        }
+        
+        public long getVersion() { return version; }
+        public String getDirectory() { return directory; } // null for the list of library roots
+        public int getOffset() { return offset; }
+        public int getTotal() { return total; }
+        public List<FileEntry> getEntries() { return entries; }
+    }
+    
+    /**
+     * An audio file, or a directory with the number of audio files below it
+     */
+    public static class FileEntry {
+        private final String name;
+        private final String path;
+        private final boolean directory;
+        private final int fileCount;
+        
+        public FileEntry(String name, String path, boolean directory, int fileCount) {
+            this.name = name;
+            this.path = path;
+            this.directory = directory;
+            this.fileCount = fileCount;
+        }
+        
+        public String getName() { return name; }
+        public String getPath() { return path; }
+        public boolean isDirectory() { return directory; }
+        public int getFileCount() { return fileCount; }
+    }
+    
+    /**
+     * Immutable directory node; children and files are sorted by name
+     */
+    private static final class Directory {
+        final String name;
+        final Directory[] directories;
+        final String[] files;
+        final int fileCount; // in this directory and below
+        
+        Directory(String name, Directory[] directories, String[] files) {
+            this.name = name;
+            this.directories = directories;
+            this.files = files;
+            int count = files.length;
+            for (Directory directory : directories) {
+                count += directory.fileCount;
+            }
+            this.fileCount = count;
+        }
+        
+        Directory find(String childName) {
+            int low = 0;
+            int high = directories.length - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int comparison = directories[middle].name.compareTo(childName);
+                if (comparison == 0) {
+                    return directories[middle];
+                }
+                if (comparison < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return null;
+        }
+    }
+    
+    private static final class Snapshot {
+        final long version;
+        final List<Path> roots;
+        final Directory[] rootDirectories; // one per root, in the same order
+        
+        Snapshot(long version, List<Path> roots, Directory[] rootDirectories) {
+            this.version = version;
+            this.roots = roots;
+            this.rootDirectories = rootDirectories;
+        }
+    }
+    
+    /**
+     * Pending changes to one directory, collected before the tree is rebuilt
+     */
+    private static final class Edit {
+        final Map<String, Edit> directories = new HashMap<>();
+        final Set<String> addedFiles = new HashSet<>();
+        final Set<String> removedFiles = new HashSet<>();
+        
+        void record(Path relative, boolean added) {
+            Edit edit = this;
+            for (int i = 0; i < relative.getNameCount() - 1; i++) {
+                edit = edit.directories.computeIfAbsent(relative.getName(i).toString(), name -> new Edit());
+            }
+            String fileName = relative.getFileName().toString();
+            (added ? edit.addedFiles : edit.removedFiles).add(fileName);
+        }
+    }
+    
+    @EventListener(ApplicationReadyEvent.class)
+    public void buildOnStartup() {
+        rebuild();
+    }
+    
+    /**
+     * Walk the library roots again in the background, such as after they changed
+     */
+    public void rebuild() {
+        buildExecutor.submit(this::build);
+    }
+    
+    /**
+     * Bring the tree in line with a scan: files under the scanned paths that
+     * the scan did not see are dropped, unless the scan was cancelled or they
+     * are under a directory it could not list
+     */
+    public void update(Collection<Path> scannedPaths, Set<String> seenPaths, Set<Path> failedDirectories,
+                       boolean cancelled) {
+        synchronized (updateLock) {
+            if (updatesDuringBuild != null) {
+                updatesDuringBuild.add(() -> applyUpdate(scannedPaths, seenPaths, failedDirectories, cancelled));
+            }
+            applyUpdate(scannedPaths, seenPaths, failedDirectories, cancelled);
+        }
+    }
+    
+    /**
+     * Applies a scan's results to the current tree (caller holds updateLock)
+     */
+    private void applyUpdate(Collection<Path> scannedPaths, Set<String> seenPaths, Set<Path> failedDirectories,
+                             boolean cancelled) {
+        Snapshot snapshot = current;
+        if (snapshot == null) {
+            // The build still to come walks the disk itself
+            return;
+        }
+        Edit[] edits = new Edit[snapshot.roots.size()];
+        int changes = 0;
+        
+        Set<String> known = new HashSet<>();
+        for (Path scanned : scannedPaths) {
+            collectFiles(snapshot, scanned, known);
+        }
+        for (String path : seenPaths) {
+            if (!known.contains(path)) {
+                changes += edit(snapshot, edits, Paths.get(path), true);
+            }
+        }
+        if (!cancelled) {
+            for (String path : known) {
+                Path file = Paths.get(path);
+                if (!seenPaths.contains(path) && failedDirectories.stream().noneMatch(file::startsWith)) {
+                    changes += edit(snapshot, edits, file, false);
+                }
+            }
+        }
+        if (changes > 0) {
+            install(snapshot.roots, apply(snapshot.rootDirectories, edits));
+        }
+    }
+    
+    /**
+     * List a directory's subdirectories, then its files; with recursive, every
+     * audio file below it in depth-first order. Without a directory, the
+     * library roots (or with recursive, all audio files). Pass a version to
+     * page through the snapshot a listing started on.
+     *
+     * Returns null if the directory is not in the library, and throws
+     * IllegalStateException if the version is no longer kept or the tree has
+     * not been built yet.
+     */
+    public FileListing list(String directory, boolean recursive, int offset, int limit, Long version) {
+        Snapshot snapshot = version != null ? retained.get(version) : current;
+        if (snapshot == null) {
+            throw new IllegalStateException(version != null
+                    ? "Library file tree version " + version + " is no longer available"
+                    : "Library file tree is still being built");
+        }
+        int start = Math.max(0, offset);
+        int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        List<FileEntry> entries = new ArrayList<>(Math.min(pageSize, 64));
+        
+        if (directory == null) {
+            int total = 0;
+            for (int i = 0; i < snapshot.roots.size(); i++) {
+                Path root = snapshot.roots.get(i);
+                Directory rootDirectory = snapshot.rootDirectories[i];
+                if (recursive) {
+                    int skip = Math.max(0, start - total);
+                    collectPage(rootDirectory, root, skip, pageSize, entries);
+                    total += rootDirectory.fileCount;
+                } else {
+                    if (total >= start && entries.size() < pageSize) {
+                        entries.add(new FileEntry(root.toString(), root.toString(), true, rootDirectory.fileCount));
+                    }
+                    total++;
+                }
+            }
+            return new FileListing(snapshot.version, null, start, total, entries);
+        }
+        
+        Path path = Paths.get(directory).toAbsolutePath().normalize();
+        Directory node = find(snapshot, path);
+        if (node == null) {
+            return null;
+        }
+        if (recursive) {
+            collectPage(node, path, start, pageSize, entries);
+            return new FileListing(snapshot.version, path.toString(), start, node.fileCount, entries);
+        }
+        int total = node.directories.length + node.files.length;
+        for (int index = start; index < total && entries.size() < pageSize; index++) {
+            if (index < node.directories.length) {
+                Directory child = node.directories[index];
+                entries.add(new FileEntry(child.name, path.resolve(child.name).toString(), true, child.fileCount));
+            } else {
+                String file = node.files[index - node.directories.length];
+                entries.add(new FileEntry(file, path.resolve(file).toString(), false, 1));
+            }
+        }
+        return new FileListing(snapshot.version, path.toString(), start, total, entries);
+    }
+    
+    private void build() {
+        long start = System.currentTimeMillis();
+        synchronized (updateLock) {
+            updatesDuringBuild = new ArrayList<>();
+        }
+        // Scans keep updating the current tree while the disk is walked
+        List<Path> roots = musicLibraryConfig.getLibraryRoots();
+        Directory[] rootDirectories = new Directory[roots.size()];
+        try {
+            for (int i = 0; i < roots.size(); i++) {
+                Edit edit = new Edit();
+                walk(roots.get(i), edit);
+                rootDirectories[i] = apply(null, roots.get(i).toString(), edit, true);
+            }
+        } catch (RuntimeException e) {
+            synchronized (updateLock) {
+                updatesDuringBuild = null;
+            }
+            throw e;
+        }
+        synchronized (updateLock) {
+            install(roots, rootDirectories);
+            // The walk may have passed a directory before or after a scan of it
+            List<Runnable> updates = updatesDuringBuild;
+            updatesDuringBuild = null;
+            for (Runnable update : updates) {
+                update.run();
+            }
+            logger.info("Built library file tree of {} files in {} ms ({} scans applied again)",
+                       Arrays.stream(current.rootDirectories).mapToInt(directory -> directory.fileCount).sum(),
+                       System.currentTimeMillis() - start, updates.size());
+        }
+    }
+    
+    private static void walk(Path root, Edit edit) {
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        try {
+            // Like the scanner, symlinked directories are not followed and unreadable ones are skipped
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (attributes.isRegularFile() && LibraryScannerService.isAudioFile(file)) {
+                        edit.record(root.relativize(file), true);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+                
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    logger.warn("Could not list {}: {}", file, e.getMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            logger.warn("Could not walk library root {}: {}", root, e.getMessage());
+        }
+    }
+    
+    private void install(List<Path> roots, Directory[] rootDirectories) {
+        Snapshot previous = current;
+        Snapshot snapshot = new Snapshot(previous != null ? previous.version + 1 : 1, roots, rootDirectories);
+        retained.put(snapshot.version, snapshot);
+        retained.remove(snapshot.version - RETAINED_VERSIONS);
+        current = snapshot;
+    }
+    
+    /**
+     * Record a file added or removed under the root it belongs to; 0 if it is
+     * outside every root
+     */
+    private static int edit(Snapshot snapshot, Edit[] edits, Path file, boolean added) {
+        for (int i = 0; i < snapshot.roots.size(); i++) {
+            Path root = snapshot.roots.get(i);
+            if (file.startsWith(root) && !file.equals(root)) {
+                if (edits[i] == null) {
+                    edits[i] = new Edit();
+                }
+                edits[i].record(root.relativize(file), added);
+                return 1;
+            }
+        }
+        return 0;
+    }
+    
+    private static Directory[] apply(Directory[] rootDirectories, Edit[] edits) {
+        Directory[] updated = rootDirectories.clone();
+        for (int i = 0; i < edits.length; i++) {
+            if (edits[i] != null) {
+                updated[i] = apply(rootDirectories[i], rootDirectories[i].name, edits[i], true);
+            }
+        }
+        return updated;
+    }
+    
+    /**
+     * Copy a directory with an edit applied, reusing untouched subdirectories.
+     * Returns null for a directory left without audio files, except a root.
+     */
+    private static Directory apply(Directory directory, String name, Edit edit, boolean root) {
+        TreeMap<String, Directory> children = new TreeMap<>();
+        TreeSet<String> files = new TreeSet<>();
+        if (directory != null) {
+            for (Directory child : directory.directories) {
+                children.put(child.name, child);
+            }
+            files.addAll(Arrays.asList(directory.files));
+        }
+        for (Map.Entry<String, Edit> entry : edit.directories.entrySet()) {
+            Directory child = apply(children.get(entry.getKey()), entry.getKey(), entry.getValue(), false);
+            if (child != null) {
+                children.put(entry.getKey(), child);
+            } else {
+                children.remove(entry.getKey());
+            }
+        }
+        files.removeAll(edit.removedFiles);
+        files.addAll(edit.addedFiles);
+        
+        if (children.isEmpty() && files.isEmpty() && !root) {
+            return null;
+        }
+        return new Directory(name,
+                children.isEmpty() ? NO_DIRECTORIES : children.values().toArray(new Directory[0]),
+                files.isEmpty() ? NO_FILES : files.toArray(new String[0]));
+    }
+    
+    private static Directory find(Snapshot snapshot, Path path) {
+        for (int i = 0; i < snapshot.roots.size(); i++) {
+            Path root = snapshot.roots.get(i);
+            if (path.startsWith(root)) {
+                Directory directory = snapshot.rootDirectories[i];
+                for (Path name : root.relativize(path)) {
+                    if (directory == null || name.toString().isEmpty()) {
+                        break;
+                    }
+                    directory = directory.find(name.toString());
+                }
+                return directory;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * The paths of the files the tree has at or under a path
+     */
+    private static void collectFiles(Snapshot snapshot, Path path, Set<String> paths) {
+        Directory directory = find(snapshot, path);
+        if (directory != null) {
+            collectFiles(directory, path, paths);
+            return;
+        }
+        Directory parent = path.getParent() != null ? find(snapshot, path.getParent()) : null;
+        String fileName = path.getFileName() != null ? path.getFileName().toString() : null;
+        if (parent != null && fileName != null && Arrays.binarySearch(parent.files, fileName) >= 0) {
+            paths.add(path.toString());
+        }
+    }
+    
+    private static void collectFiles(Directory directory, Path path, Set<String> paths) {
+        for (String file : directory.files) {
+            paths.add(path.resolve(file).toString());
+        }
+        for (Directory child : directory.directories) {
+            collectFiles(child, path.resolve(child.name), paths);
+        }
+    }
+    
+    /**
+     * Add files below a directory until the page holds limit entries, skipping
+     * the first ones; subdirectories wholly before the page are skipped by
+     * their counts
+     */
+    private static void collectPage(Directory directory, Path path, int skip, int limit, List<FileEntry> entries) {
+        if (entries.size() >= limit || skip >= directory.fileCount) {
+            return;
+        }
+        for (int index = skip; index < directory.files.length && entries.size() < limit; index++) {
+            String file = directory.files[index];
+            entries.add(new FileEntry(file, path.resolve(file).toString(), false, 1));
+        }
+        skip = Math.max(0, skip - directory.files.length);
+        for (Directory child : directory.directories) {
+            if (entries.size() >= limit) {
+                return;
+            }
+            if (skip >= child.fileCount) {
+                skip -= child.fileCount;
+                continue;
+            }
+            collectPage(child, path.resolve(child.name), skip, limit, entries);
+            skip = 0;
+        }
+    }
+}
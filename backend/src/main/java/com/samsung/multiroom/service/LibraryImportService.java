@@ -0,0 +1,527 @@
+package com.samsung.multiroom.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.samsung.multiroom.config.MusicLibraryConfig;
+import com.samsung.multiroom.model.Track;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bulk import of tracks and playlists as newline-delimited JSON, and of M3U
+ * playlists.
+ *
+ * Input is read a line at a time and each line is parsed with the Jackson
+ * streaming parser, so memory does not grow with the size of the upload and a
+ * malformed line is reported by number without ending the import. Valid lines
+ * are stored in batches: one query to match file paths already in the library,
+ * then JDBC batch statements.
+ */
+@Service
+public class LibraryImportService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(LibraryImportService.class);
+    
+    // Lines stored per batch
+    private static final int TRACK_BATCH_SIZE = 1000;
+    private static final int PLAYLIST_BATCH_SIZE = 100;
+    
+    // Errors listed in a result; the count covers all of them
+    private static final int MAX_REPORTED_ERRORS = 1000;
+    
+    // Matches Track.filePath
+    private static final int MAX_PATH_LENGTH = 1000;
+    
+    @Autowired
+    private TrackLibraryService trackLibraryService;
+    
+    @Autowired
+    private PlaylistService playlistService;
+    
+    @Autowired
+    private LoudnessAnalysisService loudnessAnalysisService;
+    
+    @Autowired
+    private MusicLibraryConfig musicLibraryConfig;
+    
+    @Autowired
+    private ObjectMapper objectMapper;
+    
+    /**
+     * Outcome of an import. Lines that could not be stored are counted as
+     * failed; errors also include problems with lines that were stored, such
+     * as playlist entries not found in the library.
+     */
+    public static class ImportResult {
+        long lines;
+        long added;
+        long updated;
+        long failed;
+        long errorCount;
+        private final List<LineError> errors = new ArrayList<>();
+        
+        public long getLines() { return lines; }
+        public long getAdded() { return added; }
+        public long getUpdated() { return updated; }
+        public long getFailed() { return failed; }
+        public long getErrorCount() { return errorCount; }
+        public List<LineError> getErrors() { return errors; } // the first MAX_REPORTED_ERRORS
+        
+        void error(long line, String message) {
+            errorCount++;
+            if (errors.size() < MAX_REPORTED_ERRORS) {
+                errors.add(new LineError(line, message));
+            }
+        }
+        
+        void failed(long line, String message) {
+            failed++;
+            error(line, message);
+        }
+    }
+    
+    /**
+     * Outcome of an M3U import: added counts the entries found in the library,
+     * failed the ones that were not
+     */
+    public static class PlaylistImportResult extends ImportResult {
+        private Long playlistId;
+        private String name;
+        
+        public Long getPlaylistId() { return playlistId; }
+        public String getName() { return name; }
+    }
+    
+    public static class LineError {
+        private final long line;
+        private final String message;
+        
+        public LineError(long line, String message) {
+            this.line = line;
+            this.message = message;
+        }
+        
+        public long getLine() { return line; }
+        public String getMessage() { return message; }
+    }
+    
+    private static class TrackLine {
+        final long line;
+        final Track track;
+        
+        TrackLine(long line, Track track) {
+            this.line = line;
+            this.track = track;
+        }
+    }
+    
+    private static class PlaylistLine {
+        final long line;
+        final String name;
+        final List<String> paths;
+        
+        PlaylistLine(long line, String name, List<String> paths) {
+            this.line = line;
+            this.name = name;
+            this.paths = paths;
+        }
+    }
+    
+    /**
+     * Import tracks, one JSON object per line (the export format). Tracks are
+     * matched to the library by filePath: known paths are updated, others
+     * added. Fields other than title, artist, album, filePath, uri, duration and
+     * albumArt are ignored.
+     */
+    public ImportResult importTracks(InputStream in) throws IOException {
+        ImportResult result = new ImportResult();
+        JsonFactory factory = objectMapper.getFactory();
+        Map<String, TrackLine> batch = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String text;
+            long line = 0;
+            while ((text = reader.readLine()) != null) {
+                line++;
+                if (text.isBlank()) {
+                    continue;
+                }
+                result.lines++;
+                Track track;
+                try {
+                    track = parseTrack(factory, text);
+                } catch (JsonProcessingException e) {
+                    result.failed(line, "Malformed JSON: " + e.getOriginalMessage());
+                    continue;
+                } catch (IllegalArgumentException e) {
+                    result.failed(line, e.getMessage());
+                    continue;
+                }
+                // A path seen again in this batch is stored after the first one
+                if (batch.containsKey(track.getFilePath()) || batch.size() == TRACK_BATCH_SIZE) {
+                    storeTracks(batch.values(), result);
+                    batch.clear();
+                }
+                batch.put(track.getFilePath(), new TrackLine(line, track));
+            }
+        }
+        storeTracks(batch.values(), result);
+        if (result.added > 0) {
+            loudnessAnalysisService.analyzePending();
+        }
+        logger.info("Imported tracks: {} lines, {} added, {} updated, {} failed",
+                   result.lines, result.added, result.updated, result.failed);
+        return result;
+    }
+    
+    /**
+     * Import playlists, one {"name": ..., "tracks": [file paths]} object per
+     * line (the export format). A playlist with the name of an existing one
+     * replaces its entries; paths not in the library are left out and reported.
+     */
+    public ImportResult importPlaylists(InputStream in) throws IOException {
+        ImportResult result = new ImportResult();
+        JsonFactory factory = objectMapper.getFactory();
+        List<PlaylistLine> batch = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String text;
+            long line = 0;
+            while ((text = reader.readLine()) != null) {
+                line++;
+                if (text.isBlank()) {
+                    continue;
+                }
+                result.lines++;
+                try {
+                    batch.add(parsePlaylist(factory, text, line));
+                } catch (JsonProcessingException e) {
+                    result.failed(line, "Malformed JSON: " + e.getOriginalMessage());
+                    continue;
+                } catch (IllegalArgumentException e) {
+                    result.failed(line, e.getMessage());
+                    continue;
+                }
+                if (batch.size() == PLAYLIST_BATCH_SIZE) {
+                    storePlaylists(batch, result);
+                    batch.clear();
+                }
+            }
+        }
+        storePlaylists(batch, result);
+        logger.info("Imported playlists: {} lines, {} added, {} updated, {} failed",
+                   result.lines, result.added, result.updated, result.failed);
+        return result;
+    }
+    
+    /**
+     * Import an M3U or M3U8 playlist. Entries are file paths, absolute or
+     * relative to baseDirectory (the first library root if null), or file: URIs;
+     * they are matched to the library in one lookup. Without a name, the
+     * playlist's #PLAYLIST directive is used. Returns null without either.
+     */
+    public PlaylistImportResult importM3u(String name, String baseDirectory, InputStream in) throws IOException {
+        String text = decodePlaylist(in.readAllBytes());
+        Path base = baseDirectory != null
+                ? Paths.get(baseDirectory).toAbsolutePath().normalize()
+                : musicLibraryConfig.getLibraryRoots().get(0);
+        
+        PlaylistImportResult result = new PlaylistImportResult();
+        List<Long> entryLines = new ArrayList<>();
+        List<String> entryPaths = new ArrayList<>();
+        String[] lines = text.split("\r\n|\r|\n");
+        for (int index = 0; index < lines.length; index++) {
+            String entry = lines[index].trim();
+            if (entry.startsWith("#PLAYLIST:") && name == null) {
+                name = entry.substring("#PLAYLIST:".length()).trim();
+            }
+            if (entry.isEmpty() || entry.startsWith("#")) {
+                continue;
+            }
+            result.lines++;
+            try {
+                entryPaths.add(resolveEntry(base, entry));
+                entryLines.add(index + 1L);
+            } catch (IllegalArgumentException e) {
+                result.failed(index + 1, e.getMessage());
+            }
+        }
+        if (name == null || name.isBlank()) {
+            return null;
+        }
+        
+        Map<String, Long> trackIds = trackLibraryService.findTrackIdsByPath(new HashSet<>(entryPaths));
+        List<Long> playlistTracks = new ArrayList<>();
+        for (int entry = 0; entry < entryPaths.size(); entry++) {
+            Long trackId = trackIds.get(entryPaths.get(entry));
+            if (trackId != null) {
+                playlistTracks.add(trackId);
+                result.added++;
+            } else {
+                result.failed(entryLines.get(entry), "No track in the library at " + entryPaths.get(entry));
+            }
+        }
+        Long existingId = playlistService.findPlaylistIdsByName(List.of(name)).get(name);
+        result.playlistId = playlistService.savePlaylist(existingId, name, playlistTracks);
+        result.name = name;
+        logger.info("Imported playlist {}: {} entries, {} found in the library", name, result.lines, result.added);
+        return result;
+    }
+    
+    private void storeTracks(Iterable<TrackLine> lines, ImportResult result) {
+        List<TrackLine> batch = new ArrayList<>();
+        lines.forEach(batch::add);
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<String> paths = new ArrayList<>(batch.size());
+        for (TrackLine line : batch) {
+            paths.add(line.track.getFilePath());
+        }
+        Map<String, Long> existingIds = trackLibraryService.findTrackIdsByPath(paths);
+        List<Track> tracks = new ArrayList<>(batch.size());
+        int added = 0;
+        for (TrackLine line : batch) {
+            line.track.setId(existingIds.get(line.track.getFilePath()));
+            added += line.track.getId() == null ? 1 : 0;
+            tracks.add(line.track);
+        }
+        
+        try {
+            trackLibraryService.saveTracks(tracks);
+            result.added += added;
+            result.updated += batch.size() - added;
+        } catch (DataAccessException e) {
+            // One bad row fails the whole batch; fall back to saving one at a time
+            logger.warn("Batch import failed, retrying {} tracks individually: {}", batch.size(), e.getMessage());
+            for (TrackLine line : batch) {
+                boolean isNew = line.track.getId() == null;
+                try {
+                    trackLibraryService.saveTrack(line.track);
+                    if (isNew) {
+                        result.added++;
+                    } else {
+                        result.updated++;
+                    }
+                } catch (DataAccessException rowError) {
+                    if (isNew) {
+                        line.track.setId(null);
+                    }
+                    result.failed(line.line, "Could not store track: " + rowError.getMostSpecificCause().getMessage());
+                }
+            }
+        }
+    }
+    
+    private void storePlaylists(List<PlaylistLine> batch, ImportResult result) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        // One lookup for the paths of the whole batch
+        Set<String> paths = new HashSet<>();
+        Set<String> names = new HashSet<>();
+        for (PlaylistLine line : batch) {
+            paths.addAll(line.paths);
+            names.add(line.name);
+        }
+        Map<String, Long> trackIds = trackLibraryService.findTrackIdsByPath(paths);
+        Map<String, Long> playlistIds = playlistService.findPlaylistIdsByName(names);
+        
+        for (PlaylistLine line : batch) {
+            List<Long> playlistTracks = new ArrayList<>(line.paths.size());
+            int missing = 0;
+            for (String path : line.paths) {
+                Long trackId = trackIds.get(path);
+                if (trackId != null) {
+                    playlistTracks.add(trackId);
+                } else if (missing++ == 0) {
+                    result.error(line.line, "No track in the library at " + path);
+                }
+            }
+            if (missing > 1) {
+                result.error(line.line, (missing - 1) + " more tracks of playlist " + line.name + " not in the library");
+            }
+            try {
+                Long existingId = playlistIds.get(line.name);
+                playlistIds.put(line.name, playlistService.savePlaylist(existingId, line.name, playlistTracks));
+                if (existingId == null) {
+                    result.added++;
+                } else {
+                    result.updated++;
+                }
+            } catch (DataAccessException e) {
+                result.failed(line.line, "Could not store playlist: " + e.getMostSpecificCause().getMessage());
+            }
+        }
+    }
+    
+    private static Track parseTrack(JsonFactory factory, String text) throws IOException {
+        Track track = new Track();
+        try (JsonParser parser = factory.createParser(text)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IllegalArgumentException("Expected a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                switch (field) {
+                    case "title": track.setTitle(stringValue(parser, field)); break;
+                    case "artist": track.setArtist(stringValue(parser, field)); break;
+                    case "album": track.setAlbum(stringValue(parser, field)); break;
+                    case "filePath": track.setFilePath(stringValue(parser, field)); break;
+                    case "uri": track.setUri(stringValue(parser, field)); break;
+                    case "albumArt": track.setAlbumArt(stringValue(parser, field)); break;
+                    case "duration":
+                        if (value != JsonToken.VALUE_NUMBER_INT) {
+                            throw new IllegalArgumentException("duration must be a whole number of seconds");
+                        }
+                        track.setDuration(parser.getIntValue());
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+            if (parser.nextToken() != null) {
+                throw new IllegalArgumentException("Expected one JSON object per line");
+            }
+        }
+        
+        String filePath = track.getFilePath();
+        if (filePath == null || filePath.isBlank()) {
+            throw new IllegalArgumentException("filePath is required");
+        }
+        if (filePath.length() > MAX_PATH_LENGTH) {
+            throw new IllegalArgumentException("filePath is longer than " + MAX_PATH_LENGTH + " characters");
+        }
+        if (track.getDuration() < 0) {
+            throw new IllegalArgumentException("duration must not be negative");
+        }
+        // Same defaults as a scan
+        if (track.getTitle() == null) {
+            String fileName = filePath.substring(Math.max(filePath.lastIndexOf('/'), filePath.lastIndexOf('\\')) + 1);
+            track.setTitle(LibraryScannerService.extractTitleFromFilename(fileName));
+        }
+        if (track.getArtist() == null) {
+            track.setArtist("Unknown Artist");
+        }
+        if (track.getAlbum() == null) {
+            track.setAlbum("Unknown Album");
+        }
+        if (track.getUri() == null) {
+            track.setUri("file://" + filePath);
+        }
+        return track;
+    }
+    
+    private static PlaylistLine parsePlaylist(JsonFactory factory, String text, long line) throws IOException {
+        String name = null;
+        List<String> paths = new ArrayList<>();
+        try (JsonParser parser = factory.createParser(text)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IllegalArgumentException("Expected a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (field.equals("name")) {
+                    name = stringValue(parser, field);
+                } else if (field.equals("tracks")) {
+                    if (value != JsonToken.START_ARRAY) {
+                        throw new IllegalArgumentException("tracks must be an array of file paths");
+                    }
+                    while (parser.nextToken() != JsonToken.END_ARRAY) {
+                        if (parser.currentToken() != JsonToken.VALUE_STRING) {
+                            throw new IllegalArgumentException("tracks must be an array of file paths");
+                        }
+                        paths.add(parser.getText());
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (parser.nextToken() != null) {
+                throw new IllegalArgumentException("Expected one JSON object per line");
+            }
+        }
+        if (name == null || name.isBlank()) {
+            throw new IllegalArgumentException("name is required");
+        }
+        return new PlaylistLine(line, name, paths);
+    }
+    
+    private static String stringValue(JsonParser parser, String field) throws IOException {
+        switch (parser.currentToken()) {
+            case VALUE_STRING: return parser.getText();
+            case VALUE_NULL: return null;
+            default: throw new IllegalArgumentException(field + " must be a string");
+        }
+    }
+    
+    /**
+     * M3U8 is UTF-8; plain M3U is often in the player's legacy code page, so
+     * text that is not valid UTF-8 is read as Windows-1252
+     */
+    private static String decodePlaylist(byte[] bytes) {
+        int start = bytes.length >= 3 && (bytes[0] & 0xFF) == 0xEF && (bytes[1] & 0xFF) == 0xBB
+                && (bytes[2] & 0xFF) == 0xBF ? 3 : 0;
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, start, bytes.length - start);
+        try {
+            return StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(buffer)
+                    .toString();
+        } catch (CharacterCodingException e) {
+            return new String(bytes, start, bytes.length - start, Charset.forName("windows-1252"));
+        }
+    }
+    
+    /**
+     * The absolute, normalized path of a playlist entry, in the form library paths are stored
+     */
+    private static String resolveEntry(Path base, String entry) {
+        try {
+            Path path;
+            if (entry.regionMatches(true, 0, "file:", 0, 5)) {
+                try {
+                    path = Paths.get(URI.create(entry));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Not a valid file URI: " + entry);
+                }
+            } else if (entry.contains("://")) {
+                throw new IllegalArgumentException("Not a local file: " + entry);
+            } else {
+                // Playlists written on Windows use backslashes
+                path = Paths.get(File.separatorChar == '/' ? entry.replace('\\', '/') : entry);
+            }
+            return base.resolve(path).normalize().toString();
+        } catch (InvalidPathException e) {
+            throw new IllegalArgumentException("Not a valid path: " + entry);
+        }
+    }
+}
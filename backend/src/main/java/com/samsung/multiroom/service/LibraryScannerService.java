@@ -0,0 +1,828 @@
+package com.samsung.multiroom.service;
+
+import com.samsung.multiroom.model.ScannedFile;
+import com.samsung.multiroom.model.Track;
+import com.samsung.multiroom.repository.ScannedFileRepository;
+import com.samsung.multiroom.repository.TrackRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+/**
+ * Scans the music library directory. Directories are walked as fork-join tasks
+ * and audio files are read in small batches across the pool, so both tree
+ * traversal and tag parsing run in parallel.
+ *
+ * Scans are incremental: a manifest of file fingerprints (size, modification
+ * time, file key) is kept in the database, and only new, changed, moved and
+ * deleted files touch the track store. Unchanged files cost one stat call.
+ *
+ * Parsed files are handed through a bounded queue to a single writer, which
+ * stores them in chunks with JDBC batch statements while the walk goes on.
+ *
+ * Before a new or changed file is queued, its audio payload (tags excluded) is
+ * hashed on a small I/O pool. The hash is kept in the manifest, so a file is
+ * hashed once per version, and copies with equal hashes are clustered as
+ * duplicates after each chunk is written.
+ */
+@Service
+public class LibraryScannerService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(LibraryScannerService.class);
+    
+    // Files parsed by a single fork-join task
+    private static final int FILES_PER_TASK = 16;
+    
+    // Parsed files buffered between the walk and the database writer
+    private static final int QUEUE_CAPACITY = 4096;
+    
+    // Files stored per database round trip
+    private static final int WRITE_CHUNK_SIZE = 1000;
+    
+    // Files hashed at once; hashing reads whole files, so more readers only make a disk seek
+    private static final int HASH_THREADS = 4;
+    
+    // Files parsed and waiting for or being hashed, across all scans
+    private static final int HASHES_IN_FLIGHT = HASH_THREADS * 8;
+    
+    private static final int HASH_BUFFER_SIZE = 256 * 1024;
+    
+    private static final String INSERT_MANIFEST_SQL =
+            "INSERT INTO scanned_files (file_path, file_size, last_modified, file_key, track_id, content_hash)"
+            + " VALUES (?, ?, ?, ?, ?, ?)";
+    
+    private static final String UPDATE_MANIFEST_SQL =
+            "UPDATE scanned_files SET file_path = ?, file_size = ?, last_modified = ?, file_key = ?, track_id = ?,"
+            + " content_hash = ? WHERE id = ?";
+    
+    @Autowired
+    private TrackRepository trackRepository;
+    
+    @Autowired
+    private TrackLibraryService trackLibraryService;
+    
+    @Autowired
+    private ScannedFileRepository scannedFileRepository;
+    
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    
+    @Autowired
+    private AlbumArtService albumArtService;
+    
+    @Autowired
+    private TrackDuplicateService trackDuplicateService;
+    
+    @Autowired
+    private LoudnessAnalysisService loudnessAnalysisService;
+    
+    @Autowired
+    private WaveformService waveformService;
+    
+    @Autowired
+    private LibraryFileTreeService libraryFileTreeService;
+    
+    private final ForkJoinPool scanPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    
+    private final ExecutorService hashPool = Executors.newFixedThreadPool(HASH_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "library-hash");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Semaphore hashSlots = new Semaphore(HASHES_IN_FLIGHT);
+    
+    // Paths being scanned; scans of overlapping trees wait for each other
+    private final List<Path> lockedPaths = new ArrayList<>();
+    
+    /**
+     * Live counters of a scan. They can be read while the scan runs, and the
+     * scan stops early once cancelled.
+     */
+    public static class ScanProgress {
+        private final AtomicLong filesSeen = new AtomicLong();
+        private final AtomicLong filesUnchanged = new AtomicLong();
+        private final AtomicLong filesParsed = new AtomicLong();
+        private final AtomicLong tracksAdded = new AtomicLong();
+        private final AtomicLong tracksUpdated = new AtomicLong();
+        private final AtomicLong tracksRemoved = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private volatile long startedAt;
+        private volatile long finishedAt;
+        private volatile boolean cancelled;
+        
+        public long getFilesSeen() { return filesSeen.get(); }
+        public long getFilesUnchanged() { return filesUnchanged.get(); }
+        public long getFilesParsed() { return filesParsed.get(); }
+        public long getTracksAdded() { return tracksAdded.get(); }
+        public long getTracksUpdated() { return tracksUpdated.get(); }
+        public long getTracksRemoved() { return tracksRemoved.get(); }
+        public long getErrors() { return errors.get(); }
+        
+        public long getElapsedMillis() {
+            if (startedAt == 0) {
+                return 0;
+            }
+            return (finishedAt > 0 ? finishedAt : System.currentTimeMillis()) - startedAt;
+        }
+        
+        public double getFilesPerSecond() {
+            long elapsedMillis = getElapsedMillis();
+            return elapsedMillis > 0 ? getFilesSeen() * 1000.0 / elapsedMillis : 0;
+        }
+        
+        public boolean isCancelled() { return cancelled; }
+        public void cancel() { this.cancelled = true; }
+    }
+    
+    /**
+     * Scan a directory tree, bringing the library in line with the files on disk
+     */
+    public ScanProgress scan(Path root) {
+        return scan(root, new ScanProgress());
+    }
+    
+    /**
+     * Scan a directory tree, reporting into the given progress
+     */
+    public ScanProgress scan(Path root, ScanProgress progress) {
+        return sync(root.toString(), Collections.singletonList(root), progress);
+    }
+    
+    /**
+     * Bring the library in line with a set of changed files and directories,
+     * such as those reported by the filesystem watcher. Paths that no longer
+     * exist remove their tracks; directories are scanned recursively.
+     */
+    public ScanProgress syncPaths(Collection<Path> paths) {
+        // A path under another changed directory is covered by that directory's walk
+        List<Path> roots = new ArrayList<>();
+        for (Path path : paths) {
+            if (paths.stream().noneMatch(other -> !other.equals(path) && path.startsWith(other))) {
+                roots.add(path);
+            }
+        }
+        return sync(roots.size() + " changed paths", roots, new ScanProgress());
+    }
+    
+    private ScanProgress sync(String description, List<Path> roots, ScanProgress progress) {
+        try {
+            lockPaths(roots);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            progress.cancel();
+            return progress;
+        }
+        ScanContext context = new ScanContext(progress);
+        try {
+            progress.startedAt = System.currentTimeMillis();
+            runScan(roots, context);
+        } finally {
+            progress.finishedAt = System.currentTimeMillis();
+            unlockPaths(roots);
+        }
+        // The file listing follows the walk, which also sees files whose tags could not be read
+        libraryFileTreeService.update(roots, context.seenPaths, context.failedDirectories, progress.isCancelled());
+        // New and changed tracks get their loudness measured and waveform drawn in the background
+        loudnessAnalysisService.analyzePending();
+        waveformService.generatePending();
+        
+        logger.info("Scanned {}{}: {} files ({} unchanged), {} added, {} updated, {} removed, {} errors in {} ms ({} files/s)",
+                   description, progress.isCancelled() ? " (cancelled)" : "", progress.getFilesSeen(),
+                   progress.getFilesUnchanged(), progress.getTracksAdded(), progress.getTracksUpdated(),
+                   progress.getTracksRemoved(), progress.getErrors(), progress.getElapsedMillis(),
+                   String.format("%.1f", progress.getFilesPerSecond()));
+        return progress;
+    }
+    
+    private void runScan(List<Path> roots, ScanContext context) {
+        // Load the manifest for these trees once instead of querying per file
+        for (Path root : roots) {
+            for (ScannedFile entry : scannedFileRepository.findByFilePathStartingWith(root.toString())) {
+                if (Paths.get(entry.getFilePath()).startsWith(root)) {
+                    context.manifest.put(entry.getFilePath(), entry);
+                    if (entry.getFileKey() != null) {
+                        context.manifestByFileKey.put(entry.getFileKey(), entry);
+                    }
+                }
+            }
+        }
+        
+        List<RecursiveAction> tasks = new ArrayList<>();
+        for (Path root : roots) {
+            if (Files.isDirectory(root, LinkOption.NOFOLLOW_LINKS)) {
+                tasks.add(new DirectoryTask(root, context));
+            } else if (isAudioFile(root) && Files.isRegularFile(root)) {
+                tasks.add(new FileBatchTask(Collections.singletonList(root), context));
+            }
+        }
+        // Walk and parse on the pool while this thread writes what comes out of the queue
+        ForkJoinTask<?> walk = scanPool.submit(() -> {
+            try {
+                ForkJoinTask.invokeAll(tasks);
+            } finally {
+                context.walkFinished = true;
+            }
+        });
+        try {
+            writeParsedFiles(context);
+        } finally {
+            walk.join();
+        }
+        
+        // A cancelled scan has not seen every file, so nothing can be treated as deleted
+        if (!context.progress.isCancelled()) {
+            removeDeletedFiles(context);
+        }
+    }
+    
+    private void lockPaths(List<Path> paths) throws InterruptedException {
+        synchronized (lockedPaths) {
+            while (lockedPaths.stream().anyMatch(locked ->
+                    paths.stream().anyMatch(path -> path.startsWith(locked) || locked.startsWith(path)))) {
+                lockedPaths.wait();
+            }
+            lockedPaths.addAll(paths);
+        }
+    }
+    
+    private void unlockPaths(List<Path> paths) {
+        synchronized (lockedPaths) {
+            paths.forEach(lockedPaths::remove);
+            lockedPaths.notifyAll();
+        }
+    }
+    
+    /**
+     * Build a track from an audio file's tags, falling back to the file name for
+     * the title. Embedded or folder album art is stored and linked by its hash.
+     */
+    public Track readTrack(Path file) throws IOException {
+        return toTrack(file, AudioMetadataReader.read(file));
+    }
+    
+    private Track toTrack(Path file, AudioMetadataReader.AudioMetadata metadata) {
+        Track track = new Track();
+        track.setTitle(metadata.getTitle() != null
+                ? metadata.getTitle() : extractTitleFromFilename(file.getFileName().toString()));
+        track.setArtist(metadata.getArtist() != null ? metadata.getArtist() : "Unknown Artist");
+        track.setAlbum(metadata.getAlbum() != null ? metadata.getAlbum() : "Unknown Album");
+        track.setDuration(metadata.getDurationSeconds());
+        track.setFilePath(file.toString());
+        track.setUri("file://" + file.toString()); // For local file access
+        track.setAlbumArt(albumArtService.findArtwork(file, metadata.getArtwork()));
+        return track;
+    }
+    
+    /**
+     * Check if a file has an audio extension
+     */
+    public static boolean isAudioFile(Path path) {
+        String fileName = path.toString().toLowerCase();
+        return fileName.endsWith(".mp3") ||
+               fileName.endsWith(".wav") ||
+               fileName.endsWith(".flac") ||
+               fileName.endsWith(".aac") ||
+               fileName.endsWith(".ogg") ||
+               fileName.endsWith(".m4a");
+    }
+    
+    /**
+     * Extract title from filename (basic implementation)
+     */
+    static String extractTitleFromFilename(String fileName) {
+        // Remove file extension and replace underscores/dots with spaces
+        int extension = fileName.lastIndexOf('.');
+        String title = extension > 0 ? fileName.substring(0, extension) : fileName;
+        return title.replace('_', ' ').replace('.', ' ').trim();
+    }
+    
+    private void scanFile(Path file, ScanContext context) {
+        if (context.progress.isCancelled()) {
+            return;
+        }
+        context.progress.filesSeen.incrementAndGet();
+        String path = file.toString();
+        context.seenPaths.add(path);
+        
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            ScannedFile entry = context.manifest.get(path);
+            // Entries without a hash predate hashing and are read again once
+            if (entry != null && isUnchanged(entry, attributes) && entry.getContentHash() != null) {
+                context.progress.filesUnchanged.incrementAndGet();
+                return;
+            }
+            if (entry == null && relinkMovedFile(file, attributes, context)) {
+                context.progress.tracksUpdated.incrementAndGet();
+                return;
+            }
+            
+            AudioMetadataReader.AudioMetadata metadata = AudioMetadataReader.read(file);
+            Track track = toTrack(file, metadata);
+            context.progress.filesParsed.incrementAndGet();
+            if (entry == null) {
+                entry = new ScannedFile(path);
+            }
+            ParsedFile parsed = new ParsedFile(track, entry, entry.getContentHash());
+            recordFingerprint(entry, attributes);
+            
+            // Blocks while the hash pool is behind, which keeps memory bounded
+            long audioStart = metadata.getAudioStart();
+            long audioEnd = metadata.getAudioEnd();
+            hashSlots.acquire();
+            context.pendingHashes.incrementAndGet();
+            try {
+                hashPool.execute(() -> hashAndQueue(file, audioStart, audioEnd, parsed, context));
+            } catch (RuntimeException e) {
+                context.pendingHashes.decrementAndGet();
+                hashSlots.release();
+                throw e;
+            }
+        } catch (IOException | RuntimeException e) {
+            context.progress.errors.incrementAndGet();
+            logger.warn("Could not read audio file {}: {}", file, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Hash pool task: hash a parsed file's audio and pass it on to the writer
+     */
+    private void hashAndQueue(Path file, long audioStart, long audioEnd, ParsedFile parsed, ScanContext context) {
+        try {
+            if (context.progress.isCancelled()) {
+                return;
+            }
+            try {
+                parsed.entry.setContentHash(hashAudio(file, audioStart, audioEnd));
+            } catch (IOException e) {
+                // The track is still stored; it is hashed again on the next scan
+                parsed.entry.setContentHash(null);
+                logger.warn("Could not hash audio file {}: {}", file, e.getMessage());
+            }
+            // Blocks while the writer is behind
+            context.parsedFiles.put(parsed);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            hashSlots.release();
+            context.pendingHashes.decrementAndGet();
+        }
+    }
+    
+    /**
+     * SHA-256 of a byte range of a file, read sequentially in large blocks
+     */
+    private static String hashAudio(Path file, long start, long end) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(1, Math.min(HASH_BUFFER_SIZE, end - start)));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long position = start;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    break;
+                }
+                buffer.flip();
+                digest.update(buffer);
+                position += read;
+            }
+        }
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+    
+    /**
+     * Writer loop: drain parsed files in chunks until the walk is done
+     */
+    private void writeParsedFiles(ScanContext context) {
+        List<ParsedFile> chunk = new ArrayList<>(WRITE_CHUNK_SIZE);
+        boolean finished = false;
+        try {
+            if (drainParsedFiles(context, chunk)) {
+                Thread.currentThread().interrupt();
+            }
+            finished = true;
+        } finally {
+            if (!finished) {
+                // Producers blocked on the queue hold hash slots; let them finish before the walk is joined
+                context.progress.cancel();
+                discardParsedFiles(context);
+            }
+        }
+    }
+    
+    /**
+     * Writes parsed files until the walk is done, returning whether the thread was interrupted
+     */
+    private boolean drainParsedFiles(ScanContext context, List<ParsedFile> chunk) {
+        boolean interrupted = false;
+        while (true) {
+            ParsedFile parsed;
+            try {
+                parsed = context.parsedFiles.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // Stop the walk, but keep draining so producers blocked on the queue can finish
+                interrupted = true;
+                context.progress.cancel();
+                parsed = context.parsedFiles.poll();
+            }
+            if (context.progress.isCancelled()) {
+                // Parsed files not yet written are dropped; producers blocked on the queue can finish
+                chunk.clear();
+                context.parsedFiles.clear();
+                parsed = null;
+            } else if (parsed != null) {
+                chunk.add(parsed);
+                context.parsedFiles.drainTo(chunk, WRITE_CHUNK_SIZE - chunk.size());
+            }
+            // Write full chunks, or whatever is pending once the producers go quiet
+            if (chunk.size() >= WRITE_CHUNK_SIZE || (parsed == null && !chunk.isEmpty())) {
+                writeChunk(chunk, context);
+                chunk.clear();
+            }
+            // Files still being hashed were counted before the walk finished
+            if (parsed == null && context.walkFinished && context.pendingHashes.get() == 0
+                    && context.parsedFiles.isEmpty()) {
+                break;
+            }
+        }
+        return interrupted;
+    }
+    
+    /**
+     * Drops parsed files until the walk and the hash pool are done with this scan
+     */
+    private static void discardParsedFiles(ScanContext context) {
+        while (!context.walkFinished || context.pendingHashes.get() > 0) {
+            context.parsedFiles.clear();
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        context.parsedFiles.clear();
+    }
+    
+    /**
+     * Store a chunk of parsed files: one query to match paths already in the
+     * library, then batched track and manifest writes
+     */
+    private void writeChunk(List<ParsedFile> chunk, ScanContext context) {
+        // Tracks scanned before the manifest existed are matched by path
+        List<String> unmatchedPaths = new ArrayList<>();
+        for (ParsedFile parsed : chunk) {
+            if (parsed.entry.getTrackId() != null) {
+                parsed.track.setId(parsed.entry.getTrackId());
+            } else {
+                unmatchedPaths.add(parsed.track.getFilePath());
+            }
+        }
+        Map<String, Long> existingIds = trackLibraryService.findTrackIdsByPath(unmatchedPaths);
+        
+        // New copies of audio already in the library go in as duplicates, never shown in between
+        Map<String, Long> canonicalIds = trackDuplicateService.findCanonicalTrackIds(
+                chunk.stream().map(parsed -> parsed.entry.getContentHash()).collect(Collectors.toList()));
+        
+        // Clusters that still need a look once written: new audio with several copies in
+        // this chunk, and the old and new audio of changed files
+        Set<String> unsettledHashes = new HashSet<>();
+        Set<String> newHashes = new HashSet<>();
+        // Stored tracks with different audio are measured again
+        List<Long> changedAudio = new ArrayList<>();
+        
+        List<Track> tracks = new ArrayList<>(chunk.size());
+        int added = 0;
+        for (ParsedFile parsed : chunk) {
+            if (parsed.track.getId() == null) {
+                parsed.track.setId(existingIds.get(parsed.track.getFilePath()));
+                added += parsed.track.getId() == null ? 1 : 0;
+            }
+            String hash = parsed.entry.getContentHash();
+            if (!Objects.equals(hash, parsed.previousHash)) {
+                unsettledHashes.add(parsed.previousHash);
+                if (parsed.track.getId() != null) {
+                    changedAudio.add(parsed.track.getId());
+                }
+            }
+            if (hash != null && parsed.track.getId() == null) {
+                parsed.track.setCanonicalTrackId(canonicalIds.get(hash));
+                if (!canonicalIds.containsKey(hash) && !newHashes.add(hash)) {
+                    unsettledHashes.add(hash);
+                }
+            } else if (hash != null && !hash.equals(parsed.previousHash)) {
+                unsettledHashes.add(hash);
+            }
+            tracks.add(parsed.track);
+        }
+        
+        try {
+            trackLibraryService.saveTracks(tracks);
+        } catch (DataAccessException e) {
+            // One bad row fails the whole batch; fall back to saving one at a time
+            logger.warn("Batch write failed, retrying {} tracks individually: {}", chunk.size(), e.getMessage());
+            writeIndividually(chunk, context);
+            for (ParsedFile parsed : chunk) {
+                unsettledHashes.add(parsed.entry.getContentHash());
+                unsettledHashes.add(parsed.previousHash);
+            }
+            updateDuplicates(unsettledHashes);
+            resetLoudness(changedAudio);
+            return;
+        }
+        context.progress.tracksAdded.addAndGet(added);
+        context.progress.tracksUpdated.addAndGet(chunk.size() - added);
+        
+        List<ScannedFile> newEntries = new ArrayList<>();
+        List<ScannedFile> changedEntries = new ArrayList<>();
+        for (ParsedFile parsed : chunk) {
+            parsed.entry.setTrackId(parsed.track.getId());
+            (parsed.entry.getId() == null ? newEntries : changedEntries).add(parsed.entry);
+        }
+        try {
+            jdbcTemplate.batchUpdate(INSERT_MANIFEST_SQL, newEntries, WRITE_CHUNK_SIZE, (statement, entry) -> {
+                setManifestColumns(statement, entry);
+            });
+            jdbcTemplate.batchUpdate(UPDATE_MANIFEST_SQL, changedEntries, WRITE_CHUNK_SIZE, (statement, entry) -> {
+                setManifestColumns(statement, entry);
+                statement.setLong(7, entry.getId());
+            });
+        } catch (DataAccessException e) {
+            // The tracks are stored; entries that cannot be written are read again next scan
+            logger.warn("Manifest batch write failed, retrying {} entries individually: {}", chunk.size(), e.getMessage());
+            for (ParsedFile parsed : chunk) {
+                try {
+                    scannedFileRepository.save(parsed.entry);
+                } catch (RuntimeException entryFailure) {
+                    context.progress.errors.incrementAndGet();
+                    logger.warn("Could not store the manifest entry of {}: {}",
+                            parsed.entry.getFilePath(), entryFailure.getMessage());
+                }
+            }
+        }
+        updateDuplicates(unsettledHashes);
+        resetLoudness(changedAudio);
+    }
+    
+    /**
+     * Re-cluster the copies of the given hashes; tracks stay stored if this fails
+     */
+    private void updateDuplicates(Set<String> hashes) {
+        try {
+            trackDuplicateService.updateClusters(hashes);
+        } catch (DataAccessException e) {
+            logger.warn("Could not update duplicate tracks: {}", e.getMessage());
+        }
+    }
+    
+    private void resetLoudness(List<Long> trackIds) {
+        try {
+            loudnessAnalysisService.resetTracks(trackIds);
+        } catch (DataAccessException e) {
+            logger.warn("Could not reset the loudness of changed tracks: {}", e.getMessage());
+        }
+    }
+    
+    private void writeIndividually(List<ParsedFile> chunk, ScanContext context) {
+        for (ParsedFile parsed : chunk) {
+            try {
+                boolean isNew = parsed.track.getId() == null;
+                Track savedTrack = trackLibraryService.saveTrack(parsed.track);
+                (isNew ? context.progress.tracksAdded : context.progress.tracksUpdated).incrementAndGet();
+                parsed.entry.setTrackId(savedTrack.getId());
+                scannedFileRepository.save(parsed.entry);
+            } catch (RuntimeException e) {
+                context.progress.errors.incrementAndGet();
+                logger.warn("Could not store audio file {}: {}", parsed.track.getFilePath(), e.getMessage());
+            }
+        }
+    }
+    
+    private static void setManifestColumns(PreparedStatement statement, ScannedFile entry) throws SQLException {
+        statement.setString(1, entry.getFilePath());
+        statement.setLong(2, entry.getFileSize());
+        statement.setLong(3, entry.getLastModified());
+        statement.setString(4, entry.getFileKey());
+        statement.setObject(5, entry.getTrackId(), Types.BIGINT);
+        statement.setString(6, entry.getContentHash());
+    }
+    
+    /**
+     * A file at a new path with the file key and fingerprint of a manifest entry
+     * whose path is gone was moved or renamed; point its track at the new path
+     * without re-reading the tags
+     */
+    private boolean relinkMovedFile(Path file, BasicFileAttributes attributes, ScanContext context) {
+        Object fileKey = attributes.fileKey();
+        ScannedFile moved = fileKey != null ? context.manifestByFileKey.get(fileKey.toString()) : null;
+        if (moved == null || moved.getTrackId() == null || !isUnchanged(moved, attributes)
+                || Files.exists(Paths.get(moved.getFilePath()))
+                || !context.manifestByFileKey.remove(fileKey.toString(), moved)) {
+            return false;
+        }
+        
+        Track track = trackRepository.findById(moved.getTrackId()).orElse(null);
+        if (track == null) {
+            return false;
+        }
+        track.setFilePath(file.toString());
+        track.setUri("file://" + file.toString());
+        trackLibraryService.saveTrack(track);
+        
+        context.manifest.remove(moved.getFilePath());
+        moved.setFilePath(file.toString());
+        scannedFileRepository.save(moved);
+        logger.debug("Audio file moved to {}", file);
+        return true;
+    }
+    
+    /**
+     * Remove tracks for manifest entries whose files were not seen by this scan
+     */
+    private void removeDeletedFiles(ScanContext context) {
+        List<ScannedFile> deleted = new ArrayList<>();
+        Set<String> deletedHashes = new HashSet<>();
+        for (ScannedFile entry : context.manifest.values()) {
+            if (context.seenPaths.contains(entry.getFilePath()) || context.isUnderFailedDirectory(entry.getFilePath())) {
+                continue;
+            }
+            if (entry.getTrackId() != null && trackLibraryService.deleteTrack(entry.getTrackId())) {
+                context.progress.tracksRemoved.incrementAndGet();
+            }
+            deleted.add(entry);
+            deletedHashes.add(entry.getContentHash());
+        }
+        scannedFileRepository.deleteAll(deleted);
+        // A deleted canonical track hands over to the next copy
+        trackDuplicateService.updateClusters(deletedHashes);
+    }
+    
+    private static boolean isUnchanged(ScannedFile entry, BasicFileAttributes attributes) {
+        Object fileKey = attributes.fileKey();
+        return entry.getFileSize() == attributes.size()
+                && entry.getLastModified() == attributes.lastModifiedTime().toMillis()
+                && (entry.getFileKey() == null || fileKey == null || entry.getFileKey().equals(fileKey.toString()));
+    }
+    
+    private static void recordFingerprint(ScannedFile entry, BasicFileAttributes attributes) {
+        entry.setFileSize(attributes.size());
+        entry.setLastModified(attributes.lastModifiedTime().toMillis());
+        entry.setFileKey(attributes.fileKey() != null ? attributes.fileKey().toString() : null);
+    }
+    
+    /**
+     * A parsed file waiting for the writer
+     */
+    private static class ParsedFile {
+        final Track track;
+        final ScannedFile entry;
+        final String previousHash; // the file's hash before this change, if it was hashed
+        
+        ParsedFile(Track track, ScannedFile entry, String previousHash) {
+            this.track = track;
+            this.entry = entry;
+            this.previousHash = previousHash;
+        }
+    }
+    
+    /**
+     * State shared by the tasks of one scan
+     */
+    private static class ScanContext {
+        final BlockingQueue<ParsedFile> parsedFiles = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        volatile boolean walkFinished;
+        final AtomicInteger pendingHashes = new AtomicInteger();
+        final Map<String, ScannedFile> manifest = new ConcurrentHashMap<>();
+        final Map<String, ScannedFile> manifestByFileKey = new ConcurrentHashMap<>();
+        final Set<String> seenPaths = ConcurrentHashMap.newKeySet();
+        final Set<Path> failedDirectories = ConcurrentHashMap.newKeySet();
+        final ScanProgress progress;
+        
+        ScanContext(ScanProgress progress) {
+            this.progress = progress;
+        }
+        
+        /**
+         * Files under a directory that could not be listed are kept rather than treated as deleted
+         */
+        boolean isUnderFailedDirectory(String filePath) {
+            if (failedDirectories.isEmpty()) {
+                return false;
+            }
+            Path path = Paths.get(filePath);
+            return failedDirectories.stream().anyMatch(path::startsWith);
+        }
+    }
+    
+    /**
+     * Lists one directory, forking a task per subdirectory and per batch of audio files
+     */
+    private class DirectoryTask extends RecursiveAction {
+        private final Path directory;
+        private final ScanContext context;
+        
+        DirectoryTask(Path directory, ScanContext context) {
+            this.directory = directory;
+            this.context = context;
+        }
+        
+        @Override
+        protected void compute() {
+            if (context.progress.isCancelled()) {
+                return;
+            }
+            List<RecursiveAction> subtasks = new ArrayList<>();
+            List<Path> batch = new ArrayList<>(FILES_PER_TASK);
+            
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    // Symlinked directories are not followed, matching Files.walk
+                    if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                        subtasks.add(new DirectoryTask(entry, context));
+                    } else if (isAudioFile(entry) && Files.isRegularFile(entry)) {
+                        batch.add(entry);
+                        if (batch.size() == FILES_PER_TASK) {
+                            subtasks.add(new FileBatchTask(batch, context));
+                            batch = new ArrayList<>(FILES_PER_TASK);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                context.failedDirectories.add(directory);
+                context.progress.errors.incrementAndGet();
+                logger.warn("Could not list directory {}: {}", directory, e.getMessage());
+            }
+            
+            if (!batch.isEmpty()) {
+                subtasks.add(new FileBatchTask(batch, context));
+            }
+            invokeAll(subtasks);
+        }
+    }
+    
+    private class FileBatchTask extends RecursiveAction {
+        private final List<Path> files;
+        private final ScanContext context;
+        
+        FileBatchTask(List<Path> files, ScanContext context) {
+            this.files = files;
+            this.context = context;
+        }
+        
+        @Override
+        protected void compute() {
+            for (Path file : files) {
+                scanFile(file, context);
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.samsung.multiroom.service;
+
+import com.samsung.multiroom.config.MusicLibraryConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the library in step with the music directory while the application
+ * runs. Every directory under the library root is registered with a
+ * WatchService; events are collected until the tree has been quiet for a
+ * moment (copying an album fires a burst of them) and the changed paths are
+ * then synced through the scanner's fingerprint manifest.
+ *
+ * When events are lost (queue overflow, or directories that could not be
+ * registered) the watcher falls back to periodic fingerprint rescans of the
+ * whole root, which only cost a stat per unchanged file.
+ */
+@Service
+public class LibraryWatchService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(LibraryWatchService.class);
+    
+    // Changes are applied once no event has arrived for this long
+    private static final long QUIET_PERIOD_MS = 2000;
+    
+    // Upper bound on how long a continuous stream of events can delay an update
+    private static final long MAX_DELAY_MS = 30000;
+    
+    private static final long FALLBACK_RESCAN_MINUTES = 5;
+    
+    @Autowired
+    private MusicLibraryConfig musicLibraryConfig;
+    
+    @Autowired
+    private LibraryScannerService libraryScannerService;
+    
+    @Autowired
+    private ScanJobService scanJobService;
+    
+    private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+    private final Set<Path> roots = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService fallbackScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "library-rescan");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    private WatchService watchService;
+    private ScheduledFuture<?> fallbackRescan;
+    
+    /**
+     * Start watching the configured library roots
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void startWatching() {
+        if (!musicLibraryConfig.isWatchEnabled()) {
+            logger.info("Library watching is disabled");
+            return;
+        }
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            logger.error("Could not create watch service, falling back to periodic rescans: {}", e.getMessage());
+            enableFallbackRescans();
+        }
+        if (watchService != null) {
+            Thread watcherThread = new Thread(this::processEvents, "library-watcher");
+            watcherThread.setDaemon(true);
+            watcherThread.start();
+        }
+        musicLibraryConfig.getLibraryRoots().forEach(this::watchRoot);
+    }
+    
+    /**
+     * Add a library root; its whole directory tree is registered
+     */
+    public void watchRoot(Path root) {
+        root = root.toAbsolutePath().normalize();
+        if (!musicLibraryConfig.isWatchEnabled() || !Files.isDirectory(root) || !roots.add(root)) {
+            return;
+        }
+        if (watchService != null) {
+            registerTree(root);
+            logger.info("Watching music library {} ({} directories)", root, watchedDirectories.size());
+        }
+    }
+    
+    /**
+     * Stop watching a library root and everything below it
+     */
+    public void unwatchRoot(Path root) {
+        Path normalizedRoot = root.toAbsolutePath().normalize();
+        if (!roots.remove(normalizedRoot)) {
+            return;
+        }
+        watchedDirectories.entrySet().removeIf(entry -> {
+            if (entry.getValue().startsWith(normalizedRoot)) {
+                entry.getKey().cancel();
+                return true;
+            }
+            return false;
+        });
+    }
+    
+    /**
+     * Register a directory and all directories below it
+     */
+    private void registerTree(Path start) {
+        try {
+            Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) {
+                    register(directory);
+                    return FileVisitResult.CONTINUE;
+                }
+                
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            logger.warn("Could not walk {} for watching: {}", start, e.getMessage());
+            enableFallbackRescans();
+        }
+    }
+    
+    private void register(Path directory) {
+        try {
+            WatchKey key = directory.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            watchedDirectories.put(key, directory);
+        } catch (IOException e) {
+            // Typically the per-user inotify watch limit; changes there are picked up by rescans
+            logger.warn("Could not watch directory {}: {}", directory, e.getMessage());
+            enableFallbackRescans();
+        }
+    }
+    
+    /**
+     * Watcher thread: collect changed paths and apply them after a quiet period
+     */
+    private void processEvents() {
+        Set<Path> pendingPaths = new LinkedHashSet<>();
+        boolean overflowed = false;
+        long firstPendingAt = 0;
+        
+        while (true) {
+            WatchKey key;
+            try {
+                boolean pending = overflowed || !pendingPaths.isEmpty();
+                key = pending ? watchService.poll(QUIET_PERIOD_MS, TimeUnit.MILLISECONDS) : watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            
+            if (key != null) {
+                if (pendingPaths.isEmpty() && !overflowed) {
+                    firstPendingAt = System.currentTimeMillis();
+                }
+                Path directory = watchedDirectories.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        overflowed = true;
+                        continue;
+                    }
+                    if (directory == null) {
+                        continue;
+                    }
+                    Path changed = directory.resolve((Path) event.context());
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+                        // Files copied in before the registration are found by the sync's walk
+                        registerTree(changed);
+                        pendingPaths.add(changed);
+                    } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE
+                            || LibraryScannerService.isAudioFile(changed)) {
+                        // A deleted path may have been a whole directory, so it is always synced
+                        pendingPaths.add(changed);
+                    }
+                }
+                if (!key.reset()) {
+                    watchedDirectories.remove(key);
+                }
+                if (System.currentTimeMillis() - firstPendingAt < MAX_DELAY_MS) {
+                    continue;
+                }
+            }
+            
+            if (overflowed) {
+                logger.warn("Library watch queue overflowed, rescanning all library roots");
+                enableFallbackRescans();
+                rescanRoots();
+            } else if (!pendingPaths.isEmpty()) {
+                applyChanges(new ArrayList<>(pendingPaths));
+            }
+            pendingPaths.clear();
+            overflowed = false;
+        }
+    }
+    
+    private void applyChanges(List<Path> changedPaths) {
+        // Drop paths under roots that were unwatched while the events were pending
+        changedPaths.removeIf(path -> roots.stream().noneMatch(path::startsWith));
+        if (changedPaths.isEmpty()) {
+            return;
+        }
+        try {
+            logger.debug("Applying {} library changes", changedPaths.size());
+            libraryScannerService.syncPaths(changedPaths);
+        } catch (RuntimeException e) {
+            logger.error("Error applying library changes: {}", e.getMessage());
+        }
+    }
+    
+    /**
+     * Rescan every root as a scan job; a root already being scanned is left to its running job
+     */
+    private void rescanRoots() {
+        for (Path root : roots) {
+            scanJobService.startScan(root);
+        }
+    }
+    
+    /**
+     * Once events may have been missed, also rescan every root periodically
+     */
+    private synchronized void enableFallbackRescans() {
+        if (fallbackRescan == null) {
+            logger.info("Enabling periodic library rescans every {} minutes", FALLBACK_RESCAN_MINUTES);
+            fallbackRescan = fallbackScheduler.scheduleWithFixedDelay(this::rescanRoots,
+                    FALLBACK_RESCAN_MINUTES, FALLBACK_RESCAN_MINUTES, TimeUnit.MINUTES);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.samsung.multiroom.service;
+
+import com.samsung.multiroom.config.MusicLibraryConfig;
+import com.samsung.multiroom.model.Track;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the integrated loudness and true peak (EBU R128) of WAV and FLAC
+ * tracks, so playback can even out the level between tracks.
+ *
+ * Tracks without a measurement are picked up after every scan and decoded on
+ * a fork-join pool, one track per task. Tracks are taken a chunk at a time and
+ * each decoder streams its file through a small buffer, so memory use does
+ * not depend on the size of the library or the length of a track.
+ */
+@Service
+public class LoudnessAnalysisService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(LoudnessAnalysisService.class);
+    
+    // Tracks decoded per fork-join round, and per results batch
+    private static final int CHUNK_SIZE = 64;
+    
+    // Values per IN list
+    private static final int BATCH_SIZE = 1000;
+    
+    // Sample frames decoded at a time per track
+    private static final int DECODE_FRAMES = 4096;
+    
+    // Normalization never turns a track up or down by more than this
+    private static final double MAX_GAIN_DB = 12.0;
+    
+    // Turning a track up stops before its true peak would pass this
+    private static final double PEAK_CEILING_DB = -1.0;
+    
+    private static final String UPDATE_LOUDNESS_SQL = "UPDATE tracks SET loudness = ?, true_peak = ? WHERE id = ?";
+    
+    @Autowired
+    private MusicLibraryConfig musicLibraryConfig;
+    
+    @Autowired
+    private NamedParameterJdbcTemplate jdbcTemplate;
+    
+    @Autowired
+    private TrackCatalog trackCatalog;
+    
+    private final ForkJoinPool analysisPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    
+    private final ExecutorService runExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "loudness-analysis");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicBoolean rerunRequested = new AtomicBoolean();
+    
+    // Tracks whose files could not be decoded; not retried until their audio changes
+    private final Set<Long> failedTrackIds = ConcurrentHashMap.newKeySet();
+    
+    private final AtomicLong tracksAnalyzed = new AtomicLong();
+    
+    /**
+     * Progress of the analysis since startup
+     */
+    public static class AnalysisStatus {
+        private final boolean running;
+        private final long tracksAnalyzed;
+        private final int tracksFailed;
+        private final long tracksPending;
+        
+        public AnalysisStatus(boolean running, long tracksAnalyzed, int tracksFailed, long tracksPending) {
+            this.running = running;
+            this.tracksAnalyzed = tracksAnalyzed;
+            this.tracksFailed = tracksFailed;
+            this.tracksPending = tracksPending;
+        }
+        
+        public boolean isRunning() { return running; }
+        public long getTracksAnalyzed() { return tracksAnalyzed; }
+        public int getTracksFailed() { return tracksFailed; }
+        public long getTracksPending() { return tracksPending; }
+    }
+    
+    private static class Measurement {
+        final long trackId;
+        final String filePath;
+        double loudness;
+        double truePeak;
+        boolean measured;
+        
+        Measurement(long trackId, String filePath) {
+            this.trackId = trackId;
+            this.filePath = filePath;
+        }
+    }
+    
+    /**
+     * Measure whatever was left over from the last run
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void analyzeOnStartup() {
+        analyzePending();
+    }
+    
+    /**
+     * Start measuring tracks that have no loudness yet. Returns at once; if a
+     * run is already going, another one follows it.
+     */
+    public void analyzePending() {
+        rerunRequested.set(true);
+        if (running.compareAndSet(false, true)) {
+            runExecutor.submit(this::run);
+        }
+    }
+    
+    /**
+     * Forget the measurements of tracks whose audio changed
+     */
+    public void resetTracks(Collection<Long> trackIds) {
+        if (trackIds.isEmpty()) {
+            return;
+        }
+        List<Long> ids = new ArrayList<>(trackIds);
+        for (int start = 0; start < ids.size(); start += BATCH_SIZE) {
+            jdbcTemplate.update("UPDATE tracks SET loudness = NULL, true_peak = NULL WHERE id IN (:ids)",
+                    new MapSqlParameterSource("ids", ids.subList(start, Math.min(start + BATCH_SIZE, ids.size()))));
+        }
+        for (Long trackId : ids) {
+            trackCatalog.loudnessChanged(trackId, null, null);
+        }
+        failedTrackIds.removeAll(trackIds);
+    }
+    
+    public AnalysisStatus getStatus() {
+        Long pending = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM tracks WHERE loudness IS NULL"
+                + " AND (LOWER(file_path) LIKE '%.wav' OR LOWER(file_path) LIKE '%.flac')",
+                new MapSqlParameterSource(), Long.class);
+        return new AnalysisStatus(running.get(), tracksAnalyzed.get(), failedTrackIds.size(),
+                Math.max(0, (pending != null ? pending : 0) - failedTrackIds.size()));
+    }
+    
+    /**
+     * Gain in dB that brings a track to the target loudness, limited so a
+     * turned-up track keeps its peaks below the ceiling. 0 for tracks not
+     * measured, or with normalization switched off.
+     */
+    public double getTrackGain(Track track) {
+        if (!musicLibraryConfig.isLoudnessNormalization() || track == null || track.getLoudness() == null) {
+            return 0;
+        }
+        double gain = musicLibraryConfig.getLoudnessTarget() - track.getLoudness();
+        if (track.getTruePeak() != null) {
+            gain = Math.min(gain, Math.max(0, PEAK_CEILING_DB - track.getTruePeak()));
+        }
+        gain = Math.max(-MAX_GAIN_DB, Math.min(MAX_GAIN_DB, gain));
+        return Math.round(gain * 10) / 10.0;
+    }
+    
+    private void run() {
+        long start = System.currentTimeMillis();
+        long analyzedBefore = tracksAnalyzed.get();
+        try {
+            while (rerunRequested.getAndSet(false)) {
+                long afterId = 0;
+                List<Measurement> chunk;
+                while (!(chunk = findPending(afterId)).isEmpty()) {
+                    afterId = chunk.get(chunk.size() - 1).trackId;
+                    chunk.removeIf(measurement -> failedTrackIds.contains(measurement.trackId));
+                    analyzeChunk(chunk);
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.error("Loudness analysis stopped: {}", e.getMessage());
+        } finally {
+            running.set(false);
+            // A request that came in while finishing up still gets its run
+            if (rerunRequested.get() && running.compareAndSet(false, true)) {
+                runExecutor.submit(this::run);
+            }
+        }
+        long analyzed = tracksAnalyzed.get() - analyzedBefore;
+        if (analyzed > 0) {
+            logger.info("Measured the loudness of {} tracks in {} ms", analyzed, System.currentTimeMillis() - start);
+        }
+    }
+    
+    private List<Measurement> findPending(long afterId) {
+        List<Measurement> pending = new ArrayList<>();
+        MapSqlParameterSource parameters = new MapSqlParameterSource()
+                .addValue("after", afterId)
+                .addValue("limit", CHUNK_SIZE);
+        jdbcTemplate.query("SELECT id, file_path FROM tracks WHERE id > :after AND loudness IS NULL"
+                + " AND (LOWER(file_path) LIKE '%.wav' OR LOWER(file_path) LIKE '%.flac')"
+                + " ORDER BY id LIMIT :limit", parameters, row -> {
+                    pending.add(new Measurement(row.getLong("id"), row.getString("file_path")));
+                });
+        return pending;
+    }
+    
+    /**
+     * Decode a chunk of tracks in parallel, then store their results in one batch
+     */
+    private void analyzeChunk(List<Measurement> chunk) {
+        List<RecursiveAction> tasks = new ArrayList<>();
+        for (Measurement measurement : chunk) {
+            tasks.add(new MeasureTask(measurement));
+        }
+        analysisPool.submit(() -> ForkJoinTask.invokeAll(tasks)).join();
+        
+        List<Measurement> measured = new ArrayList<>();
+        for (Measurement measurement : chunk) {
+            if (measurement.measured) {
+                measured.add(measurement);
+            } else {
+                failedTrackIds.add(measurement.trackId);
+            }
+        }
+        jdbcTemplate.getJdbcTemplate().batchUpdate(UPDATE_LOUDNESS_SQL, measured, CHUNK_SIZE, (statement, measurement) -> {
+            statement.setDouble(1, measurement.loudness);
+            statement.setDouble(2, measurement.truePeak);
+            statement.setLong(3, measurement.trackId);
+        });
+        for (Measurement measurement : measured) {
+            trackCatalog.loudnessChanged(measurement.trackId, measurement.loudness, measurement.truePeak);
+        }
+        tracksAnalyzed.addAndGet(measured.size());
+    }
+    
+    private static class MeasureTask extends RecursiveAction {
+        private final Measurement measurement;
+        
+        MeasureTask(Measurement measurement) {
+            this.measurement = measurement;
+        }
+        
+        @Override
+        protected void compute() {
+            try (PcmDecoder decoder = PcmDecoder.open(Paths.get(measurement.filePath))) {
+                if (decoder == null) {
+                    logger.debug("Not measuring {}: not a WAV or FLAC file", measurement.filePath);
+                    return;
+                }
+                LoudnessMeter meter = new LoudnessMeter(decoder.getSampleRate(), decoder.getChannels());
+                double[][] buffer = new double[decoder.getChannels()][DECODE_FRAMES];
+                int frames;
+                while ((frames = decoder.read(buffer)) > 0) {
+                    meter.process(buffer, frames);
+                }
+                measurement.loudness = Math.round(meter.getIntegratedLoudness() * 100) / 100.0;
+                measurement.truePeak = Math.round(meter.getTruePeak() * 100) / 100.0;
+                measurement.measured = true;
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Could not measure the loudness of {}: {}", measurement.filePath, e.getMessage());
+            }
+        }
+    }
+}
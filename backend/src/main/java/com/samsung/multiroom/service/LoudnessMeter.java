@@ -0,0 +1,210 @@
+package com.samsung.multiroom.service;
+
+/**
+ * Integrated loudness and true peak as specified by EBU R128 / ITU-R BS.1770:
+ * K-weighted mean square over 400 ms blocks overlapping by 75%, gated at
+ * -70 LUFS and 10 LU below the ungated level, and the sample peak of a 4x
+ * oversampled signal.
+ *
+ * Block levels go into a fixed histogram instead of a list, so memory does not
+ * grow with the length of the track.
+ */
+class LoudnessMeter {
+    
+    static final double ABSOLUTE_GATE = -70.0;
+    private static final double RELATIVE_GATE = -10.0;
+    
+    // Histogram of block loudness from the absolute gate up to +10 LUFS
+    private static final int BINS_PER_LU = 100;
+    private static final int BINS = 80 * BINS_PER_LU;
+    
+    private static final int TAPS_PER_PHASE = 12;
+    
+    private final int channels;
+    private final double[] channelWeights;
+    private final int segmentLength; // 100 ms, a quarter block
+    
+    // K-weighting: a high shelf followed by a high pass, as biquad coefficients
+    private final double[] shelfB = new double[3];
+    private final double[] shelfA = new double[3];
+    private final double[] highPassB = {1.0, -2.0, 1.0};
+    private final double[] highPassA = new double[3];
+    private final double[][] filterState;
+    
+    private final double[] segmentPowers = new double[4];
+    private int segments;
+    private double segmentSum;
+    private int segmentPosition;
+    
+    private final long[] blockCounts = new long[BINS];
+    private final double[] blockPowers = new double[BINS];
+    
+    // Polyphase interpolation filter for the true peak, newest sample first in the history
+    private final double[][] interpolation;
+    private final double[][] history;
+    private double peak;
+    
+    LoudnessMeter(int sampleRate, int channels) {
+        this.channels = channels;
+        this.channelWeights = new double[channels];
+        for (int channel = 0; channel < channels; channel++) {
+            // In 5.1 the LFE channel is left out and the surround channels weigh more
+            channelWeights[channel] = channels != 6 ? 1.0 : channel == 3 ? 0.0 : channel >= 4 ? 1.41 : 1.0;
+        }
+        this.segmentLength = Math.max(1, Math.round(sampleRate / 10.0f));
+        this.filterState = new double[channels][4];
+        
+        // Coefficients from BS.1770, recomputed for the sample rate
+        double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+        double q = 0.7071752369554196;
+        double vh = Math.pow(10.0, 3.999843853973347 / 20.0);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1.0 + k / q + k * k;
+        shelfB[0] = (vh + vb * k / q + k * k) / a0;
+        shelfB[1] = 2.0 * (k * k - vh) / a0;
+        shelfB[2] = (vh - vb * k / q + k * k) / a0;
+        shelfA[1] = 2.0 * (k * k - 1.0) / a0;
+        shelfA[2] = (1.0 - k / q + k * k) / a0;
+        
+        k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+        q = 0.5003270373238773;
+        a0 = 1.0 + k / q + k * k;
+        highPassA[1] = 2.0 * (k * k - 1.0) / a0;
+        highPassA[2] = (1.0 - k / q + k * k) / a0;
+        
+        int oversampling = sampleRate < 96000 ? 4 : sampleRate < 192000 ? 2 : 1;
+        this.interpolation = interpolationFilter(oversampling);
+        this.history = new double[channels][TAPS_PER_PHASE];
+    }
+    
+    /**
+     * Feed the next frames, one array per channel
+     */
+    void process(double[][] samples, int frames) {
+        for (int frame = 0; frame < frames; frame++) {
+            for (int channel = 0; channel < channels; channel++) {
+                double sample = samples[channel][frame];
+                trackPeak(channel, sample);
+                if (channelWeights[channel] == 0.0) {
+                    continue;
+                }
+                double[] state = filterState[channel];
+                // Direct form II transposed, two stages
+                double shelved = shelfB[0] * sample + state[0];
+                state[0] = shelfB[1] * sample - shelfA[1] * shelved + state[1];
+                state[1] = shelfB[2] * sample - shelfA[2] * shelved;
+                double weighted = highPassB[0] * shelved + state[2];
+                state[2] = highPassB[1] * shelved - highPassA[1] * weighted + state[3];
+                state[3] = highPassB[2] * shelved - highPassA[2] * weighted;
+                segmentSum += channelWeights[channel] * weighted * weighted;
+            }
+            if (++segmentPosition == segmentLength) {
+                endSegment();
+            }
+        }
+    }
+    
+    /**
+     * Gated integrated loudness in LUFS; the absolute gate for silence or audio
+     * shorter than one block
+     */
+    double getIntegratedLoudness() {
+        double power = 0;
+        long count = 0;
+        for (int bin = 0; bin < BINS; bin++) {
+            power += blockPowers[bin];
+            count += blockCounts[bin];
+        }
+        if (count == 0) {
+            return ABSOLUTE_GATE;
+        }
+        
+        double relativeGate = loudness(power / count) + RELATIVE_GATE;
+        int firstBin = (int) Math.max(0, Math.ceil((relativeGate - ABSOLUTE_GATE) * BINS_PER_LU));
+        power = 0;
+        count = 0;
+        for (int bin = firstBin; bin < BINS; bin++) {
+            power += blockPowers[bin];
+            count += blockCounts[bin];
+        }
+        return count > 0 ? loudness(power / count) : ABSOLUTE_GATE;
+    }
+    
+    /**
+     * True peak in dBTP, no lower than the absolute gate
+     */
+    double getTruePeak() {
+        return peak > 0 ? Math.max(ABSOLUTE_GATE, 20.0 * Math.log10(peak)) : ABSOLUTE_GATE;
+    }
+    
+    private void endSegment() {
+        segmentPowers[segments % 4] = segmentSum / segmentLength;
+        segments++;
+        segmentSum = 0;
+        segmentPosition = 0;
+        if (segments < 4) {
+            return;
+        }
+        
+        double blockPower = (segmentPowers[0] + segmentPowers[1] + segmentPowers[2] + segmentPowers[3]) / 4;
+        double blockLoudness = loudness(blockPower);
+        if (blockLoudness > ABSOLUTE_GATE) {
+            int bin = (int) Math.min(BINS - 1, (blockLoudness - ABSOLUTE_GATE) * BINS_PER_LU);
+            blockCounts[bin]++;
+            blockPowers[bin] += blockPower;
+        }
+    }
+    
+    private void trackPeak(int channel, double sample) {
+        double magnitude = Math.abs(sample);
+        if (magnitude > peak) {
+            peak = magnitude;
+        }
+        double[] taps = history[channel];
+        System.arraycopy(taps, 0, taps, 1, TAPS_PER_PHASE - 1);
+        taps[0] = sample;
+        for (double[] phase : interpolation) {
+            double value = 0;
+            for (int tap = 0; tap < TAPS_PER_PHASE; tap++) {
+                value += phase[tap] * taps[tap];
+            }
+            magnitude = Math.abs(value);
+            if (magnitude > peak) {
+                peak = magnitude;
+            }
+        }
+    }
+    
+    /**
+     * Windowed-sinc low pass at the original Nyquist frequency, split into one
+     * filter per output phase, each with unity gain at DC
+     */
+    private static double[][] interpolationFilter(int factor) {
+        if (factor == 1) {
+            return new double[0][];
+        }
+        int length = factor * TAPS_PER_PHASE;
+        double center = (length - 1) / 2.0;
+        double[][] phases = new double[factor][TAPS_PER_PHASE];
+        for (int phase = 0; phase < factor; phase++) {
+            double sum = 0;
+            for (int tap = 0; tap < TAPS_PER_PHASE; tap++) {
+                int n = tap * factor + phase;
+                double x = (n - center) / factor;
+                double sinc = x == 0 ? 1.0 : Math.sin(Math.PI * x) / (Math.PI * x);
+                double window = 0.42 - 0.5 * Math.cos(2 * Math.PI * n / (length - 1))
+                        + 0.08 * Math.cos(4 * Math.PI * n / (length - 1));
+                phases[phase][tap] = sinc * window;
+                sum += phases[phase][tap];
+            }
+            for (int tap = 0; tap < TAPS_PER_PHASE; tap++) {
+                phases[phase][tap] /= sum;
+            }
+        }
+        return phases;
+    }
+    
+    private static double loudness(double power) {
+        return -0.691 + 10.0 * Math.log10(power);
+    }
+}
@@ -0,0 +1,224 @@
+package com.samsung.multiroom.service;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Decodes audio files to PCM samples, a buffer at a time, so a whole track is
+ * never held in memory. Uncompressed WAV and FLAC are supported; for other
+ * formats open() returns null.
+ *
+ * Samples are scaled to [-1, 1) and returned per channel.
+ */
+public abstract class PcmDecoder implements Closeable {
+    
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private static final int WAVE_FORMAT_PCM = 1;
+    private static final int WAVE_FORMAT_IEEE_FLOAT = 3;
+    private static final int WAVE_FORMAT_EXTENSIBLE = 0xFFFE;
+    
+    public abstract int getSampleRate();
+    
+    public abstract int getChannels();
+    
+    /**
+     * Total sample frames, or 0 if the file does not say
+     */
+    public abstract long getTotalFrames();
+    
+    /**
+     * Decode up to buffer[0].length frames into buffer[channel]; returns the
+     * number of frames decoded, or -1 at the end of the audio
+     */
+    public abstract int read(double[][] buffer) throws IOException;
+    
+    /**
+     * Open a decoder for a file, recognised by its header. Returns null if the
+     * file is not WAV or FLAC.
+     */
+    public static PcmDecoder open(Path file) throws IOException {
+        return open(Files.newInputStream(file));
+    }
+    
+    /**
+     * Open a decoder over a stream, which it closes. Returns null (having
+     * closed the stream) if the audio is not WAV or FLAC.
+     */
+    public static PcmDecoder open(InputStream stream) throws IOException {
+        InputStream in = new BufferedInputStream(stream, BUFFER_SIZE);
+        try {
+            in.mark(16);
+            byte[] header = in.readNBytes(12);
+            in.reset();
+            PcmDecoder decoder = null;
+            if (header.length == 12 && AudioMetadataReader.startsWith(header, 0, "RIFF")
+                    && AudioMetadataReader.startsWith(header, 8, "WAVE")) {
+                decoder = WavDecoder.openStream(in);
+            } else if (header.length >= 4 && (AudioMetadataReader.startsWith(header, 0, "fLaC")
+                    || AudioMetadataReader.startsWith(header, 0, "ID3"))) {
+                decoder = FlacDecoder.openStream(in);
+            }
+            if (decoder == null) {
+                in.close();
+            }
+            return decoder;
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Integer or floating point PCM from the data chunk of a RIFF WAVE file
+     */
+    private static class WavDecoder extends PcmDecoder {
+        private final InputStream in;
+        private final int channels;
+        private final int sampleRate;
+        private final int bytesPerSample;
+        private final boolean floatingPoint;
+        private final long totalFrames;
+        private long remainingBytes;
+        private byte[] bytes = new byte[0];
+        
+        private WavDecoder(InputStream in, int channels, int sampleRate, int bitsPerSample,
+                           boolean floatingPoint, long dataSize) {
+            this.in = in;
+            this.channels = channels;
+            this.sampleRate = sampleRate;
+            this.bytesPerSample = bitsPerSample / 8;
+            this.floatingPoint = floatingPoint;
+            this.remainingBytes = dataSize;
+            this.totalFrames = dataSize != Long.MAX_VALUE ? dataSize / (bytesPerSample * channels) : 0;
+        }
+        
+        static WavDecoder openStream(InputStream in) throws IOException {
+            skipFully(in, 12);
+            int format = -1;
+            int channels = 0;
+            int sampleRate = 0;
+            int bitsPerSample = 0;
+            long dataSize;
+            while (true) {
+                byte[] chunkHeader = in.readNBytes(8);
+                if (chunkHeader.length < 8) {
+                    throw new EOFException("No data chunk");
+                }
+                long size = AudioMetadataReader.le32(chunkHeader, 4) & 0xFFFFFFFFL;
+                if (AudioMetadataReader.startsWith(chunkHeader, 0, "fmt ")) {
+                    byte[] fmt = in.readNBytes((int) Math.min(size, 64));
+                    if (fmt.length < 16) {
+                        throw new EOFException("Truncated fmt chunk");
+                    }
+                    format = le16(fmt, 0);
+                    channels = le16(fmt, 2);
+                    sampleRate = AudioMetadataReader.le32(fmt, 4);
+                    bitsPerSample = le16(fmt, 14);
+                    if (format == WAVE_FORMAT_EXTENSIBLE && fmt.length >= 26) {
+                        format = le16(fmt, 24); // first bytes of the sub-format GUID
+                    }
+                    skipFully(in, size - fmt.length + (size & 1));
+                } else if (AudioMetadataReader.startsWith(chunkHeader, 0, "data")) {
+                    // Streamed files may leave the data size at 0 or the maximum; read to the end then
+                    dataSize = size == 0 || size == 0xFFFFFFFFL ? Long.MAX_VALUE : size;
+                    break;
+                } else {
+                    skipFully(in, size + (size & 1));
+                }
+            }
+            
+            boolean floatingPoint = format == WAVE_FORMAT_IEEE_FLOAT;
+            boolean supported = format == WAVE_FORMAT_PCM
+                    ? bitsPerSample == 8 || bitsPerSample == 16 || bitsPerSample == 24 || bitsPerSample == 32
+                    : floatingPoint && (bitsPerSample == 32 || bitsPerSample == 64);
+            if (!supported || channels <= 0 || sampleRate <= 0) {
+                throw new IOException("Unsupported WAV format " + format + " with " + bitsPerSample + " bits");
+            }
+            return new WavDecoder(in, channels, sampleRate, bitsPerSample, floatingPoint, dataSize);
+        }
+        
+        @Override
+        public int getSampleRate() { return sampleRate; }
+        
+        @Override
+        public int getChannels() { return channels; }
+        
+        @Override
+        public long getTotalFrames() { return totalFrames; }
+        
+        @Override
+        public int read(double[][] buffer) throws IOException {
+            int frameSize = bytesPerSample * channels;
+            int frames = (int) Math.min(buffer[0].length, remainingBytes / frameSize);
+            if (frames <= 0) {
+                return -1;
+            }
+            if (bytes.length < frames * frameSize) {
+                bytes = new byte[frames * frameSize];
+            }
+            int read = in.readNBytes(bytes, 0, frames * frameSize);
+            frames = read / frameSize;
+            if (frames == 0) {
+                remainingBytes = 0;
+                return -1;
+            }
+            remainingBytes -= (long) frames * frameSize;
+            
+            int offset = 0;
+            for (int frame = 0; frame < frames; frame++) {
+                for (int channel = 0; channel < channels; channel++) {
+                    buffer[channel][frame] = sample(offset);
+                    offset += bytesPerSample;
+                }
+            }
+            return frames;
+        }
+        
+        private double sample(int offset) {
+            switch (bytesPerSample) {
+                case 1:
+                    return ((bytes[offset] & 0xFF) - 128) / 128.0;
+                case 2:
+                    return (short) le16(bytes, offset) / 32768.0;
+                case 3:
+                    return ((bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8 | bytes[offset + 2] << 16)
+                            / 8388608.0;
+                case 4:
+                    int bits = AudioMetadataReader.le32(bytes, offset);
+                    return floatingPoint ? Float.intBitsToFloat(bits) : bits / 2147483648.0;
+                default:
+                    long low = AudioMetadataReader.le32(bytes, offset) & 0xFFFFFFFFL;
+                    long high = AudioMetadataReader.le32(bytes, offset + 4);
+                    return Double.longBitsToDouble(high << 32 | low);
+            }
+        }
+        
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+    
+    static int le16(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+    }
+    
+    static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package com.samsung.multiroom.service;
+
+import com.samsung.multiroom.model.Speaker;
+import com.samsung.multiroom.model.SpeakerGroup;
+import com.samsung.multiroom.model.Track;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a list of playback commands for speakers and groups in one call, for
+ * scripts that would otherwise send dozens of requests in a row.
+ *
+ * All commands are validated first, then the speakers, groups and tracks
+ * they name are looked up in bulk. Commands that touch the same speaker,
+ * directly or through a group, run one after another in the order given;
+ * commands for unrelated speakers run in parallel. Every command gets its own
+ * result, and a failed one does not stop the others.
+ */
+@Service
+public class PlaybackBatchService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(PlaybackBatchService.class);
+    
+    // Most commands accepted in one batch
+    public static final int MAX_COMMANDS = 500;
+    
+    // Upper bound on devices commanded at the same time
+    private static final int LANE_THREADS = 16;
+    
+    private static final Set<String> SPEAKER_ACTIONS = Set.of("play", "pause", "resume", "stop", "volume", "seek");
+    private static final Set<String> GROUP_ACTIONS = Set.of("play", "pause", "volume");
+    
+    @Autowired
+    private AudioPlaybackService audioPlaybackService;
+    
+    @Autowired
+    private SpeakerGroupService speakerGroupService;
+    
+    @Autowired
+    private DeviceCache deviceCache;
+    
+    @Autowired
+    private TrackCatalog trackCatalog;
+    
+    // Separate from the playback service's pool, which group commands fan out on
+    private final ExecutorService laneExecutor;
+    
+    public PlaybackBatchService() {
+        AtomicInteger threadCount = new AtomicInteger();
+        laneExecutor = Executors.newFixedThreadPool(LANE_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "playback-batch-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * One command of a batch: an action (play, pause, resume, stop, volume or
+     * seek) for either a speaker or a group, with the track, volume or position
+     * it needs. Groups take play, pause and volume.
+     */
+    public static class BatchCommand {
+        private String action;
+        private String speakerMac;
+        private String groupName;
+        private Long trackId;
+        private Integer volume;
+        private Integer seconds;
+        
+        public String getAction() { return action; }
+        public void setAction(String action) { this.action = action; }
+        
+        public String getSpeakerMac() { return speakerMac; }
+        public void setSpeakerMac(String speakerMac) { this.speakerMac = speakerMac; }
+        
+        public String getGroupName() { return groupName; }
+        public void setGroupName(String groupName) { this.groupName = groupName; }
+        
+        public Long getTrackId() { return trackId; }
+        public void setTrackId(Long trackId) { this.trackId = trackId; }
+        
+        public Integer getVolume() { return volume; }
+        public void setVolume(Integer volume) { this.volume = volume; }
+        
+        public Integer getSeconds() { return seconds; }
+        public void setSeconds(Integer seconds) { this.seconds = seconds; }
+    }
+    
+    /**
+     * Outcome of the command at the same index of a batch
+     */
+    public static class BatchResult {
+        private final int index;
+        private final boolean success;
+        private final String error;
+        
+        public BatchResult(int index, boolean success, String error) {
+            this.index = index;
+            this.success = success;
+            this.error = error;
+        }
+        
+        public int getIndex() { return index; }
+        public boolean isSuccess() { return success; }
+        public String getError() { return error; }
+    }
+    
+    /**
+     * Runs the commands and returns a result for each, in the same order
+     */
+    public List<BatchResult> execute(List<BatchCommand> commands) {
+        long start = System.currentTimeMillis();
+        BatchResult[] results = new BatchResult[commands.size()];
+        
+        // Validate everything before touching any device
+        List<Integer> valid = new ArrayList<>();
+        Set<String> speakerMacs = new HashSet<>();
+        Set<String> groupNames = new HashSet<>();
+        Set<Long> trackIds = new HashSet<>();
+        for (int i = 0; i < commands.size(); i++) {
+            BatchCommand command = commands.get(i);
+            String error = validate(command);
+            if (error != null) {
+                results[i] = new BatchResult(i, false, error);
+                continue;
+            }
+            valid.add(i);
+            if (command.getSpeakerMac() != null) {
+                speakerMacs.add(command.getSpeakerMac());
+            } else {
+                groupNames.add(command.getGroupName());
+            }
+            if (command.getTrackId() != null) {
+                trackIds.add(command.getTrackId());
+            }
+        }
+        
+        // Look up every target at once; this also warms the cache for the commands themselves
+        Map<String, Speaker> speakers = deviceCache.findSpeakers(speakerMacs);
+        Map<String, SpeakerGroup> groups = deviceCache.findGroups(groupNames);
+        Map<Long, Track> tracks = new HashMap<>();
+        for (Track track : trackCatalog.getTracks(trackIds)) {
+            tracks.put(track.getId(), track);
+        }
+        
+        // Commands sharing a speaker or group end up in the same lane, in batch order
+        Map<String, Integer> laneByDevice = new HashMap<>();
+        int[] lanes = new int[commands.size()];
+        for (int i : valid) {
+            BatchCommand command = commands.get(i);
+            String error = null;
+            Set<String> devices = new HashSet<>();
+            if (command.getSpeakerMac() != null) {
+                if (!speakers.containsKey(command.getSpeakerMac())) {
+                    error = "Speaker not found";
+                }
+                devices.add(command.getSpeakerMac());
+            } else {
+                if (!groups.containsKey(command.getGroupName())) {
+                    error = "Group not found";
+                } else {
+                    devices.add("group:" + command.getGroupName());
+                    devices.addAll(speakerGroupService.resolveSpeakers(command.getGroupName()));
+                }
+            }
+            if (error == null && command.getAction().equals("play") && !tracks.containsKey(command.getTrackId())) {
+                error = "Track not found";
+            }
+            if (error != null) {
+                results[i] = new BatchResult(i, false, error);
+                continue;
+            }
+            lanes[i] = i;
+            for (String device : devices) {
+                Integer lane = laneByDevice.putIfAbsent(device, i);
+                if (lane != null) {
+                    mergeLanes(lanes, lane, i);
+                }
+            }
+        }
+        
+        Map<Integer, List<Integer>> commandsByLane = new LinkedHashMap<>();
+        for (int i : valid) {
+            if (results[i] == null) {
+                commandsByLane.computeIfAbsent(findLane(lanes, i), lane -> new ArrayList<>()).add(i);
+            }
+        }
+        
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (List<Integer> lane : commandsByLane.values()) {
+            futures.add(CompletableFuture.runAsync(() -> {
+                for (int i : lane) {
+                    results[i] = run(i, commands.get(i), tracks);
+                }
+            }, laneExecutor));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        
+        logger.info("Ran a batch of {} playback commands in {} lanes in {} ms",
+                commands.size(), commandsByLane.size(), System.currentTimeMillis() - start);
+        return List.of(results);
+    }
+    
+    private static String validate(BatchCommand command) {
+        if (command == null || command.getAction() == null || !SPEAKER_ACTIONS.contains(command.getAction())) {
+            return "Unknown action";
+        }
+        if ((command.getSpeakerMac() == null) == (command.getGroupName() == null)) {
+            return "Exactly one of speakerMac and groupName is required";
+        }
+        if (command.getGroupName() != null && !GROUP_ACTIONS.contains(command.getAction())) {
+            return "Action " + command.getAction() + " is not supported for groups";
+        }
+        switch (command.getAction()) {
+            case "play":
+                return command.getTrackId() == null ? "Track ID is required" : null;
+            case "volume":
+                if (command.getVolume() == null) {
+                    return "Volume is required";
+                }
+                return command.getVolume() < 0 || command.getVolume() > 100
+                        ? "Volume must be between 0 and 100" : null;
+            case "seek":
+                if (command.getSeconds() == null) {
+                    return "Seconds is required";
+                }
+                return command.getSeconds() < 0 ? "Seconds must not be negative" : null;
+            default:
+                return null;
+        }
+    }
+    
+    private BatchResult run(int index, BatchCommand command, Map<Long, Track> tracks) {
+        String speakerMac = command.getSpeakerMac();
+        String groupName = command.getGroupName();
+        try {
+            boolean success;
+            switch (command.getAction()) {
+                case "play":
+                    Track track = tracks.get(command.getTrackId());
+                    success = speakerMac != null
+                            ? audioPlaybackService.playTrackOnSpeaker(speakerMac, track)
+                            : audioPlaybackService.playTrackOnGroup(groupName, track);
+                    break;
+                case "pause":
+                    success = speakerMac != null
+                            ? audioPlaybackService.pauseSpeaker(speakerMac)
+                            : audioPlaybackService.pauseGroup(groupName);
+                    break;
+                case "resume":
+                    success = audioPlaybackService.resumeSpeaker(speakerMac);
+                    break;
+                case "stop":
+                    success = audioPlaybackService.stopSpeaker(speakerMac);
+                    break;
+                case "volume":
+                    success = speakerMac != null
+                            ? audioPlaybackService.setVolume(speakerMac, command.getVolume())
+                            : audioPlaybackService.setGroupVolume(groupName, command.getVolume());
+                    break;
+                default:
+                    success = audioPlaybackService.seekPosition(speakerMac, command.getSeconds());
+                    break;
+            }
+            return new BatchResult(index, success, success ? null : "Failed to " + command.getAction());
+        } catch (RuntimeException e) {
+            logger.error("Batch command {} ({}) failed: ", index, command.getAction(), e);
+            return new BatchResult(index, false, e.getMessage());
+        }
+    }
+    
+    // Lanes are merged like disjoint sets; each lane is named by its first command
+    private static int findLane(int[] lanes, int command) {
+        while (lanes[command] != command) {
+            lanes[command] = lanes[lanes[command]];
+            command = lanes[command];
+        }
+        return command;
+    }
+    
+    private static void mergeLanes(int[] lanes, int first, int second) {
+        int a = findLane(lanes, first);
+        int b = findLane(lanes, second);
+        if (a != b) {
+            lanes[Math.max(a, b)] = Math.min(a, b);
+        }
+    }
+}
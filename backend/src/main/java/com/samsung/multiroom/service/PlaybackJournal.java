@@ -0,0 +1,665 @@
+package com.samsung.multiroom.service;
+
+import com.samsung.multiroom.config.MusicLibraryConfig;
+import com.samsung.multiroom.model.Speaker;
+import com.samsung.multiroom.model.Track;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of speaker playback state: play, pause, resume, stop,
+ * volume and seek. These change far more often than speaker configuration,
+ * so they are appended here as fixed-size records instead of updating the
+ * speaker row each time. The journal holds the current state of every speaker
+ * and a history of how it got there.
+ *
+ * Records go to memory-mapped segment files of RECORDS_PER_SEGMENT records.
+ * When a segment is full the next one is started and a snapshot of every
+ * speaker's state at that point is written, so startup replays at most the
+ * records after the newest snapshot, and the oldest segments past
+ * RETAINED_SEGMENTS are deleted along with their snapshots. Snapshots are also
+ * taken periodically while records come in; each one writes the state of the
+ * speakers that changed back to their rows.
+ *
+ * Record format, big-endian, 64 bytes: time (epoch ms, 64 bits), track id
+ * (64 bits, -1 for none), value (32 bits: the volume, or the position in
+ * seconds for pause and seek), event type (byte), length of the speaker's MAC
+ * address (byte), the MAC address in UTF-8 (up to 38 bytes, zero padded),
+ * then the CRC-32 of the first 60 bytes. A record of zeros or with a wrong
+ * checksum ends a segment.
+ */
+@Service
+public class PlaybackJournal {
+    
+    private static final Logger logger = LoggerFactory.getLogger(PlaybackJournal.class);
+    
+    private static final int RECORD_SIZE = 64;
+    private static final int RECORDS_PER_SEGMENT = 16384;
+    private static final int MAX_MAC_BYTES = 38;
+    private static final int CHECKSUM_OFFSET = 60;
+    
+    // About a million events
+    private static final int RETAINED_SEGMENTS = 64;
+    
+    // Periodic snapshots are skipped until this many records came in since the last
+    private static final int SNAPSHOT_MIN_RECORDS = 1024;
+    private static final long CHECKPOINT_INTERVAL_SECONDS = 60;
+    
+    private static final int SNAPSHOT_MAGIC = 0x4D524A53; // "MRJS"
+    private static final int SNAPSHOT_VERSION = 1;
+    
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.journal");
+    private static final Pattern SNAPSHOT_NAME = Pattern.compile("snapshot-(\\d+)-(\\d+)\\.snap");
+    
+    @Autowired
+    private MusicLibraryConfig musicLibraryConfig;
+    
+    @Autowired
+    private DeviceCache deviceCache;
+    
+    @Autowired
+    private TrackCatalog trackCatalog;
+    
+    private final ScheduledExecutorService snapshotExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "playback-journal");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    private Path journalDirectory;
+    
+    // Current state per MAC address; replaced under the append lock
+    private final Map<String, SpeakerState> states = new ConcurrentHashMap<>();
+    
+    // Guarded by the append lock
+    private final Object appendLock = new Object();
+    private final byte[] record = new byte[RECORD_SIZE];
+    private final ByteBuffer recordBuffer = ByteBuffer.wrap(record);
+    private final CRC32 checksum = new CRC32();
+    private MappedByteBuffer segment;
+    private long segmentSeq;
+    private int segmentIndex;
+    private int recordsSinceSnapshot;
+    private boolean segmentUnavailable;
+    private final Set<String> changedSinceCheckpoint = new HashSet<>();
+    
+    /**
+     * Kinds of journal records. The codes are stored and must not change.
+     */
+    public enum EventType {
+        PLAY(1), PAUSE(2), RESUME(3), STOP(4), VOLUME(5), SEEK(6);
+        
+        private final int code;
+        
+        EventType(int code) {
+            this.code = code;
+        }
+        
+        static EventType fromCode(int code) {
+            for (EventType type : values()) {
+                if (type.code == code) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+    
+    /**
+     * Playback state of one speaker as of its last record. The volume is -1
+     * until one was recorded.
+     */
+    public static class SpeakerState {
+        private final String status;
+        private final long trackId;
+        private final int volume;
+        private final int position;
+        private final long positionTime;
+        private final long updatedAt;
+        
+        SpeakerState(String status, long trackId, int volume, int position, long positionTime, long updatedAt) {
+            this.status = status;
+            this.trackId = trackId;
+            this.volume = volume;
+            this.position = position;
+            this.positionTime = positionTime;
+            this.updatedAt = updatedAt;
+        }
+        
+        public String getStatus() { return status; }
+        public long getTrackId() { return trackId; }
+        public int getVolume() { return volume; }
+        public long getUpdatedAt() { return updatedAt; }
+        
+        /**
+         * Position in seconds at the given time, counting on from the last
+         * recorded one while playing
+         */
+        public int positionAt(long time) {
+            if ("PLAYING".equals(status) && time > positionTime) {
+                return position + (int) ((time - positionTime) / 1000);
+            }
+            return position;
+        }
+        
+        SpeakerState apply(EventType type, long eventTrackId, int value, long time) {
+            switch (type) {
+                case PLAY:
+                    return new SpeakerState("PLAYING", eventTrackId, volume, 0, time, time);
+                case PAUSE:
+                    return new SpeakerState("PAUSED", trackId, volume, value, time, time);
+                case RESUME:
+                    return new SpeakerState("PLAYING", trackId, volume, position, time, time);
+                case STOP:
+                    return new SpeakerState("STOPPED", -1, volume, 0, time, time);
+                case VOLUME:
+                    return new SpeakerState(status, trackId, value, position, positionTime, time);
+                case SEEK:
+                    return new SpeakerState(status, trackId, volume, value, time, time);
+                default:
+                    return this;
+            }
+        }
+        
+        static SpeakerState initial() {
+            return new SpeakerState("STOPPED", -1, -1, 0, 0, 0);
+        }
+    }
+    
+    /**
+     * What one speaker was doing at some time
+     */
+    public static class HistoryEntry {
+        private final String speakerMacAddress;
+        private final String status;
+        private final Long trackId;
+        private final String trackTitle;
+        private final int position;
+        private final Integer volume;
+        private final long updatedAt;
+        
+        public HistoryEntry(String speakerMacAddress, String status, Long trackId, String trackTitle,
+                            int position, Integer volume, long updatedAt) {
+            this.speakerMacAddress = speakerMacAddress;
+            this.status = status;
+            this.trackId = trackId;
+            this.trackTitle = trackTitle;
+            this.position = position;
+            this.volume = volume;
+            this.updatedAt = updatedAt;
+        }
+        
+        public String getSpeakerMacAddress() { return speakerMacAddress; }
+        public String getStatus() { return status; }
+        public Long getTrackId() { return trackId; }
+        public String getTrackTitle() { return trackTitle; }
+        public int getPosition() { return position; }
+        public Integer getVolume() { return volume; }
+        public long getUpdatedAt() { return updatedAt; } // epoch ms of the speaker's last record
+    }
+    
+    // Speaker states as of a position in the journal, taken at the given time
+    private static class Snapshot {
+        final long seq;
+        final int index;
+        final long time;
+        final Map<String, SpeakerState> states;
+        
+        Snapshot(long seq, int index, long time, Map<String, SpeakerState> states) {
+            this.seq = seq;
+            this.index = index;
+            this.time = time;
+            this.states = states;
+        }
+    }
+    
+    @PostConstruct
+    public void open() {
+        journalDirectory = Paths.get(musicLibraryConfig.getJournalPath());
+        try {
+            Files.createDirectories(journalDirectory);
+            TreeMap<Long, Path> segments = listSegments();
+            Snapshot snapshot = readLatestSnapshot(Long.MAX_VALUE);
+            
+            long startSeq = snapshot != null ? snapshot.seq : (segments.isEmpty() ? 0 : segments.firstKey());
+            int startIndex = snapshot != null ? snapshot.index : 0;
+            Map<String, SpeakerState> replayed = snapshot != null ? new HashMap<>(snapshot.states) : new HashMap<>();
+            long lastSeq = Math.max(startSeq, segments.isEmpty() ? 0 : segments.lastKey());
+            
+            int records = 0;
+            int endIndex = startIndex;
+            for (long seq = startSeq; seq <= lastSeq; seq++) {
+                endIndex = replaySegment(seq, seq == startSeq ? startIndex : 0, Long.MAX_VALUE, replayed);
+                records += Math.max(0, endIndex - (seq == startSeq ? startIndex : 0));
+            }
+            states.putAll(replayed);
+            
+            synchronized (appendLock) {
+                // A full last segment means the next one was never started
+                segmentSeq = endIndex < RECORDS_PER_SEGMENT ? lastSeq : lastSeq + 1;
+                segmentIndex = endIndex < RECORDS_PER_SEGMENT ? endIndex : 0;
+                segment = mapSegment(segmentSeq);
+            }
+            logger.info("Replayed {} playback journal records for {} speakers", records, states.size());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the playback journal in " + journalDirectory, e);
+        }
+        
+        snapshotExecutor.scheduleWithFixedDelay(() -> snapshot(false),
+                CHECKPOINT_INTERVAL_SECONDS, CHECKPOINT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+    
+    @PreDestroy
+    public void close() {
+        snapshotExecutor.shutdownNow();
+        snapshot(true);
+        synchronized (appendLock) {
+            if (segment != null) {
+                segment.force();
+            }
+        }
+    }
+    
+    /**
+     * Records a state change of a speaker. Returns false if the record could
+     * not be written, in which case the caller saves the speaker row itself:
+     * either the MAC address does not fit in a record (nothing is kept for it),
+     * or no new segment could be started (the state is kept in memory and goes
+     * into the next snapshot).
+     */
+    public boolean record(String speakerMacAddress, EventType type, long trackId, int value) {
+        byte[] mac = speakerMacAddress.getBytes(StandardCharsets.UTF_8);
+        if (mac.length > MAX_MAC_BYTES) {
+            return false;
+        }
+        
+        synchronized (appendLock) {
+            long time = System.currentTimeMillis();
+            // A full segment stays sealed until the next one can be mapped
+            boolean writable = segmentIndex < RECORDS_PER_SEGMENT || rollOver();
+            
+            SpeakerState previous = states.getOrDefault(speakerMacAddress, SpeakerState.initial());
+            states.put(speakerMacAddress, previous.apply(type, trackId, value, time));
+            changedSinceCheckpoint.add(speakerMacAddress);
+            recordsSinceSnapshot++;
+            if (!writable) {
+                return false;
+            }
+            
+            recordBuffer.clear();
+            recordBuffer.putLong(time);
+            recordBuffer.putLong(trackId);
+            recordBuffer.putInt(value);
+            recordBuffer.put((byte) type.code);
+            recordBuffer.put((byte) mac.length);
+            recordBuffer.put(mac);
+            while (recordBuffer.position() < CHECKSUM_OFFSET) {
+                recordBuffer.put((byte) 0);
+            }
+            checksum.reset();
+            checksum.update(record, 0, CHECKSUM_OFFSET);
+            recordBuffer.putInt((int) checksum.getValue());
+            
+            segment.position(segmentIndex * RECORD_SIZE);
+            segment.put(record);
+            segmentIndex++;
+        }
+        return true;
+    }
+    
+    /**
+     * The current state of a speaker, or null if nothing was recorded for it
+     */
+    public SpeakerState getState(String speakerMacAddress) {
+        return states.get(speakerMacAddress);
+    }
+    
+    /**
+     * Every speaker with recorded state, by MAC address
+     */
+    public Map<String, SpeakerState> getStates() {
+        return new HashMap<>(states);
+    }
+    
+    /**
+     * Sets a speaker's status, track, volume and position to its recorded state
+     */
+    public void applyState(Speaker speaker) {
+        SpeakerState state = states.get(speaker.getMacAddress());
+        if (state == null) {
+            return;
+        }
+        speaker.setStatus(state.getStatus());
+        speaker.setCurrentTrack(trackTitle(state.getTrackId()));
+        speaker.setPosition(state.positionAt(System.currentTimeMillis()));
+        if (state.getVolume() >= 0) {
+            speaker.setVolume(state.getVolume());
+        }
+    }
+    
+    /**
+     * What each speaker was doing at the given time, from the newest snapshot
+     * taken before it and the records that followed. Returns null if the time
+     * is older than the retained history.
+     */
+    public List<HistoryEntry> getStatesAt(long time) throws IOException {
+        Snapshot snapshot = readLatestSnapshot(time);
+        Map<String, SpeakerState> replayed;
+        long startSeq;
+        int startIndex;
+        if (snapshot != null) {
+            replayed = new HashMap<>(snapshot.states);
+            startSeq = snapshot.seq;
+            startIndex = snapshot.index;
+        } else {
+            // Without a snapshot, only a journal that still has its first segment goes back far enough
+            TreeMap<Long, Path> segments = listSegments();
+            if (segments.isEmpty() || segments.firstKey() != 0) {
+                return null;
+            }
+            replayed = new HashMap<>();
+            startSeq = 0;
+            startIndex = 0;
+        }
+        
+        long lastSeq;
+        synchronized (appendLock) {
+            lastSeq = segmentSeq;
+        }
+        for (long seq = startSeq; seq <= lastSeq; seq++) {
+            int endIndex = replaySegment(seq, seq == startSeq ? startIndex : 0, time, replayed);
+            if (endIndex < RECORDS_PER_SEGMENT) {
+                break;
+            }
+        }
+        
+        List<HistoryEntry> entries = new ArrayList<>();
+        replayed.forEach((mac, state) -> {
+            Track track = state.getTrackId() >= 0 ? trackCatalog.getTrack(state.getTrackId()) : null;
+            int position = state.positionAt(time);
+            if (track != null && track.getDuration() > 0) {
+                position = Math.min(position, track.getDuration());
+            }
+            entries.add(new HistoryEntry(mac, state.getStatus(),
+                    state.getTrackId() >= 0 ? state.getTrackId() : null,
+                    track != null ? track.getTitle() : null, position,
+                    state.getVolume() >= 0 ? state.getVolume() : null, state.getUpdatedAt()));
+        });
+        entries.sort((a, b) -> a.getSpeakerMacAddress().compareTo(b.getSpeakerMacAddress()));
+        return entries;
+    }
+    
+    // Called with the append lock held
+    /**
+     * Starts the next segment once the current one is full, returning false if
+     * it could not be mapped (caller holds the append lock)
+     */
+    private boolean rollOver() {
+        MappedByteBuffer sealed = segment;
+        try {
+            segment = mapSegment(segmentSeq + 1);
+        } catch (IOException e) {
+            if (!segmentUnavailable) {
+                logger.warn("Could not start playback journal segment {}, saving speaker rows instead: {}",
+                           segmentSeq + 1, e.getMessage());
+                segmentUnavailable = true;
+            }
+            return false;
+        }
+        segmentUnavailable = false;
+        segmentSeq++;
+        segmentIndex = 0;
+        // The snapshot at the start of each segment is where history and startup replay begin
+        Snapshot snapshot = new Snapshot(segmentSeq, 0, System.currentTimeMillis(), new HashMap<>(states));
+        recordsSinceSnapshot = 0;
+        snapshotExecutor.execute(() -> {
+            sealed.force();
+            writeSnapshot(snapshot);
+            deleteExpired(snapshot.seq - RETAINED_SEGMENTS + 1);
+        });
+        return true;
+    }
+    
+    /**
+     * Writes the state of changed speakers back to their rows and, if enough
+     * records came in (or always, when forced), a snapshot
+     */
+    private void snapshot(boolean force) {
+        Snapshot snapshot = null;
+        Set<String> changed;
+        synchronized (appendLock) {
+            if (segment == null) {
+                return;
+            }
+            if (recordsSinceSnapshot > 0 && (force || recordsSinceSnapshot >= SNAPSHOT_MIN_RECORDS)) {
+                snapshot = new Snapshot(segmentSeq, segmentIndex, System.currentTimeMillis(), new HashMap<>(states));
+                recordsSinceSnapshot = 0;
+                segment.force();
+            }
+            changed = new HashSet<>(changedSinceCheckpoint);
+            changedSinceCheckpoint.clear();
+        }
+        if (snapshot != null) {
+            writeSnapshot(snapshot);
+        }
+        checkpoint(changed);
+    }
+    
+    private void checkpoint(Set<String> speakerMacAddresses) {
+        int saved = 0;
+        for (String mac : speakerMacAddresses) {
+            try {
+                Speaker speaker = deviceCache.findSpeaker(mac);
+                if (speaker != null) {
+                    applyState(speaker);
+                    deviceCache.saveSpeaker(speaker);
+                    saved++;
+                }
+            } catch (RuntimeException e) {
+                logger.warn("Could not save the playback state of speaker {}: {}", mac, e.getMessage());
+            }
+        }
+        if (saved > 0) {
+            logger.debug("Saved the playback state of {} speakers", saved);
+        }
+    }
+    
+    private String trackTitle(long trackId) {
+        Track track = trackId >= 0 ? trackCatalog.getTrack(trackId) : null;
+        return track != null ? track.getTitle() : null;
+    }
+    
+    private MappedByteBuffer mapSegment(long seq) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentFile(seq),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = (long) RECORDS_PER_SEGMENT * RECORD_SIZE;
+            if (channel.size() < size) {
+                // Allocate the blocks up front rather than on the first write to each page
+                ByteBuffer zeros = ByteBuffer.allocate(RECORD_SIZE * 1024);
+                for (long offset = channel.size(); offset < size; offset += zeros.capacity()) {
+                    zeros.clear();
+                    channel.write(zeros, offset);
+                }
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            mapped.load();
+            return mapped;
+        }
+    }
+    
+    /**
+     * Applies the records of a segment from the given index, up to the given
+     * time, and returns the index of the first record not applied
+     */
+    private int replaySegment(long seq, int fromIndex, long untilTime, Map<String, SpeakerState> replayed) throws IOException {
+        Path file = segmentFile(seq);
+        if (!Files.exists(file)) {
+            return fromIndex;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(RECORDS_PER_SEGMENT * RECORD_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Read the whole segment
+            }
+        }
+        int records = buffer.position() / RECORD_SIZE;
+        CRC32 recordChecksum = new CRC32();
+        for (int index = fromIndex; index < records; index++) {
+            int offset = index * RECORD_SIZE;
+            long time = buffer.getLong(offset);
+            recordChecksum.reset();
+            recordChecksum.update(buffer.array(), offset, CHECKSUM_OFFSET);
+            EventType type = EventType.fromCode(buffer.get(offset + 20));
+            int macLength = buffer.get(offset + 21);
+            if (time == 0 || type == null || macLength <= 0 || macLength > MAX_MAC_BYTES
+                    || (int) recordChecksum.getValue() != buffer.getInt(offset + CHECKSUM_OFFSET)) {
+                return index;
+            }
+            if (time > untilTime) {
+                return index;
+            }
+            String mac = new String(buffer.array(), offset + 22, macLength, StandardCharsets.UTF_8);
+            SpeakerState previous = replayed.getOrDefault(mac, SpeakerState.initial());
+            replayed.put(mac, previous.apply(type, buffer.getLong(offset + 8), buffer.getInt(offset + 16), time));
+        }
+        return records;
+    }
+    
+    private void writeSnapshot(Snapshot snapshot) {
+        Path file = journalDirectory.resolve(String.format("snapshot-%012d-%05d.snap", snapshot.seq, snapshot.index));
+        Path temp = journalDirectory.resolve(file.getFileName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeByte(SNAPSHOT_VERSION);
+                out.writeLong(snapshot.seq);
+                out.writeInt(snapshot.index);
+                out.writeLong(snapshot.time);
+                out.writeInt(snapshot.states.size());
+                for (Map.Entry<String, SpeakerState> entry : snapshot.states.entrySet()) {
+                    SpeakerState state = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    out.writeUTF(state.status);
+                    out.writeLong(state.trackId);
+                    out.writeInt(state.volume);
+                    out.writeInt(state.position);
+                    out.writeLong(state.positionTime);
+                    out.writeLong(state.updatedAt);
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Could not write playback journal snapshot {}: {}", file, e.getMessage());
+        }
+    }
+    
+    /**
+     * The newest readable snapshot taken at or before the given time, or null
+     */
+    private Snapshot readLatestSnapshot(long notAfter) throws IOException {
+        TreeMap<String, Path> snapshots = new TreeMap<>();
+        try (Stream<Path> files = Files.list(journalDirectory)) {
+            files.filter(file -> SNAPSHOT_NAME.matcher(file.getFileName().toString()).matches())
+                    .forEach(file -> snapshots.put(file.getFileName().toString(), file));
+        }
+        // Names sort by journal position, and so by time
+        for (Path file : snapshots.descendingMap().values()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                if (in.readInt() != SNAPSHOT_MAGIC || in.readByte() != SNAPSHOT_VERSION) {
+                    continue;
+                }
+                long seq = in.readLong();
+                int index = in.readInt();
+                long time = in.readLong();
+                if (time > notAfter) {
+                    continue;
+                }
+                int count = in.readInt();
+                Map<String, SpeakerState> snapshotStates = new HashMap<>();
+                for (int i = 0; i < count; i++) {
+                    String mac = in.readUTF();
+                    snapshotStates.put(mac, new SpeakerState(in.readUTF(), in.readLong(), in.readInt(),
+                            in.readInt(), in.readLong(), in.readLong()));
+                }
+                return new Snapshot(seq, index, time, snapshotStates);
+            } catch (IOException e) {
+                logger.warn("Skipping unreadable playback journal snapshot {}: {}", file, e.getMessage());
+            }
+        }
+        return null;
+    }
+    
+    // Deletes segments before the given one, and the snapshots that start in them
+    private void deleteExpired(long firstRetainedSeq) {
+        try (Stream<Path> files = Files.list(journalDirectory)) {
+            files.forEach(file -> {
+                String name = file.getFileName().toString();
+                Matcher segmentName = SEGMENT_NAME.matcher(name);
+                Matcher snapshotName = SNAPSHOT_NAME.matcher(name);
+                boolean expired = (segmentName.matches() && Long.parseLong(segmentName.group(1)) < firstRetainedSeq)
+                        || (snapshotName.matches() && Long.parseLong(snapshotName.group(1)) < firstRetainedSeq);
+                if (expired) {
+                    try {
+                        Files.deleteIfExists(file);
+                    } catch (IOException e) {
+                        logger.warn("Could not delete {}: {}", file, e.getMessage());
+                    }
+                }
+            });
+        } catch (IOException e) {
+            logger.warn("Could not clean up the playback journal: {}", e.getMessage());
+        }
+    }
+    
+    private TreeMap<Long, Path> listSegments() throws IOException {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (Stream<Path> files = Files.list(journalDirectory)) {
+            files.forEach(file -> {
+                Matcher name = SEGMENT_NAME.matcher(file.getFileName().toString());
+                if (name.matches()) {
+                    segments.put(Long.parseLong(name.group(1)), file);
+                }
+            });
+        }
+        return segments;
+    }
+    
+    private Path segmentFile(long seq) {
+        return journalDirectory.resolve(String.format("segment-%012d.journal", seq));
+    }
+}
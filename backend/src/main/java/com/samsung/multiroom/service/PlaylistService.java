@@ -0,0 +1,225 @@
+package com.samsung.multiroom.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.samsung.multiroom.model.Playlist;
+import com.samsung.multiroom.repository.PlaylistRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores playlists. Entries are written with JDBC batch statements, so a
+ * playlist of thousands of tracks is one round trip per batch rather than one
+ * insert per entry.
+ */
+@Service
+public class PlaylistService {
+    
+    // Rows per JDBC batch and values per IN list
+    private static final int BATCH_SIZE = 1000;
+    
+    // Playlists, and entries of those playlists, read per query while exporting
+    private static final int EXPORT_PAGE_SIZE = 1000;
+    
+    private static final String INSERT_ENTRY_SQL =
+            "INSERT INTO playlist_tracks (playlist_id, position, track_id) VALUES (?, ?, ?)";
+    
+    @Autowired
+    private PlaylistRepository playlistRepository;
+    
+    @Autowired
+    private NamedParameterJdbcTemplate jdbcTemplate;
+    
+    @Autowired
+    private ObjectMapper objectMapper;
+    
+    public List<Playlist> getAllPlaylists() {
+        return playlistRepository.findAll();
+    }
+    
+    public Playlist getPlaylist(Long id) {
+        return playlistRepository.findById(id).orElse(null);
+    }
+    
+    /**
+     * Deletes a playlist, returning false if it does not exist
+     */
+    public boolean deletePlaylist(Long id) {
+        if (!playlistRepository.existsById(id)) {
+            return false;
+        }
+        playlistRepository.deleteById(id);
+        return true;
+    }
+    
+    /**
+     * Looks up the ids of the playlists with the given names, one query per chunk of names
+     */
+    public Map<String, Long> findPlaylistIdsByName(Collection<String> names) {
+        Map<String, Long> ids = new HashMap<>();
+        List<String> nameList = new ArrayList<>(names);
+        for (int start = 0; start < nameList.size(); start += BATCH_SIZE) {
+            MapSqlParameterSource parameters = new MapSqlParameterSource(
+                    "names", nameList.subList(start, Math.min(start + BATCH_SIZE, nameList.size())));
+            jdbcTemplate.query("SELECT id, name FROM playlists WHERE name IN (:names)", parameters, row -> {
+                ids.put(row.getString("name"), row.getLong("id"));
+            });
+        }
+        return ids;
+    }
+    
+    /**
+     * Creates a playlist (id null) or replaces the entries of an existing one,
+     * returning its id
+     */
+    @Transactional
+    public long savePlaylist(Long id, String name, List<Long> trackIds) {
+        MapSqlParameterSource parameters = new MapSqlParameterSource("name", name);
+        if (id == null) {
+            jdbcTemplate.update("INSERT INTO playlists (name) VALUES (:name)", parameters);
+            // Generated keys are not reliably returned; names are unique
+            id = jdbcTemplate.queryForObject("SELECT id FROM playlists WHERE name = :name", parameters, Long.class);
+        } else {
+            jdbcTemplate.update("DELETE FROM playlist_tracks WHERE playlist_id = :id", new MapSqlParameterSource("id", id));
+        }
+        
+        long playlistId = id;
+        List<Integer> positions = new ArrayList<>(trackIds.size());
+        for (int position = 0; position < trackIds.size(); position++) {
+            positions.add(position);
+        }
+        jdbcTemplate.getJdbcTemplate().batchUpdate(INSERT_ENTRY_SQL, positions, BATCH_SIZE, (statement, position) -> {
+            statement.setLong(1, playlistId);
+            statement.setInt(2, position);
+            statement.setLong(3, trackIds.get(position));
+        });
+        return playlistId;
+    }
+    
+    /**
+     * Write every playlist as newline-delimited JSON, one playlist per line with
+     * its tracks as file paths so it can be imported into another library.
+     * Playlists and their entries are read a page at a time by key, so no
+     * database connection is held while the client reads.
+     */
+    public void writePlaylistsNdjson(OutputStream out) throws IOException {
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+            generator.setRootValueSeparator(null);
+            List<Long> ids = new ArrayList<>();
+            Map<Long, String> names = new HashMap<>();
+            do {
+                MapSqlParameterSource parameters = new MapSqlParameterSource("limit", EXPORT_PAGE_SIZE)
+                        .addValue("afterId", ids.isEmpty() ? 0 : ids.get(ids.size() - 1));
+                ids.clear();
+                names.clear();
+                jdbcTemplate.query("SELECT id, name FROM playlists WHERE id > :afterId ORDER BY id LIMIT :limit",
+                        parameters, row -> {
+                            ids.add(row.getLong("id"));
+                            names.put(row.getLong("id"), row.getString("name"));
+                        });
+                writePlaylists(generator, ids, names);
+            } while (ids.size() == EXPORT_PAGE_SIZE);
+        }
+    }
+    
+    /**
+     * Writes one page of playlists, reading their entries a page at a time by
+     * playlist and position. A playlist cut off at the end of a page is
+     * finished on its own before moving on to the next ones.
+     */
+    private void writePlaylists(JsonGenerator generator, List<Long> ids, Map<Long, String> names)
+            throws IOException {
+        if (ids.isEmpty()) {
+            return;
+        }
+        
+        Iterator<Long> playlists = ids.iterator();
+        Long open = null;
+        long afterPlaylistId = -1;
+        int afterPosition = -1; // -1: start with the playlists after afterPlaylistId
+        while (true) {
+            boolean samePlaylist = afterPosition >= 0;
+            MapSqlParameterSource parameters = new MapSqlParameterSource("ids", ids)
+                    .addValue("playlistId", afterPlaylistId)
+                    .addValue("position", afterPosition)
+                    .addValue("limit", EXPORT_PAGE_SIZE);
+            List<ExportEntry> entries = jdbcTemplate.query("SELECT e.playlist_id, e.position, t.file_path"
+                    + " FROM playlist_tracks e LEFT JOIN tracks t ON t.id = e.track_id"
+                    + (samePlaylist
+                            ? " WHERE e.playlist_id = :playlistId AND e.position > :position"
+                            : " WHERE e.playlist_id IN (:ids) AND e.playlist_id > :playlistId")
+                    + " ORDER BY e.playlist_id, e.position LIMIT :limit", parameters,
+                    (row, rowNum) -> new ExportEntry(row.getLong("playlist_id"), row.getInt("position"),
+                            row.getString("file_path")));
+            
+            for (ExportEntry entry : entries) {
+                // Playlists without entries come in between, in id order
+                while (open == null || open != entry.playlistId) {
+                    if (open != null) {
+                        endPlaylist(generator);
+                    }
+                    open = playlists.next();
+                    startPlaylist(generator, names.get(open));
+                }
+                // Entries whose track was deleted are left out
+                if (entry.filePath != null) {
+                    generator.writeString(entry.filePath);
+                }
+            }
+            
+            if (entries.size() == EXPORT_PAGE_SIZE) {
+                ExportEntry last = entries.get(entries.size() - 1);
+                afterPlaylistId = last.playlistId;
+                afterPosition = last.position;
+            } else if (samePlaylist) {
+                afterPosition = -1;
+            } else {
+                break;
+            }
+        }
+        
+        if (open != null) {
+            endPlaylist(generator);
+        }
+        while (playlists.hasNext()) {
+            startPlaylist(generator, names.get(playlists.next()));
+            endPlaylist(generator);
+        }
+    }
+    
+    private static final class ExportEntry {
+        private final long playlistId;
+        private final int position;
+        private final String filePath;
+        
+        private ExportEntry(long playlistId, int position, String filePath) {
+            this.playlistId = playlistId;
+            this.position = position;
+            this.filePath = filePath;
+        }
+    }
+    
+    private static void startPlaylist(JsonGenerator generator, String name) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("name", name);
+        generator.writeArrayFieldStart("tracks");
+    }
+    
+    private static void endPlaylist(JsonGenerator generator) throws IOException {
+        generator.writeEndArray();
+        generator.writeEndObject();
+        generator.writeRaw('\n');
+    }
+}
@@ -0,0 +1,208 @@
+package com.samsung.multiroom.service;
+
+import com.samsung.multiroom.config.MusicLibraryConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs library scans as background jobs. Starting a scan returns at once with
+ * a job per library root; roots are scanned in parallel, and asking to scan a
+ * root that is already being scanned returns the running job instead of
+ * starting another one.
+ */
+@Service
+public class ScanJobService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(ScanJobService.class);
+    
+    // Finished jobs kept for polling
+    private static final int MAX_FINISHED_JOBS = 50;
+    
+    private static final long PROGRESS_INTERVAL_MS = 500;
+    
+    @Autowired
+    private MusicLibraryConfig musicLibraryConfig;
+    
+    @Autowired
+    private LibraryScannerService libraryScannerService;
+    
+    private final Map<String, ScanJob> jobs = new LinkedHashMap<>();
+    private final Map<Path, ScanJob> runningJobsByRoot = new HashMap<>();
+    
+    private final ExecutorService jobExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "library-scan-job");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    private final ScheduledExecutorService progressScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "library-scan-progress");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    /**
+     * A scan of one library root
+     */
+    public static class ScanJob {
+        private final String id;
+        private final Path root;
+        private final long createdAt = System.currentTimeMillis();
+        private final LibraryScannerService.ScanProgress progress = new LibraryScannerService.ScanProgress();
+        private volatile String status = "QUEUED"; // QUEUED, RUNNING, COMPLETED, CANCELLED or FAILED
+        private volatile String error;
+        
+        public ScanJob(String id, Path root) {
+            this.id = id;
+            this.root = root;
+        }
+        
+        public String getId() { return id; }
+        public String getRoot() { return root.toString(); }
+        public long getCreatedAt() { return createdAt; }
+        public String getStatus() { return status; }
+        public String getError() { return error; }
+        public LibraryScannerService.ScanProgress getProgress() { return progress; }
+        
+        public boolean isFinished() {
+            return status.equals("COMPLETED") || status.equals("CANCELLED") || status.equals("FAILED");
+        }
+    }
+    
+    /**
+     * Start a scan of every configured library root
+     */
+    public List<ScanJob> startScans() {
+        List<ScanJob> started = new ArrayList<>();
+        for (Path root : musicLibraryConfig.getLibraryRoots()) {
+            ScanJob job = startScan(root);
+            if (job != null) {
+                started.add(job);
+            }
+        }
+        return started;
+    }
+    
+    /**
+     * Start a scan of one root, or return the scan already running for it.
+     * Returns null if the root is not a directory.
+     */
+    public synchronized ScanJob startScan(Path root) {
+        ScanJob running = runningJobsByRoot.get(root);
+        if (running != null) {
+            return running;
+        }
+        if (!Files.isDirectory(root)) {
+            logger.warn("Not scanning {}: not a directory", root);
+            return null;
+        }
+        
+        ScanJob job = new ScanJob(UUID.randomUUID().toString(), root);
+        jobs.put(job.getId(), job);
+        runningJobsByRoot.put(root, job);
+        pruneFinishedJobs();
+        
+        jobExecutor.submit(() -> runJob(job));
+        logger.info("Started scan job {} for {}", job.getId(), root);
+        return job;
+    }
+    
+    public synchronized List<ScanJob> getJobs() {
+        return new ArrayList<>(jobs.values());
+    }
+    
+    public synchronized ScanJob getJob(String jobId) {
+        return jobs.get(jobId);
+    }
+    
+    /**
+     * Ask a job to stop; tracks already written stay in the library
+     */
+    public ScanJob cancelJob(String jobId) {
+        ScanJob job = getJob(jobId);
+        if (job != null && !job.isFinished()) {
+            logger.info("Cancelling scan job {}", jobId);
+            job.progress.cancel();
+        }
+        return job;
+    }
+    
+    /**
+     * Stream a job's progress as server-sent events until it finishes
+     */
+    public SseEmitter streamProgress(String jobId) {
+        ScanJob job = getJob(jobId);
+        if (job == null) {
+            return null;
+        }
+        
+        SseEmitter emitter = new SseEmitter(0L); // No timeout; completes with the job
+        AtomicReference<ScheduledFuture<?>> updates = new AtomicReference<>();
+        updates.set(progressScheduler.scheduleAtFixedRate(() -> {
+            boolean finished = job.isFinished();
+            try {
+                emitter.send(SseEmitter.event().name(finished ? "finished" : "progress").data(job));
+                if (finished) {
+                    emitter.complete();
+                }
+            } catch (IOException | IllegalStateException e) {
+                // Client went away
+                finished = true;
+            }
+            if (finished) {
+                ScheduledFuture<?> future = updates.get();
+                if (future != null) {
+                    future.cancel(false);
+                }
+            }
+        }, 0, PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS));
+        return emitter;
+    }
+    
+    private void runJob(ScanJob job) {
+        job.status = "RUNNING";
+        try {
+            libraryScannerService.scan(job.root, job.progress);
+            job.status = job.progress.isCancelled() ? "CANCELLED" : "COMPLETED";
+        } catch (RuntimeException e) {
+            logger.error("Scan job {} for {} failed: {}", job.getId(), job.root, e.getMessage());
+            job.error = e.getMessage();
+            job.status = "FAILED";
+        } finally {
+            synchronized (this) {
+                runningJobsByRoot.remove(job.root, job);
+            }
+        }
+    }
+    
+    private void pruneFinishedJobs() {
+        int finished = (int) jobs.values().stream().filter(ScanJob::isFinished).count();
+        Iterator<ScanJob> iterator = jobs.values().iterator();
+        while (finished > MAX_FINISHED_JOBS && iterator.hasNext()) {
+            if (iterator.next().isFinished()) {
+                iterator.remove();
+                finished--;
+            }
+        }
+    }
+}
@@ -0,0 +1,433 @@
+package com.samsung.multiroom.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.samsung.multiroom.model.Scene;
+import com.samsung.multiroom.model.SpeakerGroup;
+import com.samsung.multiroom.repository.SceneRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Named scenes: the groups with their members, and the volume, track,
+ * position and status of every speaker, captured together and recalled in
+ * one action.
+ *
+ * Recall compares the scene with the current state and sends only the
+ * commands that change something, in phases: volumes that go down and
+ * speakers that stop first, then group memberships, then tracks, positions
+ * and pause or resume, then volumes that go up, so a new track never
+ * starts louder than the old or the new volume. Within a phase, speakers
+ * are commanded in parallel through PlaybackBatchService. Groups that are
+ * not in the scene are left as they are.
+ */
+@Service
+public class SceneService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(SceneService.class);
+    
+    // Positions closer than this to the scene's are not sought to
+    private static final int POSITION_TOLERANCE_SECONDS = 2;
+    
+    @Autowired
+    private SceneRepository sceneRepository;
+    
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    
+    @Autowired
+    private SpeakerGroupService speakerGroupService;
+    
+    @Autowired
+    private AudioPlaybackService audioPlaybackService;
+    
+    @Autowired
+    private PlaybackBatchService playbackBatchService;
+    
+    @Autowired
+    private DeviceCache deviceCache;
+    
+    @Autowired
+    private ObjectMapper objectMapper;
+    
+    /**
+     * Everything a scene restores
+     */
+    public static class SceneState {
+        private String name;
+        private long capturedAt;
+        private List<SceneGroup> groups = new ArrayList<>();
+        private List<SceneSpeaker> speakers = new ArrayList<>();
+        
+        public String getName() { return name; }
+        public void setName(String name) { this.name = name; }
+        
+        public long getCapturedAt() { return capturedAt; }
+        public void setCapturedAt(long capturedAt) { this.capturedAt = capturedAt; }
+        
+        public List<SceneGroup> getGroups() { return groups; }
+        public void setGroups(List<SceneGroup> groups) { this.groups = groups; }
+        
+        public List<SceneSpeaker> getSpeakers() { return speakers; }
+        public void setSpeakers(List<SceneSpeaker> speakers) { this.speakers = speakers; }
+    }
+    
+    /**
+     * A group's speakers and nested groups
+     */
+    public static class SceneGroup {
+        private String name;
+        private List<String> speakers = new ArrayList<>();
+        private List<String> groups = new ArrayList<>();
+        
+        public String getName() { return name; }
+        public void setName(String name) { this.name = name; }
+        
+        public List<String> getSpeakers() { return speakers; }
+        public void setSpeakers(List<String> speakers) { this.speakers = speakers; }
+        
+        public List<String> getGroups() { return groups; }
+        public void setGroups(List<String> groups) { this.groups = groups; }
+    }
+    
+    /**
+     * One speaker's playback: status, track (null when stopped), position in seconds and volume
+     */
+    public static class SceneSpeaker {
+        private String macAddress;
+        private String status;
+        private Long trackId;
+        private int position;
+        private int volume;
+        
+        public String getMacAddress() { return macAddress; }
+        public void setMacAddress(String macAddress) { this.macAddress = macAddress; }
+        
+        public String getStatus() { return status; }
+        public void setStatus(String status) { this.status = status; }
+        
+        public Long getTrackId() { return trackId; }
+        public void setTrackId(Long trackId) { this.trackId = trackId; }
+        
+        public int getPosition() { return position; }
+        public void setPosition(int position) { this.position = position; }
+        
+        public int getVolume() { return volume; }
+        public void setVolume(int volume) { this.volume = volume; }
+    }
+    
+    /**
+     * What a recall changed
+     */
+    public static class RecallResult {
+        private final String scene;
+        private final int groupChanges;
+        private final int commands;
+        private final List<String> failures;
+        private final long durationMs;
+        
+        public RecallResult(String scene, int groupChanges, int commands, List<String> failures, long durationMs) {
+            this.scene = scene;
+            this.groupChanges = groupChanges;
+            this.commands = commands;
+            this.failures = failures;
+            this.durationMs = durationMs;
+        }
+        
+        public String getScene() { return scene; }
+        public int getGroupChanges() { return groupChanges; }
+        public int getCommands() { return commands; }
+        public List<String> getFailures() { return failures; }
+        public long getDurationMs() { return durationMs; }
+    }
+    
+    public List<SceneState> getAllScenes() {
+        List<SceneState> scenes = new ArrayList<>();
+        for (Scene scene : sceneRepository.findAll()) {
+            scenes.add(readState(scene));
+        }
+        return scenes;
+    }
+    
+    /**
+     * Gets a scene, or null if there is none by that name
+     */
+    public SceneState getScene(String name) {
+        return sceneRepository.findByName(name).map(this::readState).orElse(null);
+    }
+    
+    /**
+     * Captures the current groups and speaker states as a scene, replacing
+     * any scene of the same name. The groups are read together from the
+     * membership index; speaker states are read through the device cache.
+     */
+    public SceneState captureScene(String name) {
+        SceneState state = new SceneState();
+        state.setName(name);
+        state.setCapturedAt(System.currentTimeMillis());
+        
+        for (SpeakerGroupService.GroupMembers group : speakerGroupService.getAllGroupMembers()) {
+            SceneGroup sceneGroup = new SceneGroup();
+            sceneGroup.setName(group.getName());
+            sceneGroup.setSpeakers(group.getSpeakers());
+            sceneGroup.setGroups(group.getGroups());
+            state.getGroups().add(sceneGroup);
+        }
+        
+        // Only the addresses come from the table; the states themselves from the cache and journal
+        List<String> macAddresses = jdbcTemplate.queryForList("SELECT mac_address FROM speakers ORDER BY id", String.class);
+        for (String macAddress : macAddresses) {
+            SceneSpeaker sceneSpeaker = currentState(macAddress);
+            if (sceneSpeaker != null) {
+                state.getSpeakers().add(sceneSpeaker);
+            }
+        }
+        
+        Scene scene = sceneRepository.findByName(name).orElseGet(() -> new Scene(name));
+        scene.setCapturedAt(state.getCapturedAt());
+        try {
+            scene.setState(objectMapper.writeValueAsString(state));
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+        sceneRepository.save(scene);
+        logger.info("Captured scene {} with {} groups and {} speakers",
+                name, state.getGroups().size(), state.getSpeakers().size());
+        return state;
+    }
+    
+    /**
+     * Deletes a scene, returning false if it does not exist
+     */
+    public boolean deleteScene(String name) {
+        Scene scene = sceneRepository.findByName(name).orElse(null);
+        if (scene == null) {
+            return false;
+        }
+        sceneRepository.delete(scene);
+        return true;
+    }
+    
+    /**
+     * Brings groups and speakers to the state of a scene, returning null if
+     * there is no scene by that name. Speakers and groups that no longer exist
+     * are skipped.
+     */
+    public RecallResult recallScene(String name) {
+        long start = System.currentTimeMillis();
+        SceneState scene = getScene(name);
+        if (scene == null) {
+            return null;
+        }
+        
+        Set<String> sceneMacs = new LinkedHashSet<>();
+        for (SceneSpeaker speaker : scene.getSpeakers()) {
+            sceneMacs.add(speaker.getMacAddress());
+        }
+        for (SceneGroup group : scene.getGroups()) {
+            sceneMacs.addAll(group.getSpeakers());
+        }
+        Set<String> knownMacs = deviceCache.findSpeakers(sceneMacs).keySet();
+        
+        List<PlaybackBatchService.BatchCommand> lower = new ArrayList<>();
+        List<PlaybackBatchService.BatchCommand> source = new ArrayList<>();
+        List<PlaybackBatchService.BatchCommand> raise = new ArrayList<>();
+        for (SceneSpeaker target : scene.getSpeakers()) {
+            if (!knownMacs.contains(target.getMacAddress())) {
+                continue;
+            }
+            SceneSpeaker current = currentState(target.getMacAddress());
+            if (current != null) {
+                planSpeaker(target, current, lower, source, raise);
+            }
+        }
+        
+        List<String> failures = new ArrayList<>();
+        int commands = runPhase(lower, failures);
+        int groupChanges = applyGroups(scene.getGroups(), knownMacs, failures);
+        commands += runPhase(source, failures);
+        commands += runPhase(raise, failures);
+        
+        long duration = System.currentTimeMillis() - start;
+        logger.info("Recalled scene {} with {} group changes and {} commands in {} ms",
+                name, groupChanges, commands, duration);
+        return new RecallResult(name, groupChanges, commands, failures, duration);
+    }
+    
+    /**
+     * Adds the commands that take a speaker from its current state to the
+     * scene's to the phase they belong to
+     */
+    private void planSpeaker(SceneSpeaker target, SceneSpeaker current,
+                             List<PlaybackBatchService.BatchCommand> lower,
+                             List<PlaybackBatchService.BatchCommand> source,
+                             List<PlaybackBatchService.BatchCommand> raise) {
+        String mac = target.getMacAddress();
+        if (target.getVolume() < current.getVolume()) {
+            lower.add(volumeCommand(mac, target.getVolume()));
+        } else if (target.getVolume() > current.getVolume()) {
+            raise.add(volumeCommand(mac, target.getVolume()));
+        }
+        
+        boolean targetStopped = "STOPPED".equals(target.getStatus()) || target.getTrackId() == null;
+        boolean currentStopped = "STOPPED".equals(current.getStatus()) || current.getTrackId() == null;
+        if (targetStopped) {
+            if (!currentStopped) {
+                lower.add(command("stop", mac));
+            }
+            return;
+        }
+        
+        boolean paused = "PAUSED".equals(target.getStatus());
+        if (currentStopped || !target.getTrackId().equals(current.getTrackId())) {
+            PlaybackBatchService.BatchCommand play = command("play", mac);
+            play.setTrackId(target.getTrackId());
+            source.add(play);
+            if (target.getPosition() > POSITION_TOLERANCE_SECONDS) {
+                source.add(seekCommand(mac, target.getPosition()));
+            }
+            if (paused) {
+                source.add(command("pause", mac));
+            }
+            return;
+        }
+        
+        if (Math.abs(target.getPosition() - current.getPosition()) > POSITION_TOLERANCE_SECONDS) {
+            source.add(seekCommand(mac, target.getPosition()));
+        }
+        if (paused && "PLAYING".equals(current.getStatus())) {
+            source.add(command("pause", mac));
+        } else if (!paused && "PAUSED".equals(current.getStatus())) {
+            source.add(command("resume", mac));
+        }
+    }
+    
+    private int runPhase(List<PlaybackBatchService.BatchCommand> commands, List<String> failures) {
+        if (commands.isEmpty()) {
+            return 0;
+        }
+        for (PlaybackBatchService.BatchResult result : playbackBatchService.execute(commands)) {
+            if (!result.isSuccess()) {
+                PlaybackBatchService.BatchCommand command = commands.get(result.getIndex());
+                failures.add(command.getAction() + " on " + command.getSpeakerMac() + ": " + result.getError());
+            }
+        }
+        return commands.size();
+    }
+    
+    /**
+     * Creates missing groups and sets the members of the others, returning the
+     * number of groups changed
+     */
+    private int applyGroups(List<SceneGroup> sceneGroups, Set<String> knownMacs, List<String> failures) {
+        Map<String, SpeakerGroup> currentGroups = new HashMap<>();
+        for (SpeakerGroup group : speakerGroupService.getAllGroups()) {
+            currentGroups.put(group.getName(), group);
+        }
+        
+        // Speakers first, so every nested group exists before groups are nested
+        int changes = 0;
+        for (SceneGroup sceneGroup : sceneGroups) {
+            List<String> speakers = new ArrayList<>(sceneGroup.getSpeakers());
+            speakers.retainAll(knownMacs);
+            SpeakerGroup group = currentGroups.get(sceneGroup.getName());
+            SpeakerGroup changed = null;
+            if (group == null) {
+                changed = speakerGroupService.createGroup(sceneGroup.getName(), speakers);
+            } else if (!speakers.equals(copyOf(group.getSpeakerMacAddresses()))) {
+                changed = speakerGroupService.updateGroup(sceneGroup.getName(), speakers);
+            } else {
+                continue;
+            }
+            if (changed != null) {
+                currentGroups.put(changed.getName(), changed);
+                changes++;
+            } else {
+                failures.add("Could not restore the speakers of group " + sceneGroup.getName());
+            }
+        }
+        
+        for (SceneGroup sceneGroup : sceneGroups) {
+            SpeakerGroup group = currentGroups.get(sceneGroup.getName());
+            if (group == null) {
+                continue;
+            }
+            List<String> children = copyOf(group.getChildGroupNames());
+            if (children.equals(sceneGroup.getGroups())) {
+                continue;
+            }
+            for (String child : children) {
+                if (!sceneGroup.getGroups().contains(child)) {
+                    speakerGroupService.removeChildGroup(sceneGroup.getName(), child);
+                }
+            }
+            for (String child : sceneGroup.getGroups()) {
+                if (!children.contains(child) && speakerGroupService.addChildGroup(sceneGroup.getName(), child) == null) {
+                    failures.add("Could not nest group " + child + " in group " + sceneGroup.getName());
+                }
+            }
+            changes++;
+        }
+        return changes;
+    }
+    
+    // Entity collections compare by identity
+    private static List<String> copyOf(List<String> values) {
+        return values != null ? new ArrayList<>(values) : new ArrayList<>();
+    }
+    
+    private SceneSpeaker currentState(String macAddress) {
+        Map<String, Object> playback = audioPlaybackService.getPlaybackState(macAddress);
+        if (playback == null) {
+            return null;
+        }
+        SceneSpeaker speaker = new SceneSpeaker();
+        speaker.setMacAddress(macAddress);
+        speaker.setStatus((String) playback.get("status"));
+        speaker.setTrackId(playback.get("trackId") != null ? ((Number) playback.get("trackId")).longValue() : null);
+        speaker.setPosition(((Number) playback.get("position")).intValue());
+        speaker.setVolume(((Number) playback.get("volume")).intValue());
+        return speaker;
+    }
+    
+    private SceneState readState(Scene scene) {
+        try {
+            SceneState state = objectMapper.readValue(scene.getState(), SceneState.class);
+            state.setName(scene.getName());
+            state.setCapturedAt(scene.getCapturedAt());
+            return state;
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    private static PlaybackBatchService.BatchCommand command(String action, String speakerMac) {
+        PlaybackBatchService.BatchCommand command = new PlaybackBatchService.BatchCommand();
+        command.setAction(action);
+        command.setSpeakerMac(speakerMac);
+        return command;
+    }
+    
+    private static PlaybackBatchService.BatchCommand volumeCommand(String speakerMac, int volume) {
+        PlaybackBatchService.BatchCommand command = command("volume", speakerMac);
+        command.setVolume(volume);
+        return command;
+    }
+    
+    private static PlaybackBatchService.BatchCommand seekCommand(String speakerMac, int seconds) {
+        PlaybackBatchService.BatchCommand command = command("seek", speakerMac);
+        command.setSeconds(seconds);
+        return command;
+    }
+}
@@ -3,13 +3,13 @@ package com.samsung.multiroom.service;
 import com.samsung.multiroom.model.Speaker;
 import com.samsung.multiroom.model.SpeakerGroup;
 import com.samsung.multiroom.repository.SpeakerGroupRepository;
-import com.samsung.multiroom.repository.SpeakerRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 @Service
 public class SpeakerGroupService {
@@ -20,35 +20,106 @@ public class SpeakerGroupService {
     private SpeakerGroupRepository speakerGroupRepository;
     
     @Autowired
-    private SpeakerRepository speakerRepository;
+    private DeviceCache deviceCache;
     
     @Autowired
     private DeviceDiscoveryService deviceDiscoveryService;
     
+    // In-memory membership index, kept in step with every group write below.
+    // All access goes through membershipLock.
+    private final Object membershipLock = new Object();
+    private final Map<String, SpeakerGroup> groupsByName = new LinkedHashMap<>();
+    private final Map<String, Set<String>> groupToMembers = new HashMap<>();
+    private final Map<String, Set<String>> memberToGroups = new HashMap<>();
+    private final Map<String, Set<String>> groupToChildren = new HashMap<>();
+    private final Map<String, Set<String>> childToParents = new HashMap<>();
+    
+    // Flattened speaker sets per group; an entry is dropped when the group or any descendant changes
+    private final Map<String, Set<String>> flattenedMembers = new HashMap<>();
+    private boolean membershipIndexLoaded = false;
+    private long membershipVersion = 0;
+    
+    // Last organize view, valid while neither membership nor discovered devices have changed
+    private volatile OrganizeSnapshot organizeSnapshot;
+    
+    // Run after every membership change, outside membershipLock
+    private final List<Runnable> membershipListeners = new CopyOnWriteArrayList<>();
+    
+    /**
+     * The direct speakers and nested groups of one group, as read from the membership index
+     */
+    public static class GroupMembers {
+        private final String name;
+        private final List<String> speakers;
+        private final List<String> groups;
+        
+        public GroupMembers(String name, List<String> speakers, List<String> groups) {
+            this.name = name;
+            this.speakers = speakers;
+            this.groups = groups;
+        }
+        
+        public String getName() { return name; }
+        public List<String> getSpeakers() { return speakers; }
+        public List<String> getGroups() { return groups; }
+    }
+    
+    // Immutable organize view tagged with the versions it was built from
+    private static class OrganizeSnapshot {
+        private final long membershipVersion;
+        private final long discoveryVersion;
+        private final Map<String, Object> view;
+        
+        public OrganizeSnapshot(long membershipVersion, long discoveryVersion, Map<String, Object> view) {
+            this.membershipVersion = membershipVersion;
+            this.discoveryVersion = discoveryVersion;
+            this.view = view;
+        }
+    }
+    
     /**
      * Creates a new speaker group
      */
     public SpeakerGroup createGroup(String groupName, List<String> speakerMacAddresses) {
-        logger.info("Creating speaker group: {} with speakers: {}", groupName, speakerMacAddresses);
+        return createGroup(groupName, speakerMacAddresses, Collections.emptyList());
+    }
+    
+    /**
+     * Creates a new speaker group containing speakers and nested groups
+     */
+    public SpeakerGroup createGroup(String groupName, List<String> speakerMacAddresses, List<String> childGroupNames) {
+        logger.info("Creating speaker group: {} with speakers: {} and groups: {}", 
+                   groupName, speakerMacAddresses, childGroupNames);
         
         // Validate that all speakers exist
         for (String macAddress : speakerMacAddresses) {
-            if (speakerRepository.findByMacAddress(macAddress).isEmpty()) {
+            if (deviceCache.findSpeaker(macAddress) == null) {
                 logger.error("Speaker with MAC {} does not exist", macAddress);
                 return null;
             }
         }
         
         // Check if group with this name already exists
-        if (speakerGroupRepository.findByName(groupName).isPresent()) {
+        if (isKnownGroup(groupName)) {
             logger.error("Group with name {} already exists", groupName);
             return null;
         }
         
+        // Validate that all nested groups exist (a new group cannot be part of a cycle)
+        for (String childGroupName : childGroupNames) {
+            if (!isKnownGroup(childGroupName)) {
+                logger.error("Group with name {} does not exist", childGroupName);
+                return null;
+            }
+        }
+        
         SpeakerGroup newGroup = new SpeakerGroup(groupName);
         newGroup.setSpeakerMacAddresses(speakerMacAddresses);
+        newGroup.setChildGroupNames(new ArrayList<>(new LinkedHashSet<>(childGroupNames)));
         
-        return speakerGroupRepository.save(newGroup);
+        SpeakerGroup savedGroup = deviceCache.saveGroup(newGroup);
+        indexGroup(savedGroup);
+        return savedGroup;
     }
     
     /**
@@ -57,7 +128,7 @@ public class SpeakerGroupService {
     public SpeakerGroup updateGroup(String groupName, List<String> speakerMacAddresses) {
         logger.info("Updating speaker group: {} with speakers: {}", groupName, speakerMacAddresses);
         
-        SpeakerGroup group = speakerGroupRepository.findByName(groupName).orElse(null);
+        SpeakerGroup group = deviceCache.findGroup(groupName);
         if (group == null) {
             logger.error("Group with name {} does not exist", groupName);
             return null;
@@ -65,14 +136,16 @@ public class SpeakerGroupService {
         
         // Validate that all speakers exist
         for (String macAddress : speakerMacAddresses) {
-            if (speakerRepository.findByMacAddress(macAddress).isEmpty()) {
+            if (deviceCache.findSpeaker(macAddress) == null) {
                 logger.error("Speaker with MAC {} does not exist", macAddress);
                 return null;
             }
         }
         
         group.setSpeakerMacAddresses(speakerMacAddresses);
-        return speakerGroupRepository.save(group);
+        SpeakerGroup savedGroup = deviceCache.saveGroup(group);
+        indexGroup(savedGroup);
+        return savedGroup;
     }
     
     /**
@@ -81,13 +154,13 @@ public class SpeakerGroupService {
     public SpeakerGroup addSpeakerToGroup(String groupName, String speakerMacAddress) {
         logger.info("Adding speaker {} to group {}", speakerMacAddress, groupName);
         
-        SpeakerGroup group = speakerGroupRepository.findByName(groupName).orElse(null);
+        SpeakerGroup group = deviceCache.findGroup(groupName);
         if (group == null) {
             logger.error("Group with name {} does not exist", groupName);
             return null;
         }
         
-        Speaker speaker = speakerRepository.findByMacAddress(speakerMacAddress).orElse(null);
+        Speaker speaker = deviceCache.findSpeaker(speakerMacAddress);
         if (speaker == null) {
             logger.error("Speaker with MAC {} does not exist", speakerMacAddress);
             return null;
@@ -97,7 +170,9 @@ public class SpeakerGroupService {
         if (!members.contains(speakerMacAddress)) {
             members.add(speakerMacAddress);
             group.setSpeakerMacAddresses(members);
-            return speakerGroupRepository.save(group);
+            SpeakerGroup savedGroup = deviceCache.saveGroup(group);
+            indexGroup(savedGroup);
+            return savedGroup;
         }
         
         return group; // Speaker already in group
@@ -109,7 +184,7 @@ public class SpeakerGroupService {
     public SpeakerGroup removeSpeakerFromGroup(String groupName, String speakerMacAddress) {
         logger.info("Removing speaker {} from group {}", speakerMacAddress, groupName);
         
-        SpeakerGroup group = speakerGroupRepository.findByName(groupName).orElse(null);
+        SpeakerGroup group = deviceCache.findGroup(groupName);
         if (group == null) {
             logger.error("Group with name {} does not exist", groupName);
             return null;
@@ -119,7 +194,74 @@ public class SpeakerGroupService {
         members.remove(speakerMacAddress);
         group.setSpeakerMacAddresses(members);
         
-        return speakerGroupRepository.save(group);
+        SpeakerGroup savedGroup = deviceCache.saveGroup(group);
+        indexGroup(savedGroup);
+        return savedGroup;
+    }
+    
+    /**
+     * Nests a group inside another group, rejecting changes that would create a cycle
+     */
+    public SpeakerGroup addChildGroup(String groupName, String childGroupName) {
+        logger.info("Adding group {} to group {}", childGroupName, groupName);
+        
+        SpeakerGroup savedGroup;
+        synchronized (membershipLock) {
+            ensureMembershipIndex();
+            
+            SpeakerGroup group = deviceCache.findGroup(groupName);
+            if (group == null) {
+                logger.error("Group with name {} does not exist", groupName);
+                return null;
+            }
+            
+            if (!groupsByName.containsKey(childGroupName)) {
+                logger.error("Group with name {} does not exist", childGroupName);
+                return null;
+            }
+            
+            if (isReachable(childGroupName, groupName)) {
+                logger.error("Adding group {} to group {} would create a cycle", childGroupName, groupName);
+                return null;
+            }
+            
+            List<String> children = group.getChildGroupNames() != null 
+                    ? group.getChildGroupNames() : new ArrayList<>();
+            if (children.contains(childGroupName)) {
+                return group; // Group already nested
+            }
+            
+            children.add(childGroupName);
+            group.setChildGroupNames(children);
+            savedGroup = deviceCache.saveGroup(group);
+            putGroupMembers(savedGroup);
+            membershipVersion++;
+        }
+        notifyMembershipListeners();
+        return savedGroup;
+    }
+    
+    /**
+     * Removes a nested group from a group
+     */
+    public SpeakerGroup removeChildGroup(String groupName, String childGroupName) {
+        logger.info("Removing group {} from group {}", childGroupName, groupName);
+        
+        SpeakerGroup group = deviceCache.findGroup(groupName);
+        if (group == null) {
+            logger.error("Group with name {} does not exist", groupName);
+            return null;
+        }
+        
+        List<String> children = group.getChildGroupNames();
+        if (children == null || !children.remove(childGroupName)) {
+            return group; // Group was not nested
+        }
+        
+        group.setChildGroupNames(children);
+        SpeakerGroup savedGroup = deviceCache.saveGroup(group);
+        indexGroup(savedGroup);
+        return savedGroup;
     }
     
     /**
@@ -128,13 +270,19 @@ public class SpeakerGroupService {
     public boolean deleteGroup(String groupName) {
         logger.info("Deleting speaker group: {}", groupName);
         
-        SpeakerGroup group = speakerGroupRepository.findByName(groupName).orElse(null);
+        SpeakerGroup group = deviceCache.findGroup(groupName);
         if (group == null) {
             logger.error("Group with name {} does not exist", groupName);
             return false;
         }
         
-        speakerGroupRepository.delete(group);
+        // Detach the group from any parent groups first
+        for (String parentName : getParentGroups(groupName)) {
+            removeChildGroup(parentName, groupName);
+        }
+        
+        deviceCache.deleteGroup(group);
+        unindexGroup(groupName);
         return true;
     }
     
@@ -149,47 +297,119 @@ public class SpeakerGroupService {
      * Gets a specific speaker group by name
      */
     public SpeakerGroup getGroup(String groupName) {
-        return speakerGroupRepository.findByName(groupName).orElse(null);
+        return deviceCache.findGroup(groupName);
     }
     
     /**
-     * Gets all speakers with their group associations
+     * Registers a callback run after any group's members or nested groups change
      */
-    public Map<String, Object> getGroupedSpeakers() {
-        Map<String, Object> result = new HashMap<>();
-        
-        // Get all discovered speakers
-        List<Speaker> allSpeakers = deviceDiscoveryService.getDiscoveredDevices();
-        
-        // Get all groups
-        List<SpeakerGroup> allGroups = speakerGroupRepository.findAll();
-        
-        // Create a mapping of speaker MAC to group name
-        Map<String, String> speakerToGroup = new HashMap<>();
-        for (SpeakerGroup group : allGroups) {
-            for (String mac : group.getSpeakerMacAddresses()) {
-                speakerToGroup.put(mac, group.getName());
+    public void addMembershipListener(Runnable listener) {
+        membershipListeners.add(listener);
+    }
+    
+    /**
+     * Loads the membership index now rather than on first use
+     */
+    public void loadMembershipIndex() {
+        synchronized (membershipLock) {
+            ensureMembershipIndex();
+        }
+    }
+    
+    /**
+     * Gets the names of all groups, from the membership index
+     */
+    public Set<String> getGroupNames() {
+        synchronized (membershipLock) {
+            ensureMembershipIndex();
+            return new LinkedHashSet<>(groupsByName.keySet());
+        }
+    }
+    
+    /**
+     * Gets the members of every group, all read at once so no membership
+     * change falls between two groups
+     */
+    public List<GroupMembers> getAllGroupMembers() {
+        synchronized (membershipLock) {
+            ensureMembershipIndex();
+            List<GroupMembers> groups = new ArrayList<>(groupsByName.size());
+            for (String groupName : groupsByName.keySet()) {
+                groups.add(new GroupMembers(groupName,
+                        new ArrayList<>(groupToMembers.getOrDefault(groupName, Collections.emptySet())),
+                        new ArrayList<>(groupToChildren.getOrDefault(groupName, Collections.emptySet()))));
             }
+            return groups;
         }
-        
-        // Group speakers by their group association
-        Map<String, List<Speaker>> groupedSpeakers = new HashMap<>();
-        Map<String, List<Speaker>> ungroupedSpeakers = new HashMap<>();
-        
-        for (Speaker speaker : allSpeakers) {
-            String groupName = speakerToGroup.get(speaker.getMacAddress());
-            if (groupName != null) {
-                groupedSpeakers.computeIfAbsent(groupName, k -> new ArrayList<>()).add(speaker);
-            } else {
-                ungroupedSpeakers.computeIfAbsent("ungrouped", k -> new ArrayList<>()).add(speaker);
+    }
+    
+    /**
+     * Gets the MAC addresses of all speakers in a group, from the membership index
+     */
+    public Set<String> getGroupMembers(String groupName) {
+        synchronized (membershipLock) {
+            ensureMembershipIndex();
+            Set<String> members = groupToMembers.get(groupName);
+            return members != null ? new LinkedHashSet<>(members) : Collections.emptySet();
+        }
+    }
+    
+    /**
+     * Resolves every speaker in a group and its nested groups, each speaker once.
+     * Returns null if the group does not exist.
+     */
+    public Set<String> resolveSpeakers(String groupName) {
+        synchronized (membershipLock) {
+            ensureMembershipIndex();
+            if (!groupsByName.containsKey(groupName)) {
+                return null;
             }
+            return flatten(groupName);
+        }
+    }
+    
+    /**
+     * Gets the names of the groups that directly contain a group
+     */
+    public Set<String> getParentGroups(String groupName) {
+        synchronized (membershipLock) {
+            ensureMembershipIndex();
+            Set<String> parents = childToParents.get(groupName);
+            return parents != null ? new LinkedHashSet<>(parents) : Collections.emptySet();
+        }
+    }
+    
+    /**
+     * Gets the names of all groups a speaker belongs to, from the membership index
+     */
+    public Set<String> getGroupsForSpeaker(String speakerMacAddress) {
+        synchronized (membershipLock) {
+            ensureMembershipIndex();
+            Set<String> groups = memberToGroups.get(speakerMacAddress);
+            return groups != null ? new LinkedHashSet<>(groups) : Collections.emptySet();
+        }
+    }
+    
+    /**
+     * Gets all speakers with their group associations.
+     * The view is served from a cached snapshot that is only rebuilt after
+     * group membership or the discovered device list has changed.
+     */
+    public Map<String, Object> getGroupedSpeakers() {
+        long discoveryVersion = deviceDiscoveryService.getDiscoveryVersion();
+        OrganizeSnapshot snapshot = organizeSnapshot;
+        synchronized (membershipLock) {
+            ensureMembershipIndex();
+            if (snapshot != null && snapshot.membershipVersion == membershipVersion
+                    && snapshot.discoveryVersion == discoveryVersion) {
+                return snapshot.view;
+            }
+            
+            snapshot = new OrganizeSnapshot(membershipVersion, discoveryVersion, buildOrganizeView());
+            organizeSnapshot = snapshot;
+            logger.debug("Rebuilt organize snapshot at membership version {}", membershipVersion);
+            return snapshot.view;
         }
-        
-        result.put("grouped", groupedSpeakers);
-        result.put("ungrouped", ungroupedSpeakers.get("ungrouped"));
-        result.put("allGroups", allGroups);
-        
-        return result;
     }
     
     /**
@@ -198,7 +418,7 @@ public class SpeakerGroupService {
     public boolean syncGroupPlayback(String groupName) {
         logger.info("Syncing playback for group: {}", groupName);
         
-        SpeakerGroup group = speakerGroupRepository.findByName(groupName).orElse(null);
+        SpeakerGroup group = deviceCache.findGroup(groupName);
         if (group == null) {
             logger.error("Group with name {} does not exist", groupName);
             return false;
@@ -213,4 +433,223 @@ public class SpeakerGroupService {
         logger.info("Group playback synchronization completed for {}", groupName);
         return true;
     }
-}
\ No newline at end of file
+    
+    /**
+     * Builds the organize view from the membership index (caller holds membershipLock)
+     */
+    private Map<String, Object> buildOrganizeView() {
+        Map<String, Object> result = new HashMap<>();
+        
+        // Group speakers by their group association
+        Map<String, List<Speaker>> groupedSpeakers = new HashMap<>();
+        List<Speaker> ungroupedSpeakers = new ArrayList<>();
+        
+        for (Speaker speaker : deviceDiscoveryService.getDiscoveredDevices()) {
+            Set<String> groupNames = memberToGroups.get(speaker.getMacAddress());
+            if (groupNames != null && !groupNames.isEmpty()) {
+                for (String groupName : groupNames) {
+                    groupedSpeakers.computeIfAbsent(groupName, k -> new ArrayList<>()).add(speaker);
+                }
+            } else {
+                ungroupedSpeakers.add(speaker);
+            }
+        }
+        
+        result.put("grouped", Collections.unmodifiableMap(groupedSpeakers));
+        result.put("ungrouped", ungroupedSpeakers.isEmpty() ? null : Collections.unmodifiableList(ungroupedSpeakers));
+        result.put("allGroups", List.copyOf(groupsByName.values()));
+        
+        return Collections.unmodifiableMap(result);
+    }
+    
+    /**
+     * Checks the membership index for a group name
+     */
+    private boolean isKnownGroup(String groupName) {
+        synchronized (membershipLock) {
+            ensureMembershipIndex();
+            return groupsByName.containsKey(groupName);
+        }
+    }
+    
+    /**
+     * Loads the membership index from the database on first use (caller holds membershipLock)
+     */
+    private void ensureMembershipIndex() {
+        if (membershipIndexLoaded) {
+            return;
+        }
+        
+        for (SpeakerGroup group : speakerGroupRepository.findAll()) {
+            putGroupMembers(group);
+        }
+        membershipIndexLoaded = true;
+        membershipVersion++;
+        logger.info("Loaded membership index for {} groups", groupsByName.size());
+    }
+    
+    /**
+     * Records the current members of a saved group in the index
+     */
+    private void indexGroup(SpeakerGroup group) {
+        synchronized (membershipLock) {
+            ensureMembershipIndex();
+            putGroupMembers(group);
+            membershipVersion++;
+        }
+        notifyMembershipListeners();
+    }
+    
+    /**
+     * Drops a deleted group from the index
+     */
+    private void unindexGroup(String groupName) {
+        synchronized (membershipLock) {
+            ensureMembershipIndex();
+            invalidateFlattened(groupName);
+            groupsByName.remove(groupName);
+            Set<String> members = groupToMembers.remove(groupName);
+            if (members != null) {
+                for (String mac : members) {
+                    removeMemberGroup(mac, groupName);
+                }
+            }
+            Set<String> children = groupToChildren.remove(groupName);
+            if (children != null) {
+                for (String child : children) {
+                    removeParentGroup(child, groupName);
+                }
+            }
+            membershipVersion++;
+        }
+        notifyMembershipListeners();
+    }
+    
+    private void notifyMembershipListeners() {
+        for (Runnable listener : membershipListeners) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                logger.error("Membership listener failed: ", e);
+            }
+        }
+    }
+    
+    /**
+     * Returns the cached flattened member set of a group (caller holds membershipLock)
+     */
+    private Set<String> flatten(String groupName) {
+        Set<String> cached = flattenedMembers.get(groupName);
+        if (cached != null) {
+            return cached;
+        }
+        
+        Set<String> result = new LinkedHashSet<>(groupToMembers.getOrDefault(groupName, Collections.emptySet()));
+        for (String child : groupToChildren.getOrDefault(groupName, Collections.emptySet())) {
+            result.addAll(flatten(child));
+        }
+        
+        Set<String> flattened = Collections.unmodifiableSet(result);
+        flattenedMembers.put(groupName, flattened);
+        return flattened;
+    }
+    
+    /**
+     * Checks whether target is the same group as, or nested anywhere below, source
+     */
+    private boolean isReachable(String source, String target) {
+        Deque<String> pending = new ArrayDeque<>();
+        Set<String> visited = new HashSet<>();
+        pending.push(source);
+        while (!pending.isEmpty()) {
+            String current = pending.pop();
+            if (current.equals(target)) {
+                return true;
+            }
+            if (visited.add(current)) {
+                pending.addAll(groupToChildren.getOrDefault(current, Collections.emptySet()));
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Drops the flattened member sets of a group and all groups that contain it
+     */
+    private void invalidateFlattened(String groupName) {
+        Deque<String> pending = new ArrayDeque<>();
+        Set<String> visited = new HashSet<>();
+        pending.push(groupName);
+        while (!pending.isEmpty()) {
+            String current = pending.pop();
+            if (visited.add(current)) {
+                flattenedMembers.remove(current);
+                pending.addAll(childToParents.getOrDefault(current, Collections.emptySet()));
+            }
+        }
+    }
+    
+    /**
+     * Applies the difference between the indexed and the saved members of a group
+     */
+    private void putGroupMembers(SpeakerGroup group) {
+        String groupName = group.getName();
+        Set<String> newMembers = group.getSpeakerMacAddresses() != null
+                ? new LinkedHashSet<>(group.getSpeakerMacAddresses())
+                : new LinkedHashSet<>();
+        Set<String> oldMembers = groupToMembers.getOrDefault(groupName, Collections.emptySet());
+        
+        for (String mac : oldMembers) {
+            if (!newMembers.contains(mac)) {
+                removeMemberGroup(mac, groupName);
+            }
+        }
+        for (String mac : newMembers) {
+            if (!oldMembers.contains(mac)) {
+                memberToGroups.computeIfAbsent(mac, k -> new LinkedHashSet<>()).add(groupName);
+            }
+        }
+        
+        groupToMembers.put(groupName, newMembers);
+        groupsByName.put(groupName, group);
+        
+        Set<String> newChildren = group.getChildGroupNames() != null
+                ? new LinkedHashSet<>(group.getChildGroupNames())
+                : new LinkedHashSet<>();
+        Set<String> oldChildren = groupToChildren.getOrDefault(groupName, Collections.emptySet());
+        
+        for (String child : oldChildren) {
+            if (!newChildren.contains(child)) {
+                removeParentGroup(child, groupName);
+            }
+        }
+        for (String child : newChildren) {
+            if (!oldChildren.contains(child)) {
+                childToParents.computeIfAbsent(child, k -> new LinkedHashSet<>()).add(groupName);
+            }
+        }
+        
+        groupToChildren.put(groupName, newChildren);
+        invalidateFlattened(groupName);
+    }
+    
+    private void removeParentGroup(String childGroupName, String groupName) {
+        Set<String> parents = childToParents.get(childGroupName);
+        if (parents != null) {
+            parents.remove(groupName);
+            if (parents.isEmpty()) {
+                childToParents.remove(childGroupName);
+            }
+        }
+    }
+    
+    private void removeMemberGroup(String speakerMacAddress, String groupName) {
+        Set<String> groups = memberToGroups.get(speakerMacAddress);
+        if (groups != null) {
+            groups.remove(groupName);
+            if (groups.isEmpty()) {
+                memberToGroups.remove(speakerMacAddress);
+            }
+        }
+    }
+}
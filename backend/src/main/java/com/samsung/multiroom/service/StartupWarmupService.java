@@ -0,0 +1,83 @@
+package com.samsung.multiroom.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the in-memory state the API is served from when the application
+ * starts: the track catalog and the indexes built from it, the group
+ * membership index and the speaker and group caches. Independent loads run
+ * in parallel; the search, facet and suggestion indexes and the playback
+ * state replayed from the journal follow as soon as the catalog is loaded,
+ * and device groups are restored once the membership index is. Other
+ * startup work (watching, analysis, waveforms) runs after this has finished.
+ */
+@Service
+public class StartupWarmupService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(StartupWarmupService.class);
+    
+    // One thread per load that can run at the same time
+    private static final int WARMUP_THREADS = 5;
+    
+    @Autowired
+    private TrackCatalog trackCatalog;
+    
+    @Autowired
+    private TrackSearchService trackSearchService;
+    
+    @Autowired
+    private TrackFacetService trackFacetService;
+    
+    @Autowired
+    private TrackSuggestionService trackSuggestionService;
+    
+    @Autowired
+    private SpeakerGroupService speakerGroupService;
+    
+    @Autowired
+    private GroupTopologyService groupTopologyService;
+    
+    @Autowired
+    private DeviceCache deviceCache;
+    
+    @Autowired
+    private AudioPlaybackService audioPlaybackService;
+    
+    @EventListener(ApplicationReadyEvent.class)
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    public void warmUp() {
+        long start = System.currentTimeMillis();
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(WARMUP_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "startup-warmup-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            CompletableFuture<Void> catalog = CompletableFuture.runAsync(trackCatalog::load, executor);
+            CompletableFuture.allOf(
+                    catalog.thenRunAsync(trackSearchService::rebuildIndex, executor),
+                    catalog.thenRunAsync(trackFacetService::rebuildFacets, executor),
+                    catalog.thenRunAsync(trackSuggestionService::loadSuggestions, executor),
+                    catalog.thenRunAsync(audioPlaybackService::restorePlaybackStates, executor),
+                    CompletableFuture.runAsync(speakerGroupService::loadMembershipIndex, executor)
+                            .thenRunAsync(groupTopologyService::restoreDeviceGroups, executor),
+                    CompletableFuture.runAsync(deviceCache::preload, executor)).join();
+        } finally {
+            executor.shutdown();
+        }
+        logger.info("Loaded library and device state in {} ms", System.currentTimeMillis() - start);
+    }
+}
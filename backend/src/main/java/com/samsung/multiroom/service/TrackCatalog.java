@@ -0,0 +1,576 @@
+package com.samsung.multiroom.service;
+
+import com.samsung.multiroom.model.Track;
+import com.samsung.multiroom.model.TrackSummary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Read-optimized copy of the track table, for listing and for building and
+ * serving the search and browse indexes without loading entities.
+ *
+ * Tracks are stored column by column in primitive arrays, one row per track in
+ * id order. Artists, albums, album art hashes and the directory part of file
+ * paths are dictionary-encoded, so each distinct value is held once and a row
+ * keeps an int. Titles and file names are packed as UTF-8 into one shared
+ * buffer rather than held as a String object each. URIs that are the usual
+ * file:// form of the path are not stored at all. Track entities are built on
+ * demand for the rows a caller asks for.
+ *
+ * The catalog is loaded once at startup and kept in step by TrackLibraryService
+ * (and loudness analysis for its columns). Lookups made before the load has
+ * finished are answered from the database.
+ */
+@Service
+public class TrackCatalog {
+    
+    private static final Logger logger = LoggerFactory.getLogger(TrackCatalog.class);
+    
+    // Rows fetched from the cursor per round trip while loading
+    private static final int LOAD_FETCH_SIZE = 1000;
+    
+    // Ids per IN list when reading from the database before the load
+    private static final int LOOKUP_BATCH_SIZE = 1000;
+    
+    private static final String TRACK_COLUMNS = "id, title, artist, album, file_path, uri, duration, album_art,"
+            + " canonical_track_id, loudness, true_peak";
+    
+    private static final int INITIAL_CAPACITY = 1024;
+    
+    // Deleted rows are dropped once there are this many and they make up a quarter of the rows
+    private static final int MIN_DELETED_TO_COMPACT = 1024;
+    
+    // Text of replaced strings is reclaimed once it is this large and half of the buffer
+    private static final int MIN_WASTED_TEXT_TO_COMPACT = 1 << 20;
+    
+    // Text reference of a null string
+    private static final long NO_TEXT = -1;
+    
+    @Autowired
+    private DataSource dataSource;
+    
+    @Autowired
+    private NamedParameterJdbcTemplate jdbcTemplate;
+    
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private boolean loaded;
+    
+    // Columns; rows are sorted by id and deleted ones are flagged until compaction
+    private int rowCount;
+    private long[] ids = new long[INITIAL_CAPACITY];
+    private long[] titleRefs = new long[INITIAL_CAPACITY];
+    private int[] artistCodes = new int[INITIAL_CAPACITY];
+    private int[] albumCodes = new int[INITIAL_CAPACITY];
+    private int[] directoryCodes = new int[INITIAL_CAPACITY];
+    private long[] fileNameRefs = new long[INITIAL_CAPACITY];
+    private int[] durations = new int[INITIAL_CAPACITY];
+    private int[] artCodes = new int[INITIAL_CAPACITY];
+    private float[] loudness = new float[INITIAL_CAPACITY]; // NaN when not measured
+    private float[] truePeaks = new float[INITIAL_CAPACITY];
+    private final BitSet deleted = new BitSet();
+    private int deletedCount;
+    
+    // Shared UTF-8 buffer; a text reference is the offset in the high and the length in the low 32 bits
+    private byte[] text = new byte[INITIAL_CAPACITY * 32];
+    private int textLength;
+    private int wastedText;
+    
+    private Dictionary artists = new Dictionary();
+    private Dictionary albums = new Dictionary();
+    private Dictionary directories = new Dictionary();
+    private Dictionary albumArt = new Dictionary();
+    
+    // Sparse columns, by track id: few tracks are duplicates or have a URI other than file://path
+    private final Map<Long, Long> canonicalTrackIds = new HashMap<>();
+    private final Map<Long, String> customUris = new HashMap<>();
+    
+    /**
+     * Distinct strings of one column, each stored once and referred to by code
+     */
+    private static final class Dictionary {
+        private final Map<String, Integer> codes = new HashMap<>();
+        private String[] values = new String[64];
+        
+        int encode(String value) {
+            if (value == null) {
+                return -1;
+            }
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = codes.size();
+                if (code == values.length) {
+                    values = Arrays.copyOf(values, code * 2);
+                }
+                values[code] = value;
+                codes.put(value, code);
+            }
+            return code;
+        }
+        
+        String decode(int code) {
+            return code >= 0 ? values[code] : null;
+        }
+        
+        int size() {
+            return codes.size();
+        }
+    }
+    
+    /**
+     * Load every track. Run at startup by StartupWarmupService, before the
+     * indexes that are built from the catalog
+     */
+    public void load() {
+        long start = System.currentTimeMillis();
+        JdbcTemplate cursorTemplate = new JdbcTemplate(dataSource);
+        cursorTemplate.setFetchSize(LOAD_FETCH_SIZE);
+        lock.writeLock().lock();
+        try {
+            clear();
+            cursorTemplate.query("SELECT " + TRACK_COLUMNS + " FROM tracks ORDER BY id", row -> {
+                put(mapTrack(row));
+            });
+            loaded = true;
+            logger.info("Loaded {} tracks into the catalog ({} artists, {} albums, {} directories) in {} ms",
+                       rowCount, artists.size(), albums.size(), directories.size(), System.currentTimeMillis() - start);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Apply a track change; either side may be null
+     */
+    public void trackChanged(Track previous, Track current) {
+        lock.writeLock().lock();
+        try {
+            // Until the load, the database is the catalog; changes before it are read from there
+            if (!loaded) {
+                return;
+            }
+            if (current != null && current.getId() != null) {
+                put(current);
+            } else if (previous != null && previous.getId() != null) {
+                remove(previous.getId());
+            }
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Record a track's loudness measurement; nulls when it was reset
+     */
+    public void loudnessChanged(long trackId, Double integratedLoudness, Double truePeak) {
+        lock.writeLock().lock();
+        try {
+            int row = findRow(trackId);
+            if (row >= 0) {
+                loudness[row] = integratedLoudness != null ? integratedLoudness.floatValue() : Float.NaN;
+                truePeaks[row] = truePeak != null ? truePeak.floatValue() : Float.NaN;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Number of tracks, duplicates included
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return rowCount - deletedCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * A track as an entity (not attached to a persistence context); null if unknown
+     */
+    public Track getTrack(long trackId) {
+        lock.readLock().lock();
+        try {
+            if (loaded) {
+                int row = findRow(trackId);
+                return row >= 0 ? hydrate(row) : null;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        List<Track> tracks = jdbcTemplate.query("SELECT " + TRACK_COLUMNS + " FROM tracks WHERE id = :id",
+                new MapSqlParameterSource("id", trackId), (row, rowNum) -> mapTrack(row));
+        return tracks.isEmpty() ? null : tracks.get(0);
+    }
+    
+    /**
+     * The tracks with the given ids in the same order, leaving out unknown ones
+     */
+    public List<Track> getTracks(Collection<Long> trackIds) {
+        List<Track> tracks = new ArrayList<>(trackIds.size());
+        lock.readLock().lock();
+        try {
+            if (!loaded) {
+                return loadTracks(trackIds);
+            }
+            for (Long trackId : trackIds) {
+                int row = trackId != null ? findRow(trackId) : -1;
+                if (row >= 0) {
+                    tracks.add(hydrate(row));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return tracks;
+    }
+    
+    /**
+     * Summaries of up to limit tracks with ids above afterId, in id order,
+     * leaving out duplicate copies as search and browsing do
+     */
+    public List<TrackSummary> getSummariesAfter(long afterId, int limit) {
+        List<TrackSummary> summaries = new ArrayList<>(Math.min(limit, 1024));
+        lock.readLock().lock();
+        try {
+            if (!loaded) {
+                MapSqlParameterSource parameters = new MapSqlParameterSource("afterId", afterId)
+                        .addValue("limit", limit);
+                return jdbcTemplate.query("SELECT id, title, artist, album, duration FROM tracks"
+                        + " WHERE id > :afterId AND canonical_track_id IS NULL ORDER BY id LIMIT :limit", parameters,
+                        (row, rowNum) -> new TrackSummary(row.getLong("id"), row.getString("title"),
+                                row.getString("artist"), row.getString("album"), row.getInt("duration")));
+            }
+            int row = Arrays.binarySearch(ids, 0, rowCount, afterId);
+            for (row = row >= 0 ? row + 1 : -row - 1; row < rowCount && summaries.size() < limit; row++) {
+                if (!deleted.get(row) && !canonicalTrackIds.containsKey(ids[row])) {
+                    summaries.add(new TrackSummary(ids[row], loadText(titleRefs[row]), artists.decode(artistCodes[row]),
+                                                   albums.decode(albumCodes[row]), durations[row]));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return summaries;
+    }
+    
+    /**
+     * Up to limit tracks with ids above afterId, in id order; duplicate copies
+     * are left out unless asked for
+     */
+    public List<Track> getTracksAfter(long afterId, int limit, boolean includeDuplicates) {
+        List<Track> tracks = new ArrayList<>(Math.min(limit, 1024));
+        lock.readLock().lock();
+        try {
+            if (!loaded) {
+                MapSqlParameterSource parameters = new MapSqlParameterSource("afterId", afterId)
+                        .addValue("limit", limit);
+                return jdbcTemplate.query("SELECT " + TRACK_COLUMNS + " FROM tracks WHERE id > :afterId"
+                        + (includeDuplicates ? "" : " AND canonical_track_id IS NULL") + " ORDER BY id LIMIT :limit",
+                        parameters, (row, rowNum) -> mapTrack(row));
+            }
+            int row = Arrays.binarySearch(ids, 0, rowCount, afterId);
+            for (row = row >= 0 ? row + 1 : -row - 1; row < rowCount && tracks.size() < limit; row++) {
+                if (!deleted.get(row) && (includeDuplicates || !canonicalTrackIds.containsKey(ids[row]))) {
+                    tracks.add(hydrate(row));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return tracks;
+    }
+    
+    /**
+     * Pass every track to the consumer in id order, each built just for the
+     * call. Writes wait until it returns.
+     */
+    public void forEachTrack(Consumer<Track> consumer) {
+        lock.readLock().lock();
+        try {
+            for (int row = 0; row < rowCount; row++) {
+                if (!deleted.get(row)) {
+                    consumer.accept(hydrate(row));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Reads tracks from the database for lookups made before the load, in the order asked for
+     */
+    private List<Track> loadTracks(Collection<Long> trackIds) {
+        Map<Long, Track> byId = new HashMap<>();
+        List<Long> ids = new ArrayList<>(trackIds);
+        ids.removeIf(id -> id == null);
+        for (int start = 0; start < ids.size(); start += LOOKUP_BATCH_SIZE) {
+            MapSqlParameterSource parameters = new MapSqlParameterSource(
+                    "ids", ids.subList(start, Math.min(start + LOOKUP_BATCH_SIZE, ids.size())));
+            jdbcTemplate.query("SELECT " + TRACK_COLUMNS + " FROM tracks WHERE id IN (:ids)", parameters, row -> {
+                Track track = mapTrack(row);
+                byId.put(track.getId(), track);
+            });
+        }
+        List<Track> tracks = new ArrayList<>(byId.size());
+        for (Long id : ids) {
+            Track track = byId.get(id);
+            if (track != null) {
+                tracks.add(track);
+            }
+        }
+        return tracks;
+    }
+    
+    private static Track mapTrack(ResultSet row) throws SQLException {
+        Track track = new Track(row.getString("title"), row.getString("artist"), row.getString("album"),
+                                row.getString("file_path"), row.getInt("duration"));
+        track.setId(row.getLong("id"));
+        track.setUri(row.getString("uri"));
+        track.setAlbumArt(row.getString("album_art"));
+        track.setCanonicalTrackId(row.getObject("canonical_track_id", Long.class));
+        track.setLoudness(row.getObject("loudness", Double.class));
+        track.setTruePeak(row.getObject("true_peak", Double.class));
+        return track;
+    }
+    
+    private int findRow(long trackId) {
+        int row = Arrays.binarySearch(ids, 0, rowCount, trackId);
+        return row >= 0 && !deleted.get(row) ? row : -1;
+    }
+    
+    private Track hydrate(int row) {
+        long id = ids[row];
+        String directory = directories.decode(directoryCodes[row]);
+        String fileName = loadText(fileNameRefs[row]);
+        String filePath = directory != null ? directory + fileName : fileName;
+        
+        Track track = new Track(loadText(titleRefs[row]), artists.decode(artistCodes[row]), albums.decode(albumCodes[row]),
+                                filePath, durations[row]);
+        track.setId(id);
+        track.setUri(customUris.containsKey(id) ? customUris.get(id) : defaultUri(filePath));
+        track.setAlbumArt(albumArt.decode(artCodes[row]));
+        track.setCanonicalTrackId(canonicalTrackIds.get(id));
+        track.setLoudness(Float.isNaN(loudness[row]) ? null : (double) loudness[row]);
+        track.setTruePeak(Float.isNaN(truePeaks[row]) ? null : (double) truePeaks[row]);
+        return track;
+    }
+    
+    private void put(Track track) {
+        long id = track.getId();
+        int row = Arrays.binarySearch(ids, 0, rowCount, id);
+        if (row >= 0) {
+            if (deleted.get(row)) {
+                deleted.clear(row);
+                deletedCount--;
+            }
+            releaseText(titleRefs[row]);
+            releaseText(fileNameRefs[row]);
+        } else {
+            row = insertRow(-row - 1, id);
+        }
+        
+        titleRefs[row] = storeText(track.getTitle());
+        artistCodes[row] = artists.encode(track.getArtist());
+        albumCodes[row] = albums.encode(track.getAlbum());
+        String filePath = track.getFilePath();
+        int split = filePath != null ? Math.max(filePath.lastIndexOf('/'), filePath.lastIndexOf('\\')) + 1 : 0;
+        directoryCodes[row] = split > 0 ? directories.encode(filePath.substring(0, split)) : -1;
+        fileNameRefs[row] = storeText(filePath != null ? filePath.substring(split) : null);
+        durations[row] = track.getDuration();
+        artCodes[row] = albumArt.encode(track.getAlbumArt());
+        loudness[row] = track.getLoudness() != null ? track.getLoudness().floatValue() : Float.NaN;
+        truePeaks[row] = track.getTruePeak() != null ? track.getTruePeak().floatValue() : Float.NaN;
+        
+        if (track.getCanonicalTrackId() != null) {
+            canonicalTrackIds.put(id, track.getCanonicalTrackId());
+        } else {
+            canonicalTrackIds.remove(id);
+        }
+        if (filePath != null && defaultUri(filePath).equals(track.getUri())) {
+            customUris.remove(id);
+        } else {
+            customUris.put(id, track.getUri());
+        }
+    }
+    
+    /**
+     * Open a row for a new id at its sorted position. Ids are handed out in
+     * increasing order, so this is an append except when concurrent writers
+     * report their tracks out of order, which costs a shift of the later rows.
+     */
+    private int insertRow(int row, long id) {
+        if (row < rowCount && deletedCount > 0) {
+            // Deleted flags do not shift with the rows; drop those rows first
+            compact();
+            row = -Arrays.binarySearch(ids, 0, rowCount, id) - 1;
+        }
+        if (rowCount == ids.length) {
+            resize(rowCount * 2);
+        }
+        if (row < rowCount) {
+            int moved = rowCount - row;
+            for (Object column : columns()) {
+                System.arraycopy(column, row, column, row + 1, moved);
+            }
+        }
+        ids[row] = id;
+        rowCount++;
+        return row;
+    }
+    
+    private void remove(long trackId) {
+        int row = findRow(trackId);
+        if (row >= 0) {
+            deleted.set(row);
+            deletedCount++;
+            releaseText(titleRefs[row]);
+            releaseText(fileNameRefs[row]);
+            titleRefs[row] = NO_TEXT;
+            fileNameRefs[row] = NO_TEXT;
+        }
+        canonicalTrackIds.remove(trackId);
+        customUris.remove(trackId);
+    }
+    
+    private void compactIfNeeded() {
+        if (deletedCount >= MIN_DELETED_TO_COMPACT && deletedCount * 4 >= rowCount
+                || wastedText >= MIN_WASTED_TEXT_TO_COMPACT && wastedText * 2 >= textLength) {
+            compact();
+        }
+    }
+    
+    /**
+     * Drop deleted rows and re-encode the dictionaries and the text buffer,
+     * leaving out values no longer used
+     */
+    private void compact() {
+        Dictionary oldArtists = artists;
+        Dictionary oldAlbums = albums;
+        Dictionary oldDirectories = directories;
+        Dictionary oldAlbumArt = albumArt;
+        artists = new Dictionary();
+        albums = new Dictionary();
+        directories = new Dictionary();
+        albumArt = new Dictionary();
+        byte[] oldText = text;
+        text = new byte[Math.max(INITIAL_CAPACITY * 32, textLength - wastedText)];
+        textLength = 0;
+        wastedText = 0;
+        
+        int kept = 0;
+        for (int row = 0; row < rowCount; row++) {
+            if (deleted.get(row)) {
+                continue;
+            }
+            ids[kept] = ids[row];
+            titleRefs[kept] = copyText(oldText, titleRefs[row]);
+            artistCodes[kept] = artists.encode(oldArtists.decode(artistCodes[row]));
+            albumCodes[kept] = albums.encode(oldAlbums.decode(albumCodes[row]));
+            directoryCodes[kept] = directories.encode(oldDirectories.decode(directoryCodes[row]));
+            fileNameRefs[kept] = copyText(oldText, fileNameRefs[row]);
+            durations[kept] = durations[row];
+            artCodes[kept] = albumArt.encode(oldAlbumArt.decode(artCodes[row]));
+            loudness[kept] = loudness[row];
+            truePeaks[kept] = truePeaks[row];
+            kept++;
+        }
+        rowCount = kept;
+        deleted.clear();
+        deletedCount = 0;
+        resize(Math.max(INITIAL_CAPACITY, rowCount + (rowCount >> 1)));
+    }
+    
+    private void resize(int capacity) {
+        ids = Arrays.copyOf(ids, capacity);
+        titleRefs = Arrays.copyOf(titleRefs, capacity);
+        artistCodes = Arrays.copyOf(artistCodes, capacity);
+        albumCodes = Arrays.copyOf(albumCodes, capacity);
+        directoryCodes = Arrays.copyOf(directoryCodes, capacity);
+        fileNameRefs = Arrays.copyOf(fileNameRefs, capacity);
+        durations = Arrays.copyOf(durations, capacity);
+        artCodes = Arrays.copyOf(artCodes, capacity);
+        loudness = Arrays.copyOf(loudness, capacity);
+        truePeaks = Arrays.copyOf(truePeaks, capacity);
+    }
+    
+    private Object[] columns() {
+        return new Object[] {ids, titleRefs, artistCodes, albumCodes, directoryCodes, fileNameRefs, durations,
+                             artCodes, loudness, truePeaks};
+    }
+    
+    private void clear() {
+        rowCount = 0;
+        deleted.clear();
+        deletedCount = 0;
+        artists = new Dictionary();
+        albums = new Dictionary();
+        directories = new Dictionary();
+        albumArt = new Dictionary();
+        canonicalTrackIds.clear();
+        customUris.clear();
+        resize(INITIAL_CAPACITY);
+        text = new byte[INITIAL_CAPACITY * 32];
+        textLength = 0;
+        wastedText = 0;
+    }
+    
+    private long storeText(String value) {
+        if (value == null) {
+            return NO_TEXT;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return appendText(bytes, 0, bytes.length);
+    }
+    
+    private long appendText(byte[] source, int offset, int length) {
+        if (textLength + length > text.length) {
+            text = Arrays.copyOf(text, Math.max(text.length * 2, textLength + length));
+        }
+        System.arraycopy(source, offset, text, textLength, length);
+        long ref = (long) textLength << 32 | length;
+        textLength += length;
+        return ref;
+    }
+    
+    private long copyText(byte[] source, long ref) {
+        return ref != NO_TEXT ? appendText(source, (int) (ref >>> 32), (int) ref) : NO_TEXT;
+    }
+    
+    private String loadText(long ref) {
+        return ref != NO_TEXT ? new String(text, (int) (ref >>> 32), (int) ref, StandardCharsets.UTF_8) : null;
+    }
+    
+    private void releaseText(long ref) {
+        if (ref != NO_TEXT) {
+            wastedText += (int) ref;
+        }
+    }
+    
+    private static String defaultUri(String filePath) {
+        return "file://" + filePath;
+    }
+}
@@ -0,0 +1,158 @@
+package com.samsung.multiroom.service;
+
+import com.samsung.multiroom.model.TrackSummary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * Groups tracks whose files carry the same audio (the content hash in the scan
+ * manifest) into duplicate clusters. The track with the lowest id stands for
+ * the cluster; the other copies point at it and are left out of search and
+ * browsing.
+ */
+@Service
+public class TrackDuplicateService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(TrackDuplicateService.class);
+    
+    // Values per IN list
+    private static final int BATCH_SIZE = 1000;
+    
+    public static final int MAX_PAGE_SIZE = 500;
+    
+    @Autowired
+    private NamedParameterJdbcTemplate jdbcTemplate;
+    
+    @Autowired
+    private TrackLibraryService trackLibraryService;
+    
+    /**
+     * Copies of the same audio: the canonical track and every copy's file
+     */
+    public static class DuplicateCluster {
+        private final String contentHash;
+        private final TrackSummary canonical;
+        private final List<Copy> copies = new ArrayList<>();
+        
+        public DuplicateCluster(String contentHash, TrackSummary canonical) {
+            this.contentHash = contentHash;
+            this.canonical = canonical;
+        }
+        
+        public String getContentHash() { return contentHash; }
+        public TrackSummary getCanonical() { return canonical; }
+        public List<Copy> getCopies() { return copies; } // canonical first
+    }
+    
+    public static class Copy {
+        private final long trackId;
+        private final String filePath;
+        
+        public Copy(long trackId, String filePath) {
+            this.trackId = trackId;
+            this.filePath = filePath;
+        }
+        
+        public long getTrackId() { return trackId; }
+        public String getFilePath() { return filePath; }
+    }
+    
+    /**
+     * Recompute the clusters of the given content hashes after their files were
+     * added, changed or removed, updating only tracks whose canonical track changed
+     */
+    public void updateClusters(Collection<String> contentHashes) {
+        Map<Long, Long> changes = new HashMap<>();
+        // Only tracks whose canonical track is wrong come back, however large the cluster
+        forEachHashBatch(contentHashes, parameters -> jdbcTemplate.query(
+                "SELECT t.id, c.canonical_id FROM scanned_files s JOIN tracks t ON t.id = s.track_id"
+                + " JOIN (SELECT content_hash, MIN(track_id) AS canonical_id FROM scanned_files"
+                + " WHERE content_hash IN (:hashes) GROUP BY content_hash) c ON c.content_hash = s.content_hash"
+                + " WHERE s.content_hash IN (:hashes)"
+                + " AND (t.id = c.canonical_id AND t.canonical_track_id IS NOT NULL"
+                + " OR t.id <> c.canonical_id AND (t.canonical_track_id IS NULL OR t.canonical_track_id <> c.canonical_id))",
+                parameters, row -> {
+                    long trackId = row.getLong("id");
+                    long canonicalId = row.getLong("canonical_id");
+                    changes.put(trackId, trackId == canonicalId ? null : canonicalId);
+                }));
+        
+        if (!changes.isEmpty()) {
+            trackLibraryService.setCanonicalTracks(changes);
+            logger.debug("Updated the canonical track of {} tracks", changes.size());
+        }
+    }
+    
+    /**
+     * The current canonical track of each content hash that has one. A new file
+     * with one of these hashes can be stored as a duplicate straight away.
+     */
+    public Map<String, Long> findCanonicalTrackIds(Collection<String> contentHashes) {
+        Map<String, Long> canonicalIds = new HashMap<>();
+        forEachHashBatch(contentHashes, parameters -> jdbcTemplate.query(
+                "SELECT content_hash, MIN(track_id) AS canonical_id FROM scanned_files"
+                + " WHERE content_hash IN (:hashes) AND track_id IS NOT NULL GROUP BY content_hash",
+                parameters, row -> {
+                    canonicalIds.put(row.getString("content_hash"), row.getLong("canonical_id"));
+                }));
+        return canonicalIds;
+    }
+    
+    private static void forEachHashBatch(Collection<String> contentHashes, Consumer<MapSqlParameterSource> query) {
+        List<String> hashes = new ArrayList<>(new HashSet<>(contentHashes));
+        hashes.removeIf(Objects::isNull);
+        for (int start = 0; start < hashes.size(); start += BATCH_SIZE) {
+            query.accept(new MapSqlParameterSource(
+                    "hashes", hashes.subList(start, Math.min(start + BATCH_SIZE, hashes.size()))));
+        }
+    }
+    
+    /**
+     * Clusters with more than one copy, ordered by content hash; the cursor is the last hash returned
+     */
+    public TrackFacetService.FacetPage<DuplicateCluster> getClusters(String after, int limit) {
+        int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        MapSqlParameterSource parameters = new MapSqlParameterSource()
+                .addValue("after", after != null ? after : "")
+                .addValue("limit", pageSize);
+        List<String> hashes = jdbcTemplate.queryForList("SELECT content_hash FROM scanned_files"
+                + " WHERE content_hash > :after GROUP BY content_hash HAVING COUNT(*) > 1"
+                + " ORDER BY content_hash LIMIT :limit", parameters, String.class);
+        if (hashes.isEmpty()) {
+            return new TrackFacetService.FacetPage<>(new ArrayList<>(), null);
+        }
+        
+        Map<String, DuplicateCluster> clusters = new LinkedHashMap<>();
+        jdbcTemplate.query("SELECT s.content_hash, s.file_path, t.id, t.title, t.artist, t.album, t.duration"
+                + " FROM scanned_files s JOIN tracks t ON t.id = s.track_id WHERE s.content_hash IN (:hashes)"
+                + " ORDER BY s.content_hash, t.id", new MapSqlParameterSource("hashes", hashes), row -> {
+            long trackId = row.getLong("id");
+            String hash = row.getString("content_hash");
+            DuplicateCluster cluster = clusters.get(hash);
+            if (cluster == null) {
+                // Rows come in track id order, so the first is the canonical track
+                cluster = new DuplicateCluster(hash, new TrackSummary(trackId, row.getString("title"),
+                        row.getString("artist"), row.getString("album"), row.getInt("duration")));
+                clusters.put(hash, cluster);
+            }
+            cluster.copies.add(new Copy(trackId, row.getString("file_path")));
+        });
+        
+        String nextCursor = hashes.size() == pageSize ? hashes.get(hashes.size() - 1) : null;
+        return new TrackFacetService.FacetPage<>(new ArrayList<>(clusters.values()), nextCursor);
+    }
+}
@@ -0,0 +1,324 @@
+package com.samsung.multiroom.service;
+
+import com.samsung.multiroom.model.Track;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * Browse facets over the library: artists, albums per artist and tracks per
+ * album, with counts. The aggregates are kept in sorted maps and updated per
+ * track change, so a browse page costs a seek plus the page size.
+ *
+ * Names are grouped case- and accent-insensitively; the cursor for the next
+ * page is the sort key of the last entry returned.
+ */
+@Service
+public class TrackFacetService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(TrackFacetService.class);
+    
+    public static final int MAX_PAGE_SIZE = 500;
+    
+    private static final String UNKNOWN_ARTIST = "Unknown Artist";
+    private static final String UNKNOWN_ALBUM = "Unknown Album";
+    
+    // Separates the parts of composite sort keys; sorts before any printable character
+    private static final char KEY_SEPARATOR = '\u0000';
+    
+    @Autowired
+    private TrackCatalog trackCatalog;
+    
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    
+    private final TreeMap<String, ArtistFacet> artists = new TreeMap<>();
+    
+    // Album key + artist key -> album, for browsing all albums by name
+    private final TreeMap<String, AlbumFacet> albums = new TreeMap<>();
+    
+    // Track id -> where it is counted, so a change can be undone without the previous version
+    private final Map<Long, TrackEntry> tracks = new HashMap<>();
+    
+    private static class ArtistFacet {
+        final String key;
+        String name;
+        int trackCount;
+        final TreeMap<String, AlbumFacet> albums = new TreeMap<>();
+        
+        ArtistFacet(String key, String name) {
+            this.key = key;
+            this.name = name;
+        }
+    }
+    
+    private static class AlbumFacet {
+        final String key;
+        final String albumKey;
+        final ArtistFacet artist;
+        String name;
+        String albumArt;
+        // Sort key (file path, then id) -> track id; file order usually follows track numbers
+        final TreeMap<String, Long> tracks = new TreeMap<>();
+        
+        AlbumFacet(String key, String albumKey, ArtistFacet artist, String name) {
+            this.key = key;
+            this.albumKey = albumKey;
+            this.artist = artist;
+            this.name = name;
+        }
+    }
+    
+    private static class TrackEntry {
+        final AlbumFacet album;
+        final String sortKey;
+        
+        TrackEntry(AlbumFacet album, String sortKey) {
+            this.album = album;
+            this.sortKey = sortKey;
+        }
+    }
+    
+    /**
+     * An artist with the number of albums and tracks in the library
+     */
+    public static class ArtistSummary {
+        private final String name;
+        private final int albumCount;
+        private final int trackCount;
+        
+        public ArtistSummary(String name, int albumCount, int trackCount) {
+            this.name = name;
+            this.albumCount = albumCount;
+            this.trackCount = trackCount;
+        }
+        
+        public String getName() { return name; }
+        public int getAlbumCount() { return albumCount; }
+        public int getTrackCount() { return trackCount; }
+    }
+    
+    /**
+     * An album with its artist, number of tracks and cover art hash
+     */
+    public static class AlbumSummary {
+        private final String name;
+        private final String artist;
+        private final int trackCount;
+        private final String albumArt;
+        
+        public AlbumSummary(String name, String artist, int trackCount, String albumArt) {
+            this.name = name;
+            this.artist = artist;
+            this.trackCount = trackCount;
+            this.albumArt = albumArt;
+        }
+        
+        public String getName() { return name; }
+        public String getArtist() { return artist; }
+        public int getTrackCount() { return trackCount; }
+        public String getAlbumArt() { return albumArt; }
+    }
+    
+    /**
+     * One page of a facet; pass nextCursor as the next page's cursor
+     */
+    public static class FacetPage<T> {
+        private final List<T> items;
+        private final String nextCursor;
+        
+        public FacetPage(List<T> items, String nextCursor) {
+            this.items = items;
+            this.nextCursor = nextCursor;
+        }
+        
+        public List<T> getItems() { return items; }
+        public String getNextCursor() { return nextCursor; } // null on the last page
+    }
+    
+    /**
+     * Load the facets from the track catalog (at startup, by StartupWarmupService)
+     */
+    public void rebuildFacets() {
+        long start = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try {
+            artists.clear();
+            albums.clear();
+            tracks.clear();
+            
+            trackCatalog.forEachTrack(track -> {
+                if (track.getCanonicalTrackId() == null) { // duplicate copies are not listed
+                    addTrack(track);
+                }
+            });
+        } finally {
+            lock.writeLock().unlock();
+        }
+        logger.info("Built browse facets: {} artists, {} albums in {} ms",
+                   artists.size(), albums.size(), System.currentTimeMillis() - start);
+    }
+    
+    /**
+     * Apply a track change; either side may be null
+     */
+    public void trackChanged(Track previous, Track current) {
+        lock.writeLock().lock();
+        try {
+            if (previous != null && previous.getId() != null) {
+                removeTrack(previous.getId());
+            }
+            if (current != null && current.getId() != null) {
+                removeTrack(current.getId());
+                addTrack(current);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Library totals: number of artists, albums and tracks
+     */
+    public Map<String, Integer> getCounts() {
+        lock.readLock().lock();
+        try {
+            Map<String, Integer> counts = new HashMap<>();
+            counts.put("artists", artists.size());
+            counts.put("albums", albums.size());
+            counts.put("tracks", tracks.size());
+            return counts;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Artists in name order
+     */
+    public FacetPage<ArtistSummary> getArtists(String after, int limit) {
+        lock.readLock().lock();
+        try {
+            return page(artists, after, limit, artist -> new ArtistSummary(
+                    artist.name, artist.albums.size(), artist.trackCount));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Albums in name order, either all of them or one artist's. Returns null if the artist is unknown.
+     */
+    public FacetPage<AlbumSummary> getAlbums(String artist, String after, int limit) {
+        lock.readLock().lock();
+        try {
+            if (artist == null) {
+                return page(albums, after, limit, TrackFacetService::toSummary);
+            }
+            ArtistFacet artistFacet = artists.get(sortKey(artist, UNKNOWN_ARTIST));
+            return artistFacet != null ? page(artistFacet.albums, after, limit, TrackFacetService::toSummary) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Track ids of one album in file order. Returns null if the album is unknown.
+     */
+    public FacetPage<Long> getAlbumTrackIds(String artist, String album, String after, int limit) {
+        lock.readLock().lock();
+        try {
+            ArtistFacet artistFacet = artists.get(sortKey(artist, UNKNOWN_ARTIST));
+            AlbumFacet albumFacet = artistFacet != null ? artistFacet.albums.get(sortKey(album, UNKNOWN_ALBUM)) : null;
+            return albumFacet != null ? page(albumFacet.tracks, after, limit, Function.identity()) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    private void addTrack(Track track) {
+        String artistName = displayName(track.getArtist(), UNKNOWN_ARTIST);
+        String albumName = displayName(track.getAlbum(), UNKNOWN_ALBUM);
+        String artistKey = sortKey(artistName, UNKNOWN_ARTIST);
+        String albumKey = sortKey(albumName, UNKNOWN_ALBUM);
+        
+        ArtistFacet artist = artists.computeIfAbsent(artistKey, key -> new ArtistFacet(key, artistName));
+        AlbumFacet album = artist.albums.get(albumKey);
+        if (album == null) {
+            String key = albumKey + KEY_SEPARATOR + artistKey;
+            album = new AlbumFacet(key, albumKey, artist, albumName);
+            artist.albums.put(albumKey, album);
+            albums.put(key, album);
+        }
+        // The most recently added spelling is the one shown
+        artist.name = artistName;
+        album.name = albumName;
+        if (track.getAlbumArt() != null) {
+            album.albumArt = track.getAlbumArt();
+        }
+        
+        String trackSortKey = (track.getFilePath() != null ? track.getFilePath() : "")
+                + KEY_SEPARATOR + String.format("%019d", track.getId());
+        album.tracks.put(trackSortKey, track.getId());
+        artist.trackCount++;
+        tracks.put(track.getId(), new TrackEntry(album, trackSortKey));
+    }
+    
+    private void removeTrack(Long trackId) {
+        TrackEntry entry = tracks.remove(trackId);
+        if (entry == null) {
+            return;
+        }
+        AlbumFacet album = entry.album;
+        ArtistFacet artist = album.artist;
+        album.tracks.remove(entry.sortKey);
+        artist.trackCount--;
+        
+        if (album.tracks.isEmpty()) {
+            artist.albums.remove(album.albumKey);
+            albums.remove(album.key);
+        }
+        if (artist.albums.isEmpty()) {
+            artists.remove(artist.key);
+        }
+    }
+    
+    private static <V, T> FacetPage<T> page(NavigableMap<String, V> entries, String after, int limit,
+                                          Function<V, T> mapper) {
+        int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        NavigableMap<String, V> remaining = after != null ? entries.tailMap(after, false) : entries;
+        
+        List<T> items = new ArrayList<>();
+        String lastKey = null;
+        for (Map.Entry<String, V> entry : remaining.entrySet()) {
+            if (items.size() == pageSize) {
+                return new FacetPage<>(items, lastKey);
+            }
+            items.add(mapper.apply(entry.getValue()));
+            lastKey = entry.getKey();
+        }
+        return new FacetPage<>(items, null);
+    }
+    
+    private static AlbumSummary toSummary(AlbumFacet album) {
+        return new AlbumSummary(album.name, album.artist.name, album.tracks.size(), album.albumArt);
+    }
+    
+    private static String displayName(String name, String fallback) {
+        return name == null || name.isBlank() ? fallback : name.trim();
+    }
+    
+    private static String sortKey(String name, String fallback) {
+        return TrackSearchService.normalize(displayName(name, fallback));
+    }
+}
@@ -0,0 +1,293 @@
+package com.samsung.multiroom.service;
+
+import com.samsung.multiroom.model.Track;
+import com.samsung.multiroom.repository.TrackRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Single write path for tracks. Every save and delete goes through here so the
+ * in-memory search, suggestion and browse indexes stay in step with the database.
+ * Duplicate copies (tracks with a canonical track) are kept out of the indexes.
+ * Changes made in a transaction reach the indexes only once it has committed.
+ */
+@Service
+public class TrackLibraryService {
+    
+    // Rows per JDBC batch and values per IN list
+    private static final int BATCH_SIZE = 1000;
+    
+    private static final String INSERT_TRACK_SQL =
+            "INSERT INTO tracks (title, artist, album, file_path, uri, duration, album_art, canonical_track_id)"
+            + " VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+    
+    private static final String UPDATE_TRACK_SQL =
+            "UPDATE tracks SET title = ?, artist = ?, album = ?, file_path = ?, uri = ?, duration = ?, album_art = ? WHERE id = ?";
+    
+    private static final String UPDATE_CANONICAL_SQL = "UPDATE tracks SET canonical_track_id = ? WHERE id = ?";
+    
+    @Autowired
+    private TrackRepository trackRepository;
+    
+    @Autowired
+    private NamedParameterJdbcTemplate jdbcTemplate;
+    
+    @Autowired
+    private TrackCatalog trackCatalog;
+    
+    @Autowired
+    private TrackSearchService trackSearchService;
+    
+    @Autowired
+    private TrackSuggestionService trackSuggestionService;
+    
+    @Autowired
+    private TrackFacetService trackFacetService;
+    
+    // Lazy: the duplicate service writes canonical tracks through this one
+    @Autowired
+    @Lazy
+    private TrackDuplicateService trackDuplicateService;
+    
+    /**
+     * Saves a new or updated track
+     */
+    public Track saveTrack(Track track) {
+        // Copy the stored version first: the save may merge into the same managed instance
+        Track previous = track.getId() != null
+                ? trackRepository.findById(track.getId()).map(TrackLibraryService::copyOf).orElse(null)
+                : null;
+        
+        Track savedTrack = trackRepository.save(track);
+        // The canonical track and loudness are not written by saves; keep what is stored
+        keepStoredColumns(savedTrack, previous);
+        trackChanged(previous, savedTrack);
+        return savedTrack;
+    }
+    
+    /**
+     * Saves a batch of new and updated tracks with JDBC batch statements instead
+     * of one JPA save per track. Every track must have a file path, which is how
+     * the ids of inserted rows are looked up afterwards. New tracks may come with
+     * a canonical track; updated ones keep the stored one and their loudness.
+     * An update whose row no longer exists is inserted as a new track.
+     */
+    @Transactional
+    public List<Track> saveTracks(List<Track> tracks) {
+        List<Track> inserts = new ArrayList<>();
+        List<Track> updates = new ArrayList<>();
+        for (Track track : tracks) {
+            (track.getId() == null ? inserts : updates).add(track);
+        }
+        
+        Map<Long, Track> previousById = trackRepository
+                .findAllById(updates.stream().map(Track::getId).collect(Collectors.toList())).stream()
+                .map(TrackLibraryService::copyOf)
+                .collect(Collectors.toMap(Track::getId, Function.identity()));
+        
+        int[][] updateCounts = jdbcTemplate.getJdbcTemplate().batchUpdate(UPDATE_TRACK_SQL, updates, BATCH_SIZE,
+                (statement, track) -> {
+                    setTrackColumns(statement, track);
+                    statement.setLong(8, track.getId());
+                });
+        // Tracks deleted since their id was handed out are written as new ones
+        int index = 0;
+        for (int[] counts : updateCounts) {
+            for (int count : counts) {
+                Track track = updates.get(index++);
+                if (count == 0) {
+                    track.setId(null);
+                    track.setCanonicalTrackId(null);
+                    inserts.add(track);
+                }
+            }
+        }
+        updates.removeIf(track -> track.getId() == null);
+        
+        jdbcTemplate.getJdbcTemplate().batchUpdate(INSERT_TRACK_SQL, inserts, BATCH_SIZE, (statement, track) -> {
+            setTrackColumns(statement, track);
+            if (track.getCanonicalTrackId() != null) {
+                statement.setLong(8, track.getCanonicalTrackId());
+            } else {
+                statement.setNull(8, Types.BIGINT);
+            }
+        });
+        
+        // Generated keys are not reliably returned for batches; file paths are unique
+        Map<String, Long> insertedIds = findTrackIdsByPath(
+                inserts.stream().map(Track::getFilePath).collect(Collectors.toList()));
+        for (Track track : inserts) {
+            track.setId(insertedIds.get(track.getFilePath()));
+        }
+        
+        for (Track track : updates) {
+            keepStoredColumns(track, previousById.get(track.getId()));
+        }
+        afterCommit(() -> {
+            for (Track track : tracks) {
+                trackChanged(previousById.get(track.getId()), track);
+            }
+        });
+        return tracks;
+    }
+    
+    /**
+     * Sets the canonical track of each given track (null for a track that stands
+     * for itself), showing and hiding tracks in the indexes accordingly
+     */
+    @Transactional
+    public void setCanonicalTracks(Map<Long, Long> canonicalTrackIds) {
+        List<Track> previousTracks = trackRepository.findAllById(canonicalTrackIds.keySet()).stream()
+                .map(TrackLibraryService::copyOf)
+                .collect(Collectors.toList());
+        
+        jdbcTemplate.getJdbcTemplate().batchUpdate(UPDATE_CANONICAL_SQL, previousTracks, BATCH_SIZE, (statement, track) -> {
+            Long canonicalTrackId = canonicalTrackIds.get(track.getId());
+            if (canonicalTrackId != null) {
+                statement.setLong(1, canonicalTrackId);
+            } else {
+                statement.setNull(1, Types.BIGINT);
+            }
+            statement.setLong(2, track.getId());
+        });
+        
+        List<Track> currentTracks = new ArrayList<>(previousTracks.size());
+        for (Track previous : previousTracks) {
+            Track current = copyOf(previous);
+            current.setCanonicalTrackId(canonicalTrackIds.get(previous.getId()));
+            currentTracks.add(current);
+        }
+        afterCommit(() -> {
+            for (int i = 0; i < previousTracks.size(); i++) {
+                trackChanged(previousTracks.get(i), currentTracks.get(i));
+            }
+        });
+    }
+    
+    /**
+     * Looks up the ids of the tracks with the given file paths, one query per chunk of paths
+     */
+    public Map<String, Long> findTrackIdsByPath(Collection<String> filePaths) {
+        Map<String, Long> ids = new HashMap<>();
+        List<String> paths = new ArrayList<>(filePaths);
+        for (int start = 0; start < paths.size(); start += BATCH_SIZE) {
+            MapSqlParameterSource parameters = new MapSqlParameterSource(
+                    "paths", paths.subList(start, Math.min(start + BATCH_SIZE, paths.size())));
+            jdbcTemplate.query("SELECT id, file_path FROM tracks WHERE file_path IN (:paths)", parameters,
+                    row -> {
+                        ids.put(row.getString("file_path"), row.getLong("id"));
+                    });
+        }
+        return ids;
+    }
+    
+    /**
+     * Deletes a track, returning false if it does not exist. The scanned file
+     * it came from keeps its manifest entry but no longer points at a track,
+     * and if the track was the canonical copy of a duplicate cluster the next
+     * copy takes over.
+     */
+    @Transactional
+    public boolean deleteTrack(Long trackId) {
+        Track previous = trackRepository.findById(trackId).map(TrackLibraryService::copyOf).orElse(null);
+        if (previous == null) {
+            return false;
+        }
+        
+        MapSqlParameterSource parameters = new MapSqlParameterSource("id", trackId);
+        List<String> contentHashes = jdbcTemplate.queryForList("SELECT content_hash FROM scanned_files"
+                + " WHERE track_id = :id AND content_hash IS NOT NULL", parameters, String.class);
+        
+        trackRepository.deleteById(trackId);
+        jdbcTemplate.update("UPDATE scanned_files SET track_id = NULL WHERE track_id = :id", parameters);
+        afterCommit(() -> trackChanged(previous, null));
+        if (!contentHashes.isEmpty()) {
+            trackDuplicateService.updateClusters(contentHashes);
+        }
+        return true;
+    }
+    
+    /**
+     * Applies a track change to the catalog and the in-memory indexes; either side may be null
+     */
+    public void trackChanged(Track previous, Track current) {
+        trackCatalog.trackChanged(previous, current);
+        
+        Track shownBefore = previous != null && previous.getCanonicalTrackId() == null ? previous : null;
+        Track shownAfter = current != null && current.getCanonicalTrackId() == null ? current : null;
+        
+        if (shownAfter != null) {
+            trackSearchService.indexTrack(shownAfter);
+        } else if (shownBefore != null) {
+            trackSearchService.removeTrack(shownBefore.getId());
+        }
+        trackSuggestionService.trackChanged(shownBefore, shownAfter);
+        trackFacetService.trackChanged(shownBefore, shownAfter);
+    }
+    
+    /**
+     * Runs an index update once the current transaction has committed, so readers
+     * never see rows that may yet be rolled back; at once outside a transaction
+     */
+    private static void afterCommit(Runnable update) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            update.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                update.run();
+            }
+        });
+    }
+    
+    private static void setTrackColumns(PreparedStatement statement, Track track) throws SQLException {
+        statement.setString(1, track.getTitle());
+        statement.setString(2, track.getArtist());
+        statement.setString(3, track.getAlbum());
+        statement.setString(4, track.getFilePath());
+        statement.setString(5, track.getUri());
+        statement.setInt(6, track.getDuration());
+        if (track.getAlbumArt() != null) {
+            statement.setString(7, track.getAlbumArt());
+        } else {
+            statement.setNull(7, Types.VARCHAR);
+        }
+    }
+    
+    private static void keepStoredColumns(Track track, Track previous) {
+        track.setCanonicalTrackId(previous != null ? previous.getCanonicalTrackId() : null);
+        track.setLoudness(previous != null ? previous.getLoudness() : null);
+        track.setTruePeak(previous != null ? previous.getTruePeak() : null);
+    }
+    
+    private static Track copyOf(Track track) {
+        Track copy = new Track(track.getTitle(), track.getArtist(), track.getAlbum(),
+                               track.getFilePath(), track.getDuration());
+        copy.setId(track.getId());
+        copy.setUri(track.getUri());
+        copy.setAlbumArt(track.getAlbumArt());
+        copy.setCanonicalTrackId(track.getCanonicalTrackId());
+        copy.setLoudness(track.getLoudness());
+        copy.setTruePeak(track.getTruePeak());
+        return copy;
+    }
+}
@@ -0,0 +1,118 @@
+package com.samsung.multiroom.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.samsung.multiroom.model.Track;
+import com.samsung.multiroom.model.TrackSummary;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Lists the track library: keyset pages of track summaries from the track
+ * catalog, and streams that write the whole library page by page, so neither
+ * the list nor a database connection is held for the length of a download.
+ * Duplicate copies are left out, as they are from search and browsing; the
+ * export keeps them so an import restores the library as it was.
+ */
+@Service
+public class TrackListingService {
+    
+    public static final int MAX_PAGE_SIZE = 1000;
+    
+    // Tracks read from the catalog at a time while streaming
+    private static final int STREAM_PAGE_SIZE = 1000;
+    
+    @Autowired
+    private TrackCatalog trackCatalog;
+    
+    @Autowired
+    private ObjectMapper objectMapper;
+    
+    /**
+     * A page of track summaries; pass nextCursor as the next page's cursor
+     */
+    public static class TrackPage {
+        private final List<TrackSummary> tracks;
+        private final Long nextCursor;
+        
+        public TrackPage(List<TrackSummary> tracks, Long nextCursor) {
+            this.tracks = tracks;
+            this.nextCursor = nextCursor;
+        }
+        
+        public List<TrackSummary> getTracks() { return tracks; }
+        public Long getNextCursor() { return nextCursor; } // null on the last page
+    }
+    
+    /**
+     * Get the tracks after a cursor (a track id) in id order. Pages are served
+     * from the track catalog, seeking on the id column, so the last page costs
+     * the same as the first.
+     */
+    public TrackPage getPage(long afterId, int limit) {
+        int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        List<TrackSummary> tracks = trackCatalog.getSummariesAfter(afterId, pageSize);
+        Long nextCursor = tracks.size() == pageSize ? tracks.get(tracks.size() - 1).getId() : null;
+        return new TrackPage(tracks, nextCursor);
+    }
+    
+    /**
+     * Write every track summary as newline-delimited JSON
+     */
+    public void writeSummariesNdjson(OutputStream out) throws IOException {
+        ObjectWriter writer = objectMapper.writerFor(TrackSummary.class);
+        List<TrackSummary> page;
+        long afterId = 0;
+        do {
+            page = trackCatalog.getSummariesAfter(afterId, STREAM_PAGE_SIZE);
+            for (TrackSummary summary : page) {
+                out.write(writer.writeValueAsBytes(summary));
+                out.write('\n');
+                afterId = summary.getId();
+            }
+        } while (page.size() == STREAM_PAGE_SIZE);
+    }
+    
+    /**
+     * Write every track as one JSON array, track by track
+     */
+    public void writeTracksJsonArray(OutputStream out) throws IOException {
+        try (SequenceWriter writer = objectMapper.writer().writeValuesAsArray(out)) {
+            streamTracks(false, writer::write);
+        }
+    }
+    
+    /**
+     * Write every track, duplicates included, as newline-delimited JSON, the
+     * format bulk import reads
+     */
+    public void writeTracksNdjson(OutputStream out) throws IOException {
+        ObjectWriter writer = objectMapper.writerFor(Track.class);
+        streamTracks(true, track -> {
+            out.write(writer.writeValueAsBytes(track));
+            out.write('\n');
+        });
+    }
+    
+    private interface TrackWriter {
+        void write(Track track) throws IOException;
+    }
+    
+    // Each page takes the catalog's read lock only while it is copied, never while the client reads
+    private void streamTracks(boolean includeDuplicates, TrackWriter trackWriter) throws IOException {
+        List<Track> page;
+        long afterId = 0;
+        do {
+            page = trackCatalog.getTracksAfter(afterId, STREAM_PAGE_SIZE, includeDuplicates);
+            for (Track track : page) {
+                trackWriter.write(track);
+                afterId = track.getId();
+            }
+        } while (page.size() == STREAM_PAGE_SIZE);
+    }
+}
@@ -0,0 +1,602 @@
+package com.samsung.multiroom.service;
+
+import com.samsung.multiroom.model.Track;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory inverted index over the title, artist and album of every track.
+ * Terms are case-folded and accent-stripped; each posting packs a document
+ * number and the fields the term occurs in into a single int. A trigram index
+ * over the term dictionary supports typo-tolerant (fuzzy) lookups.
+ */
+@Service
+public class TrackSearchService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(TrackSearchService.class);
+    
+    // Field flags kept in the low bits of each posting
+    private static final int TITLE = 1;
+    private static final int ARTIST = 2;
+    private static final int ALBUM = 4;
+    private static final int FIELD_BITS = 3;
+    private static final int FIELD_MASK = (1 << FIELD_BITS) - 1;
+    
+    // Most dictionary terms a misspelled query token may expand to
+    private static final int MAX_FUZZY_TERMS = 32;
+    
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+    private static final Pattern TOKEN_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+    
+    @Autowired
+    private TrackCatalog trackCatalog;
+    
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    
+    // Term dictionary, sorted so the last query token can be expanded as a prefix
+    private final TreeMap<String, PostingList> postings = new TreeMap<>();
+    
+    // Document number -> track id; documents are append-only and deleted ones are flagged
+    private long[] docTrackIds = new long[1024];
+    private int docCount = 0;
+    private final BitSet deletedDocs = new BitSet();
+    private int deletedCount = 0;
+    private final Map<Long, Integer> trackDocs = new HashMap<>();
+    
+    // Trigram -> ids of dictionary terms containing it. Term ids are never reused;
+    // terms whose postings were compacted away are skipped at lookup time.
+    private final Map<Long, IntList> trigramTerms = new HashMap<>();
+    private final Map<String, Integer> termIds = new HashMap<>();
+    private String[] termsById = new String[1024];
+    private int termCount = 0;
+    
+    /**
+     * Growable list of ints
+     */
+    private static class IntList {
+        private int[] values = new int[4];
+        private int size = 0;
+        
+        public void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+    
+    /**
+     * Growable, sorted list of packed (document, fields) postings for one term
+     */
+    private static class PostingList {
+        private int[] entries = new int[2];
+        private int size = 0;
+        
+        public void add(int doc, int fields) {
+            if (size == entries.length) {
+                entries = Arrays.copyOf(entries, size + (size >> 1) + 1);
+            }
+            entries[size++] = (doc << FIELD_BITS) | fields;
+        }
+        
+        public int size() { return size; }
+        public int doc(int i) { return entries[i] >>> FIELD_BITS; }
+        public int fields(int i) { return entries[i] & FIELD_MASK; }
+        
+        // Drops postings of deleted documents and trims spare capacity
+        public void compact(BitSet deletedDocs) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (!deletedDocs.get(doc(i))) {
+                    entries[kept++] = entries[i];
+                }
+            }
+            size = kept;
+            entries = Arrays.copyOf(entries, Math.max(kept, 1));
+        }
+    }
+    
+    /**
+     * One page of ranked search results
+     */
+    public static class SearchResult {
+        private final List<Long> trackIds;
+        private final int totalMatches;
+        
+        public SearchResult(List<Long> trackIds, int totalMatches) {
+            this.trackIds = trackIds;
+            this.totalMatches = totalMatches;
+        }
+        
+        public List<Long> getTrackIds() { return trackIds; }
+        public int getTotalMatches() { return totalMatches; }
+    }
+    
+    /**
+     * Builds the index from the track catalog (at startup, by StartupWarmupService)
+     */
+    public void rebuildIndex() {
+        long start = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try {
+            postings.clear();
+            docTrackIds = new long[1024];
+            docCount = 0;
+            deletedDocs.clear();
+            deletedCount = 0;
+            trackDocs.clear();
+            trigramTerms.clear();
+            termIds.clear();
+            termsById = new String[1024];
+            termCount = 0;
+            
+            trackCatalog.forEachTrack(track -> {
+                if (track.getCanonicalTrackId() == null) { // duplicate copies are not listed
+                    addDocument(track);
+                }
+            });
+        } finally {
+            lock.writeLock().unlock();
+        }
+        logger.info("Indexed {} tracks ({} terms) in {} ms",
+                   trackDocs.size(), postings.size(), System.currentTimeMillis() - start);
+    }
+    
+    /**
+     * Adds a saved track to the index, replacing any previous version of it
+     */
+    public void indexTrack(Track track) {
+        if (track == null || track.getId() == null) {
+            return;
+        }
+        
+        lock.writeLock().lock();
+        try {
+            deleteDocument(track.getId());
+            addDocument(track);
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Removes a deleted track from the index
+     */
+    public void removeTrack(Long trackId) {
+        lock.writeLock().lock();
+        try {
+            deleteDocument(trackId);
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Finds tracks containing every query term in their title, artist or album.
+     * The last term also matches as a prefix so results update while typing.
+     */
+    public SearchResult search(String query, int page, int size) {
+        return search(query, page, size, false);
+    }
+    
+    /**
+     * Like search, but each query term also matches dictionary terms within a small
+     * edit distance, ranked by how similar they are
+     */
+    public SearchResult fuzzySearch(String query, int page, int size) {
+        return search(query, page, size, true);
+    }
+    
+    private SearchResult search(String query, int page, int size, boolean fuzzy) {
+        List<String> tokens = tokenize(query);
+        if (tokens.isEmpty() || page < 0 || size <= 0) {
+            return new SearchResult(List.of(), 0);
+        }
+        
+        lock.readLock().lock();
+        try {
+            int liveDocs = docCount - deletedCount;
+            
+            // Score each token separately, then intersect starting from the rarest
+            List<ScoredDocs> perToken = new ArrayList<>();
+            for (int i = 0; i < tokens.size(); i++) {
+                ScoredDocs scored = fuzzy
+                        ? scoreFuzzyToken(tokens.get(i), liveDocs)
+                        : scoreToken(tokens.get(i), i == tokens.size() - 1, liveDocs);
+                if (scored.size == 0) {
+                    return new SearchResult(List.of(), 0);
+                }
+                perToken.add(scored);
+            }
+            perToken.sort(Comparator.comparingInt(scored -> scored.size));
+            
+            ScoredDocs matches = perToken.get(0);
+            for (int i = 1; i < perToken.size() && matches.size > 0; i++) {
+                matches = matches.intersect(perToken.get(i));
+            }
+            
+            return new SearchResult(topTrackIds(matches, page, size), matches.size);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Case-folds, strips accents and splits text into index terms
+     */
+    public static List<String> tokenize(String text) {
+        if (text == null || text.isBlank()) {
+            return List.of();
+        }
+        
+        List<String> tokens = new ArrayList<>();
+        for (String token : TOKEN_SEPARATOR.split(normalize(text))) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+    
+    /**
+     * Case-folds and strips accents without splitting
+     */
+    public static String normalize(String text) {
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        return DIACRITICS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+    }
+    
+    /**
+     * Documents matching one token, sorted by document number, with a score each
+     */
+    private static class ScoredDocs {
+        private final int[] docs;
+        private final float[] scores;
+        private final int size;
+        
+        public ScoredDocs(int[] docs, float[] scores, int size) {
+            this.docs = docs;
+            this.scores = scores;
+            this.size = size;
+        }
+        
+        // Keeps documents present in both, summing their scores
+        public ScoredDocs intersect(ScoredDocs other) {
+            int[] resultDocs = new int[Math.min(size, other.size)];
+            float[] resultScores = new float[resultDocs.length];
+            int i = 0, j = 0, n = 0;
+            while (i < size && j < other.size) {
+                if (docs[i] < other.docs[j]) {
+                    i++;
+                } else if (docs[i] > other.docs[j]) {
+                    j++;
+                } else {
+                    resultDocs[n] = docs[i];
+                    resultScores[n++] = scores[i++] + other.scores[j++];
+                }
+            }
+            return new ScoredDocs(resultDocs, resultScores, n);
+        }
+    }
+    
+    /**
+     * Collects and scores the live documents for a token (caller holds the read lock)
+     */
+    private ScoredDocs scoreToken(String token, boolean prefix, int liveDocs) {
+        List<PostingList> lists = new ArrayList<>();
+        List<Float> matchWeights = new ArrayList<>();
+        
+        PostingList exactList = postings.get(token);
+        if (exactList != null) {
+            lists.add(exactList);
+            matchWeights.add(1.0f);
+        }
+        if (prefix) {
+            for (Map.Entry<String, PostingList> entry : postings.subMap(token, false, token + Character.MAX_VALUE, false).entrySet()) {
+                lists.add(entry.getValue());
+                matchWeights.add(0.5f);
+            }
+        }
+        
+        return mergePostings(lists, matchWeights, liveDocs);
+    }
+    
+    /**
+     * Collects the live documents of all dictionary terms close to a token.
+     * Candidates come from the trigram index and are pruned by length and shared
+     * trigram count before the edit distance is checked (caller holds the read lock).
+     */
+    private ScoredDocs scoreFuzzyToken(String token, int liveDocs) {
+        int maxEdits = token.length() <= 2 ? 0 : token.length() <= 5 ? 1 : 2;
+        
+        // Each edit, including swapping two adjacent letters, changes at most four trigrams
+        long[] queryTrigrams = trigrams(token);
+        int minShared = queryTrigrams.length - 4 * maxEdits;
+        
+        Map<Integer, Integer> sharedCounts = new HashMap<>();
+        for (long trigram : new HashSet<>(asList(queryTrigrams))) {
+            IntList terms = trigramTerms.get(trigram);
+            if (terms != null) {
+                for (int i = 0; i < terms.size; i++) {
+                    sharedCounts.merge(terms.values[i], 1, Integer::sum);
+                }
+            }
+        }
+        
+        List<String> candidates = new ArrayList<>();
+        List<Float> similarities = new ArrayList<>();
+        for (Map.Entry<Integer, Integer> shared : sharedCounts.entrySet()) {
+            String term = termsById[shared.getKey()];
+            if (shared.getValue() < minShared || Math.abs(term.length() - token.length()) > maxEdits) {
+                continue;
+            }
+            int distance = boundedEditDistance(token, term, maxEdits);
+            if (distance <= maxEdits && postings.containsKey(term)) {
+                candidates.add(term);
+                similarities.add(1.0f - (float) distance / Math.max(token.length(), term.length()));
+            }
+        }
+        
+        // Keep only the closest terms so very common trigrams cannot blow up the result
+        Integer[] order = new Integer[candidates.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Float.compare(similarities.get(b), similarities.get(a)));
+        
+        List<PostingList> lists = new ArrayList<>();
+        List<Float> matchWeights = new ArrayList<>();
+        for (int i = 0; i < order.length && i < MAX_FUZZY_TERMS; i++) {
+            lists.add(postings.get(candidates.get(order[i])));
+            float similarity = similarities.get(order[i]);
+            matchWeights.add(similarity * similarity);
+        }
+        
+        return mergePostings(lists, matchWeights, liveDocs);
+    }
+    
+    /**
+     * Unions posting lists into scored documents, keeping the best score per document
+     */
+    private ScoredDocs mergePostings(List<PostingList> lists, List<Float> matchWeights, int liveDocs) {
+        int total = 0;
+        for (PostingList list : lists) {
+            total += list.size();
+        }
+        
+        // Gather (doc, score) pairs, then sort by doc and merge duplicates from different terms
+        long[] packed = new long[total];
+        int n = 0;
+        for (int l = 0; l < lists.size(); l++) {
+            PostingList list = lists.get(l);
+            float idf = (float) Math.log(1.0 + (double) liveDocs / Math.max(1, list.size()));
+            float termWeight = idf * matchWeights.get(l);
+            for (int i = 0; i < list.size(); i++) {
+                int doc = list.doc(i);
+                if (!deletedDocs.get(doc)) {
+                    float score = termWeight * fieldWeight(list.fields(i));
+                    packed[n++] = ((long) doc << 32) | (Float.floatToIntBits(score) & 0xFFFFFFFFL);
+                }
+            }
+        }
+        if (lists.size() > 1) {
+            Arrays.sort(packed, 0, n);
+        }
+        
+        int[] docs = new int[n];
+        float[] scores = new float[n];
+        int size = 0;
+        for (int i = 0; i < n; i++) {
+            int doc = (int) (packed[i] >>> 32);
+            float score = Float.intBitsToFloat((int) packed[i]);
+            if (size > 0 && docs[size - 1] == doc) {
+                scores[size - 1] = Math.max(scores[size - 1], score);
+            } else {
+                docs[size] = doc;
+                scores[size++] = score;
+            }
+        }
+        return new ScoredDocs(docs, scores, size);
+    }
+    
+    /**
+     * Trigrams of a term padded with two leading and one trailing marker, packed into longs
+     */
+    private static long[] trigrams(String term) {
+        String padded = "\u0000\u0000" + term + "\u0000";
+        long[] trigrams = new long[padded.length() - 2];
+        for (int i = 0; i < trigrams.length; i++) {
+            trigrams[i] = ((long) padded.charAt(i) << 32) | ((long) padded.charAt(i + 1) << 16) | padded.charAt(i + 2);
+        }
+        return trigrams;
+    }
+    
+    private static List<Long> asList(long[] values) {
+        List<Long> list = new ArrayList<>(values.length);
+        for (long value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+    
+    /**
+     * Edit distance counting insertions, deletions, substitutions and adjacent swaps,
+     * giving up with maxEdits + 1 as soon as it must exceed maxEdits
+     */
+    private static int boundedEditDistance(String a, String b, int maxEdits) {
+        int[] beforePrevious = new int[b.length() + 1];
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int rowMin = current[0];
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    current[j] = Math.min(current[j], beforePrevious[j - 2] + 1);
+                }
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (rowMin > maxEdits) {
+                return maxEdits + 1;
+            }
+            int[] recycled = beforePrevious;
+            beforePrevious = previous;
+            previous = current;
+            current = recycled;
+        }
+        return previous[b.length()];
+    }
+    
+    private static float fieldWeight(int fields) {
+        float weight = 0;
+        if ((fields & TITLE) != 0) weight += 3;
+        if ((fields & ARTIST) != 0) weight += 2;
+        if ((fields & ALBUM) != 0) weight += 1;
+        return weight;
+    }
+    
+    /**
+     * Picks one page of track ids by descending score (caller holds the read lock)
+     */
+    private List<Long> topTrackIds(ScoredDocs matches, int page, int size) {
+        long from = (long) page * size;
+        if (from >= matches.size) {
+            return List.of();
+        }
+        
+        int limit = (int) Math.min(matches.size, from + size);
+        Comparator<Integer> byRank = (a, b) -> {
+            int cmp = Float.compare(matches.scores[b], matches.scores[a]);
+            return cmp != 0 ? cmp : Integer.compare(matches.docs[a], matches.docs[b]);
+        };
+        
+        // Bounded heap of the best 'limit' matches, worst on top
+        PriorityQueue<Integer> best = new PriorityQueue<>(limit, byRank.reversed());
+        for (int i = 0; i < matches.size; i++) {
+            best.add(i);
+            if (best.size() > limit) {
+                best.poll();
+            }
+        }
+        
+        List<Integer> ranked = new ArrayList<>(best);
+        ranked.sort(byRank);
+        
+        List<Long> trackIds = new ArrayList<>(size);
+        for (int i = (int) from; i < limit; i++) {
+            trackIds.add(docTrackIds[matches.docs[ranked.get(i)]]);
+        }
+        return trackIds;
+    }
+    
+    /**
+     * Appends a track as a new document (caller holds the write lock)
+     */
+    private void addDocument(Track track) {
+        Map<String, Integer> termFields = new HashMap<>();
+        collectTerms(track.getTitle(), TITLE, termFields);
+        collectTerms(track.getArtist(), ARTIST, termFields);
+        collectTerms(track.getAlbum(), ALBUM, termFields);
+        
+        if (docCount == docTrackIds.length) {
+            docTrackIds = Arrays.copyOf(docTrackIds, docCount * 2);
+        }
+        int doc = docCount++;
+        docTrackIds[doc] = track.getId();
+        trackDocs.put(track.getId(), doc);
+        
+        for (Map.Entry<String, Integer> entry : termFields.entrySet()) {
+            postings.computeIfAbsent(entry.getKey(), this::newTerm).add(doc, entry.getValue());
+        }
+    }
+    
+    /**
+     * Creates the posting list of a term and registers the term's trigrams the first time it is seen
+     */
+    private PostingList newTerm(String term) {
+        if (!termIds.containsKey(term)) {
+            if (termCount == termsById.length) {
+                termsById = Arrays.copyOf(termsById, termCount * 2);
+            }
+            int termId = termCount++;
+            termsById[termId] = term;
+            termIds.put(term, termId);
+            for (long trigram : new HashSet<>(asList(trigrams(term)))) {
+                trigramTerms.computeIfAbsent(trigram, k -> new IntList()).add(termId);
+            }
+        }
+        return new PostingList();
+    }
+    
+    private void collectTerms(String text, int field, Map<String, Integer> termFields) {
+        for (String token : tokenize(text)) {
+            termFields.merge(token, field, (a, b) -> a | b);
+        }
+    }
+    
+    /**
+     * Flags the document of a track as deleted (caller holds the write lock)
+     */
+    private void deleteDocument(Long trackId) {
+        Integer doc = trackDocs.remove(trackId);
+        if (doc != null) {
+            deletedDocs.set(doc);
+            deletedCount++;
+        }
+    }
+    
+    /**
+     * Purges deleted documents from the postings once they make up a quarter of the index
+     */
+    private void compactIfNeeded() {
+        if (deletedCount < 1024 || deletedCount * 4 < docCount) {
+            return;
+        }
+        
+        Iterator<PostingList> lists = postings.values().iterator();
+        while (lists.hasNext()) {
+            PostingList list = lists.next();
+            list.compact(deletedDocs);
+            if (list.size() == 0) {
+                lists.remove();
+            }
+        }
+        
+        // Renumber the surviving documents so the id table stays dense
+        int[] remap = new int[docCount];
+        int live = 0;
+        for (int doc = 0; doc < docCount; doc++) {
+            if (!deletedDocs.get(doc)) {
+                remap[doc] = live;
+                docTrackIds[live++] = docTrackIds[doc];
+            }
+        }
+        for (PostingList list : postings.values()) {
+            for (int i = 0; i < list.size(); i++) {
+                list.entries[i] = (remap[list.doc(i)] << FIELD_BITS) | list.fields(i);
+            }
+        }
+        trackDocs.replaceAll((trackId, doc) -> remap[doc]);
+        
+        logger.debug("Compacted search index from {} to {} documents", docCount, live);
+        docCount = live;
+        deletedDocs.clear();
+        deletedCount = 0;
+    }
+}
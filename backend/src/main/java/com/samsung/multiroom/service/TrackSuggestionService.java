@@ -0,0 +1,503 @@
+package com.samsung.multiroom.service;
+
+import com.samsung.multiroom.model.Track;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Type-ahead completion of artist, album and track names.
+ *
+ * Suggestion weights (number of tracks per name) are updated incrementally on
+ * every track change. A compact, immutable prefix index is rebuilt from them on
+ * a background thread and swapped in atomically, so lookups never block and
+ * never touch the database.
+ */
+@Service
+public class TrackSuggestionService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(TrackSuggestionService.class);
+    
+    public static final int MAX_SUGGESTIONS = 10;
+    
+    // Prefixes matching at most this many keys are answered by scanning the key range
+    private static final int SCAN_LIMIT = 64;
+    
+    // Quiet period after the last change before the index is rebuilt
+    private static final long REBUILD_DELAY_MS = 2000;
+    
+    public enum SuggestionType { ARTIST, ALBUM, TITLE }
+    
+    @Autowired
+    private TrackCatalog trackCatalog;
+    
+    // Number of tracks carrying each suggestion, maintained incrementally
+    private final Map<SuggestionKey, Integer> weights = new HashMap<>();
+    
+    private volatile PrefixIndex index = PrefixIndex.build(Collections.emptyMap());
+    
+    private final ScheduledExecutorService rebuildExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "suggestion-index-rebuild");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean rebuildScheduled = new AtomicBoolean(false);
+    
+    /**
+     * One completion offered to the user
+     */
+    public static class Suggestion {
+        private final String text;
+        private final SuggestionType type;
+        private final int trackCount;
+        
+        public Suggestion(String text, SuggestionType type, int trackCount) {
+            this.text = text;
+            this.type = type;
+            this.trackCount = trackCount;
+        }
+        
+        public String getText() { return text; }
+        public SuggestionType getType() { return type; }
+        public int getTrackCount() { return trackCount; }
+    }
+    
+    private static class SuggestionKey {
+        private final SuggestionType type;
+        private final String text;
+        
+        public SuggestionKey(SuggestionType type, String text) {
+            this.type = type;
+            this.text = text;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof SuggestionKey)) return false;
+            SuggestionKey other = (SuggestionKey) o;
+            return type == other.type && text.equals(other.text);
+        }
+        
+        @Override
+        public int hashCode() {
+            return 31 * type.hashCode() + text.hashCode();
+        }
+    }
+    
+    /**
+     * Loads suggestion weights from the track catalog (at startup, by StartupWarmupService)
+     */
+    public void loadSuggestions() {
+        synchronized (weights) {
+            weights.clear();
+            trackCatalog.forEachTrack(track -> {
+                if (track.getCanonicalTrackId() == null) { // duplicate copies are not listed
+                    adjustWeights(track, 1);
+                }
+            });
+        }
+        rebuildIndex();
+    }
+    
+    /**
+     * Applies a track change to the suggestion weights and schedules a rebuild
+     */
+    public void trackChanged(Track previous, Track current) {
+        synchronized (weights) {
+            if (previous != null) {
+                adjustWeights(previous, -1);
+            }
+            if (current != null) {
+                adjustWeights(current, 1);
+            }
+        }
+        scheduleRebuild();
+    }
+    
+    /**
+     * Returns the most common names starting with the given prefix
+     */
+    public List<Suggestion> suggest(String prefix, int limit) {
+        if (prefix == null || prefix.isBlank() || limit <= 0) {
+            return List.of();
+        }
+        return index.lookup(TrackSearchService.normalize(prefix).trim(), Math.min(limit, MAX_SUGGESTIONS));
+    }
+    
+    /**
+     * Coalesces bursts of changes (such as a library scan) into a single background rebuild
+     */
+    private void scheduleRebuild() {
+        if (rebuildScheduled.compareAndSet(false, true)) {
+            rebuildExecutor.schedule(() -> {
+                rebuildScheduled.set(false);
+                rebuildIndex();
+            }, REBUILD_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    private void rebuildIndex() {
+        long start = System.currentTimeMillis();
+        Map<SuggestionKey, Integer> snapshot;
+        synchronized (weights) {
+            snapshot = new HashMap<>(weights);
+        }
+        
+        try {
+            index = PrefixIndex.build(snapshot);
+            logger.debug("Rebuilt suggestion index with {} entries in {} ms",
+                        snapshot.size(), System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            logger.error("Error rebuilding suggestion index: ", e);
+        }
+    }
+    
+    private void adjustWeights(Track track, int delta) {
+        adjustWeight(SuggestionType.ARTIST, track.getArtist(), delta);
+        adjustWeight(SuggestionType.ALBUM, track.getAlbum(), delta);
+        adjustWeight(SuggestionType.TITLE, track.getTitle(), delta);
+    }
+    
+    private void adjustWeight(SuggestionType type, String text, int delta) {
+        if (text == null || text.isBlank()) {
+            return;
+        }
+        weights.compute(new SuggestionKey(type, text.trim()), (key, count) -> {
+            int updated = (count != null ? count : 0) + delta;
+            return updated > 0 ? updated : null;
+        });
+    }
+    
+    /**
+     * Immutable prefix index over normalized suggestion keys.
+     *
+     * Keys are packed into one char array in sorted order. Every prefix that
+     * matches more than SCAN_LIMIT keys is a node in a small upper trie holding
+     * its precomputed top suggestions; rarer prefixes are resolved by binary
+     * search and a short scan of the sorted keys.
+     */
+    private static class PrefixIndex {
+        // Suggestion entries
+        private final String[] entryText;
+        private final SuggestionType[] entryType;
+        private final int[] entryWeight;
+        
+        // Sorted keys: key i is keyChars[keyStart[i] .. keyStart[i + 1]) and refers to entry keyEntry[i]
+        private final char[] keyChars;
+        private final int[] keyStart;
+        private final int[] keyEntry;
+        
+        // Upper trie; children of node n are childLabel/childNode[childStart[n] .. childStart[n + 1])
+        private final int[] childStart;
+        private final char[] childLabel;
+        private final int[] childNode;
+        private final int[][] nodeTop;
+        
+        private PrefixIndex(String[] entryText, SuggestionType[] entryType, int[] entryWeight,
+                            char[] keyChars, int[] keyStart, int[] keyEntry,
+                            int[] childStart, char[] childLabel, int[] childNode, int[][] nodeTop) {
+            this.entryText = entryText;
+            this.entryType = entryType;
+            this.entryWeight = entryWeight;
+            this.keyChars = keyChars;
+            this.keyStart = keyStart;
+            this.keyEntry = keyEntry;
+            this.childStart = childStart;
+            this.childLabel = childLabel;
+            this.childNode = childNode;
+            this.nodeTop = nodeTop;
+        }
+        
+        public static PrefixIndex build(Map<SuggestionKey, Integer> weights) {
+            int entryCount = weights.size();
+            String[] entryText = new String[entryCount];
+            SuggestionType[] entryType = new SuggestionType[entryCount];
+            int[] entryWeight = new int[entryCount];
+            
+            // Each entry is reachable from its full name and, for artists and albums, from every word in it
+            List<String> keys = new ArrayList<>();
+            List<Integer> keyEntries = new ArrayList<>();
+            int entry = 0;
+            for (Map.Entry<SuggestionKey, Integer> weight : weights.entrySet()) {
+                entryText[entry] = weight.getKey().text;
+                entryType[entry] = weight.getKey().type;
+                entryWeight[entry] = weight.getValue();
+                
+                String normalized = TrackSearchService.normalize(weight.getKey().text);
+                keys.add(normalized);
+                keyEntries.add(entry);
+                if (weight.getKey().type != SuggestionType.TITLE) {
+                    for (int i = 1; i < normalized.length(); i++) {
+                        if (normalized.charAt(i - 1) == ' ' && normalized.charAt(i) != ' ') {
+                            keys.add(normalized.substring(i));
+                            keyEntries.add(entry);
+                        }
+                    }
+                }
+                entry++;
+            }
+            
+            Integer[] order = new Integer[keys.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparing(keys::get));
+            
+            int totalChars = 0;
+            for (String key : keys) {
+                totalChars += key.length();
+            }
+            char[] keyChars = new char[totalChars];
+            int[] keyStart = new int[order.length + 1];
+            int[] keyEntry = new int[order.length];
+            int offset = 0;
+            for (int i = 0; i < order.length; i++) {
+                String key = keys.get(order[i]);
+                key.getChars(0, key.length(), keyChars, offset);
+                keyStart[i] = offset;
+                keyEntry[i] = keyEntries.get(order[i]);
+                offset += key.length();
+            }
+            keyStart[order.length] = offset;
+            
+            TrieBuilder trie = new TrieBuilder(keyChars, keyStart, keyEntry, entryWeight, entryText);
+            trie.build(0, order.length, 0);
+            
+            return new PrefixIndex(entryText, entryType, entryWeight, keyChars, keyStart, keyEntry,
+                                   trie.childStartArray(), trie.childLabelArray(), trie.childNodeArray(),
+                                   trie.nodeTop.toArray(new int[0][]));
+        }
+        
+        public List<Suggestion> lookup(String prefix, int limit) {
+            // Walk the upper trie as far as the prefix goes
+            int node = 0;
+            int depth = 0;
+            while (depth < prefix.length()) {
+                int child = findChild(node, prefix.charAt(depth));
+                if (child < 0) {
+                    break;
+                }
+                node = child;
+                depth++;
+            }
+            
+            int[] top;
+            if (depth == prefix.length()) {
+                top = nodeTop[node];
+            } else {
+                // Rare prefix: only a few keys can match, rank them directly
+                int lo = lowerBound(prefix);
+                int hi = lo;
+                while (hi < keyEntry.length && startsWith(hi, prefix)) {
+                    hi++;
+                }
+                top = rankRange(keyEntry, entryWeight, entryText, lo, hi);
+            }
+            
+            List<Suggestion> suggestions = new ArrayList<>(Math.min(limit, top.length));
+            for (int i = 0; i < top.length && i < limit; i++) {
+                suggestions.add(new Suggestion(entryText[top[i]], entryType[top[i]], entryWeight[top[i]]));
+            }
+            return suggestions;
+        }
+        
+        private int findChild(int node, char label) {
+            int lo = childStart[node];
+            int hi = childStart[node + 1] - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (childLabel[mid] < label) {
+                    lo = mid + 1;
+                } else if (childLabel[mid] > label) {
+                    hi = mid - 1;
+                } else {
+                    return childNode[mid];
+                }
+            }
+            return -1;
+        }
+        
+        // First key that is not less than the prefix
+        private int lowerBound(String prefix) {
+            int lo = 0;
+            int hi = keyEntry.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (compareKey(mid, prefix) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+        
+        private int compareKey(int key, String other) {
+            int start = keyStart[key];
+            int length = keyStart[key + 1] - start;
+            int common = Math.min(length, other.length());
+            for (int i = 0; i < common; i++) {
+                int cmp = Character.compare(keyChars[start + i], other.charAt(i));
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return Integer.compare(length, other.length());
+        }
+        
+        private boolean startsWith(int key, String prefix) {
+            int start = keyStart[key];
+            if (keyStart[key + 1] - start < prefix.length()) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length(); i++) {
+                if (keyChars[start + i] != prefix.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+    
+    /**
+     * Builds the upper trie over ranges of sorted keys sharing a prefix
+     */
+    private static class TrieBuilder {
+        private final char[] keyChars;
+        private final int[] keyStart;
+        private final int[] keyEntry;
+        private final int[] entryWeight;
+        private final String[] entryText;
+        
+        private final List<int[]> children = new ArrayList<>();
+        private final List<char[]> labels = new ArrayList<>();
+        private final List<int[]> nodeTop = new ArrayList<>();
+        
+        public TrieBuilder(char[] keyChars, int[] keyStart, int[] keyEntry, int[] entryWeight, String[] entryText) {
+            this.keyChars = keyChars;
+            this.keyStart = keyStart;
+            this.keyEntry = keyEntry;
+            this.entryWeight = entryWeight;
+            this.entryText = entryText;
+        }
+        
+        // Creates the node for keys [lo, hi), which share their first 'depth' chars
+        public int build(int lo, int hi, int depth) {
+            int node = nodeTop.size();
+            nodeTop.add(null);
+            children.add(null);
+            labels.add(null);
+            
+            List<Integer> childNodes = new ArrayList<>();
+            StringBuilder childLabels = new StringBuilder();
+            List<int[]> childTops = new ArrayList<>();
+            
+            // Keys ending at this depth sort first
+            int i = lo;
+            while (i < hi && keyLength(i) == depth) {
+                i++;
+            }
+            int ownLo = lo;
+            int ownHi = i;
+            
+            while (i < hi) {
+                char label = keyChars[keyStart[i] + depth];
+                int j = i + 1;
+                while (j < hi && keyChars[keyStart[j] + depth] == label) {
+                    j++;
+                }
+                if (j - i > SCAN_LIMIT) {
+                    int child = build(i, j, depth + 1);
+                    childNodes.add(child);
+                    childLabels.append(label);
+                    childTops.add(nodeTop.get(child));
+                } else {
+                    childTops.add(rankRange(keyEntry, entryWeight, entryText, i, j));
+                }
+                i = j;
+            }
+            
+            childTops.add(rankRange(keyEntry, entryWeight, entryText, ownLo, ownHi));
+            nodeTop.set(node, mergeTops(childTops));
+            
+            int[] nodes = new int[childNodes.size()];
+            for (int c = 0; c < nodes.length; c++) {
+                nodes[c] = childNodes.get(c);
+            }
+            children.set(node, nodes);
+            labels.set(node, childLabels.toString().toCharArray());
+            return node;
+        }
+        
+        private int keyLength(int key) {
+            return keyStart[key + 1] - keyStart[key];
+        }
+        
+        private int[] mergeTops(List<int[]> tops) {
+            Set<Integer> candidates = new LinkedHashSet<>();
+            for (int[] top : tops) {
+                for (int entry : top) {
+                    candidates.add(entry);
+                }
+            }
+            return topEntries(candidates, entryWeight, entryText);
+        }
+        
+        public int[] childStartArray() {
+            int[] start = new int[children.size() + 1];
+            for (int n = 0; n < children.size(); n++) {
+                start[n + 1] = start[n] + children.get(n).length;
+            }
+            return start;
+        }
+        
+        public char[] childLabelArray() {
+            StringBuilder all = new StringBuilder();
+            for (char[] label : labels) {
+                all.append(label);
+            }
+            return all.toString().toCharArray();
+        }
+        
+        public int[] childNodeArray() {
+            int total = 0;
+            for (int[] nodes : children) {
+                total += nodes.length;
+            }
+            int[] all = new int[total];
+            int offset = 0;
+            for (int[] nodes : children) {
+                System.arraycopy(nodes, 0, all, offset, nodes.length);
+                offset += nodes.length;
+            }
+            return all;
+        }
+    }
+    
+    private static int[] rankRange(int[] keyEntry, int[] entryWeight, String[] entryText, int lo, int hi) {
+        Set<Integer> candidates = new LinkedHashSet<>();
+        for (int i = lo; i < hi; i++) {
+            candidates.add(keyEntry[i]);
+        }
+        return topEntries(candidates, entryWeight, entryText);
+    }
+    
+    // Best entries by track count, then shorter and alphabetically earlier names
+    private static int[] topEntries(Collection<Integer> candidates, int[] entryWeight, String[] entryText) {
+        return candidates.stream()
+                .sorted(Comparator.<Integer>comparingInt(e -> -entryWeight[e])
+                        .thenComparingInt(e -> entryText[e].length())
+                        .thenComparing(e -> entryText[e]))
+                .limit(MAX_SUGGESTIONS)
+                .mapToInt(Integer::intValue)
+                .toArray();
+    }
+}
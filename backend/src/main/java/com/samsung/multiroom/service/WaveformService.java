@@ -0,0 +1,376 @@
+package com.samsung.multiroom.service;
+
+import com.samsung.multiroom.config.MusicLibraryConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Waveform overviews for seek bars: the minimum and maximum sample of each of
+ * about a thousand buckets across a track, a few KB per track.
+ *
+ * Overviews are computed in the background by streaming decoded PCM (WAV and
+ * FLAC) and kept as side-car files named after the audio's content hash, so
+ * copies share one and a file with new audio gets a new one. The generator
+ * runs at low priority and reads files at a capped rate, much lower while
+ * speakers are playing, so it stays out of the way of playback.
+ *
+ * Side-car format, big-endian: the magic "MRWF", a version byte (1), three
+ * zero bytes, then the sample rate, frames per bucket and bucket count as
+ * 32-bit integers, then one signed byte minimum and maximum per bucket
+ * (scaled so 127 is full scale), across all channels.
+ */
+@Service
+public class WaveformService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(WaveformService.class);
+    
+    private static final int FORMAT_VERSION = 1;
+    
+    // Buckets per track; tracks of unknown length are merged down to at most twice this
+    private static final int TARGET_BUCKETS = 1000;
+    
+    // Sample frames decoded at a time
+    private static final int DECODE_FRAMES = 4096;
+    
+    // Read rates for the generator, idle and while any speaker plays
+    private static final long IDLE_BYTES_PER_SECOND = 8L * 1024 * 1024;
+    private static final long PLAYING_BYTES_PER_SECOND = 512L * 1024;
+    
+    // Content hashes per page of the background sweep
+    private static final int SWEEP_PAGE_SIZE = 500;
+    
+    @Autowired
+    private MusicLibraryConfig musicLibraryConfig;
+    
+    @Autowired
+    private NamedParameterJdbcTemplate jdbcTemplate;
+    
+    @Autowired
+    private AudioPlaybackService audioPlaybackService;
+    
+    private final ExecutorService generatorExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "waveform-generator");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicBoolean sweepRequested = new AtomicBoolean();
+    
+    // Content hash -> audio file of waveforms asked for by clients; generated before the sweep goes on
+    private final Map<String, Path> requested = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<String> requestOrder = new ConcurrentLinkedQueue<>();
+    
+    // Audio that could not be decoded; not retried until restart
+    private final Set<String> failedHashes = ConcurrentHashMap.newKeySet();
+    
+    /**
+     * A track's waveform: the side-car file, or null while it is being generated
+     */
+    public static class Waveform {
+        private final Path file;
+        private final String etag;
+        
+        public Waveform(Path file, String etag) {
+            this.file = file;
+            this.etag = etag;
+        }
+        
+        public Path getFile() { return file; }
+        public String getEtag() { return etag; } // quoted strong validator
+    }
+    
+    @EventListener(ApplicationReadyEvent.class)
+    public void generateOnStartup() {
+        generatePending();
+    }
+    
+    /**
+     * Start generating waveforms for audio that has none. Returns at once; if
+     * the generator is busy, it sweeps again when done.
+     */
+    public void generatePending() {
+        sweepRequested.set(true);
+        startGenerator();
+    }
+    
+    /**
+     * The waveform of a track. If it is not there yet, it is generated ahead of
+     * the background sweep and a Waveform without a file is returned. Returns
+     * null for unknown tracks and audio that cannot be decoded.
+     */
+    public Waveform getWaveform(long trackId) {
+        List<Map<String, Object>> rows = jdbcTemplate.queryForList(
+                "SELECT content_hash, file_path FROM scanned_files WHERE track_id = :trackId AND content_hash IS NOT NULL",
+                new MapSqlParameterSource("trackId", trackId));
+        if (rows.isEmpty()) {
+            return null;
+        }
+        String hash = (String) rows.get(0).get("content_hash");
+        Path audioFile = Paths.get((String) rows.get(0).get("file_path"));
+        String etag = "\"" + hash + "-" + FORMAT_VERSION + "\"";
+        
+        Path file = waveformPath(hash);
+        if (Files.isRegularFile(file)) {
+            return new Waveform(file, etag);
+        }
+        if (!isDecodable(audioFile.toString()) || failedHashes.contains(hash)) {
+            return null;
+        }
+        if (requested.putIfAbsent(hash, audioFile) == null) {
+            requestOrder.add(hash);
+        }
+        startGenerator();
+        return new Waveform(null, etag);
+    }
+    
+    private void startGenerator() {
+        if (running.compareAndSet(false, true)) {
+            generatorExecutor.submit(this::run);
+        }
+    }
+    
+    private void run() {
+        int generated = 0;
+        try {
+            generated += generateRequested();
+            while (sweepRequested.getAndSet(false)) {
+                String after = "";
+                Map<String, Path> page;
+                while (!(page = findAudioPage(after)).isEmpty()) {
+                    for (Map.Entry<String, Path> entry : page.entrySet()) {
+                        generated += generateRequested();
+                        after = entry.getKey();
+                        if (!Files.exists(waveformPath(after)) && !failedHashes.contains(after)
+                                && generate(after, entry.getValue())) {
+                            generated++;
+                        }
+                    }
+                }
+            }
+            generated += generateRequested();
+        } catch (RuntimeException e) {
+            logger.error("Waveform generation stopped: {}", e.getMessage());
+        } finally {
+            running.set(false);
+            // Work that came in while finishing up still gets a run
+            if ((sweepRequested.get() || !requestOrder.isEmpty()) && running.compareAndSet(false, true)) {
+                generatorExecutor.submit(this::run);
+            }
+        }
+        if (generated > 0) {
+            logger.info("Generated {} waveforms", generated);
+        }
+    }
+    
+    private int generateRequested() {
+        int generated = 0;
+        String hash;
+        while ((hash = requestOrder.poll()) != null) {
+            Path audioFile = requested.get(hash);
+            if (!Files.exists(waveformPath(hash)) && generate(hash, audioFile)) {
+                generated++;
+            }
+            requested.remove(hash);
+        }
+        return generated;
+    }
+    
+    /**
+     * One file per content hash of decodable audio, in hash order
+     */
+    private Map<String, Path> findAudioPage(String after) {
+        Map<String, Path> page = new LinkedHashMap<>();
+        MapSqlParameterSource parameters = new MapSqlParameterSource()
+                .addValue("after", after)
+                .addValue("limit", SWEEP_PAGE_SIZE);
+        jdbcTemplate.query("SELECT content_hash, MIN(file_path) AS file_path FROM scanned_files"
+                + " WHERE content_hash > :after AND (LOWER(file_path) LIKE '%.wav' OR LOWER(file_path) LIKE '%.flac')"
+                + " GROUP BY content_hash ORDER BY content_hash LIMIT :limit", parameters, row -> {
+                    page.put(row.getString("content_hash"), Paths.get(row.getString("file_path")));
+                });
+        return page;
+    }
+    
+    private boolean generate(String hash, Path audioFile) {
+        try (PcmDecoder decoder = PcmDecoder.open(new ThrottledInputStream(Files.newInputStream(audioFile)))) {
+            if (decoder == null) {
+                failedHashes.add(hash);
+                return false;
+            }
+            writeAtomically(waveformPath(hash), summarize(decoder));
+            return true;
+        } catch (IOException | RuntimeException e) {
+            failedHashes.add(hash);
+            logger.warn("Could not generate the waveform of {}: {}", audioFile, e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Stream the audio once, folding it into min/max buckets
+     */
+    static byte[] summarize(PcmDecoder decoder) throws IOException {
+        long totalFrames = decoder.getTotalFrames();
+        long framesPerBucket = totalFrames > 0
+                ? Math.max(1, (totalFrames + TARGET_BUCKETS - 1) / TARGET_BUCKETS)
+                : Math.max(1, decoder.getSampleRate() / 10);
+        byte[] minimums = new byte[TARGET_BUCKETS * 2];
+        byte[] maximums = new byte[TARGET_BUCKETS * 2];
+        int buckets = 0;
+        
+        double[][] buffer = new double[decoder.getChannels()][DECODE_FRAMES];
+        double minimum = Double.MAX_VALUE;
+        double maximum = -Double.MAX_VALUE;
+        long framesInBucket = 0;
+        int frames;
+        while ((frames = decoder.read(buffer)) > 0) {
+            for (int frame = 0; frame < frames; frame++) {
+                for (double[] channel : buffer) {
+                    minimum = Math.min(minimum, channel[frame]);
+                    maximum = Math.max(maximum, channel[frame]);
+                }
+                if (++framesInBucket == framesPerBucket) {
+                    if (buckets == minimums.length) {
+                        // Unknown length ran past the table: halve the resolution
+                        buckets = mergePairs(minimums, maximums, buckets);
+                        framesPerBucket *= 2;
+                        framesInBucket = framesPerBucket / 2;
+                        continue;
+                    }
+                    minimums[buckets] = quantize(minimum);
+                    maximums[buckets] = quantize(maximum);
+                    buckets++;
+                    minimum = Double.MAX_VALUE;
+                    maximum = -Double.MAX_VALUE;
+                    framesInBucket = 0;
+                }
+            }
+        }
+        if (framesInBucket > 0 && buckets < minimums.length) {
+            minimums[buckets] = quantize(minimum);
+            maximums[buckets] = quantize(maximum);
+            buckets++;
+        }
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(20 + buckets * 2);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeBytes("MRWF");
+        out.writeByte(FORMAT_VERSION);
+        out.write(new byte[3]);
+        out.writeInt(decoder.getSampleRate());
+        out.writeInt((int) Math.min(Integer.MAX_VALUE, framesPerBucket));
+        out.writeInt(buckets);
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            out.writeByte(minimums[bucket]);
+            out.writeByte(maximums[bucket]);
+        }
+        return bytes.toByteArray();
+    }
+    
+    private static int mergePairs(byte[] minimums, byte[] maximums, int buckets) {
+        for (int bucket = 0; bucket < buckets / 2; bucket++) {
+            minimums[bucket] = (byte) Math.min(minimums[2 * bucket], minimums[2 * bucket + 1]);
+            maximums[bucket] = (byte) Math.max(maximums[2 * bucket], maximums[2 * bucket + 1]);
+        }
+        return buckets / 2;
+    }
+    
+    private static byte quantize(double sample) {
+        return (byte) Math.max(-128, Math.min(127, Math.round(sample * 127)));
+    }
+    
+    private static boolean isDecodable(String path) {
+        String name = path.toLowerCase();
+        return name.endsWith(".wav") || name.endsWith(".flac");
+    }
+    
+    private Path waveformPath(String hash) {
+        return Paths.get(musicLibraryConfig.getWaveformCachePath()).toAbsolutePath().normalize()
+                .resolve(hash.substring(0, 2)).resolve(hash + ".wf");
+    }
+    
+    private static void writeAtomically(Path file, byte[] content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path temp = Files.createTempFile(file.getParent(), ".tmp-", null);
+        try {
+            Files.write(temp, content);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+    
+    /**
+     * Paces reads to the generator's byte rate, checked per read so playback
+     * starting half way through a file slows the rest of it down
+     */
+    private class ThrottledInputStream extends FilterInputStream {
+        private long nextReadAt = System.nanoTime();
+        
+        ThrottledInputStream(InputStream in) {
+            super(in);
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value >= 0) {
+                pace(1);
+            }
+            return value;
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                pace(read);
+            }
+            return read;
+        }
+        
+        private void pace(int bytes) throws IOException {
+            long rate = audioPlaybackService.isPlaying() ? PLAYING_BYTES_PER_SECOND : IDLE_BYTES_PER_SECOND;
+            long now = System.nanoTime();
+            // No credit for time spent idle beyond the current read
+            nextReadAt = Math.max(nextReadAt, now) + TimeUnit.SECONDS.toNanos(bytes) / rate;
+            long wait = nextReadAt - now;
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted", e);
+                }
+            }
+        }
+    }
+}
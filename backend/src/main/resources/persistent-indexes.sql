@@ -0,0 +1,8 @@
+-- Unique indexes of the persistent profile, created once (see application-persistent.properties).
+-- Names match the @Index declarations on the entities.
+CREATE UNIQUE INDEX IF NOT EXISTS idx_speakers_mac_address ON speakers (mac_address);
+CREATE UNIQUE INDEX IF NOT EXISTS idx_speaker_groups_name ON speaker_groups (name);
+CREATE UNIQUE INDEX IF NOT EXISTS idx_tracks_file_path ON tracks (file_path);
+CREATE UNIQUE INDEX IF NOT EXISTS idx_scanned_files_file_path ON scanned_files (file_path);
+CREATE UNIQUE INDEX IF NOT EXISTS idx_playlists_name ON playlists (name);
+CREATE UNIQUE INDEX IF NOT EXISTS idx_scenes_name ON scenes (name);
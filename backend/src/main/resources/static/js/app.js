@@ -11,6 +11,9 @@ let currentGroups = [];
 let currentTracks = [];
 let currentPlaybackState = null;
 
+// Wait this long after the last keystroke before asking for suggestions
+const SUGGESTION_DELAY_MS = 150;
+
 async function initializeApp() {
     // Bind event listeners
     bindEventListeners();
@@ -71,6 +74,7 @@ function bindEventListeners() {
             searchTracks();
         }
     });
+    searchInput.addEventListener('input', debounce(updateSearchSuggestions, SUGGESTION_DELAY_MS));
     
     // Add group button
     document.getElementById('add-group-btn').addEventListener('click', showAddGroupModal);
@@ -255,6 +259,34 @@ async function refreshDevices() {
     }
 }
 
+// Fill the search box's suggestion list while the user types
+async function updateSearchSuggestions() {
+    const prefix = document.getElementById('search-input').value.trim();
+    const datalist = document.getElementById('search-suggestions');
+    
+    if (!prefix) {
+        datalist.innerHTML = '';
+        return;
+    }
+    
+    try {
+        const suggestions = await api.suggestTracks(prefix);
+        // A slower response for an earlier prefix must not replace newer suggestions
+        if (document.getElementById('search-input').value.trim() !== prefix) {
+            return;
+        }
+        datalist.innerHTML = '';
+        suggestions.forEach(suggestion => {
+            const option = document.createElement('option');
+            option.value = suggestion.text;
+            option.label = suggestion.type.toLowerCase();
+            datalist.appendChild(option);
+        });
+    } catch (error) {
+        console.error('Error updating search suggestions:', error);
+    }
+}
+
 async function searchTracks() {
     const query = document.getElementById('search-input').value.trim();
     if (!query) {
@@ -264,7 +296,11 @@ async function searchTracks() {
     
     try {
         showLoading(document.getElementById('tracks-container'));
-        const tracks = await api.searchTracks(query);
+        let tracks = await api.searchTracks(query);
+        if (tracks.length === 0) {
+            // Nothing matched exactly; retry tolerating typos
+            tracks = await api.searchTracks(query, 'fuzzy');
+        }
         currentTracks = tracks;
         
         const container = document.getElementById('tracks-container');
@@ -309,12 +345,26 @@ async function playTrack() {
         try {
             await api.playOnSpeaker(currentSpeakers[0].macAddress, currentTracks[0].id);
             showToast(`Playing track on ${currentSpeakers[0].name}`, 'success');
+            loadWaveform(currentTracks[0].id);
         } catch (error) {
             showToast('Failed to play track', 'error');
         }
     }
 }
 
+// Show the waveform of the playing track, polling while the server generates it
+async function loadWaveform(trackId, attempts = 5) {
+    try {
+        const waveform = await api.getWaveform(trackId);
+        if (waveform === null && attempts > 1) {
+            setTimeout(() => loadWaveform(trackId, attempts - 1), 5000);
+        }
+        drawWaveform(waveform);
+    } catch (error) {
+        drawWaveform(null);
+    }
+}
+
 async function pauseTrack() {
     // For demo, pause the first speaker
     if (currentSpeakers.length > 0) {
@@ -0,0 +1,97 @@
+package com.samsung.multiroom.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Integrated loudness cases 1 to 5 of EBU Tech 3341, all stereo 1 kHz sines
+ * at 48 kHz that must read -23 LUFS (or -33 for case 2) to within 0.1 LU
+ */
+class LoudnessMeterTest {
+    
+    private static final int SAMPLE_RATE = 48000;
+    
+    @Test
+    void measuresSineAtTargetLevel() {
+        LoudnessMeter meter = new LoudnessMeter(SAMPLE_RATE, 2);
+        sine(meter, 1000, -23, 20);
+        assertEquals(-23.0, meter.getIntegratedLoudness(), 0.1);
+    }
+    
+    @Test
+    void measuresQuieterSine() {
+        LoudnessMeter meter = new LoudnessMeter(SAMPLE_RATE, 2);
+        sine(meter, 1000, -33, 20);
+        assertEquals(-33.0, meter.getIntegratedLoudness(), 0.1);
+    }
+    
+    @Test
+    void leavesQuietPassagesBelowRelativeGate() {
+        LoudnessMeter meter = new LoudnessMeter(SAMPLE_RATE, 2);
+        sine(meter, 1000, -36, 10);
+        sine(meter, 1000, -23, 60);
+        sine(meter, 1000, -36, 10);
+        assertEquals(-23.0, meter.getIntegratedLoudness(), 0.1);
+    }
+    
+    @Test
+    void leavesSilenceBelowAbsoluteGate() {
+        LoudnessMeter meter = new LoudnessMeter(SAMPLE_RATE, 2);
+        sine(meter, 1000, -72, 10);
+        sine(meter, 1000, -36, 10);
+        sine(meter, 1000, -23, 60);
+        sine(meter, 1000, -36, 10);
+        sine(meter, 1000, -72, 10);
+        assertEquals(-23.0, meter.getIntegratedLoudness(), 0.1);
+    }
+    
+    @Test
+    void averagesLevelsAboveGate() {
+        LoudnessMeter meter = new LoudnessMeter(SAMPLE_RATE, 2);
+        sine(meter, 1000, -26, 20);
+        sine(meter, 1000, -20, 20.1);
+        sine(meter, 1000, -26, 20);
+        assertEquals(-23.0, meter.getIntegratedLoudness(), 0.1);
+    }
+    
+    @Test
+    void returnsAbsoluteGateForSilence() {
+        LoudnessMeter meter = new LoudnessMeter(SAMPLE_RATE, 2);
+        meter.process(new double[2][SAMPLE_RATE], SAMPLE_RATE);
+        assertEquals(LoudnessMeter.ABSOLUTE_GATE, meter.getIntegratedLoudness());
+        assertEquals(LoudnessMeter.ABSOLUTE_GATE, meter.getTruePeak());
+    }
+    
+    @Test
+    void findsPeakBetweenSamples() {
+        // A quarter of the sample rate at 45 degrees never samples its crest: sample peak -9 dB, true peak -6 dB
+        LoudnessMeter meter = new LoudnessMeter(SAMPLE_RATE, 1);
+        int frames = SAMPLE_RATE;
+        double[][] samples = new double[1][frames];
+        for (int i = 0; i < frames; i++) {
+            samples[0][i] = 0.5 * Math.sin(Math.PI / 2 * i + Math.PI / 4);
+        }
+        meter.process(samples, frames);
+        
+        // Tech 3341 allows +0.2 / -0.4 dB on true peak
+        double truePeak = meter.getTruePeak();
+        assertTrue(truePeak > -6.02 - 0.4 && truePeak < -6.02 + 0.2, "true peak " + truePeak);
+    }
+    
+    private static void sine(LoudnessMeter meter, double frequency, double dbfs, double seconds) {
+        double amplitude = Math.pow(10.0, dbfs / 20.0);
+        int frames = (int) Math.round(seconds * SAMPLE_RATE);
+        double[][] buffer = new double[2][4800];
+        for (int start = 0; start < frames; start += buffer[0].length) {
+            int count = Math.min(buffer[0].length, frames - start);
+            for (int i = 0; i < count; i++) {
+                double sample = amplitude * Math.sin(2 * Math.PI * frequency * (start + i) / SAMPLE_RATE);
+                buffer[0][i] = sample;
+                buffer[1][i] = sample;
+            }
+            meter.process(buffer, count);
+        }
+    }
+}
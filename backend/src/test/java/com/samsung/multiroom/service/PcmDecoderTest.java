@@ -0,0 +1,168 @@
+package com.samsung.multiroom.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class PcmDecoderTest {
+    
+    private static final int FLAC_BLOCK_SIZE = 1152;
+    
+    /*
+     * The FLAC fixtures cycle through verbatim, FIXED 0-4 and LPC subframes,
+     * every stereo decorrelation mode and several Rice partition orders, and
+     * end on a short block. mono24.flac also starts with an ID3 tag, has a
+     * constant second block and 12 wasted bits per sample.
+     */
+    
+    @Test
+    void decodesStereoFlac() throws IOException {
+        int frames = 6 * FLAC_BLOCK_SIZE + 500;
+        int[][] expected = {new int[frames], noise(frames)};
+        for (int i = 0; i < frames; i++) {
+            expected[0][i] = triangle(i);
+        }
+        
+        try (PcmDecoder decoder = PcmDecoder.open(resource("stereo16.flac"))) {
+            assertNotNull(decoder);
+            assertEquals(44100, decoder.getSampleRate());
+            assertEquals(2, decoder.getChannels());
+            assertEquals(frames, decoder.getTotalFrames());
+            assertSamples(expected, decoder, 16);
+        }
+    }
+    
+    @Test
+    void decodesMonoFlacWithWastedBits() throws IOException {
+        int frames = 3000;
+        int[][] expected = new int[1][frames];
+        for (int i = 0; i < frames; i++) {
+            expected[0][i] = i >= FLAC_BLOCK_SIZE && i < 2 * FLAC_BLOCK_SIZE ? 0 : triangle(i) * 4096;
+        }
+        
+        try (PcmDecoder decoder = PcmDecoder.open(resource("mono24.flac"))) {
+            assertNotNull(decoder);
+            assertEquals(48000, decoder.getSampleRate());
+            assertEquals(1, decoder.getChannels());
+            assertSamples(expected, decoder, 24);
+        }
+    }
+    
+    @Test
+    void decodesIntegerWav() throws IOException {
+        int[][] expected = {{0, 32767, -32768, 1234, -1}, {-1000, 1, 0, -32767, 500}};
+        assertWav(expected, 16);
+        
+        int[][] expected24 = {{0, 8388607, -8388608, 123456, -1}};
+        assertWav(expected24, 24);
+    }
+    
+    @Test
+    void decodesFloatWav() throws IOException {
+        float[] samples = {0.0f, 0.5f, -0.25f, 1.0f, -1.0f};
+        ByteBuffer data = ByteBuffer.allocate(samples.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (float sample : samples) {
+            data.putFloat(sample);
+        }
+        
+        try (PcmDecoder decoder = PcmDecoder.open(wav(3, 1, 32, data.array()))) {
+            assertNotNull(decoder);
+            double[][] buffer = new double[1][16];
+            assertEquals(samples.length, decoder.read(buffer));
+            for (int i = 0; i < samples.length; i++) {
+                assertEquals(samples[i], buffer[0][i]);
+            }
+            assertEquals(-1, decoder.read(buffer));
+        }
+    }
+    
+    @Test
+    void returnsNullForOtherFormats() throws IOException {
+        byte[] mp3 = {'I', 'D', '3', 3, 0, 0, 0, 0, 0, 0, (byte) 0xFF, (byte) 0xFB};
+        assertNull(PcmDecoder.open(new ByteArrayInputStream("OggS and some more".getBytes(StandardCharsets.US_ASCII))));
+        assertNull(PcmDecoder.open(new ByteArrayInputStream(new byte[3])));
+        // An ID3 tag may start an MP3 as well as a FLAC file
+        assertNull(PcmDecoder.open(new ByteArrayInputStream(mp3)));
+    }
+    
+    private static void assertWav(int[][] expected, int bitsPerSample) throws IOException {
+        int channels = expected.length;
+        int bytesPerSample = bitsPerSample / 8;
+        ByteBuffer data = ByteBuffer.allocate(expected[0].length * channels * bytesPerSample)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < expected[0].length; i++) {
+            for (int[] channel : expected) {
+                for (int b = 0; b < bytesPerSample; b++) {
+                    data.put((byte) (channel[i] >> (8 * b)));
+                }
+            }
+        }
+        
+        try (PcmDecoder decoder = PcmDecoder.open(wav(1, channels, bitsPerSample, data.array()))) {
+            assertNotNull(decoder);
+            assertEquals(44100, decoder.getSampleRate());
+            assertEquals(channels, decoder.getChannels());
+            assertEquals(expected[0].length, decoder.getTotalFrames());
+            assertSamples(expected, decoder, bitsPerSample);
+        }
+    }
+    
+    // Reads in small buffers so frames and blocks straddle reads
+    private static void assertSamples(int[][] expected, PcmDecoder decoder, int bitsPerSample) throws IOException {
+        double scale = 1 << (bitsPerSample - 1);
+        double[][] buffer = new double[expected.length][1000];
+        int position = 0;
+        int frames;
+        while ((frames = decoder.read(buffer)) > 0) {
+            for (int channel = 0; channel < expected.length; channel++) {
+                for (int frame = 0; frame < frames; frame++) {
+                    assertEquals(expected[channel][position + frame], buffer[channel][frame] * scale,
+                            "channel " + channel + " frame " + (position + frame));
+                }
+            }
+            position += frames;
+        }
+        assertEquals(expected[0].length, position);
+    }
+    
+    private static InputStream wav(int format, int channels, int bitsPerSample, byte[] data) {
+        int blockAlign = channels * bitsPerSample / 8;
+        ByteBuffer header = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+        header.put("RIFF".getBytes(StandardCharsets.US_ASCII)).putInt(36 + data.length)
+                .put("WAVEfmt ".getBytes(StandardCharsets.US_ASCII)).putInt(16)
+                .putShort((short) format).putShort((short) channels).putInt(44100).putInt(44100 * blockAlign)
+                .putShort((short) blockAlign).putShort((short) bitsPerSample)
+                .put("data".getBytes(StandardCharsets.US_ASCII)).putInt(data.length);
+        byte[] file = new byte[44 + data.length];
+        System.arraycopy(header.array(), 0, file, 0, 44);
+        System.arraycopy(data, 0, file, 44, data.length);
+        return new ByteArrayInputStream(file);
+    }
+    
+    private static InputStream resource(String name) {
+        return PcmDecoderTest.class.getResourceAsStream("/audio/" + name);
+    }
+    
+    private static int triangle(int i) {
+        return Math.abs((i * 37) % 4000 - 2000) - 1000;
+    }
+    
+    private static int[] noise(int count) {
+        int[] samples = new int[count];
+        long state = 1;
+        for (int i = 0; i < count; i++) {
+            state = (state * 1103515245L + 12345) & 0x7FFFFFFFL;
+            samples[i] = (int) ((state >> 16) % 1001) - 500;
+        }
+        return samples;
+    }
+}
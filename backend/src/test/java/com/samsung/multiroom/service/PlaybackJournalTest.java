@@ -0,0 +1,166 @@
+package com.samsung.multiroom.service;
+
+import com.samsung.multiroom.config.MusicLibraryConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+class PlaybackJournalTest {
+    
+    private static final int RECORD_SIZE = 64;
+    private static final int RECORDS_PER_SEGMENT = 16384;
+    
+    @TempDir
+    Path directory;
+    
+    private final List<PlaybackJournal> opened = new ArrayList<>();
+    
+    @AfterEach
+    void closeJournals() {
+        for (PlaybackJournal journal : opened) {
+            journal.close();
+        }
+    }
+    
+    @Test
+    void replaysRecordsAfterCrash() {
+        PlaybackJournal journal = open();
+        assertTrue(journal.record("AA:BB", PlaybackJournal.EventType.PLAY, 7, 0));
+        assertTrue(journal.record("AA:BB", PlaybackJournal.EventType.VOLUME, -1, 30));
+        assertTrue(journal.record("AA:BB", PlaybackJournal.EventType.PAUSE, -1, 42));
+        assertTrue(journal.record("CC:DD", PlaybackJournal.EventType.PLAY, 9, 0));
+        
+        // No close: the second journal only has the segment to go on
+        PlaybackJournal reopened = open();
+        assertState(reopened.getState("AA:BB"), "PAUSED", 7, 30, 42);
+        assertState(reopened.getState("CC:DD"), "PLAYING", 9, -1, 0);
+    }
+    
+    @Test
+    void restoresStateFromSnapshot() throws IOException {
+        PlaybackJournal journal = open();
+        journal.record("AA:BB", PlaybackJournal.EventType.PLAY, 7, 0);
+        journal.record("AA:BB", PlaybackJournal.EventType.SEEK, -1, 95);
+        journal.record("AA:BB", PlaybackJournal.EventType.PAUSE, -1, 96);
+        journal.record("CC:DD", PlaybackJournal.EventType.VOLUME, -1, 12);
+        journal.close();
+        opened.remove(journal);
+        
+        // Replay starts after the snapshot taken on close, so the records themselves are not needed
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (file.getFileName().toString().startsWith("segment-")) {
+                    Files.write(file, new byte[(int) Files.size(file)]);
+                }
+            }
+        }
+        
+        PlaybackJournal reopened = open();
+        assertState(reopened.getState("AA:BB"), "PAUSED", 7, -1, 96);
+        assertState(reopened.getState("CC:DD"), "STOPPED", -1, 12, 0);
+    }
+    
+    @Test
+    void continuesInNextSegmentWhenFull() {
+        PlaybackJournal journal = open();
+        for (int i = 0; i < RECORDS_PER_SEGMENT + 10; i++) {
+            assertTrue(journal.record("AA:BB", PlaybackJournal.EventType.VOLUME, -1, i % 101));
+        }
+        assertTrue(Files.exists(directory.resolve("segment-000000000001.journal")));
+        
+        PlaybackJournal reopened = open();
+        assertState(reopened.getState("AA:BB"), "STOPPED", -1, (RECORDS_PER_SEGMENT + 9) % 101, 0);
+    }
+    
+    @Test
+    void returnsStateAtEarlierTime() throws Exception {
+        PlaybackJournal journal = open();
+        journal.record("AA:BB", PlaybackJournal.EventType.VOLUME, -1, 10);
+        Thread.sleep(5);
+        long between = System.currentTimeMillis();
+        Thread.sleep(5);
+        journal.record("AA:BB", PlaybackJournal.EventType.VOLUME, -1, 20);
+        
+        List<PlaybackJournal.HistoryEntry> earlier = journal.getStatesAt(between);
+        assertEquals(1, earlier.size());
+        assertEquals(10, earlier.get(0).getVolume());
+        assertEquals(20, journal.getStatesAt(System.currentTimeMillis()).get(0).getVolume());
+    }
+    
+    @Test
+    void keepsSealedSegmentWhenNextCannotBeMapped() throws IOException {
+        PlaybackJournal journal = open();
+        // A directory in place of the next segment file cannot be mapped
+        Path next = Files.createDirectory(directory.resolve("segment-000000000001.journal"));
+        for (int i = 0; i < RECORDS_PER_SEGMENT; i++) {
+            assertTrue(journal.record("AA:BB", PlaybackJournal.EventType.VOLUME, -1, 1));
+        }
+        byte[] lastRecord = readLastRecord();
+        
+        assertFalse(journal.record("AA:BB", PlaybackJournal.EventType.VOLUME, -1, 2));
+        assertArrayEquals(lastRecord, readLastRecord());
+        assertEquals(2, journal.getState("AA:BB").getVolume());
+        
+        Files.delete(next);
+        assertTrue(journal.record("AA:BB", PlaybackJournal.EventType.VOLUME, -1, 3));
+        assertArrayEquals(lastRecord, readLastRecord());
+        
+        PlaybackJournal reopened = open();
+        assertEquals(3, reopened.getState("AA:BB").getVolume());
+    }
+    
+    @Test
+    void rejectsMacAddressesTooLongForRecord() {
+        PlaybackJournal journal = open();
+        String mac = "X".repeat(39);
+        assertFalse(journal.record(mac, PlaybackJournal.EventType.PLAY, 1, 0));
+        assertNull(journal.getState(mac));
+    }
+    
+    private PlaybackJournal open() {
+        MusicLibraryConfig config = new MusicLibraryConfig();
+        config.setJournalPath(directory.toString());
+        PlaybackJournal journal = new PlaybackJournal();
+        ReflectionTestUtils.setField(journal, "musicLibraryConfig", config);
+        ReflectionTestUtils.setField(journal, "deviceCache", mock(DeviceCache.class));
+        ReflectionTestUtils.setField(journal, "trackCatalog", mock(TrackCatalog.class));
+        journal.open();
+        opened.add(journal);
+        return journal;
+    }
+    
+    private byte[] readLastRecord() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+        try (FileChannel channel = FileChannel.open(directory.resolve("segment-000000000000.journal"),
+                StandardOpenOption.READ)) {
+            channel.read(buffer, (long) (RECORDS_PER_SEGMENT - 1) * RECORD_SIZE);
+        }
+        return buffer.array();
+    }
+    
+    private static void assertState(PlaybackJournal.SpeakerState state, String status, long trackId, int volume,
+                                    int position) {
+        assertEquals(status, state.getStatus());
+        assertEquals(trackId, state.getTrackId());
+        assertEquals(volume, state.getVolume());
+        assertEquals(position, state.positionAt(0));
+    }
+}
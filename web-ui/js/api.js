@@ -319,10 +319,38 @@ class MultiroomAPI {
         }
     }
 
-    // Search tracks
-    async searchTracks(query) {
+    // URL of a track's album art, scaled to fit size x size pixels
+    getAlbumArtUrl(hash, size) {
+        return `${this.baseUrl}/library/art/${hash}?size=${size}`;
+    }
+
+    // Get a track's waveform overview; null while it is still being generated
+    async getWaveform(trackId) {
+        try {
+            const response = await fetch(`${this.baseUrl}/library/tracks/${trackId}/waveform`);
+            if (response.status === 202) {
+                return null;
+            }
+            if (!response.ok) {
+                throw new Error(`HTTP error! status: ${response.status}`);
+            }
+            const view = new DataView(await response.arrayBuffer());
+            const buckets = view.getInt32(16);
+            return {
+                sampleRate: view.getInt32(8),
+                framesPerBucket: view.getInt32(12),
+                peaks: new Int8Array(view.buffer, 20, buckets * 2)
+            };
+        } catch (error) {
+            console.error('Error fetching waveform:', error);
+            throw error;
+        }
+    }
+
+    // Search tracks (mode is 'exact' or 'fuzzy')
+    async searchTracks(query, mode = 'exact') {
         try {
-            const response = await fetch(`${this.baseUrl}/library/search?query=${encodeURIComponent(query)}`);
+            const response = await fetch(`${this.baseUrl}/library/search?query=${encodeURIComponent(query)}&mode=${mode}`);
             if (!response.ok) {
                 throw new Error(`HTTP error! status: ${response.status}`);
             }
@@ -332,6 +360,20 @@ class MultiroomAPI {
             throw error;
         }
     }
+
+    // Get type-ahead suggestions for artists, albums and titles
+    async suggestTracks(prefix) {
+        try {
+            const response = await fetch(`${this.baseUrl}/library/suggest?prefix=${encodeURIComponent(prefix)}`);
+            if (!response.ok) {
+                throw new Error(`HTTP error! status: ${response.status}`);
+            }
+            return await response.json();
+        } catch (error) {
+            console.error('Error fetching suggestions:', error);
+            throw error;
+        }
+    }
 }
 
 // Create global API instance
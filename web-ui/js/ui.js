@@ -84,7 +84,7 @@ function createTrackItem(track, index) {
             </div>
             <div class="col-4">
                 <div class="d-flex align-items-center">
-                    <img src="images/album-placeholder.jpg" alt="Album Art" width="40" height="40" class="me-2">
+                    <img src="${track.albumArt ? api.getAlbumArtUrl(track.albumArt, 128) : 'images/album-placeholder.jpg'}" alt="Album Art" width="40" height="40" class="me-2" loading="lazy">
                     <div>
                         <div class="fw-bold">${track.title}</div>
                         <div class="text-muted small">${track.artist}</div>
@@ -168,4 +168,23 @@ function debounce(func, wait) {
 function updateVolumeDisplay(volume) {
     document.getElementById('volume-display').textContent = `${volume}%`;
     document.getElementById('volume-control').value = volume;
+}
+
+// Draw a waveform overview (min/max pairs) behind the seek bar
+function drawWaveform(waveform) {
+    const canvas = document.getElementById('waveform');
+    const context = canvas.getContext('2d');
+    context.clearRect(0, 0, canvas.width, canvas.height);
+    if (!waveform) {
+        return;
+    }
+    const buckets = waveform.peaks.length / 2;
+    const middle = canvas.height / 2;
+    context.fillStyle = getComputedStyle(canvas).color;
+    for (let x = 0; x < canvas.width; x++) {
+        const bucket = Math.floor(x * buckets / canvas.width);
+        const min = waveform.peaks[bucket * 2] / 127;
+        const max = waveform.peaks[bucket * 2 + 1] / 127;
+        context.fillRect(x, middle - max * middle, 1, Math.max(1, (max - min) * middle));
+    }
 }
\ No newline at end of file